@@ -0,0 +1,62 @@
+package bench;
+
+import common.AuthRequest;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures encoding and decoding the {@link AuthRequest} sent by every
+ * registration and login.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AuthBenchmark {
+
+    private AuthRequest request;
+    private byte[] encoded;
+
+    /**
+     * Builds the request and its bytes.
+     */
+    @Setup(Level.Trial)
+    public void setUp() {
+        request = new AuthRequest(AuthRequest.LOGIN, "benchmark-user", "a-reasonably-long-password");
+        encoded = request.getRequestBytes();
+    }
+
+    /**
+     * Serializes an authentication request.
+     *
+     * @return The request bytes.
+     */
+    @Benchmark
+    public byte[] encode() {
+        return request.getRequestBytes();
+    }
+
+    /**
+     * Deserializes an authentication request, as the server does.
+     *
+     * @return The request.
+     */
+    @Benchmark
+    public AuthRequest decode() {
+        AuthRequest decoded = new AuthRequest();
+        decoded.readRequestBytes(encoded);
+        return decoded;
+    }
+}
@@ -0,0 +1,128 @@
+package bench;
+
+import common.Codec;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the CPU cost of the value {@link Codec} and how many bytes it
+ * saves on the wire and at rest. Besides the operations per second, the
+ * <code>encode</code> benchmarks report the plain and encoded bytes per
+ * second; their ratio is the size of an encoded value against the plain one.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CodecBenchmark {
+
+    /**
+     * Length of the plain value, in bytes. Values below
+     * {@link Codec#THRESHOLD} are never compressed.
+     */
+    @Param({"256", "1024", "16384"})
+    public int valueSize;
+
+    private byte[] value;
+    private byte[] raw;
+    private byte[] deflated;
+
+    /**
+     * Builds the value and its encodings.
+     */
+    @Setup(Level.Trial)
+    public void setUp() {
+        value = Values.text(valueSize, 1);
+        raw = Codec.raw(value);
+        deflated = Codec.encode(value, Codec.DEFLATE);
+    }
+
+    /**
+     * Counts the bytes encoded by one benchmark thread.
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Bytes {
+        /**
+         * The bytes of the plain values.
+         */
+        public long plainBytes;
+
+        /**
+         * The bytes of the encoded values.
+         */
+        public long encodedBytes;
+
+        /**
+         * Starts counting again for each iteration.
+         */
+        @Setup(Level.Iteration)
+        public void reset() {
+            plainBytes = 0;
+            encodedBytes = 0;
+        }
+    }
+
+    /**
+     * Encodes a value without compressing it, as when compression is off.
+     *
+     * @param bytes The byte counters.
+     * @return The encoded value.
+     */
+    @Benchmark
+    public byte[] encodeRaw(Bytes bytes) {
+        byte[] encoded = Codec.encode(value, Codec.RAW);
+        bytes.plainBytes += value.length;
+        bytes.encodedBytes += encoded.length;
+        return encoded;
+    }
+
+    /**
+     * Compresses a value, or leaves it raw if that is not worth it.
+     *
+     * @param bytes The byte counters.
+     * @return The encoded value.
+     */
+    @Benchmark
+    public byte[] encodeDeflate(Bytes bytes) {
+        byte[] encoded = Codec.encode(value, Codec.DEFLATE);
+        bytes.plainBytes += value.length;
+        bytes.encodedBytes += encoded.length;
+        return encoded;
+    }
+
+    /**
+     * Decodes a raw value.
+     *
+     * @return The value.
+     */
+    @Benchmark
+    public byte[] decodeRaw() {
+        return Codec.decode(raw);
+    }
+
+    /**
+     * Decodes a compressed value, as a client or a <code>getWhen</code> of a
+     * connection without compression does.
+     *
+     * @return The value.
+     */
+    @Benchmark
+    public byte[] decodeDeflate() {
+        return Codec.decode(deflated);
+    }
+}
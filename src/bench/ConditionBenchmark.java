@@ -0,0 +1,123 @@
+package bench;
+
+import common.Codec;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import server.DataStorage;
+
+/**
+ * Measures the <code>getWhen</code> paths of {@link DataStorage}: checking a
+ * condition, and registering a waiter that a put then wakes. Waiters parked
+ * on other keys should cost nothing, since a put only looks at the waiters of
+ * its own key; <code>idleWaiters</code> checks that it stays so.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ConditionBenchmark {
+
+    private static final byte[] EXPECTED = "ready".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] OTHER = "waiting".getBytes(StandardCharsets.UTF_8);
+
+    /**
+     * Number of waiters parked on keys that are never stored.
+     */
+    @Param({"0", "10000"})
+    public int idleWaiters;
+
+    private DataStorage storage;
+    private byte[] stored;
+    private final AtomicInteger threads = new AtomicInteger();
+
+    /**
+     * Parks the idle waiters and stores the condition key.
+     */
+    @Setup(Level.Trial)
+    public void setUp() {
+        storage = new DataStorage();
+        for (int i = 0; i < idleWaiters; i++) {
+            storage.whenCondition("idle" + i, EXPECTED);
+        }
+        stored = Codec.raw(EXPECTED);
+        storage.put("condition", stored);
+    }
+
+    /**
+     * Closes the storage.
+     */
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        storage.close();
+    }
+
+    /**
+     * The condition key of one benchmark thread.
+     */
+    @State(Scope.Thread)
+    public static class Waiter {
+        private String key;
+
+        /**
+         * Gives the thread its own key, so threads do not wake each other.
+         *
+         * @param benchmark The benchmark state.
+         */
+        @Setup(Level.Trial)
+        public void setUp(ConditionBenchmark benchmark) {
+            key = "wake" + benchmark.threads.getAndIncrement();
+        }
+    }
+
+    /**
+     * Checks a condition that holds.
+     *
+     * @return true.
+     */
+    @Benchmark
+    public boolean conditionHolds() {
+        return storage.isConditionSatisfied("condition", EXPECTED);
+    }
+
+    /**
+     * Checks a condition that does not hold.
+     *
+     * @return false.
+     */
+    @Benchmark
+    public boolean conditionFails() {
+        return storage.isConditionSatisfied("condition", OTHER);
+    }
+
+    /**
+     * Registers a waiter, stores the value it waits for, which wakes it, and
+     * removes the key again.
+     *
+     * @param waiter The key of the thread.
+     * @return Whether the waiter was woken: always.
+     */
+    @Benchmark
+    public boolean wake(Waiter waiter) {
+        CompletableFuture<Void> woken = storage.whenCondition(waiter.key, EXPECTED);
+        storage.put(waiter.key, stored);
+        storage.remove(waiter.key);
+        return woken.isDone();
+    }
+}
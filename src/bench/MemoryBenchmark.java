@@ -0,0 +1,172 @@
+package bench;
+
+import common.Codec;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import server.DataStorage;
+import server.HeapStorage;
+import server.OffHeapStorage;
+
+/**
+ * Measures what the pairs cost the Java heap in each storage engine: the
+ * time to store them, the garbage collections they cause, and the heap and
+ * engine bytes per pair once they are stored. Values on the heap are objects
+ * the collector has to trace; off the heap they are only an index entry.
+ * <p>
+ * Each iteration times a single fill. JMH adds the counters of every
+ * measured iteration and fork up, so there is one of each; run the benchmark
+ * again rather than raising them. The fork uses the serial collector, as the
+ * server does on a single processor, told to compact the whole heap on a full
+ * collection: otherwise it may leave the garbage of the last fill in place,
+ * and the heap in use would not drop when it should. Run with
+ * <code>-prof gc</code> for the allocation rate as well.
+ * </p>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 1)
+@Measurement(iterations = 1)
+@Fork(value = 1, jvmArgsAppend = {"-Xms2g", "-Xmx2g", "-XX:+UseSerialGC", "-XX:MarkSweepDeadRatio=0"})
+public class MemoryBenchmark {
+
+    /**
+     * The storage engine: <code>heap</code> or <code>offheap</code>.
+     */
+    @Param({"heap", "offheap"})
+    public String engine;
+
+    /**
+     * Number of pairs stored.
+     */
+    @Param({"1000000"})
+    public int entries;
+
+    /**
+     * Length of each value, in bytes.
+     */
+    @Param({"100"})
+    public int valueSize;
+
+    private byte[] value;
+
+    /**
+     * Builds the value.
+     */
+    @Setup(Level.Trial)
+    public void setUp() {
+        value = Codec.raw(Values.text(valueSize, 1));
+    }
+
+    /**
+     * What a fill cost, reported next to its time. It is measured around the
+     * timed fill, so the full collections it takes are not timed.
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Cost {
+        /**
+         * Heap taken per pair once they are stored, after a full collection.
+         */
+        public long heapBytesPerEntry;
+
+        /**
+         * Bytes per pair as the engine accounts them.
+         */
+        public long engineBytesPerEntry;
+
+        /**
+         * Garbage collections while storing.
+         */
+        public long gcCount;
+
+        /**
+         * Milliseconds spent in garbage collections while storing.
+         */
+        public long gcMillis;
+
+        private long heapBefore;
+        private long[] gcBefore;
+        private DataStorage storage;
+
+        /**
+         * Collects the garbage and takes the heap in use before the fill.
+         */
+        @Setup(Level.Invocation)
+        public void before() {
+            heapBefore = usedHeap();
+            gcBefore = collections();
+        }
+
+        /**
+         * Takes the collections and the heap in use after the fill, while the
+         * storage is still reachable, and then drops it.
+         *
+         * @param benchmark The benchmark state.
+         */
+        @TearDown(Level.Invocation)
+        public void after(MemoryBenchmark benchmark) {
+            long[] gcAfter = collections();
+            gcCount = gcAfter[0] - gcBefore[0];
+            gcMillis = gcAfter[1] - gcBefore[1];
+            heapBytesPerEntry = Math.max(0, usedHeap() - heapBefore) / benchmark.entries;
+            engineBytesPerEntry = storage.getMemoryBytes() / benchmark.entries;
+            storage.close();
+            storage = null;
+        }
+    }
+
+    /**
+     * Stores the pairs in a new storage.
+     *
+     * @param cost Keeps the storage until what it cost is measured.
+     * @return The number of pairs stored. Not the storage itself, which the
+     *         blackhole could keep until the next fill is measured.
+     */
+    @Benchmark
+    public long fill(Cost cost) {
+        DataStorage storage = new DataStorage(engine.equals("offheap") ? new OffHeapStorage() : new HeapStorage());
+        for (int i = 0; i < entries; i++) {
+            // A copy each, as values arrive from the network
+            storage.put("key" + i, value.clone());
+        }
+        cost.storage = storage;
+        return storage.size();
+    }
+
+    /**
+     * Gets the heap in use after a full collection.
+     */
+    private static long usedHeap() {
+        System.gc();
+        return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+    }
+
+    /**
+     * Gets the number of collections so far and the milliseconds they took.
+     */
+    private static long[] collections() {
+        long count = 0;
+        long millis = 0;
+        for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+            count += Math.max(0, collector.getCollectionCount());
+            millis += Math.max(0, collector.getCollectionTime());
+        }
+        return new long[] {count, millis};
+    }
+}
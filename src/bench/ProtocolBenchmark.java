@@ -0,0 +1,124 @@
+package bench;
+
+import common.Frame;
+import common.PayloadWriter;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the wire protocol: encoding and decoding {@link Frame}s and the
+ * payload of a <code>multiGet</code> response. Nothing is shared between
+ * threads, so they should scale with them.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ProtocolBenchmark {
+
+    /**
+     * Length of the payload of the frames, in bytes.
+     */
+    @Param({"64", "4096"})
+    public int payloadSize;
+
+    /**
+     * Number of pairs in the <code>multiGet</code> response.
+     */
+    @Param({"100"})
+    public int pairs;
+
+    private Frame frame;
+    private ByteBuffer encoded;
+    private Map<String, byte[]> found;
+    private byte[] multiGetPayload;
+
+    /**
+     * Builds the frames and payloads to decode.
+     */
+    @Setup(Level.Trial)
+    public void setUp() {
+        frame = new Frame(Frame.PUT, 1, Frame.OK, Values.text(payloadSize, 1));
+        encoded = frame.encode();
+        found = new HashMap<>();
+        for (int i = 0; i < pairs; i++) {
+            found.put("key" + i, Values.text(payloadSize / 4, i));
+        }
+        multiGetPayload = multiGetResponse();
+    }
+
+    /**
+     * Encodes a frame with its length prefix.
+     *
+     * @return The encoded frame.
+     */
+    @Benchmark
+    public ByteBuffer encodeFrame() {
+        return frame.encode();
+    }
+
+    /**
+     * Decodes a frame from a buffer, as the selector front-end does.
+     *
+     * @return The frame.
+     * @throws IOException If the frame is malformed.
+     */
+    @Benchmark
+    public Frame decodeFrame() throws IOException {
+        return Frame.decode(encoded.duplicate());
+    }
+
+    /**
+     * Builds the payload of a <code>multiGet</code> response.
+     *
+     * @return The payload.
+     */
+    @Benchmark
+    public byte[] encodeMultiGet() {
+        return multiGetResponse();
+    }
+
+    /**
+     * Parses the payload of a <code>multiGet</code> response, as the client
+     * does.
+     *
+     * @return The pairs.
+     * @throws IOException If the payload is malformed.
+     */
+    @Benchmark
+    public Map<String, byte[]> decodeMultiGet() throws IOException {
+        DataInputStream in = new Frame(Frame.MULTI_GET, 1, Frame.OK, multiGetPayload).payloadStream();
+        int count = in.readInt();
+        Map<String, byte[]> pairs = new HashMap<>();
+        for (int i = 0; i < count; i++) {
+            pairs.put(in.readUTF(), PayloadWriter.readValue(in));
+        }
+        return pairs;
+    }
+
+    private byte[] multiGetResponse() {
+        PayloadWriter payload = new PayloadWriter().writeInt(found.size());
+        for (Map.Entry<String, byte[]> pair : found.entrySet()) {
+            payload.writeKey(pair.getKey()).writeValue(pair.getValue());
+        }
+        return payload.toByteArray();
+    }
+}
@@ -0,0 +1,218 @@
+package bench;
+
+import common.Frame;
+import common.PayloadWriter;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.GatheringByteChannel;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import server.BufferPool;
+import server.ResponseWriter;
+
+/**
+ * Measures how <code>multiGet</code> responses reach the socket: written
+ * field by field to an unbuffered stream and flushed after every pair, as the
+ * server did before, or assembled by a {@link ResponseWriter} and sent with
+ * one gathering write, alone or together with other pipelined responses.
+ * <p>
+ * The channel discards the bytes and counts the calls that would each be a
+ * system call on a socket. Besides the operations per second, every
+ * benchmark reports the writes and the responses per second; their ratio is
+ * the writes per response.
+ * </p>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ResponseWriterBenchmark {
+
+    /**
+     * Number of responses sent together by {@link #pipelined(Counters)}.
+     */
+    private static final int PIPELINE = 8;
+
+    /**
+     * Number of pairs in each response.
+     */
+    @Param({"1", "100", "1000"})
+    public int pairs;
+
+    private Map<String, byte[]> found;
+    private Frame response;
+    private CountingChannel channel;
+    private DataOutputStream unbuffered;
+    private ResponseWriter writer;
+
+    /**
+     * Builds the response and the writers.
+     */
+    @Setup(Level.Trial)
+    public void setUp() {
+        found = new LinkedHashMap<>();
+        for (int i = 0; i < pairs; i++) {
+            found.put("key" + i, Values.text(32, i));
+        }
+        PayloadWriter payload = new PayloadWriter().writeInt(found.size());
+        for (Map.Entry<String, byte[]> pair : found.entrySet()) {
+            payload.writeKey(pair.getKey()).writeValue(pair.getValue());
+        }
+        response = new Frame(Frame.MULTI_GET, 1, Frame.OK, payload.toByteArray());
+        channel = new CountingChannel();
+        unbuffered = new DataOutputStream(Channels.newOutputStream(channel));
+        writer = new ResponseWriter(channel, new BufferPool(4));
+    }
+
+    /**
+     * Returns the buffers of the writer.
+     */
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        writer.close();
+    }
+
+    /**
+     * Counts the writes and responses of one benchmark thread.
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Counters {
+        /**
+         * The writes made to the channel.
+         */
+        public long writes;
+
+        /**
+         * The responses sent.
+         */
+        public long responses;
+
+        /**
+         * Starts counting again for each iteration.
+         */
+        @Setup(Level.Iteration)
+        public void reset() {
+            writes = 0;
+            responses = 0;
+        }
+    }
+
+    /**
+     * Writes a response field by field, flushing after every pair.
+     *
+     * @param counters The counters.
+     * @throws IOException Never: the channel discards the bytes.
+     */
+    @Benchmark
+    public void unbuffered(Counters counters) throws IOException {
+        long before = channel.writes;
+        unbuffered.writeInt(Frame.HEADER_LENGTH + response.getPayload().length);
+        unbuffered.writeByte(Frame.VERSION);
+        unbuffered.writeByte(Frame.MULTI_GET);
+        unbuffered.writeInt(1);
+        unbuffered.writeByte(Frame.OK);
+        unbuffered.writeInt(found.size());
+        for (Map.Entry<String, byte[]> pair : found.entrySet()) {
+            unbuffered.writeUTF(pair.getKey());
+            unbuffered.writeInt(pair.getValue().length);
+            unbuffered.write(pair.getValue());
+            unbuffered.flush();
+        }
+        unbuffered.flush();
+        counters.writes += channel.writes - before;
+        counters.responses++;
+    }
+
+    /**
+     * Sends a response through a {@link ResponseWriter}.
+     *
+     * @param counters The counters.
+     * @throws IOException Never: the channel discards the bytes.
+     */
+    @Benchmark
+    public void responseWriter(Counters counters) throws IOException {
+        long before = channel.writes;
+        writer.add(response);
+        writer.flush();
+        counters.writes += channel.writes - before;
+        counters.responses++;
+    }
+
+    /**
+     * Sends {@value #PIPELINE} pipelined responses through a
+     * {@link ResponseWriter}, flushing once.
+     *
+     * @param counters The counters.
+     * @throws IOException Never: the channel discards the bytes.
+     */
+    @Benchmark
+    public void pipelined(Counters counters) throws IOException {
+        long before = channel.writes;
+        for (int i = 0; i < PIPELINE; i++) {
+            writer.add(response);
+        }
+        writer.flush();
+        counters.writes += channel.writes - before;
+        counters.responses += PIPELINE;
+    }
+
+    /**
+     * A channel that takes every byte and counts the calls.
+     */
+    private static final class CountingChannel implements GatheringByteChannel {
+        private long writes;
+
+        @Override
+        public int write(ByteBuffer source) {
+            writes++;
+            int length = source.remaining();
+            source.position(source.limit());
+            return length;
+        }
+
+        @Override
+        public long write(ByteBuffer[] sources, int offset, int length) {
+            writes++;
+            long written = 0;
+            for (int i = offset; i < offset + length; i++) {
+                written += sources[i].remaining();
+                sources[i].position(sources[i].limit());
+            }
+            return written;
+        }
+
+        @Override
+        public long write(ByteBuffer[] sources) {
+            return write(sources, 0, sources.length);
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -0,0 +1,154 @@
+package bench;
+
+import common.Codec;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.AbstractMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import server.DataStorage;
+import server.Snapshot;
+
+/**
+ * Measures how long the server takes to load its state at startup: a binary
+ * {@link Snapshot}, decoded by one thread per processor, against the Java
+ * serialized map earlier versions saved. Both end with every pair in a fresh
+ * {@link DataStorage}, as in the server. Each load is timed once per
+ * iteration; pass <code>-p entries=10000000</code> and a larger heap
+ * (<code>-jvmArgs -Xmx8g</code>) for the 10M case.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 1)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class SnapshotBenchmark {
+
+    /**
+     * Number of stored pairs.
+     */
+    @Param({"1000000"})
+    public int entries;
+
+    /**
+     * The format loaded: <code>snapshot</code> or <code>serialized</code>.
+     */
+    @Param({"snapshot", "serialized"})
+    public String format;
+
+    /**
+     * Length of each value, in bytes.
+     */
+    @Param({"64"})
+    public int valueSize;
+
+    private Path file;
+
+    /**
+     * Writes the state in the format measured.
+     *
+     * @throws IOException If the file cannot be written.
+     */
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        file = Files.createTempFile("bench-state", "." + format);
+        byte[] value = Values.text(valueSize, 1);
+        if (format.equals("snapshot")) {
+            Snapshot.write(file, Map.of(), () -> pairs(Codec.raw(value)), Map.of());
+        } else {
+            ConcurrentHashMap<String, byte[]> map = new ConcurrentHashMap<>();
+            // A copy each, or serialization would write the value only once
+            pairs(value).forEachRemaining(pair -> map.put(pair.getKey(), pair.getValue().clone()));
+            try (ObjectOutputStream out = new ObjectOutputStream(
+                    new BufferedOutputStream(Files.newOutputStream(file)))) {
+                out.writeObject(map);
+            }
+        }
+    }
+
+    /**
+     * Deletes the file.
+     *
+     * @throws IOException If it cannot be deleted.
+     */
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(file);
+    }
+
+    /**
+     * Loads the state into a new storage.
+     *
+     * @return The storage.
+     * @throws Exception If the state cannot be read.
+     */
+    @Benchmark
+    @SuppressWarnings("unchecked")
+    public DataStorage load() throws Exception {
+        DataStorage storage = new DataStorage();
+        if (format.equals("snapshot")) {
+            Snapshot.load(file, new Snapshot.Sink() {
+                @Override
+                public void user(String username, String password) {
+                }
+
+                @Override
+                public void pair(String key, byte[] value) {
+                    storage.put(key, value);
+                }
+
+                @Override
+                public void expiry(String key, long deadline) {
+                    storage.setDeadline(key, deadline);
+                }
+            }, Runtime.getRuntime().availableProcessors());
+        } else {
+            try (ObjectInputStream in = new ObjectInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+                Map<String, byte[]> pairs = (Map<String, byte[]>) in.readObject();
+                pairs.replaceAll((key, value) -> Codec.raw(value));
+                storage.putAll(pairs);
+            }
+        }
+        if (storage.size() != entries) {
+            throw new IllegalStateException("Loaded " + storage.size() + " of " + entries + " pairs.");
+        }
+        return storage;
+    }
+
+    private Iterator<Map.Entry<String, byte[]>> pairs(byte[] value) {
+        return new Iterator<>() {
+            private int next;
+
+            @Override
+            public boolean hasNext() {
+                return next < entries;
+            }
+
+            @Override
+            public Map.Entry<String, byte[]> next() {
+                return new AbstractMap.SimpleImmutableEntry<>("key" + next++, value);
+            }
+        };
+    }
+}
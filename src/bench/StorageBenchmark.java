@@ -0,0 +1,194 @@
+package bench;
+
+import common.Codec;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import server.DataStorage;
+import server.HeapStorage;
+import server.LsmStorage;
+import server.OffHeapStorage;
+import server.StorageEngine;
+
+/**
+ * Measures the operations the server runs against {@link DataStorage} for
+ * <code>put</code>, <code>get</code> and <code>multiGet</code>, on each
+ * storage engine. Run with <code>-t 1</code>, <code>-t 2</code> and so on
+ * (<code>make bench THREADS="1 2 4"</code>) to see how they scale: keys are
+ * picked at random among those stored, so threads only contend when they
+ * hit the same stripe.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StorageBenchmark {
+
+    /**
+     * Number of keys read by each <code>multiGet</code>.
+     */
+    private static final int BATCH = 16;
+
+    /**
+     * The storage engine: <code>heap</code>, <code>offheap</code> or
+     * <code>lsm</code>.
+     */
+    @Param({"heap", "offheap", "lsm"})
+    public String engine;
+
+    /**
+     * Number of keys stored before measuring.
+     */
+    @Param({"100000"})
+    public int keys;
+
+    /**
+     * Length of each value, in bytes.
+     */
+    @Param({"100"})
+    public int valueSize;
+
+    private DataStorage storage;
+    private Path directory;
+    private String[] names;
+    private byte[] value;
+    private final AtomicInteger threads = new AtomicInteger();
+
+    /**
+     * Fills the storage.
+     *
+     * @throws IOException If the directory of the LSM engine cannot be
+     *                     created.
+     */
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        StorageEngine data = switch (engine) {
+            case "heap" -> new HeapStorage();
+            case "offheap" -> new OffHeapStorage();
+            case "lsm" -> {
+                directory = Files.createTempDirectory("bench-lsm");
+                yield new LsmStorage(directory, 64L * 1024 * 1024);
+            }
+            default -> throw new IllegalArgumentException("Unknown engine: " + engine);
+        };
+        storage = new DataStorage(data);
+        value = Codec.raw(Values.text(valueSize, 1));
+        names = new String[keys];
+        for (int i = 0; i < keys; i++) {
+            names[i] = "key" + i;
+            storage.put(names[i], value);
+        }
+    }
+
+    /**
+     * Closes the storage and deletes the files of the LSM engine.
+     *
+     * @throws IOException If the files cannot be deleted.
+     */
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        storage.close();
+        if (directory != null) {
+            try (Stream<Path> files = Files.walk(directory)) {
+                for (Path file : files.sorted(Comparator.reverseOrder()).toList()) {
+                    Files.delete(file);
+                }
+            }
+        }
+    }
+
+    /**
+     * The keys of one benchmark thread.
+     */
+    @State(Scope.Thread)
+    public static class Cursor {
+        private String prefix;
+        private long next;
+
+        /**
+         * Gives the thread its own prefix for the keys it stores.
+         *
+         * @param benchmark The benchmark state.
+         */
+        @Setup(Level.Trial)
+        public void setUp(StorageBenchmark benchmark) {
+            prefix = "thread" + benchmark.threads.getAndIncrement() + "-";
+        }
+
+        private String fresh() {
+            return prefix + next++;
+        }
+    }
+
+    /**
+     * Reads a stored key.
+     *
+     * @return The value.
+     */
+    @Benchmark
+    public byte[] get() {
+        return storage.get(names[ThreadLocalRandom.current().nextInt(keys)]);
+    }
+
+    /**
+     * Reads {@value #BATCH} stored keys at once.
+     *
+     * @return The values.
+     */
+    @Benchmark
+    public Map<String, byte[]> multiGet() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        List<String> batch = new ArrayList<>(BATCH);
+        for (int i = 0; i < BATCH; i++) {
+            batch.add(names[random.nextInt(keys)]);
+        }
+        return storage.getAll(batch);
+    }
+
+    /**
+     * Stores a new key and removes it, so the number of keys stays the same.
+     *
+     * @param cursor The keys of the thread.
+     * @return Whether the key was stored.
+     */
+    @Benchmark
+    public boolean putAndRemove(Cursor cursor) {
+        String key = cursor.fresh();
+        boolean stored = storage.put(key, value);
+        storage.remove(key);
+        return stored;
+    }
+
+    /**
+     * Tries to store a key that already exists, which is rejected.
+     *
+     * @return Whether the key was stored: never.
+     */
+    @Benchmark
+    public boolean putExisting() {
+        return storage.put(names[ThreadLocalRandom.current().nextInt(keys)], value);
+    }
+}
@@ -0,0 +1,35 @@
+package bench;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Builds the values the benchmarks store and send.
+ */
+public final class Values {
+
+    private static final String[] WORDS = {"\"id\": ", "\"name\": ", "\"status\": \"active\", ", "\"tags\": [",
+            "\"created\": \"2024-01-01T00:00:00Z\", ", "], ", "{", "}", "\"count\": ", "null, ", "true, "};
+
+    private Values() {
+    }
+
+    /**
+     * Builds a JSON-like text value, which compresses about as well as the
+     * values clients store.
+     *
+     * @param length The length, in bytes.
+     * @param seed   Picks the words, so values of the same seed are equal.
+     * @return The value.
+     */
+    public static byte[] text(int length, long seed) {
+        Random random = new Random(seed);
+        StringBuilder text = new StringBuilder(length + 64);
+        while (text.length() < length) {
+            text.append(WORDS[random.nextInt(WORDS.length)]).append(random.nextInt(100_000));
+        }
+        byte[] bytes = text.toString().getBytes(StandardCharsets.UTF_8);
+        return Arrays.copyOf(bytes, length);
+    }
+}
@@ -1,12 +1,30 @@
 package client;
 
+import common.AuthRequest;
+import common.Codec;
+import common.Frame;
+import common.PayloadWriter;
+import common.ServerStats;
+import common.Transaction;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.net.ProtocolException;
 import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * The <code>Client</code> class represents a client that connects to a server
@@ -16,32 +34,179 @@ import java.util.Map;
  * <p>
  * This client communicates with the server over a socket, sending requests to
  * perform tasks like adding (put) and retrieving (get) data. It supports both
- * single and multiple key-value pair operations.
+ * single and multiple key-value pair operations. Requests and responses are
+ * exchanged as {@link Frame}s.
+ * </p>
+ * <p>
+ * Every operation has an asynchronous variant (<code>putAsync</code>,
+ * <code>getAsync</code>, ...) that returns as soon as the request is written,
+ * so many requests can be in flight on the same socket. A reader thread
+ * matches each response to its request by the request identifier. The
+ * synchronous methods wait for the asynchronous ones and print the outcome.
+ * The client is safe to use from several threads.
+ * </p>
+ * <p>
+ * On connecting, the client negotiates value compression with the server
+ * (see {@link Frame#NEGOTIATE}): large values are then compressed before they
+ * are sent and decompressed as they arrive, so they cross the network and are
+ * stored compressed. Servers that do not know the negotiation get plain
+ * values.
+ * </p>
+ * <p>
+ * With {@link #enableNearCache(int)}, <code>get</code> and
+ * <code>multiGet</code> answer repeated reads from a {@link NearCache} kept
+ * coherent by invalidations the server pushes on the connection.
  * </p>
  */
 public class Client {
 
     private static final String HOST = "localhost";
     private static final int PORT = 12345;
+
+    /**
+     * Size of the chunks values are streamed in.
+     */
+    public static final int CHUNK_SIZE = 64 * 1024;
+
+    /**
+     * Number of chunks a value stream sends or requests ahead of the
+     * responses.
+     */
+    public static final int STREAM_WINDOW = 4;
     public Socket ClientSocket;
     private DataInputStream in;
     private DataOutputStream out;
 
+    /**
+     * Serializes writes of request frames to the socket.
+     */
+    private final Lock writeLock = new ReentrantLock();
+
+    private final AtomicInteger nextRequestId = new AtomicInteger();
+
+    /**
+     * The requests sent and still waiting for a response, by request id.
+     */
+    private final ConcurrentHashMap<Integer, CompletableFuture<Frame>> pending = new ConcurrentHashMap<>();
+
+    /**
+     * Set once the connection is lost or closed; every later request fails.
+     */
+    private volatile IOException failure;
+
+    /**
+     * The codec negotiated with the server, or -1 if values are exchanged
+     * plain.
+     */
+    private byte codec = -1;
+
+    /**
+     * The cache of recent reads, or null if it is not enabled.
+     */
+    private volatile NearCache nearCache;
+
     /**
      * Constructs a new `Client` instance and establishes a connection to the
-     * server. It creates a socket connection to the specified host and port and
-     * initializes input/output streams.
+     * server on the default host and port.
      */
     public Client() {
+        this(HOST, PORT);
+    }
+
+    /**
+     * Constructs a new `Client` instance and establishes a connection to the
+     * server. It creates a socket connection to the specified host and port,
+     * initializes input/output streams and starts the thread that reads the
+     * responses. If the connection fails, the error is printed and every
+     * request fails; see {@link #isConnected()}.
+     *
+     * @param host The host name of the server.
+     * @param port The port number of the server.
+     */
+    public Client(String host, int port) {
+        this(host, port, true);
+    }
+
+    /**
+     * Constructs a new `Client` instance and establishes a connection to the
+     * server, like {@link #Client(String, int)}, choosing whether values are
+     * compressed. The negotiation waits for the server, so the connection is
+     * ready to use once the constructor returns.
+     *
+     * @param host        The host name of the server.
+     * @param port        The port number of the server.
+     * @param compression Whether to compress large values.
+     */
+    public Client(String host, int port, boolean compression) {
         try {
-            ClientSocket = new Socket(HOST, PORT);
-            this.in = new DataInputStream(ClientSocket.getInputStream());
-            this.out = new DataOutputStream(ClientSocket.getOutputStream());
+            ClientSocket = new Socket(host, port);
+            // Requests are already batched by the buffer; Nagle would hold the tail of a large one back
+            ClientSocket.setTcpNoDelay(true);
+            this.in = new DataInputStream(new BufferedInputStream(ClientSocket.getInputStream()));
+            this.out = new DataOutputStream(new BufferedOutputStream(ClientSocket.getOutputStream()));
+
+            Thread reader = new Thread(this::readResponses, "client-reader");
+            reader.setDaemon(true);
+            reader.start();
+            negotiate(compression);
         } catch (IOException e) {
+            failure = e;
             System.out.println("\u001B[31m[ERROR]\u001B[0m " + e.getMessage());
         }
     }
 
+    /**
+     * Agrees with the server on how values are encoded. A server that rejects
+     * the request predates the negotiation and gets plain values.
+     *
+     * @param compression Whether to offer compression.
+     * @throws IOException If the connection fails.
+     */
+    private void negotiate(boolean compression) throws IOException {
+        byte[] offered = compression ? new byte[] { 1, Codec.DEFLATE } : new byte[] { 0 };
+        Frame response = await(send(Frame.NEGOTIATE, offered));
+        if (response.getStatus() == Frame.OK && response.getPayload().length == 1) {
+            codec = response.getPayload()[0];
+        }
+    }
+
+    /**
+     * Gets the codec negotiated with the server.
+     *
+     * @return The codec tag (see {@link Codec}), or -1 if values are sent
+     *         plain.
+     */
+    public byte getCodec() {
+        return codec;
+    }
+
+    /**
+     * Starts caching reads in a {@link NearCache}, after asking the server to
+     * report the keys that change (see {@link Frame#TRACK}). Must be called
+     * once authenticated.
+     *
+     * @param capacity The most keys cached at once.
+     * @return true if the cache is enabled, false if the server refused.
+     * @throws IOException If the request fails.
+     */
+    public boolean enableNearCache(int capacity) throws IOException {
+        NearCache cache = new NearCache(capacity);
+        if (await(send(Frame.TRACK, new byte[0])).getStatus() != Frame.OK) {
+            return false;
+        }
+        nearCache = cache;
+        return true;
+    }
+
+    /**
+     * Gets the cache of recent reads, for its metrics.
+     *
+     * @return The cache, or null if it is not enabled.
+     */
+    public NearCache getNearCache() {
+        return nearCache;
+    }
+
     /**
      * Gets the host name of the server
      *
@@ -61,7 +226,9 @@ public class Client {
     }
 
     /**
-     * Gets the input stream for receiving data from the server.
+     * Gets the input stream for receiving data from the server. The responses
+     * are consumed by the reader thread of the client, so the stream must not
+     * be read directly.
      *
      * @return The input stream (`DataInputStream`).
      */
@@ -96,26 +263,129 @@ public class Client {
         ClientSocket = clientSocket;
     }
 
+    /**
+     * Checks whether the connection to the server is still usable, as far as
+     * the client knows. Use {@link #pingAsync()} to check it with the server.
+     *
+     * @return false if the connection failed or was closed.
+     */
+    public boolean isConnected() {
+        return failure == null;
+    }
+
+    /**
+     * Asynchronously checks that the server still answers on this connection.
+     *
+     * @return A future completed once the server answers.
+     */
+    public CompletableFuture<Void> pingAsync() {
+        return send(Frame.PING, new byte[0]).thenAccept(Client::check);
+    }
+
+    /**
+     * Sends an authentication (register or login) request to the server.
+     *
+     * @param request The authentication request.
+     * @return The status code of the response, {@link Frame#OK} if the client
+     *         is now authenticated.
+     */
+    public byte authenticate(AuthRequest request) {
+        try {
+            return await(send(Frame.AUTH, request.getRequestBytes())).getStatus();
+        } catch (IOException e) {
+            System.out.println("\u001B[31m[ERROR]\u001B[0m " + e.getMessage());
+            return Frame.SERVER_ERROR;
+        }
+    }
+
     /**
      * Sends a "put" request to the server to store a key-value pair.
      *
-     * @param key The key to be stored.
+     * @param key   The key to be stored.
+     * @param value The value to be stored.
      */
     public void put(String key, byte[] value) {
         try {
-            out.writeUTF("put");
-            out.writeUTF(key);
-
-            out.writeInt(value.length);
-            out.write(value);
+            if (await(putAsync(key, value))) {
+                System.out.println("\u001B[32m[RESPONSE]\u001B[0m Info successfully stored!");
+            } else {
+                System.out.println("\u001B[32m[RESPONSE]\u001B[0m " + Frame.describe(Frame.KEY_EXISTS));
+            }
+        } catch (IOException e) {
+            report(e);
+        }
+    }
 
-            System.out.println("\u001B[36m[INFO]\u001B[0m Task sent.");
-            String response = in.readUTF();
-            System.out.println("\u001B[32m[RESPONSE]\u001B[0m " + response);
+    /**
+     * Asynchronously stores a key-value pair.
+     *
+     * @param key   The key to be stored.
+     * @param value The value to be stored.
+     * @return A future completed with true if the pair was stored, or false if
+     *         the key already existed.
+     */
+    public CompletableFuture<Boolean> putAsync(String key, byte[] value) {
+        return written(List.of(key),
+                send(Frame.PUT, new PayloadWriter().writeKey(key).writeValue(encode(value)).toByteArray()))
+                .thenApply(response -> {
+                    if (response.getStatus() == Frame.KEY_EXISTS) {
+                        return false;
+                    }
+                    check(response);
+                    return true;
+                });
+    }
 
+    /**
+     * Sends a "put" request to the server to store a key-value pair that
+     * expires after the given time.
+     *
+     * @param key       The key to be stored.
+     * @param value     The value to be stored.
+     * @param ttlMillis How long the pair lives, in milliseconds, or 0 if it
+     *                  never expires.
+     * @throws IllegalArgumentException If the time to live is negative.
+     */
+    public void put(String key, byte[] value, long ttlMillis) {
+        try {
+            if (await(putAsync(key, value, ttlMillis))) {
+                System.out.println("\u001B[32m[RESPONSE]\u001B[0m Info successfully stored!");
+            } else {
+                System.out.println("\u001B[32m[RESPONSE]\u001B[0m " + Frame.describe(Frame.KEY_EXISTS));
+            }
         } catch (IOException e) {
-            System.out.println("\u001B[31m[ERROR]\u001B[0m " + e.getMessage());
+            report(e);
+        }
+    }
+
+    /**
+     * Asynchronously stores a key-value pair that expires after the given
+     * time. Once it expires the key reads as missing and may be stored again.
+     *
+     * @param key       The key to be stored.
+     * @param value     The value to be stored.
+     * @param ttlMillis How long the pair lives, in milliseconds, or 0 if it
+     *                  never expires.
+     * @return A future completed with true if the pair was stored, or false if
+     *         the key already existed.
+     * @throws IllegalArgumentException If the time to live is negative.
+     */
+    public CompletableFuture<Boolean> putAsync(String key, byte[] value, long ttlMillis) {
+        if (ttlMillis < 0) {
+            throw new IllegalArgumentException("The time to live cannot be negative.");
+        }
+        if (ttlMillis == 0) {
+            return putAsync(key, value);
         }
+        return written(List.of(key), send(Frame.PUT_EXPIRING,
+                new PayloadWriter().writeKey(key).writeValue(encode(value)).writeLong(ttlMillis).toByteArray()))
+                .thenApply(response -> {
+                    if (response.getStatus() == Frame.KEY_EXISTS) {
+                        return false;
+                    }
+                    check(response);
+                    return true;
+                });
     }
 
     /**
@@ -128,24 +398,85 @@ public class Client {
      */
     public byte[] get(String key) {
         try {
-            out.writeUTF("get");
-            out.writeUTF(key);
+            return found(await(getAsync(key)), key);
+        } catch (IOException e) {
+            report(e);
+            return null;
+        }
+    }
 
-            System.out.println("\u001B[36m[INFO]\u001B[0m Task sent.");
+    /**
+     * Asynchronously retrieves the value for the specified key.
+     *
+     * @param key The key whose value is to be retrieved.
+     * @return A future completed with the value, or with null if the key does
+     *         not exist.
+     */
+    public CompletableFuture<byte[]> getAsync(String key) {
+        NearCache cache = nearCache;
+        if (cache == null) {
+            return send(Frame.GET, new PayloadWriter().writeKey(key).toByteArray()).thenApply(this::valueOf);
+        }
+        byte[] cached = cache.lookup(key);
+        if (cached != null) {
+            return CompletableFuture.completedFuture(cached == NearCache.MISSING ? null : cached);
+        }
+        List<String> keys = List.of(key);
+        long generation = cache.begin(keys);
+        return send(Frame.GET, new PayloadWriter().writeKey(key).toByteArray()).thenApply(this::valueOf)
+                .whenComplete((value, e) -> cache.end(keys, generation,
+                        e != null ? null : value != null ? Map.of(key, value) : Map.of()));
+    }
 
-            int length = in.readInt();
-            byte[] info = null;
+    /**
+     * Opens a stream that stores a value sent in chunks, for values too large
+     * to hold in memory as a whole. The value is stored when the stream is
+     * closed; see {@link ValueOutputStream}.
+     *
+     * @param key    The key to be stored.
+     * @param length The length of the value, or -1 if not known in advance.
+     *               A known length lets the server store the chunks straight
+     *               into the final array.
+     * @return The stream.
+     */
+    public ValueOutputStream openPutStream(String key, long length) {
+        return new ValueOutputStream(this, key, length);
+    }
 
-            if (length > 0) {
-                info = new byte[length];
-                in.read(info);
+    /**
+     * Stores the contents of a stream as a value, sent in chunks.
+     *
+     * @param key   The key to be stored.
+     * @param value The stream the value is read from, up to its end. It is
+     *              not closed.
+     * @return true if the pair was stored, or false if the key already
+     *         existed.
+     * @throws IOException If the stream cannot be read or the request fails.
+     */
+    public boolean putStream(String key, InputStream value) throws IOException {
+        try (ValueOutputStream out = openPutStream(key, -1)) {
+            value.transferTo(out);
+        } catch (RequestException e) {
+            if (e.getStatus() == Frame.KEY_EXISTS) {
+                return false;
             }
-
-            return info;
-        } catch (IOException e) {
-            System.out.println("\u001B[31m[ERROR]\u001B[0m " + e.getMessage());
-            return null;
+            throw e;
+        } finally {
+            invalidate(List.of(key));
         }
+        return true;
+    }
+
+    /**
+     * Opens a stream over a value, which is fetched in chunks as it is read;
+     * see {@link ValueInputStream}.
+     *
+     * @param key The key whose value is to be retrieved.
+     * @return The stream, or null if the key does not exist.
+     * @throws IOException If the request fails.
+     */
+    public ValueInputStream openGetStream(String key) throws IOException {
+        return ValueInputStream.open(this, key);
     }
 
     /**
@@ -155,97 +486,470 @@ public class Client {
      */
     public void multiPut(Map<String, byte[]> pairs) {
         try {
-            out.writeUTF("multiPut");
-            out.writeInt(pairs.size());
-
-            for (Map.Entry<String, byte[]> entry : pairs.entrySet()) {
-                out.writeUTF(entry.getKey());
-                out.writeInt(entry.getValue().length);
-                out.write(entry.getValue());
+            for (String key : await(multiPutAsync(pairs))) {
+                System.out.println(
+                        "\u001B[32m[RESPONSE]\u001B[0m " + Frame.describe(Frame.KEY_EXISTS) + " (" + key + ")");
             }
-
-            System.out.println("\u001B[36m[INFO]\u001B[0m Task sent.");
-            String response = in.readUTF();
-            System.out.println("\u001B[32m[RESPONSE]\u001B[0m " + response);
-
+            System.out.println("\u001B[32m[RESPONSE]\u001B[0m Info successfully stored!");
         } catch (IOException e) {
-            System.out.println("\u001B[31m[ERROR]\u001B[0m " + e.getMessage());
+            report(e);
         }
     }
 
+    /**
+     * Asynchronously stores multiple key-value pairs.
+     *
+     * @param pairs A map of keys and their associated byte array values.
+     * @return A future completed with the keys that were not stored because
+     *         they already existed.
+     */
+    public CompletableFuture<List<String>> multiPutAsync(Map<String, byte[]> pairs) {
+        PayloadWriter payload = new PayloadWriter().writeInt(pairs.size());
+        for (Map.Entry<String, byte[]> entry : pairs.entrySet()) {
+            payload.writeKey(entry.getKey()).writeValue(encode(entry.getValue()));
+        }
+
+        return written(pairs.keySet(), send(Frame.MULTI_PUT, payload.toByteArray())).thenApply(response -> {
+            if (response.getStatus() != Frame.KEY_EXISTS) {
+                check(response);
+            }
+            try {
+                DataInputStream rejected = response.payloadStream();
+                int N = rejected.readInt();
+                List<String> keys = new ArrayList<>(N);
+                for (int i = 0; i < N; i++) {
+                    keys.add(rejected.readUTF());
+                }
+                return keys;
+            } catch (IOException e) {
+                throw new CompletionException(e);
+            }
+        });
+    }
+
     /**
      * Sends a "multiGet" request to retrieve the values for multiple keys.
      *
      * @param keys A list of keys whose values are to be retrieved.
      * @return A map of keys and their corresponding byte array values, or null
-     *         if no data is found.
+     *         if the request failed.
      */
     public Map<String, byte[]> multiGet(List<String> keys) {
         try {
-            out.writeUTF("multiGet");
-            out.writeInt(keys.size());
-
-            for (String entry : keys) {
-                out.writeUTF(entry);
+            Map<String, byte[]> responses = await(multiGetAsync(keys));
+            if (responses.isEmpty()) {
+                System.out.println(
+                        "\u001B[32m[RESPONSE]\u001B[0m There is no information associated with the requested keys");
             }
+            return responses;
+        } catch (IOException e) {
+            report(e);
+            return null;
+        }
+    }
 
-            System.out.println("\u001B[36m[INFO]\u001B[0m Task sent.");
-            Map<String, byte[]> responses = new HashMap<>();
+    /**
+     * Asynchronously retrieves the values for multiple keys.
+     *
+     * @param keys A list of keys whose values are to be retrieved.
+     * @return A future completed with the keys found and their values.
+     */
+    public CompletableFuture<Map<String, byte[]>> multiGetAsync(List<String> keys) {
+        NearCache cache = nearCache;
+        if (cache == null) {
+            return fetch(keys);
+        }
+        Map<String, byte[]> cached = new HashMap<>();
+        List<String> remote = new ArrayList<>();
+        for (String key : keys) {
+            byte[] value = cache.lookup(key);
+            if (value == null) {
+                remote.add(key);
+            } else if (value != NearCache.MISSING) {
+                cached.put(key, value);
+            }
+        }
+        if (remote.isEmpty()) {
+            return CompletableFuture.completedFuture(cached);
+        }
+        long generation = cache.begin(remote);
+        return fetch(remote).whenComplete((found, e) -> cache.end(remote, generation, e != null ? null : found))
+                .thenApply(found -> {
+                    cached.putAll(found);
+                    return cached;
+                });
+    }
 
-            int length = in.readInt();
+    /**
+     * Retrieves the values for multiple keys from the server.
+     */
+    private CompletableFuture<Map<String, byte[]>> fetch(List<String> keys) {
+        PayloadWriter payload = new PayloadWriter().writeInt(keys.size());
+        for (String entry : keys) {
+            payload.writeKey(entry);
+        }
 
-            for (int i = 0; i < length; i++) {
-                String key = in.readUTF();
-                int lengthMap = in.readInt();
-                byte[] value = new byte[lengthMap];
-                in.read(value);
-                responses.put(key, value);
+        return send(Frame.MULTI_GET, payload.toByteArray()).thenApply(response -> {
+            check(response);
+            try {
+                Map<String, byte[]> responses = new HashMap<>();
+                DataInputStream pairs = response.payloadStream();
+                int length = pairs.readInt();
+                for (int i = 0; i < length; i++) {
+                    String key = pairs.readUTF();
+                    responses.put(key, decode(PayloadWriter.readValue(pairs)));
+                }
+                return responses;
+            } catch (IOException e) {
+                throw new CompletionException(e);
             }
+        });
+    }
 
-            return responses;
+    /**
+     * Applies a transaction as one unit and prints the outcome: either every
+     * operation takes effect or, if a put finds its key or a check does not
+     * hold, none does.
+     *
+     * @param transaction The operations.
+     * @return The keys read that were found and their values, or null if the
+     *         transaction was aborted or the request failed.
+     */
+    public Map<String, byte[]> commit(Transaction transaction) {
+        try {
+            Map<String, byte[]> reads = await(commitAsync(transaction));
+            System.out.println("\u001B[32m[RESPONSE]\u001B[0m Transaction committed!");
+            return reads;
         } catch (IOException e) {
-            System.out.println("\u001B[31m[ERROR]\u001B[0m " + e.getMessage());
+            report(e);
             return null;
         }
     }
 
+    /**
+     * Asynchronously applies a transaction as one unit.
+     *
+     * @param transaction The operations.
+     * @return A future completed with the keys read that were found and their
+     *         values, or exceptionally with a {@link RequestException} holding
+     *         the key that aborted the transaction.
+     */
+    public CompletableFuture<Map<String, byte[]>> commitAsync(Transaction transaction) {
+        byte[] request = transaction.toPayload(this::encode);
+        Collection<String> keys = transaction.hasPuts() ? transaction.keys() : List.of();
+        return written(keys, send(Frame.TRANSACTION, request)).thenApply(response -> {
+            try {
+                DataInputStream payload = response.payloadStream();
+                if (response.getStatus() == Frame.KEY_EXISTS || response.getStatus() == Frame.CONDITION_FAILED) {
+                    throw new RequestException(response.getStatus(), payload.readUTF());
+                }
+                check(response);
+                Map<String, byte[]> reads = new HashMap<>();
+                int length = payload.readInt();
+                for (int i = 0; i < length; i++) {
+                    String key = payload.readUTF();
+                    reads.put(key, decode(PayloadWriter.readValue(payload)));
+                }
+                return reads;
+            } catch (IOException e) {
+                throw new CompletionException(e);
+            }
+        });
+    }
+
+    /**
+     * Sends a "getWhen" request, which blocks until the value stored under
+     * <code>keyCond</code> is equal to <code>valueCond</code> and then
+     * retrieves the value for <code>key</code>.
+     *
+     * @param key       The key whose value is to be retrieved.
+     * @param keyCond   The key of the condition.
+     * @param valueCond The value the condition key must have.
+     * @return The value associated with the key, or null if no data is found.
+     */
     public byte[] getWhen(String key, String keyCond, byte[] valueCond) {
         try {
-            out.writeUTF("getWhen");
-            out.writeUTF(key);
-            out.writeUTF(keyCond);
-            out.writeInt(valueCond.length);
-            out.write(valueCond);
+            return found(await(getWhenAsync(key, keyCond, valueCond)), key);
+        } catch (IOException e) {
+            report(e);
+            return null;
+        }
+    }
 
-            System.out.println("\u001B[36m[INFO]\u001B[0m Task sent.");
+    /**
+     * Asynchronously retrieves the value for <code>key</code> once the value
+     * stored under <code>keyCond</code> is equal to <code>valueCond</code>.
+     * Other requests sent on this client are not held up while the condition
+     * does not hold.
+     *
+     * @param key       The key whose value is to be retrieved.
+     * @param keyCond   The key of the condition.
+     * @param valueCond The value the condition key must have.
+     * @return A future completed with the value, or with null if the key does
+     *         not exist.
+     */
+    public CompletableFuture<byte[]> getWhenAsync(String key, String keyCond, byte[] valueCond) {
+        return send(Frame.GET_WHEN,
+                new PayloadWriter().writeKey(key).writeKey(keyCond).writeValue(valueCond).toByteArray())
+                .thenApply(this::valueOf);
+    }
 
-            int length = in.readInt();
-            byte[] info = null;
+    /**
+     * Asks the server what it is doing: the latencies of each operation, its
+     * traffic and the state of its storage.
+     *
+     * @return The statistics, or null if the request failed.
+     */
+    public ServerStats stats() {
+        try {
+            return await(statsAsync());
+        } catch (IOException e) {
+            report(e);
+            return null;
+        }
+    }
 
-            if (length > 0) {
-                info = new byte[length];
-                in.read(info);
+    /**
+     * Asynchronously asks the server what it is doing.
+     *
+     * @return A future completed with the statistics.
+     */
+    public CompletableFuture<ServerStats> statsAsync() {
+        return send(Frame.STATS, new byte[0]).thenApply(response -> {
+            check(response);
+            try {
+                return ServerStats.read(response.payloadStream());
+            } catch (IOException e) {
+                throw new CompletionException(e);
             }
+        });
+    }
 
-            return info;
+    /**
+     * Tells the server the session is over. The connection must be closed
+     * afterwards with {@link #closeConnection()}.
+     */
+    public void exit() {
+        try {
+            write(new Frame(Frame.EXIT, nextRequestId.getAndIncrement(), Frame.OK, new byte[0]));
         } catch (IOException e) {
-            System.out.println("\u001B[31m[ERROR]\u001B[0m " + e.getMessage());
+            report(e);
+        }
+    }
+
+    /**
+     * Sends a request frame without waiting for its response.
+     *
+     * @param opcode  The operation.
+     * @param payload The payload of the request.
+     * @return A future completed with the response frame, or exceptionally if
+     *         the connection fails first.
+     */
+    CompletableFuture<Frame> send(byte opcode, byte[] payload) {
+        Frame request = new Frame(opcode, nextRequestId.getAndIncrement(), Frame.OK, payload);
+        CompletableFuture<Frame> response = new CompletableFuture<>();
+        pending.put(request.getRequestId(), response);
+        try {
+            write(request);
+        } catch (IOException e) {
+            pending.remove(request.getRequestId());
+            response.completeExceptionally(e);
+        }
+        // The reader may have failed the pending requests before this one was added
+        IOException failed = failure;
+        if (failed != null && pending.remove(request.getRequestId()) != null) {
+            response.completeExceptionally(failed);
+        }
+        return response;
+    }
+
+    private void write(Frame request) throws IOException {
+        IOException failed = failure;
+        if (failed != null) {
+            throw failed;
+        }
+        writeLock.lock();
+        try {
+            request.writeTo(out);
+            out.flush();
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Body of the reader thread: completes the pending request of each
+     * response, until the connection is closed.
+     */
+    private void readResponses() {
+        try {
+            while (true) {
+                Frame response = Frame.readFrom(in);
+                if (response.getOpcode() == Frame.INVALIDATE) {
+                    invalidated(response);
+                    continue;
+                }
+                CompletableFuture<Frame> request = pending.remove(response.getRequestId());
+                if (request == null) {
+                    throw new ProtocolException("Response to unknown request " + response.getRequestId());
+                }
+                request.complete(response);
+            }
+        } catch (IOException e) {
+            failure = failure != null ? failure : e;
+            // Invalidations can no longer arrive
+            NearCache cache = nearCache;
+            if (cache != null) {
+                cache.clear();
+            }
+            for (Integer requestId : pending.keySet()) {
+                CompletableFuture<Frame> request = pending.remove(requestId);
+                if (request != null) {
+                    request.completeExceptionally(failure);
+                }
+            }
+        }
+    }
+
+    /**
+     * Drops from the cache the keys an invalidation pushed by the server
+     * reports as changed.
+     */
+    private void invalidated(Frame invalidation) throws IOException {
+        DataInputStream payload = invalidation.payloadStream();
+        long changedAt = payload.readLong();
+        int count = payload.readInt();
+        List<String> keys = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            keys.add(payload.readUTF());
+        }
+        NearCache cache = nearCache;
+        if (cache != null) {
+            cache.invalidate(keys, changedAt);
+        }
+    }
+
+    /**
+     * Drops keys written by this client from the cache once the write is
+     * answered, so its own later reads see the write even before the
+     * server's invalidation arrives.
+     */
+    private CompletableFuture<Frame> written(Collection<String> keys, CompletableFuture<Frame> response) {
+        if (nearCache == null) {
+            return response;
+        }
+        return response.whenComplete((frame, e) -> invalidate(keys));
+    }
+
+    private void invalidate(Collection<String> keys) {
+        NearCache cache = nearCache;
+        if (cache != null) {
+            keys.forEach(cache::invalidate);
+        }
+    }
+
+    /**
+     * Waits for an asynchronous operation, unwrapping its failure.
+     */
+    static <T> T await(CompletableFuture<T> future) throws IOException {
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof IOException cause) {
+                throw cause;
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Fails the operation unless the response status is {@link Frame#OK}.
+     */
+    private static void check(Frame response) {
+        if (response.getStatus() != Frame.OK) {
+            throw new CompletionException(new RequestException(response.getStatus()));
+        }
+    }
+
+    /**
+     * Extracts the value of a get-like response, or null for a missing key.
+     */
+    private byte[] valueOf(Frame response) {
+        if (response.getStatus() == Frame.NOT_FOUND) {
             return null;
         }
+        check(response);
+        return decode(response.getPayload());
+    }
+
+    /**
+     * Encodes a value to send, compressing it if that is worth it.
+     */
+    private byte[] encode(byte[] value) {
+        return codec < 0 ? value : Codec.encode(value, codec);
+    }
+
+    /**
+     * Decodes a value received from the server.
+     */
+    private byte[] decode(byte[] value) {
+        if (codec < 0) {
+            return value;
+        }
+        try {
+            return Codec.decode(value);
+        } catch (IllegalArgumentException e) {
+            throw new CompletionException(new ProtocolException(e.getMessage()));
+        }
+    }
+
+    /**
+     * Reports a missing key of a synchronous get-like operation.
+     */
+    static byte[] found(byte[] value, String key) {
+        if (value == null) {
+            System.out.println("\u001B[32m[RESPONSE]\u001B[0m " + Frame.describe(Frame.NOT_FOUND) + " ( " + key
+                    + " )");
+        }
+        return value;
+    }
+
+    static void report(IOException e) {
+        if (e instanceof RequestException) {
+            System.out.println("\u001B[32m[RESPONSE]\u001B[0m " + e.getMessage());
+        } else {
+            System.out.println("\u001B[31m[ERROR]\u001B[0m " + e.getMessage());
+        }
     }
 
     /**
      * Closes the client connection by closing the input/output streams and the
-     * socket.
+     * socket. Requests still waiting for a response fail.
      */
     public void closeConnection() {
+        if (ClientSocket == null) {
+            return;
+        }
         try {
-            in.close();
-            out.close();
-            this.ClientSocket.close();
+            disconnect();
             System.out.println("\u001B[36m[INFO]\u001B[0m Connection closed.");
         } catch (IOException e) {
             System.out.println("\u001B[31m[ERROR]\u001B[0m " + e.getMessage());
         }
     }
+
+    /**
+     * Closes the connection without reporting it, for tools that open many.
+     *
+     * @throws IOException If the socket cannot be closed.
+     */
+    void disconnect() throws IOException {
+        if (ClientSocket == null) {
+            return;
+        }
+        failure = new IOException("Connection closed.");
+        in.close();
+        out.close();
+        ClientSocket.close();
+    }
 }
@@ -1,9 +1,13 @@
 package client;
 
 import common.AuthRequest;
+import common.Frame;
+import common.ServerStats;
+import common.Transaction;
 import java.io.*;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Scanner;
 import java.util.concurrent.locks.ReentrantLock;
@@ -13,12 +17,13 @@ import java.util.concurrent.locks.ReentrantLock;
  * interacting with a client. It allows users to authenticate (either by
  * registering or logging in), and perform actions like storing and retrieving
  * data from the server, using commands such as <code>put</code>,
- * <code>get</code>, <code>multiPut</code>, and <code>multiGet</code>. The class
- * communicates with the server via a socket connection, sending and receiving
- * data in a serialized format.
+ * <code>putTTL</code>, <code>get</code>, <code>multiPut</code>,
+ * <code>multiGet</code>, <code>transaction</code> and <code>stats</code>. The class communicates with the server via a
+ * socket connection, sending and receiving data in a serialized format.
  * <p>
- * It uses the <code>Client</code> class to manage the socket connection and
- * handle the data transmission. The user can interact with the client through
+ * It uses the <code>ShardedClient</code> class to route every key to one of
+ * the servers given on the command line and the <code>Client</code> class to
+ * manage each socket connection and handle the data transmission. The user can interact with the client through
  * text-based commands entered into the console.
  */
 public class ClientInterface {
@@ -32,19 +37,49 @@ public class ClientInterface {
      * <p>
      * The user can enter commands such as <code>register</code>,
      * <code>login</code>, <code>put</code>, <code>get</code>,
-     * <code>multiPut</code>, <code>multiGet</code>, or <code>exit</code>.
+     * <code>multiPut</code>, <code>multiGet</code>, <code>stats</code>, or
+     * <code>exit</code>.
      * Depending on the command, appropriate actions are taken, such as sending
      * requests to the server and displaying responses.
      *
-     * @param args command-line arguments (NA)
+     * @param args The servers to connect to, as <code>host:port</code>; keys
+     *             are sharded over them by {@link ShardedClient}. A shard may
+     *             list its backups after the primary, separated by commas, and
+     *             <code>--read-backups</code> sends reads to them. Defaults to
+     *             the single local server. <code>--near-cache=N</code> caches
+     *             up to N reads per connection.
      */
     public static void main(String[] args) {
-        Client client = new Client();
+        List<String> endpoints = new ArrayList<>();
+        boolean readFromBackups = false;
+        int nearCache = 0;
+        for (String arg : args) {
+            if (arg.equals("--read-backups")) {
+                readFromBackups = true;
+            } else if (arg.startsWith("--near-cache=")) {
+                try {
+                    nearCache = Integer.parseInt(arg.substring("--near-cache=".length()));
+                } catch (NumberFormatException e) {
+                    System.err.println("\u001B[31m[ERROR]\u001B[0m Invalid cache size: " + arg);
+                    System.exit(1);
+                }
+            } else {
+                endpoints.add(arg);
+            }
+        }
+        if (endpoints.isEmpty()) {
+            endpoints.add(Client.getHost() + ":" + Client.getPort());
+        }
+        ShardedClient client;
+        try {
+            client = new ShardedClient(endpoints, readFromBackups);
+        } catch (IllegalArgumentException e) {
+            System.err.println("\u001B[31m[ERROR]\u001B[0m " + e.getMessage());
+            System.exit(1);
+            return;
+        }
 
-        try (
-                DataInputStream in = client.getInputStream();
-                DataOutputStream out = client.getOutputStream();
-                Scanner scanner = new Scanner(System.in)) {
+        try (Scanner scanner = new Scanner(System.in)) {
 
             int flag = 0;
             String command;
@@ -69,15 +104,12 @@ public class ClientInterface {
                                 "\u001B[33m[WARNING]\u001B[0m Password cannot be empty.\nPlease enter a password: ");
 
                         AuthRequest registerRequest = new AuthRequest(AuthRequest.REGISTER, regUsername, regPassword);
-                        byte[] regRequestBytes = registerRequest.getRequestBytes();
-                        out.writeInt(regRequestBytes.length);
-                        out.write(regRequestBytes);
-                        int success = in.readInt();
-                        String message = in.readUTF();
+                        byte status = client.authenticate(registerRequest);
+                        String message = status == Frame.OK ? "User registered successfully!"
+                                : Frame.describe(status);
                         System.out.println("\u001B[32m[RESPONSE]\u001B[0m " + message);
 
-                        out.flush();
-                        if (success == 1) {
+                        if (status == Frame.OK) {
                             yield 1;
                         } else
                             yield 0;
@@ -90,16 +122,12 @@ public class ClientInterface {
                                 "\u001B[33m[WARNING]\u001B[0m Password cannot be empty. Please enter a password: ");
 
                         AuthRequest loginRequest = new AuthRequest(AuthRequest.LOGIN, loginUsername, loginPassword);
-                        byte[] loginRequestBytes = loginRequest.getRequestBytes();
-                        out.writeInt(loginRequestBytes.length);
-                        out.write(loginRequestBytes);
-
-                        int success = in.readInt();
-                        String message = in.readUTF();
+                        byte status = client.authenticate(loginRequest);
+                        String message = status == Frame.OK ? "User logged in successfully!"
+                                : Frame.describe(status);
                         System.out.println("\u001B[32m[RESPONSE]\u001B[0m " + message);
 
-                        out.flush();
-                        if (success == 1) {
+                        if (status == Frame.OK) {
                             yield 1;
                         } else
                             yield 0;
@@ -112,9 +140,13 @@ public class ClientInterface {
                 };
             }
 
+            if (nearCache > 0 && !client.enableNearCache(nearCache)) {
+                System.out.println("\u001B[33m[WARNING]\u001B[0m The server does not support caching reads.");
+            }
+
             // Interaction loop
             while (true) {
-                System.out.print("\u001B[33m[INPUT]\u001B[0m Enter command (put/get/multiPut/multiGet/getWhen/exit): ");
+                System.out.print("\u001B[33m[INPUT]\u001B[0m Enter command (put/putTTL/get/multiPut/multiGet/getWhen/transaction/stats/exit): ");
                 command = scanner.nextLine();
 
                 switch (command) {
@@ -128,6 +160,27 @@ public class ClientInterface {
                         byte[] valueBytes = value.getBytes();
                         client.put(putKey, valueBytes);
                     }
+                    case "putTTL" -> {
+                        System.out.print("\u001B[33m[INPUT]\u001B[0m Key: ");
+                        String putKey = getNonEmptyInput(scanner,
+                                "\u001B[33m[WARNING]\u001B[0m Key cannot be empty. Please enter a key: ");
+                        System.out.print("\u001B[33m[INPUT]\u001B[0m Value: ");
+                        String value = getNonEmptyInput(scanner,
+                                "\u001B[33m[WARNING]\u001B[0m Value cannot be empty. Please enter a value: ");
+                        System.out.print("\u001B[33m[INPUT]\u001B[0m Time to live (ms): ");
+                        long ttl;
+                        try {
+                            ttl = Long.parseLong(scanner.nextLine().trim());
+                        } catch (NumberFormatException e) {
+                            System.out.println("\u001B[31m[ERROR]\u001B[0m Invalid number.");
+                            continue;
+                        }
+                        if (ttl <= 0) {
+                            System.out.println("\u001B[31m[ERROR]\u001B[0m The time to live must be positive.");
+                            continue;
+                        }
+                        client.put(putKey, value.getBytes(), ttl);
+                    }
                     case "multiPut" -> {
                         System.out.print("\u001B[33m[INPUT]\u001B[0m How many values you want to insert: ");
                         int N = scanner.nextInt();
@@ -196,20 +249,102 @@ public class ClientInterface {
                             System.out.println("\u001B[32m[RESPONSE]\u001B[0m " + new String(info));
                         }
                     }
+                    case "transaction" -> {
+                        System.out.print("\u001B[33m[INPUT]\u001B[0m How many operations the transaction has: ");
+                        int N = scanner.nextInt();
+                        scanner.nextLine(); // Clear Scanner buffer after nextInt()
+                        Transaction transaction = new Transaction();
+
+                        for (int i = 0; i < N; i++) {
+                            System.out.print("\u001B[33m[INPUT]\u001B[0m Operation (put/get/check): ");
+                            String operation = scanner.nextLine();
+                            if (!operation.equals("put") && !operation.equals("get") && !operation.equals("check")) {
+                                System.out.println(
+                                        "\u001B[31m[ERROR]\u001B[0m Unknown operation. Please enter 'put', 'get' or 'check'.");
+                                i--;
+                                continue;
+                            }
+                            System.out.print("\u001B[33m[INPUT]\u001B[0m Key: ");
+                            String key = getNonEmptyInput(scanner,
+                                    "\u001B[33m[WARNING]\u001B[0m Key cannot be empty. Please enter a key: ");
+                            if (operation.equals("get")) {
+                                transaction.get(key);
+                                continue;
+                            }
+                            System.out.print("\u001B[33m[INPUT]\u001B[0m Value: ");
+                            String value = getNonEmptyInput(scanner,
+                                    "\u001B[33m[WARNING]\u001B[0m Value cannot be empty. Please enter a value: ");
+                            if (operation.equals("put")) {
+                                transaction.put(key, value.getBytes());
+                            } else {
+                                transaction.check(key, value.getBytes());
+                            }
+                        }
+
+                        Map<String, byte[]> reads = client.commit(transaction);
+                        if (reads != null) {
+                            for (Map.Entry<String, byte[]> entry : reads.entrySet()) {
+                                System.out.println(
+                                        "\u001B[32m[RESPONSE]\u001B[0m Key: " + entry.getKey() + " | Value: "
+                                                + new String(entry.getValue()) + "\n");
+                            }
+                        }
+                    }
+                    case "stats" -> {
+                        for (Map.Entry<String, ServerStats> entry : client.stats().entrySet()) {
+                            printStats(entry.getKey(), entry.getValue());
+                        }
+                    }
                     case "exit" -> {
+                        for (NearCache cache : client.getNearCaches()) {
+                            System.out.printf(
+                                    "\u001B[36m[CACHE]\u001B[0m %d keys, %d hits, %d misses (%.1f%% hit rate), %d evictions, %d invalidations (%.1f ms average delay, %d ms max)%n",
+                                    cache.size(), cache.getHits(), cache.getMisses(), cache.getHitRate() * 100,
+                                    cache.getEvictions(), cache.getInvalidations(),
+                                    cache.getAverageInvalidationDelayMillis(), cache.getMaxInvalidationDelayMillis());
+                        }
                         System.out.println("\u001B[36m[INFO]\u001B[0m Exiting...");
-                        out.writeUTF("exit");
-                        out.flush();
+                        client.exit();
                         client.closeConnection();
                         return;
                     }
                     default ->
                         System.out.println(
-                                "\u001B[31m[ERROR]\u001B[0m Unknown command. Please enter 'put', 'get', 'multiPut', 'multiGet' or 'exit'.");
+                                "\u001B[31m[ERROR]\u001B[0m Unknown command. Please enter 'put', 'putTTL', 'get', 'multiPut', 'multiGet', 'getWhen', 'transaction', 'stats' or 'exit'.");
                 }
             }
-        } catch (IOException e) {
-            System.out.println("\u001B[31m[ERROR]\u001B[0m " + e.getMessage());
+        }
+    }
+
+    /**
+     * Prints the statistics of a server: its counters and gauges, then a line
+     * per operation with its latencies.
+     *
+     * @param endpoint The server.
+     * @param stats    Its statistics.
+     */
+    private static void printStats(String endpoint, ServerStats stats) {
+        System.out.println("\u001B[36m[STATS]\u001B[0m " + endpoint + ", up for " + stats.getUptimeMillis() / 1000
+                + " s");
+        StringBuilder line = new StringBuilder();
+        for (Map.Entry<String, Long> value : stats.getValues().entrySet()) {
+            String field = value.getKey() + "=" + value.getValue();
+            if (line.length() > 0 && line.length() + field.length() > 100) {
+                System.out.println("\u001B[36m[STATS]\u001B[0m   " + line);
+                line.setLength(0);
+            }
+            line.append(line.length() > 0 ? "  " : "").append(field);
+        }
+        if (line.length() > 0) {
+            System.out.println("\u001B[36m[STATS]\u001B[0m   " + line);
+        }
+        System.out.printf("\u001B[36m[STATS]\u001B[0m   %-14s %10s %10s %10s %10s %10s %10s %10s%n", "operation (us)",
+                "count", "mean", "p50", "p90", "p99", "p99.9", "max");
+        for (ServerStats.Operation operation : stats.getOperations()) {
+            System.out.printf("\u001B[36m[STATS]\u001B[0m   %-14s %10d %10d %10d %10d %10d %10d %10d%n",
+                    operation.getName(), operation.getCount(), operation.getMeanMicros(),
+                    operation.getMedianMicros(), operation.getP90Micros(), operation.getP99Micros(),
+                    operation.getP999Micros(), operation.getMaxMicros());
         }
     }
 
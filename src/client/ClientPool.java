@@ -0,0 +1,320 @@
+package client;
+
+import common.AuthRequest;
+import common.Frame;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+/**
+ * The <code>ClientPool</code> class keeps a fixed number of authenticated
+ * {@link Client} connections to one server and hands them out to concurrent
+ * callers, so an application does not pay a TCP connection and a login per
+ * request, nor has to serialize every request on a single client.
+ * <p>
+ * A caller either borrows a client with {@link #borrow(long, TimeUnit)} and
+ * gives it back with {@link #release(Client)}, or runs an operation with
+ * {@link #execute(Function)}. Broken connections are replaced when they are
+ * borrowed, and a background task pings the idle connections
+ * every few seconds and reconnects the ones that do not answer. The time
+ * callers spend waiting for a free connection is recorded and exposed through
+ * the <code>get...</code> metric methods.
+ * </p>
+ */
+public class ClientPool implements AutoCloseable {
+
+    /**
+     * How long a health check waits for the answer to a ping.
+     */
+    private static final long PING_TIMEOUT_MILLIS = 2000;
+
+    private final String host;
+    private final int port;
+    private final String username;
+    private final String password;
+    private final int size;
+
+    /**
+     * The connections that are not borrowed.
+     */
+    private final LinkedBlockingDeque<Client> idle = new LinkedBlockingDeque<>();
+
+    private final ScheduledExecutorService healthChecker;
+    private volatile boolean closed;
+
+    private final LongAdder borrows = new LongAdder();
+    private final LongAdder timeouts = new LongAdder();
+    private final LongAdder reconnects = new LongAdder();
+    private final LongAdder totalWaitNanos = new LongAdder();
+    private final AtomicLong maxWaitNanos = new AtomicLong();
+
+    /**
+     * Constructs a pool and opens all its connections, logging each one in
+     * with the given credentials.
+     *
+     * @param host                The host name of the server.
+     * @param port                The port number of the server.
+     * @param username            The username every connection logs in with.
+     * @param password            The password of the user.
+     * @param size                The number of connections.
+     * @param healthCheckInterval Seconds between health checks of the idle
+     *                            connections, or 0 to disable them.
+     * @throws IOException If a connection cannot be opened or logged in.
+     */
+    public ClientPool(String host, int port, String username, String password, int size,
+            long healthCheckInterval) throws IOException {
+        this.host = host;
+        this.port = port;
+        this.username = username;
+        this.password = password;
+        this.size = size;
+
+        List<Client> opened = new ArrayList<>();
+        try {
+            for (int i = 0; i < size; i++) {
+                opened.add(connect());
+            }
+        } catch (IOException e) {
+            for (Client client : opened) {
+                client.closeConnection();
+            }
+            throw e;
+        }
+        idle.addAll(opened);
+
+        if (healthCheckInterval > 0) {
+            healthChecker = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "client-pool-health");
+                thread.setDaemon(true);
+                return thread;
+            });
+            healthChecker.scheduleWithFixedDelay(this::healthCheck, healthCheckInterval, healthCheckInterval,
+                    TimeUnit.SECONDS);
+        } else {
+            healthChecker = null;
+        }
+    }
+
+    /**
+     * Borrows a connection, waiting up to the given time for one to be free.
+     * The connection must be given back with {@link #release(Client)}.
+     *
+     * @param timeout How long to wait.
+     * @param unit    The unit of the timeout.
+     * @return An authenticated connection.
+     * @throws IOException          If the pool is closed, no connection became
+     *                              free in time, or a broken connection could
+     *                              not be replaced.
+     * @throws InterruptedException If the thread is interrupted while waiting.
+     */
+    public Client borrow(long timeout, TimeUnit unit) throws IOException, InterruptedException {
+        if (closed) {
+            throw new IOException("Client pool is closed.");
+        }
+        long start = System.nanoTime();
+        Client client = idle.pollFirst(timeout, unit);
+        long waited = System.nanoTime() - start;
+        totalWaitNanos.add(waited);
+        maxWaitNanos.accumulateAndGet(waited, Math::max);
+
+        if (client == null) {
+            timeouts.increment();
+            throw new IOException(new TimeoutException("No free connection after " + unit.toMillis(timeout)
+                    + " ms."));
+        }
+        borrows.increment();
+        if (!client.isConnected()) {
+            try {
+                client = reconnect(client);
+            } catch (IOException e) {
+                // Give the slot back so the next borrower retries the connection
+                idle.addLast(client);
+                throw e;
+            }
+        }
+        return client;
+    }
+
+    /**
+     * Gives back a borrowed connection.
+     *
+     * @param client The connection.
+     */
+    public void release(Client client) {
+        if (closed) {
+            client.closeConnection();
+            return;
+        }
+        // Recently used connections go first, so idle ones can be checked in peace
+        idle.addFirst(client);
+    }
+
+    /**
+     * Runs an operation on a borrowed connection and gives it back afterwards.
+     *
+     * @param <T>       The result type of the operation.
+     * @param operation The operation, typically calling an asynchronous method
+     *                  and waiting for it.
+     * @return The result of the operation.
+     * @throws IOException          If no connection could be borrowed.
+     * @throws InterruptedException If the thread is interrupted while waiting
+     *                              for a connection.
+     */
+    public <T> T execute(Function<Client, T> operation) throws IOException, InterruptedException {
+        Client client = borrow(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        try {
+            return operation.apply(client);
+        } finally {
+            release(client);
+        }
+    }
+
+    /**
+     * Pings every idle connection and replaces those that do not answer.
+     * Connections borrowed meanwhile are checked on their next borrow.
+     */
+    public void healthCheck() {
+        for (int i = 0; i < size && !closed; i++) {
+            Client client = idle.pollLast();
+            if (client == null) {
+                return;
+            }
+            try {
+                if (!isAlive(client)) {
+                    client = reconnect(client);
+                }
+            } catch (IOException e) {
+                System.out.println("\u001B[31m[ERROR]\u001B[0m Could not reconnect: " + e.getMessage());
+            }
+            idle.addFirst(client);
+        }
+    }
+
+    /**
+     * Gets the number of connections of the pool.
+     *
+     * @return The pool size.
+     */
+    public int getSize() {
+        return size;
+    }
+
+    /**
+     * Gets the number of connections currently free.
+     *
+     * @return The number of idle connections.
+     */
+    public int getIdleCount() {
+        return idle.size();
+    }
+
+    /**
+     * Gets the number of successful borrows.
+     *
+     * @return The number of borrows.
+     */
+    public long getBorrowCount() {
+        return borrows.sum();
+    }
+
+    /**
+     * Gets the number of borrows that gave up waiting for a connection.
+     *
+     * @return The number of timeouts.
+     */
+    public long getTimeoutCount() {
+        return timeouts.sum();
+    }
+
+    /**
+     * Gets the number of broken connections that were replaced.
+     *
+     * @return The number of reconnections.
+     */
+    public long getReconnectCount() {
+        return reconnects.sum();
+    }
+
+    /**
+     * Gets the average time a borrow waited for a free connection, including
+     * the borrows that timed out.
+     *
+     * @return The average wait, in nanoseconds.
+     */
+    public long getAverageWaitNanos() {
+        long attempts = borrows.sum() + timeouts.sum();
+        return attempts == 0 ? 0 : totalWaitNanos.sum() / attempts;
+    }
+
+    /**
+     * Gets the longest time a borrow waited for a free connection.
+     *
+     * @return The longest wait, in nanoseconds.
+     */
+    public long getMaxWaitNanos() {
+        return maxWaitNanos.get();
+    }
+
+    /**
+     * Closes the pool and its idle connections. Borrowed connections are
+     * closed when they are released.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        if (healthChecker != null) {
+            healthChecker.shutdownNow();
+        }
+        Client client;
+        while ((client = idle.poll()) != null) {
+            client.exit();
+            client.closeConnection();
+        }
+    }
+
+    private boolean isAlive(Client client) {
+        if (!client.isConnected()) {
+            return false;
+        }
+        try {
+            client.pingAsync().get(PING_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return true;
+        } catch (Exception e) {
+            return false;
+        }
+    }
+
+    private Client reconnect(Client broken) throws IOException {
+        broken.closeConnection();
+        Client client = connect();
+        reconnects.increment();
+        return client;
+    }
+
+    /**
+     * Opens a connection and logs it in.
+     */
+    private Client connect() throws IOException {
+        Client client = new Client(host, port);
+        if (!client.isConnected()) {
+            throw new IOException("Could not connect to " + host + ":" + port);
+        }
+        byte status = client.authenticate(new AuthRequest(AuthRequest.LOGIN, username, password));
+        if (status != Frame.OK) {
+            client.closeConnection();
+            throw new RequestException(status);
+        }
+        return client;
+    }
+}
@@ -0,0 +1,875 @@
+package client;
+
+import common.AuthRequest;
+import common.Frame;
+import common.LatencyHistogram;
+import common.ServerStats;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * The <code>LoadGenerator</code> class drives a server with many concurrent
+ * sessions from a single JVM, each one a {@link Client} with its own
+ * connection, and measures the latency of every request it sends.
+ * <p>
+ * In the <code>open</code> mode requests start at a fixed total rate, spread
+ * over the sessions, whether or not the earlier ones have been answered, as
+ * independent users would send them. In the <code>closed</code> mode each
+ * session waits for the answer to a request before it sends the next one,
+ * either at once or, given a rate, at its share of it.
+ * </p>
+ * <p>
+ * Latencies are measured from the moment each request was due to start, not
+ * from when it was sent. A generator that waits for a stalled server sends
+ * its next requests late and would otherwise time only the requests the
+ * server was ready for, leaving the stall out of the percentiles (coordinated
+ * omission). The time from sending a request to its answer is reported
+ * besides, as the service time; with no rate in the closed mode, the two are
+ * the same.
+ * </p>
+ * <p>
+ * Keys are <code>load-0</code> to <code>load-N</code>, chosen uniformly or
+ * by a scrambled zipfian distribution, and every key has a fixed value, so
+ * a <code>getWhen</code> on a stored key holds at once and measures the
+ * condition path without waiting. Puts do not overwrite: a put of a stored
+ * key is answered that the key exists, unless the pairs are given a time to
+ * live and expire.
+ * </p>
+ * <p>
+ * The server's heap and threads are read with {@link Client#stats()} before
+ * and after the sessions open, for the cost of a session: run against a
+ * freshly started server, or the threads and memory left by earlier sessions
+ * are counted as free.
+ * </p>
+ * <p>
+ * Usage: <code>java client.LoadGenerator [--name=value ...]</code>, with the
+ * options:
+ * </p>
+ * <ul>
+ * <li><code>--host=HOST</code>, <code>--port=N</code> - the server (default:
+ * localhost:12345).</li>
+ * <li><code>--user=NAME</code>, <code>--password=PASSWORD</code> - the user
+ * every session logs in as, registered if needed (default: load/load).</li>
+ * <li><code>--sessions=N</code> - concurrent sessions (default: 100).</li>
+ * <li><code>--mode=open|closed</code> - how requests are started (default:
+ * closed).</li>
+ * <li><code>--rate=N</code> - requests per second over all sessions;
+ * required in the open mode, optional in the closed one.</li>
+ * <li><code>--duration=S</code>, <code>--warmup=S</code> - seconds measured,
+ * and seconds of load before them that are not (default: 30 and 5).</li>
+ * <li><code>--keys=N</code> - number of keys (default: 10000).</li>
+ * <li><code>--distribution=uniform|zipfian</code> - how keys are chosen
+ * (default: uniform), and <code>--skew=X</code> the exponent of the zipfian
+ * one (default: 0.99).</li>
+ * <li><code>--value-size=N</code> - bytes per value (default: 100).</li>
+ * <li><code>--mix=OP:WEIGHT,...</code> - the operations, among
+ * <code>get</code>, <code>put</code>, <code>multiget</code> and
+ * <code>getwhen</code>, with their relative weights (default:
+ * get:90,put:10).</li>
+ * <li><code>--batch=N</code> - keys per <code>multiget</code> (default:
+ * 10).</li>
+ * <li><code>--ttl=MS</code> - time to live of the pairs put, or 0 for none
+ * (default: 0).</li>
+ * <li><code>--preload=true|false</code> - store every key before the run
+ * (default: true).</li>
+ * <li><code>--compression=deflate|none</code> - offer the server value
+ * compression (default: deflate).</li>
+ * <li><code>--output=FILE</code> - where the JSON results are written
+ * (default: src/tests/results/load_MODE_results.json).</li>
+ * </ul>
+ */
+public class LoadGenerator {
+
+    /**
+     * How requests are started.
+     */
+    public enum Mode {
+        /**
+         * At a fixed rate, regardless of the answers.
+         */
+        OPEN,
+        /**
+         * Each session after the answer to its previous request.
+         */
+        CLOSED
+    }
+
+    /**
+     * How keys are chosen.
+     */
+    public enum Distribution {
+        /**
+         * Every key equally often.
+         */
+        UNIFORM,
+        /**
+         * A few keys most of the time.
+         */
+        ZIPFIAN
+    }
+
+    /**
+     * The operations a session sends.
+     */
+    public enum Operation {
+        /**
+         * A <code>get</code> of one key.
+         */
+        GET,
+        /**
+         * A <code>put</code> of one pair.
+         */
+        PUT,
+        /**
+         * A <code>multiGet</code> of several keys.
+         */
+        MULTIGET,
+        /**
+         * A <code>getWhen</code> whose condition holds.
+         */
+        GETWHEN
+    }
+
+    /**
+     * Number of distinct values, shared by the keys in turn.
+     */
+    private static final int VALUES = 64;
+
+    /**
+     * Keys stored per request while preloading.
+     */
+    private static final int PRELOAD_BATCH = 1000;
+
+    /**
+     * How long to wait for the requests still in flight once the run is over.
+     */
+    private static final long DRAIN_SECONDS = 30;
+
+    private String host = "localhost";
+    private int port = 12345;
+    private String user = "load";
+    private String password = "load";
+    private int sessionCount = 100;
+    private Mode mode = Mode.CLOSED;
+    private int rate;
+    private int durationSeconds = 30;
+    private int warmupSeconds = 5;
+    private int keyCount = 10_000;
+    private Distribution distribution = Distribution.UNIFORM;
+    private double skew = 0.99;
+    private int valueSize = 100;
+    private final Map<Operation, Integer> mix = new EnumMap<>(Operation.class);
+    private int batch = 10;
+    private long ttlMillis;
+    private boolean preload = true;
+    private boolean compression = true;
+    private String output;
+
+    private Operation[] operations;
+    private int[] cumulativeWeights;
+    private byte[][] values;
+    private Zipfian zipfian;
+
+    private final List<Client> sessions = new ArrayList<>();
+    private final Map<Operation, Recorder> recorders = new EnumMap<>(Operation.class);
+    private final Recorder total = new Recorder();
+    private final LongAdder inFlight = new LongAdder();
+    private final AtomicLong sessionsLost = new AtomicLong();
+
+    /**
+     * When the last measured request was answered, by
+     * {@link System#nanoTime()}.
+     */
+    private final AtomicLong lastAnswer = new AtomicLong();
+
+    private long measureStart;
+    private long end;
+
+    /**
+     * Reads the options of the generator.
+     *
+     * @param args The options, as <code>--name=value</code>.
+     * @return The generator.
+     * @throws IllegalArgumentException If an option is unknown or invalid.
+     */
+    public static LoadGenerator parse(String[] args) {
+        LoadGenerator generator = new LoadGenerator();
+        for (String arg : args) {
+            int eq = arg.indexOf('=');
+            if (!arg.startsWith("--") || eq < 0) {
+                throw new IllegalArgumentException("Invalid option '" + arg + "', expected --name=value.");
+            }
+            String name = arg.substring(2, eq);
+            String value = arg.substring(eq + 1);
+            switch (name) {
+                case "host" -> generator.host = value;
+                case "port" -> generator.port = parsePositive(name, value);
+                case "user" -> generator.user = value;
+                case "password" -> generator.password = value;
+                case "sessions" -> generator.sessionCount = parsePositive(name, value);
+                case "mode" -> generator.mode = parseEnum(Mode.class, "mode", value);
+                case "rate" -> generator.rate = parseNonNegative(name, value);
+                case "duration" -> generator.durationSeconds = parsePositive(name, value);
+                case "warmup" -> generator.warmupSeconds = parseNonNegative(name, value);
+                case "keys" -> generator.keyCount = parsePositive(name, value);
+                case "distribution" -> generator.distribution = parseEnum(Distribution.class, "distribution", value);
+                case "skew" -> generator.skew = parseSkew(value);
+                case "value-size" -> generator.valueSize = parsePositive(name, value);
+                case "mix" -> generator.parseMix(value);
+                case "batch" -> generator.batch = parsePositive(name, value);
+                case "ttl" -> generator.ttlMillis = parseNonNegative(name, value);
+                case "preload" -> generator.preload = parseBoolean(name, value);
+                case "compression" -> generator.compression = switch (value) {
+                    case "deflate" -> true;
+                    case "none" -> false;
+                    default -> throw new IllegalArgumentException("Unknown compression '" + value + "'.");
+                };
+                case "output" -> generator.output = value;
+                default -> throw new IllegalArgumentException("Unknown option '--" + name + "'.");
+            }
+        }
+        if (generator.mix.isEmpty()) {
+            generator.mix.put(Operation.GET, 90);
+            generator.mix.put(Operation.PUT, 10);
+        }
+        if (generator.mode == Mode.OPEN && generator.rate == 0) {
+            throw new IllegalArgumentException("The open mode needs a '--rate'.");
+        }
+        if (generator.mix.containsKey(Operation.GETWHEN) && (!generator.preload || generator.ttlMillis > 0)) {
+            // The condition would wait for a key that is not stored
+            throw new IllegalArgumentException("'getwhen' needs the keys preloaded and without a time to live.");
+        }
+        if (generator.output == null) {
+            generator.output = "src/tests/results/load_" + generator.mode.name().toLowerCase() + "_results.json";
+        }
+        return generator;
+    }
+
+    private void parseMix(String value) {
+        mix.clear();
+        for (String entry : value.split(",")) {
+            int colon = entry.indexOf(':');
+            if (colon < 0) {
+                throw new IllegalArgumentException("'mix' entries must be OP:WEIGHT.");
+            }
+            Operation operation = parseEnum(Operation.class, "operation", entry.substring(0, colon));
+            int weight = parseNonNegative("mix", entry.substring(colon + 1));
+            if (weight > 0) {
+                mix.put(operation, weight);
+            }
+        }
+        if (mix.isEmpty()) {
+            throw new IllegalArgumentException("'mix' must give some operation a positive weight.");
+        }
+    }
+
+    private static <E extends Enum<E>> E parseEnum(Class<E> type, String name, String value) {
+        try {
+            return Enum.valueOf(type, value.toUpperCase());
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Unknown " + name + " '" + value + "'.");
+        }
+    }
+
+    private static int parsePositive(String name, String value) {
+        try {
+            int parsed = Integer.parseInt(value);
+            if (parsed <= 0) {
+                throw new IllegalArgumentException("'" + name + "' must be a positive integer.");
+            }
+            return parsed;
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("'" + name + "' must be an integer.");
+        }
+    }
+
+    private static int parseNonNegative(String name, String value) {
+        return value.equals("0") ? 0 : parsePositive(name, value);
+    }
+
+    private static double parseSkew(String value) {
+        try {
+            double parsed = Double.parseDouble(value);
+            if (parsed <= 0 || parsed == 1 || Double.isNaN(parsed) || Double.isInfinite(parsed)) {
+                throw new IllegalArgumentException("'skew' must be positive and other than 1.");
+            }
+            return parsed;
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("'skew' must be a number.");
+        }
+    }
+
+    private static boolean parseBoolean(String name, String value) {
+        return switch (value) {
+            case "true" -> true;
+            case "false" -> false;
+            default -> throw new IllegalArgumentException("'" + name + "' must be true or false.");
+        };
+    }
+
+    /**
+     * Runs the generator with the given options and exits.
+     *
+     * @param args The options, as <code>--name=value</code>.
+     */
+    public static void main(String[] args) {
+        LoadGenerator generator;
+        try {
+            generator = parse(args);
+        } catch (IllegalArgumentException e) {
+            System.err.println("\u001B[31m[ERROR]\u001B[0m " + e.getMessage());
+            System.exit(1);
+            return;
+        }
+        try {
+            generator.run();
+        } catch (IOException e) {
+            System.err.println("\u001B[31m[ERROR]\u001B[0m " + e.getMessage());
+            System.exit(1);
+        } catch (InterruptedException e) {
+            System.exit(1);
+        }
+        System.exit(0);
+    }
+
+    /**
+     * Opens the sessions, stores the keys, runs the load, and reports it.
+     *
+     * @throws IOException          If the server cannot be reached, a session
+     *                              cannot log in, or the results cannot be
+     *                              written.
+     * @throws InterruptedException If the thread is interrupted.
+     */
+    public void run() throws IOException, InterruptedException {
+        prepare();
+
+        Client control = connect(true);
+        ServerStats before = await(control.statsAsync());
+        System.out.println("\u001B[36m[INFO]\u001B[0m Opening " + sessionCount + " sessions to " + host + ":" + port
+                + "...");
+        try {
+            for (int i = 0; i < sessionCount; i++) {
+                sessions.add(connect(false));
+            }
+            ServerStats opened = await(control.statsAsync());
+            if (preload) {
+                preload();
+            }
+
+            System.out.println("\u001B[36m[INFO]\u001B[0m Running " + mode.name().toLowerCase() + " load for "
+                    + warmupSeconds + " s of warm-up and " + durationSeconds + " s measured...");
+            long start = System.nanoTime();
+            measureStart = start + TimeUnit.SECONDS.toNanos(warmupSeconds);
+            end = measureStart + TimeUnit.SECONDS.toNanos(durationSeconds);
+            if (mode == Mode.OPEN) {
+                runOpen(start);
+            } else {
+                runClosed(start);
+            }
+            long unfinished = drain();
+
+            ServerStats after = await(control.statsAsync());
+            String json = report(before, opened, after, unfinished);
+            Path path = Path.of(output);
+            if (path.getParent() != null) {
+                Files.createDirectories(path.getParent());
+            }
+            Files.writeString(path, json, StandardCharsets.UTF_8);
+            System.out.println("\u001B[36m[INFO]\u001B[0m Results saved to " + path);
+        } finally {
+            sessions.add(control);
+            for (Client session : sessions) {
+                if (session.isConnected()) {
+                    session.exit();
+                }
+                session.disconnect();
+            }
+        }
+    }
+
+    /**
+     * Builds the operation weights, the values and the key distribution.
+     */
+    private void prepare() {
+        operations = mix.keySet().toArray(new Operation[0]);
+        cumulativeWeights = new int[operations.length];
+        int sum = 0;
+        for (int i = 0; i < operations.length; i++) {
+            sum += mix.get(operations[i]);
+            cumulativeWeights[i] = sum;
+            recorders.put(operations[i], new Recorder());
+        }
+        values = new byte[VALUES][];
+        for (int i = 0; i < VALUES; i++) {
+            Random random = new Random(i);
+            values[i] = new byte[valueSize];
+            for (int j = 0; j < valueSize; j++) {
+                values[i][j] = (byte) ('a' + random.nextInt(26));
+            }
+        }
+        if (distribution == Distribution.ZIPFIAN) {
+            zipfian = new Zipfian(keyCount, skew);
+        }
+    }
+
+    /**
+     * Opens a connection and logs it in.
+     *
+     * @param register Whether to register the user first, if it does not
+     *                 exist yet.
+     */
+    private Client connect(boolean register) throws IOException {
+        Client client = new Client(host, port, compression);
+        if (!client.isConnected()) {
+            throw new IOException("Could not connect to " + host + ":" + port + ".");
+        }
+        if (register) {
+            byte status = client.authenticate(new AuthRequest(AuthRequest.REGISTER, user, password));
+            if (status != Frame.OK && status != Frame.USER_EXISTS) {
+                client.disconnect();
+                throw new IOException("Could not register '" + user + "': " + Frame.describe(status));
+            }
+        }
+        byte status = client.authenticate(new AuthRequest(AuthRequest.LOGIN, user, password));
+        if (status != Frame.OK) {
+            client.disconnect();
+            throw new IOException("Could not log in as '" + user + "': " + Frame.describe(status));
+        }
+        return client;
+    }
+
+    /**
+     * Stores every key, spreading the batches over the sessions.
+     */
+    private void preload() throws IOException, InterruptedException {
+        System.out.println("\u001B[36m[INFO]\u001B[0m Storing " + keyCount + " keys...");
+        Semaphore window = new Semaphore(sessionCount);
+        List<CompletableFuture<List<String>>> batches = new ArrayList<>();
+        for (int first = 0; first < keyCount; first += PRELOAD_BATCH) {
+            Map<String, byte[]> pairs = new LinkedHashMap<>();
+            for (int i = first; i < Math.min(keyCount, first + PRELOAD_BATCH); i++) {
+                pairs.put(key(i), value(i));
+            }
+            window.acquire();
+            Client session = sessions.get(batches.size() % sessionCount);
+            CompletableFuture<List<String>> stored = session.multiPutAsync(pairs);
+            stored.whenComplete((keys, e) -> window.release());
+            batches.add(stored);
+        }
+        for (CompletableFuture<List<String>> stored : batches) {
+            await(stored);
+        }
+    }
+
+    /**
+     * Starts the requests at the rate, each on the next session in turn,
+     * catching up at once on those due while the thread was late.
+     */
+    private void runOpen(long start) {
+        double nanosPerRequest = 1e9 / rate;
+        for (long i = 0;; i++) {
+            long intended = start + (long) (i * nanosPerRequest);
+            if (intended >= end) {
+                return;
+            }
+            long wait;
+            while ((wait = intended - System.nanoTime()) > 0) {
+                LockSupport.parkNanos(wait);
+            }
+            send(sessions.get((int) (i % sessionCount)), intended, null);
+        }
+    }
+
+    /**
+     * Starts every session and waits for them to stop sending. The first
+     * requests of the sessions are spread over one interval, so they do not
+     * all arrive at once.
+     */
+    private void runClosed(long start) throws InterruptedException {
+        long interval = rate == 0 ? 0 : (long) (1e9 * sessionCount / rate);
+        CountDownLatch stopped = new CountDownLatch(sessionCount);
+        ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "load-timer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        try {
+            for (int i = 0; i < sessionCount; i++) {
+                Client session = sessions.get(i);
+                long first = start + interval * i / sessionCount;
+                timer.schedule(() -> loop(session, first, interval, timer, stopped),
+                        first - System.nanoTime(), TimeUnit.NANOSECONDS);
+            }
+            stopped.await();
+        } finally {
+            timer.shutdownNow();
+        }
+    }
+
+    /**
+     * Sends the next request of a closed-loop session and, once it is
+     * answered, schedules the one after it. A request due while the previous
+     * one was in flight is sent as soon as it is answered, but still timed
+     * from when it was due.
+     */
+    private void loop(Client session, long intended, long interval, ScheduledExecutorService timer,
+            CountDownLatch stopped) {
+        if (intended >= end) {
+            stopped.countDown();
+            return;
+        }
+        send(session, intended, () -> {
+            if (!session.isConnected()) {
+                sessionsLost.incrementAndGet();
+                stopped.countDown();
+                return;
+            }
+            long now = System.nanoTime();
+            long next = interval == 0 ? now : intended + interval;
+            if (next > now) {
+                timer.schedule(() -> loop(session, next, interval, timer, stopped), next - now,
+                        TimeUnit.NANOSECONDS);
+            } else {
+                loop(session, next, interval, timer, stopped);
+            }
+        });
+    }
+
+    /**
+     * Sends a request of the next operation and records it once answered.
+     *
+     * @param session  The session to send it on.
+     * @param intended When the request was due, by {@link System#nanoTime()}.
+     * @param then     What to run once it is answered, or null.
+     */
+    private void send(Client session, long intended, Runnable then) {
+        Operation operation = nextOperation();
+        inFlight.increment();
+        long sent = System.nanoTime();
+        CompletableFuture<?> response;
+        try {
+            response = issue(session, operation);
+        } catch (RuntimeException e) {
+            response = CompletableFuture.failedFuture(e);
+        }
+        response.whenComplete((result, e) -> {
+            long done = System.nanoTime();
+            if (intended >= measureStart) {
+                recorders.get(operation).record(intended, sent, done, e != null);
+                total.record(intended, sent, done, e != null);
+                lastAnswer.accumulateAndGet(done, Math::max);
+            }
+            inFlight.decrement();
+            if (then != null) {
+                then.run();
+            }
+        });
+    }
+
+    private CompletableFuture<?> issue(Client session, Operation operation) {
+        return switch (operation) {
+            case GET -> session.getAsync(key(nextKey()));
+            case PUT -> {
+                int index = nextKey();
+                yield session.putAsync(key(index), value(index), ttlMillis);
+            }
+            case MULTIGET -> {
+                List<String> keys = new ArrayList<>(batch);
+                for (int i = 0; i < batch; i++) {
+                    keys.add(key(nextKey()));
+                }
+                yield session.multiGetAsync(keys);
+            }
+            case GETWHEN -> {
+                int condition = nextKey();
+                yield session.getWhenAsync(key(nextKey()), key(condition), value(condition));
+            }
+        };
+    }
+
+    /**
+     * Waits for the requests still in flight.
+     *
+     * @return The number of requests still not answered.
+     */
+    private long drain() throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(DRAIN_SECONDS);
+        while (inFlight.sum() > 0 && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        return inFlight.sum();
+    }
+
+    private Operation nextOperation() {
+        if (operations.length == 1) {
+            return operations[0];
+        }
+        int pick = ThreadLocalRandom.current().nextInt(cumulativeWeights[cumulativeWeights.length - 1]);
+        for (int i = 0;; i++) {
+            if (pick < cumulativeWeights[i]) {
+                return operations[i];
+            }
+        }
+    }
+
+    private int nextKey() {
+        return zipfian != null ? zipfian.next() : ThreadLocalRandom.current().nextInt(keyCount);
+    }
+
+    private static String key(int index) {
+        return "load-" + index;
+    }
+
+    private byte[] value(int index) {
+        return values[index % VALUES];
+    }
+
+    private static <T> T await(CompletableFuture<T> future) throws IOException {
+        return Client.await(future);
+    }
+
+    /**
+     * Prints the results and builds their JSON.
+     */
+    private String report(ServerStats before, ServerStats opened, ServerStats after, long unfinished) {
+        long answered = total.latency.getCount();
+        // A server that fell behind answers the last requests after the run
+        double seconds = Math.max(end, lastAnswer.get()) - measureStart;
+        seconds /= TimeUnit.SECONDS.toNanos(1);
+        double throughput = answered / seconds;
+        long heapBefore = before.getValues().getOrDefault("heapUsedBytes", 0L);
+        long heapOpened = opened.getValues().getOrDefault("heapUsedBytes", 0L);
+        long bytesPerSession = Math.max(0, heapOpened - heapBefore) / sessionCount;
+        long threadsPerSession = Math.round((opened.getValues().getOrDefault("threads", 0L)
+                - before.getValues().getOrDefault("threads", 0L)) / (double) sessionCount);
+
+        System.out.printf("\u001B[36m[LOAD]\u001B[0m %d requests answered in %.1f s: %.1f per second, %d failed,"
+                + " %d unanswered%n", answered, seconds, throughput, total.failures.sum(), unfinished);
+        System.out.printf("\u001B[36m[LOAD]\u001B[0m %-16s %10s %10s %10s %10s %10s %10s %10s%n", "operation (us)",
+                "count", "mean", "p50", "p90", "p99", "p99.9", "max");
+        for (Map.Entry<Operation, Recorder> entry : recorders.entrySet()) {
+            print(entry.getKey().name().toLowerCase(), entry.getValue().latency);
+        }
+        print("all", total.latency);
+        print("all (service)", total.service);
+        System.out.println("\u001B[36m[LOAD]\u001B[0m Server heap per session: about " + bytesPerSession
+                + " bytes, threads per session: " + threadsPerSession);
+
+        Json json = new Json();
+        json.begin(null);
+        json.field("mode", mode.name().toLowerCase());
+        json.field("sessions", sessionCount);
+        json.field("rate", rate);
+        json.field("durationSeconds", durationSeconds);
+        json.field("warmupSeconds", warmupSeconds);
+        json.field("keys", keyCount);
+        json.field("distribution", distribution.name().toLowerCase());
+        if (distribution == Distribution.ZIPFIAN) {
+            json.field("skew", skew);
+        }
+        json.field("valueSize", valueSize);
+        json.begin("mix");
+        for (Map.Entry<Operation, Integer> weight : mix.entrySet()) {
+            json.field(weight.getKey().name().toLowerCase(), weight.getValue());
+        }
+        json.end();
+        json.field("requests", answered);
+        json.field("failures", total.failures.sum());
+        json.field("unanswered", unfinished);
+        json.field("sessionsLost", sessionsLost.get());
+        json.field("answeredSeconds", Math.round(seconds * 10) / 10.0);
+        json.field("throughput", Math.round(throughput * 10) / 10.0);
+        json.latencies("latencyMicros", total.latency);
+        json.latencies("serviceMicros", total.service);
+        json.begin("operations");
+        for (Map.Entry<Operation, Recorder> entry : recorders.entrySet()) {
+            json.begin(entry.getKey().name().toLowerCase());
+            json.field("requests", entry.getValue().latency.getCount());
+            json.field("failures", entry.getValue().failures.sum());
+            json.latencies("latencyMicros", entry.getValue().latency);
+            json.latencies("serviceMicros", entry.getValue().service);
+            json.end();
+        }
+        json.end();
+        json.begin("server");
+        json.field("heapBytesPerSession", bytesPerSession);
+        json.field("sessionsPerGb", bytesPerSession == 0 ? 0 : (1L << 30) / bytesPerSession);
+        json.field("threadsPerSession", threadsPerSession);
+        for (Map.Entry<String, Long> value : after.getValues().entrySet()) {
+            json.field(value.getKey(), value.getValue());
+        }
+        json.end();
+        json.end();
+        return json.toString();
+    }
+
+    private static void print(String name, LatencyHistogram histogram) {
+        System.out.printf("\u001B[36m[LOAD]\u001B[0m %-16s %10d %10d %10d %10d %10d %10d %10d%n", name,
+                histogram.getCount(), micros(histogram.getMeanNanos()), micros(histogram.getPercentileNanos(50)),
+                micros(histogram.getPercentileNanos(90)), micros(histogram.getPercentileNanos(99)),
+                micros(histogram.getPercentileNanos(99.9)), micros(histogram.getMaxNanos()));
+    }
+
+    private static long micros(long nanos) {
+        return TimeUnit.NANOSECONDS.toMicros(nanos);
+    }
+
+    /**
+     * The latencies of the requests of one operation, or of all of them.
+     */
+    private static final class Recorder {
+        /**
+         * From when each request was due to its answer.
+         */
+        private final LatencyHistogram latency = new LatencyHistogram();
+
+        /**
+         * From when each request was sent to its answer.
+         */
+        private final LatencyHistogram service = new LatencyHistogram();
+
+        private final LongAdder failures = new LongAdder();
+
+        private void record(long intended, long sent, long done, boolean failed) {
+            latency.record(done - intended);
+            service.record(done - sent);
+            if (failed) {
+                failures.increment();
+            }
+        }
+    }
+
+    /**
+     * Chooses among <code>n</code> items so the item of rank <code>r</code>
+     * comes up in proportion to 1/r<sup>s</sup>, in constant time per item
+     * after computing the normalizing sum once (Gray et al., "Quickly
+     * generating billion-record synthetic databases"). The ranks are then
+     * scrambled by a hash, so the hottest keys are spread over the key space
+     * rather than being the lowest-numbered ones. Thread-safe.
+     */
+    private static final class Zipfian {
+        private final int n;
+        private final double theta;
+        private final double alpha;
+        private final double zetaN;
+        private final double eta;
+
+        private Zipfian(int n, double theta) {
+            this.n = n;
+            this.theta = theta;
+            double zeta2 = zeta(2, theta);
+            this.zetaN = zeta(n, theta);
+            this.alpha = 1 / (1 - theta);
+            this.eta = (1 - Math.pow(2.0 / n, 1 - theta)) / (1 - zeta2 / zetaN);
+        }
+
+        private static double zeta(int n, double theta) {
+            double sum = 0;
+            for (int i = 1; i <= n; i++) {
+                sum += 1 / Math.pow(i, theta);
+            }
+            return sum;
+        }
+
+        private int next() {
+            double u = ThreadLocalRandom.current().nextDouble();
+            double uz = u * zetaN;
+            long rank;
+            if (uz < 1) {
+                rank = 0;
+            } else if (uz < 1 + Math.pow(0.5, theta)) {
+                rank = 1;
+            } else {
+                rank = (long) (n * Math.pow(eta * u - eta + 1, alpha));
+            }
+            return (int) Math.floorMod(scramble(Math.min(rank, n - 1)), (long) n);
+        }
+
+        /**
+         * The 64-bit FNV-1a hash of the rank.
+         */
+        private static long scramble(long rank) {
+            long hash = 0xcbf29ce484222325L;
+            for (int i = 0; i < 8; i++) {
+                hash ^= (rank >>> (i * 8)) & 0xff;
+                hash *= 0x100000001b3L;
+            }
+            return hash;
+        }
+    }
+
+    /**
+     * Writes the results as indented JSON, one field per line.
+     */
+    private static final class Json {
+        private final StringBuilder text = new StringBuilder();
+        private int depth;
+        private boolean first = true;
+
+        private void begin(String name) {
+            prefix(name);
+            text.append('{');
+            depth++;
+            first = true;
+        }
+
+        private void end() {
+            depth--;
+            text.append('\n').append("  ".repeat(depth)).append('}');
+            first = false;
+        }
+
+        private void field(String name, Object value) {
+            prefix(name);
+            if (value instanceof String string) {
+                text.append('"').append(string.replace("\\", "\\\\").replace("\"", "\\\"")).append('"');
+            } else {
+                text.append(value);
+            }
+        }
+
+        private void latencies(String name, LatencyHistogram histogram) {
+            begin(name);
+            field("mean", micros(histogram.getMeanNanos()));
+            field("p50", micros(histogram.getPercentileNanos(50)));
+            field("p90", micros(histogram.getPercentileNanos(90)));
+            field("p99", micros(histogram.getPercentileNanos(99)));
+            field("p999", micros(histogram.getPercentileNanos(99.9)));
+            field("max", micros(histogram.getMaxNanos()));
+            end();
+        }
+
+        private void prefix(String name) {
+            if (depth > 0) {
+                text.append(first ? "" : ",").append('\n').append("  ".repeat(depth));
+            }
+            if (name != null) {
+                text.append('"').append(name).append("\": ");
+            }
+            first = false;
+        }
+
+        @Override
+        public String toString() {
+            return text + "\n";
+        }
+    }
+}
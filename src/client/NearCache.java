@@ -0,0 +1,307 @@
+package client;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The <code>NearCache</code> class keeps the results of recent reads of a
+ * {@link Client}, so repeated reads of hot keys are answered without a round
+ * trip. It holds at most a fixed number of keys and evicts the least recently
+ * used one to make room.
+ * <p>
+ * Stored values never change, but a key read as missing may be stored
+ * afterwards, and a key read as present may expire or be evicted. Both kinds
+ * of reads are cached, and the server tells the client, with a
+ * {@link common.Frame#INVALIDATE} frame, when one of the keys it read is
+ * stored or removed, so the entry is dropped. A read still in flight when its
+ * key is invalidated is not cached, since its result may predate the change.
+ * </p>
+ * <p>
+ * The metrics count hits, misses, evictions and invalidations, and how long
+ * invalidations took to arrive after the change on the server: the window in
+ * which a cached entry may have been stale. That delay is measured against
+ * the server clock, so it is only meaningful with synchronized clocks.
+ * </p>
+ */
+public class NearCache {
+
+    /**
+     * What {@link #lookup(String)} returns for a key cached as missing. It is
+     * told apart from a stored empty value by identity.
+     */
+    public static final byte[] MISSING = new byte[0];
+
+    private final int capacity;
+    private final ReentrantLock lock = new ReentrantLock();
+
+    /**
+     * The cached keys, least recently used first. Guarded by the lock.
+     */
+    private final LinkedHashMap<String, byte[]> entries;
+
+    /**
+     * The number of reads in flight of each key. Guarded by the lock.
+     */
+    private final HashMap<String, Integer> fetching = new HashMap<>();
+
+    /**
+     * The generation of the last invalidation of each key read in flight.
+     * Guarded by the lock.
+     */
+    private final HashMap<String, Long> invalidatedAt = new HashMap<>();
+
+    /**
+     * Incremented by every invalidation. Guarded by the lock.
+     */
+    private long generation;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder invalidations = new LongAdder();
+    private final LongAdder delayedInvalidations = new LongAdder();
+    private final LongAdder totalDelayMillis = new LongAdder();
+    private final AtomicLong maxDelayMillis = new AtomicLong();
+
+    /**
+     * Constructs an empty cache.
+     *
+     * @param capacity The most keys held at once.
+     * @throws IllegalArgumentException If the capacity is not positive.
+     */
+    public NearCache(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("The capacity of the cache must be positive.");
+        }
+        this.capacity = capacity;
+        this.entries = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, byte[]> eldest) {
+                if (size() > NearCache.this.capacity) {
+                    evictions.increment();
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Looks a key up, counting a hit or a miss.
+     *
+     * @param key The key.
+     * @return The cached value, which must not be modified, {@link #MISSING}
+     *         if the key is cached as missing, or null if it is not cached.
+     */
+    public byte[] lookup(String key) {
+        byte[] value;
+        lock.lock();
+        try {
+            value = entries.get(key);
+        } finally {
+            lock.unlock();
+        }
+        (value != null ? hits : misses).increment();
+        return value;
+    }
+
+    /**
+     * Marks reads of keys as in flight, before they are sent.
+     *
+     * @param keys The keys read.
+     * @return The generation to pass to {@link #end}.
+     */
+    public long begin(Collection<String> keys) {
+        lock.lock();
+        try {
+            for (String key : keys) {
+                fetching.merge(key, 1, Integer::sum);
+            }
+            return generation;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Ends reads marked by {@link #begin}, caching their results unless a key
+     * was invalidated meanwhile.
+     *
+     * @param keys       The keys read.
+     * @param generation The generation returned by {@link #begin}.
+     * @param found      The keys found and their values; the others are
+     *                   cached as missing. Null if the reads failed, in which
+     *                   case nothing is cached.
+     */
+    public void end(Collection<String> keys, long generation, Map<String, byte[]> found) {
+        lock.lock();
+        try {
+            for (String key : keys) {
+                Long invalidated = invalidatedAt.get(key);
+                if (found != null && (invalidated == null || invalidated <= generation)) {
+                    byte[] value = found.get(key);
+                    entries.put(key, value != null ? value : MISSING);
+                }
+                if (fetching.merge(key, -1, Integer::sum) == 0) {
+                    fetching.remove(key);
+                    invalidatedAt.remove(key);
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Drops a key, because it was written by this client.
+     *
+     * @param key The key.
+     */
+    public void invalidate(String key) {
+        lock.lock();
+        try {
+            drop(key);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Drops keys the server reported as changed.
+     *
+     * @param keys      The keys.
+     * @param changedAt When they changed, in milliseconds since the epoch on
+     *                  the server clock.
+     */
+    public void invalidate(Collection<String> keys, long changedAt) {
+        lock.lock();
+        try {
+            for (String key : keys) {
+                drop(key);
+            }
+        } finally {
+            lock.unlock();
+        }
+        invalidations.add(keys.size());
+        long delay = Math.max(0, System.currentTimeMillis() - changedAt);
+        delayedInvalidations.increment();
+        totalDelayMillis.add(delay);
+        maxDelayMillis.accumulateAndGet(delay, Math::max);
+    }
+
+    /**
+     * Drops every key.
+     */
+    public void clear() {
+        lock.lock();
+        try {
+            entries.clear();
+            generation++;
+            fetching.keySet().forEach(key -> invalidatedAt.put(key, generation));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void drop(String key) {
+        entries.remove(key);
+        generation++;
+        if (fetching.containsKey(key)) {
+            invalidatedAt.put(key, generation);
+        }
+    }
+
+    /**
+     * Gets the most keys held at once.
+     *
+     * @return The capacity.
+     */
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Gets the number of keys held.
+     *
+     * @return The number of keys.
+     */
+    public int size() {
+        lock.lock();
+        try {
+            return entries.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Gets the number of lookups answered from the cache.
+     *
+     * @return The number of hits.
+     */
+    public long getHits() {
+        return hits.sum();
+    }
+
+    /**
+     * Gets the number of lookups that had to go to the server.
+     *
+     * @return The number of misses.
+     */
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    /**
+     * Gets the share of lookups answered from the cache.
+     *
+     * @return The hit rate, between 0 and 1.
+     */
+    public double getHitRate() {
+        long hit = hits.sum();
+        long total = hit + misses.sum();
+        return total == 0 ? 0 : (double) hit / total;
+    }
+
+    /**
+     * Gets the number of keys evicted to make room.
+     *
+     * @return The number of evictions.
+     */
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    /**
+     * Gets the number of keys invalidated by the server.
+     *
+     * @return The number of invalidations.
+     */
+    public long getInvalidations() {
+        return invalidations.sum();
+    }
+
+    /**
+     * Gets how long invalidations took on average to arrive after the change.
+     *
+     * @return The average delay, in milliseconds.
+     */
+    public double getAverageInvalidationDelayMillis() {
+        long count = delayedInvalidations.sum();
+        return count == 0 ? 0 : (double) totalDelayMillis.sum() / count;
+    }
+
+    /**
+     * Gets the longest time an invalidation took to arrive after the change.
+     *
+     * @return The longest delay, in milliseconds.
+     */
+    public long getMaxInvalidationDelayMillis() {
+        return maxDelayMillis.get();
+    }
+}
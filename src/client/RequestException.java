@@ -0,0 +1,64 @@
+package client;
+
+import common.Frame;
+import java.io.IOException;
+
+/**
+ * Signals that the server answered a request with an error status. The
+ * asynchronous methods of {@link Client} complete their futures exceptionally
+ * with this exception.
+ */
+public class RequestException extends IOException {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * The status code of the response.
+     */
+    private final byte status;
+
+    /**
+     * The key the error is about, or null.
+     */
+    private final String key;
+
+    /**
+     * Constructs an exception for the given response status.
+     *
+     * @param status The status code of the response.
+     */
+    public RequestException(byte status) {
+        this(status, null);
+    }
+
+    /**
+     * Constructs an exception for the given response status, about a key,
+     * such as the one that aborted a transaction.
+     *
+     * @param status The status code of the response.
+     * @param key    The key, or null.
+     */
+    public RequestException(byte status, String key) {
+        super(key == null ? Frame.describe(status) : Frame.describe(status) + " (" + key + ")");
+        this.status = status;
+        this.key = key;
+    }
+
+    /**
+     * Gets the status code of the response.
+     *
+     * @return The status code.
+     */
+    public byte getStatus() {
+        return status;
+    }
+
+    /**
+     * Gets the key the error is about.
+     *
+     * @return The key, or null if the error is not about a single key.
+     */
+    public String getKey() {
+        return key;
+    }
+}
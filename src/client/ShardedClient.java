@@ -0,0 +1,637 @@
+package client;
+
+import common.AuthRequest;
+import common.Frame;
+import common.ServerStats;
+import common.Transaction;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The <code>ShardedClient</code> class spreads the keys over several servers,
+ * so the store scales out by running more server processes. Each server is a
+ * shard with its own state; this class holds one {@link Client} per shard and
+ * routes every key to one of them.
+ * <p>
+ * Keys are routed by a consistent-hash ring: each shard is placed on the ring
+ * at {@value #VIRTUAL_NODES} points (virtual nodes), and a key belongs to the
+ * shard of the first point after the hash of the key. Adding a shard only
+ * moves the keys that now fall before its points, about <code>1/n</code> of
+ * them, and the virtual nodes keep the shards evenly loaded.
+ * </p>
+ * <p>
+ * <code>multiPut</code> and <code>multiGet</code> are split per shard, the
+ * parts are sent to all shards at once and their answers are gathered into
+ * one result. Authentication is sent to every shard, since each keeps its own
+ * users. A transaction is only atomic within one server, so all its keys must
+ * live on the same shard. With a single endpoint this class behaves exactly
+ * like a {@link Client}.
+ * </p>
+ * <p>
+ * A shard may list backup servers after its primary, separated by commas
+ * (<code>host:port,host:port</code>). Writes and <code>getWhen</code> always
+ * go to the primary. When reading from backups is enabled, <code>get</code>
+ * and <code>multiGet</code> take turns between the connected backups of the
+ * shard, which spreads the read load but may return stale results: a key just
+ * stored may not have reached the backup yet.
+ * </p>
+ */
+public class ShardedClient {
+
+    /**
+     * Number of points of each shard on the ring.
+     */
+    public static final int VIRTUAL_NODES = 160;
+
+    /**
+     * Longest time a backup login waits for the user to be replicated.
+     */
+    public static final int BACKUP_LOGIN_MILLIS = 2000;
+
+    private final List<String> endpoints;
+    private final List<Client> shards;
+
+    /**
+     * The backups of each shard, empty unless reading from backups is
+     * enabled.
+     */
+    private final List<List<Client>> backups;
+    private final AtomicInteger nextBackup = new AtomicInteger();
+
+    /**
+     * The ring: the shard index at each point. It is never modified after
+     * construction, so lookups need no lock.
+     */
+    private final TreeMap<Long, Integer> ring = new TreeMap<>();
+
+    /**
+     * Connects to the primary of every shard; reads are not sent to backups.
+     *
+     * @param endpoints The shards, as <code>host:port</code>, optionally
+     *                  followed by their backups.
+     * @throws IllegalArgumentException If there are no endpoints or one is
+     *                                  malformed.
+     */
+    public ShardedClient(List<String> endpoints) {
+        this(endpoints, false);
+    }
+
+    /**
+     * Connects to every shard and, if reading from backups, to their backups.
+     *
+     * @param endpoints       The shards, as <code>host:port</code>,
+     *                        optionally followed by their backups.
+     * @param readFromBackups Whether <code>get</code> and
+     *                        <code>multiGet</code> are served by the backups.
+     * @throws IllegalArgumentException If there are no endpoints or one is
+     *                                  malformed.
+     */
+    public ShardedClient(List<String> endpoints, boolean readFromBackups) {
+        if (endpoints.isEmpty()) {
+            throw new IllegalArgumentException("At least one endpoint is needed.");
+        }
+        this.endpoints = List.copyOf(endpoints);
+        this.shards = new ArrayList<>(endpoints.size());
+        this.backups = new ArrayList<>(endpoints.size());
+        for (int i = 0; i < endpoints.size(); i++) {
+            String[] servers = endpoints.get(i).split(",");
+            // Only the primary places the shard on the ring, so listing backups moves no keys
+            String primary = servers[0].trim();
+            shards.add(connect(primary));
+            List<Client> shardBackups = new ArrayList<>();
+            for (int j = 1; j < servers.length && readFromBackups; j++) {
+                shardBackups.add(connect(servers[j].trim()));
+            }
+            backups.add(shardBackups);
+            for (int node = 0; node < VIRTUAL_NODES; node++) {
+                ring.put(hash(primary + "#" + node), i);
+            }
+        }
+    }
+
+    private static Client connect(String endpoint) {
+        int colon = endpoint.lastIndexOf(':');
+        if (colon <= 0) {
+            throw new IllegalArgumentException("Endpoint '" + endpoint + "' is not host:port.");
+        }
+        int port;
+        try {
+            port = Integer.parseInt(endpoint.substring(colon + 1));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Endpoint '" + endpoint + "' is not host:port.");
+        }
+        return new Client(endpoint.substring(0, colon), port);
+    }
+
+    /**
+     * Gets the shards, in the order they were given.
+     *
+     * @return The endpoints.
+     */
+    public List<String> getEndpoints() {
+        return endpoints;
+    }
+
+    /**
+     * Gets the shard a key is routed to.
+     *
+     * @param key The key.
+     * @return The endpoint of the shard.
+     */
+    public String endpointOf(String key) {
+        return endpoints.get(shardOf(key));
+    }
+
+    /**
+     * Checks whether the connections to every shard are open.
+     *
+     * @return true if every shard is connected.
+     */
+    public boolean isConnected() {
+        return shards.stream().allMatch(Client::isConnected);
+    }
+
+    /**
+     * Registers or logs in on every shard. Backups only accept logins, so
+     * they are logged in with the same credentials once the primary accepts
+     * them, waiting up to {@value #BACKUP_LOGIN_MILLIS} ms for a new user to
+     * be replicated.
+     *
+     * @param request The authentication request.
+     * @return {@link Frame#OK} if every shard accepted it, otherwise the first
+     *         other status.
+     */
+    public byte authenticate(AuthRequest request) {
+        List<CompletableFuture<Byte>> answers = new ArrayList<>();
+        for (int i = 0; i < shards.size(); i++) {
+            Client shard = shards.get(i);
+            List<Client> shardBackups = backups.get(i);
+            answers.add(CompletableFuture.supplyAsync(() -> {
+                byte status = shard.authenticate(request);
+                for (Client backup : shardBackups) {
+                    if (status == Frame.OK) {
+                        status = loginBackup(backup, request);
+                    }
+                }
+                return status;
+            }));
+        }
+        byte status = Frame.OK;
+        for (CompletableFuture<Byte> answer : answers) {
+            byte shardStatus = answer.join();
+            if (status == Frame.OK) {
+                status = shardStatus;
+            }
+        }
+        return status;
+    }
+
+    private static byte loginBackup(Client backup, AuthRequest request) {
+        AuthRequest login = new AuthRequest(AuthRequest.LOGIN, request.getUsername(), request.getPassword());
+        long deadline = System.currentTimeMillis() + BACKUP_LOGIN_MILLIS;
+        byte status = backup.authenticate(login);
+        while (status == Frame.NO_SUCH_USER && System.currentTimeMillis() < deadline) {
+            try {
+                Thread.sleep(50);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+            status = backup.authenticate(login);
+        }
+        return status;
+    }
+
+    /**
+     * Starts caching reads on the connection to every server, primaries and
+     * backups (see {@link Client#enableNearCache(int)}). Must be called once
+     * authenticated.
+     *
+     * @param capacity The most keys cached per connection.
+     * @return true if every server accepted, false if one refused or failed.
+     */
+    public boolean enableNearCache(int capacity) {
+        boolean enabled = true;
+        for (Client client : clients()) {
+            try {
+                enabled &= client.enableNearCache(capacity);
+            } catch (IOException e) {
+                Client.report(e);
+                enabled = false;
+            }
+        }
+        return enabled;
+    }
+
+    /**
+     * Gets the caches of the connections that have one, for their metrics.
+     *
+     * @return The caches, primaries first.
+     */
+    public List<NearCache> getNearCaches() {
+        List<NearCache> caches = new ArrayList<>();
+        for (Client client : clients()) {
+            if (client.getNearCache() != null) {
+                caches.add(client.getNearCache());
+            }
+        }
+        return caches;
+    }
+
+    private List<Client> clients() {
+        List<Client> clients = new ArrayList<>(shards);
+        backups.forEach(clients::addAll);
+        return clients;
+    }
+
+    /**
+     * Stores a key-value pair and prints the outcome.
+     *
+     * @param key   The key to be stored.
+     * @param value The value to be stored.
+     */
+    public void put(String key, byte[] value) {
+        try {
+            if (Client.await(putAsync(key, value))) {
+                System.out.println("\u001B[32m[RESPONSE]\u001B[0m Info successfully stored!");
+            } else {
+                System.out.println("\u001B[32m[RESPONSE]\u001B[0m " + Frame.describe(Frame.KEY_EXISTS));
+            }
+        } catch (IOException e) {
+            Client.report(e);
+        }
+    }
+
+    /**
+     * Asynchronously stores a key-value pair on its shard.
+     *
+     * @param key   The key to be stored.
+     * @param value The value to be stored.
+     * @return A future completed with true if the pair was stored, or false if
+     *         the key already existed.
+     */
+    public CompletableFuture<Boolean> putAsync(String key, byte[] value) {
+        return shardFor(key).putAsync(key, value);
+    }
+
+    /**
+     * Stores a key-value pair that expires and prints the outcome.
+     *
+     * @param key       The key to be stored.
+     * @param value     The value to be stored.
+     * @param ttlMillis How long the pair lives, in milliseconds, or 0 if it
+     *                  never expires.
+     * @throws IllegalArgumentException If the time to live is negative.
+     */
+    public void put(String key, byte[] value, long ttlMillis) {
+        try {
+            if (Client.await(putAsync(key, value, ttlMillis))) {
+                System.out.println("\u001B[32m[RESPONSE]\u001B[0m Info successfully stored!");
+            } else {
+                System.out.println("\u001B[32m[RESPONSE]\u001B[0m " + Frame.describe(Frame.KEY_EXISTS));
+            }
+        } catch (IOException e) {
+            Client.report(e);
+        }
+    }
+
+    /**
+     * Asynchronously stores a key-value pair that expires on its shard.
+     *
+     * @param key       The key to be stored.
+     * @param value     The value to be stored.
+     * @param ttlMillis How long the pair lives, in milliseconds, or 0 if it
+     *                  never expires.
+     * @return A future completed with true if the pair was stored, or false if
+     *         the key already existed.
+     * @throws IllegalArgumentException If the time to live is negative.
+     */
+    public CompletableFuture<Boolean> putAsync(String key, byte[] value, long ttlMillis) {
+        return shardFor(key).putAsync(key, value, ttlMillis);
+    }
+
+    /**
+     * Retrieves the value of a key, printing a message if it does not exist.
+     *
+     * @param key The key whose value is to be retrieved.
+     * @return The value, or null if no data is found.
+     */
+    public byte[] get(String key) {
+        try {
+            return Client.found(Client.await(getAsync(key)), key);
+        } catch (IOException e) {
+            Client.report(e);
+            return null;
+        }
+    }
+
+    /**
+     * Asynchronously retrieves the value of a key from its shard.
+     *
+     * @param key The key whose value is to be retrieved.
+     * @return A future completed with the value, or with null if the key does
+     *         not exist.
+     */
+    public CompletableFuture<byte[]> getAsync(String key) {
+        return readerOf(shardOf(key)).getAsync(key);
+    }
+
+    /**
+     * Opens a stream that stores a value sent in chunks on its shard.
+     *
+     * @param key    The key to be stored.
+     * @param length The length of the value, or -1 if not known in advance.
+     * @return The stream; see {@link ValueOutputStream}.
+     */
+    public ValueOutputStream openPutStream(String key, long length) {
+        return shardFor(key).openPutStream(key, length);
+    }
+
+    /**
+     * Stores the contents of a stream as a value, sent in chunks to its
+     * shard.
+     *
+     * @param key   The key to be stored.
+     * @param value The stream the value is read from, up to its end.
+     * @return true if the pair was stored, or false if the key already
+     *         existed.
+     * @throws IOException If the stream cannot be read or the request fails.
+     */
+    public boolean putStream(String key, InputStream value) throws IOException {
+        return shardFor(key).putStream(key, value);
+    }
+
+    /**
+     * Opens a stream over a value, fetched in chunks from its shard.
+     *
+     * @param key The key whose value is to be retrieved.
+     * @return The stream, or null if the key does not exist.
+     * @throws IOException If the request fails.
+     */
+    public ValueInputStream openGetStream(String key) throws IOException {
+        return readerOf(shardOf(key)).openGetStream(key);
+    }
+
+    /**
+     * Stores multiple key-value pairs and prints the outcome.
+     *
+     * @param pairs A map of keys and their associated byte array values.
+     */
+    public void multiPut(Map<String, byte[]> pairs) {
+        try {
+            for (String key : Client.await(multiPutAsync(pairs))) {
+                System.out.println(
+                        "\u001B[32m[RESPONSE]\u001B[0m " + Frame.describe(Frame.KEY_EXISTS) + " (" + key + ")");
+            }
+            System.out.println("\u001B[32m[RESPONSE]\u001B[0m Info successfully stored!");
+        } catch (IOException e) {
+            Client.report(e);
+        }
+    }
+
+    /**
+     * Asynchronously stores multiple key-value pairs: one request is sent to
+     * each shard holding some of the keys, all at once.
+     *
+     * @param pairs A map of keys and their associated byte array values.
+     * @return A future completed with the keys that were not stored because
+     *         they already existed.
+     */
+    public CompletableFuture<List<String>> multiPutAsync(Map<String, byte[]> pairs) {
+        Map<Integer, Map<String, byte[]>> parts = new HashMap<>();
+        for (Map.Entry<String, byte[]> pair : pairs.entrySet()) {
+            parts.computeIfAbsent(shardOf(pair.getKey()), shard -> new LinkedHashMap<>())
+                    .put(pair.getKey(), pair.getValue());
+        }
+        List<CompletableFuture<List<String>>> scattered = new ArrayList<>();
+        parts.forEach((shard, part) -> scattered.add(shards.get(shard).multiPutAsync(part)));
+
+        return CompletableFuture.allOf(scattered.toArray(CompletableFuture[]::new)).thenApply(done -> {
+            List<String> rejected = new ArrayList<>();
+            for (CompletableFuture<List<String>> part : scattered) {
+                rejected.addAll(part.join());
+            }
+            return rejected;
+        });
+    }
+
+    /**
+     * Retrieves the values of multiple keys, printing a message if none
+     * exists.
+     *
+     * @param keys A list of keys whose values are to be retrieved.
+     * @return The keys found and their values, or null if the request failed.
+     */
+    public Map<String, byte[]> multiGet(List<String> keys) {
+        try {
+            Map<String, byte[]> responses = Client.await(multiGetAsync(keys));
+            if (responses.isEmpty()) {
+                System.out.println(
+                        "\u001B[32m[RESPONSE]\u001B[0m There is no information associated with the requested keys");
+            }
+            return responses;
+        } catch (IOException e) {
+            Client.report(e);
+            return null;
+        }
+    }
+
+    /**
+     * Asynchronously retrieves the values of multiple keys: one request is
+     * sent to each shard holding some of the keys, all at once.
+     *
+     * @param keys A list of keys whose values are to be retrieved.
+     * @return A future completed with the keys found and their values.
+     */
+    public CompletableFuture<Map<String, byte[]>> multiGetAsync(List<String> keys) {
+        Map<Integer, List<String>> parts = new HashMap<>();
+        for (String key : keys) {
+            parts.computeIfAbsent(shardOf(key), shard -> new ArrayList<>()).add(key);
+        }
+        List<CompletableFuture<Map<String, byte[]>>> scattered = new ArrayList<>();
+        parts.forEach((shard, part) -> scattered.add(readerOf(shard).multiGetAsync(part)));
+
+        return CompletableFuture.allOf(scattered.toArray(CompletableFuture[]::new)).thenApply(done -> {
+            Map<String, byte[]> responses = new HashMap<>();
+            for (CompletableFuture<Map<String, byte[]>> part : scattered) {
+                responses.putAll(part.join());
+            }
+            return responses;
+        });
+    }
+
+    /**
+     * Applies a transaction as one unit and prints the outcome.
+     *
+     * @param transaction The operations.
+     * @return The keys read that were found and their values, or null if the
+     *         transaction was aborted or could not be sent.
+     */
+    public Map<String, byte[]> commit(Transaction transaction) {
+        try {
+            Map<String, byte[]> reads = Client.await(commitAsync(transaction));
+            System.out.println("\u001B[32m[RESPONSE]\u001B[0m Transaction committed!");
+            return reads;
+        } catch (IOException e) {
+            Client.report(e);
+            return null;
+        } catch (IllegalArgumentException e) {
+            System.out.println("\u001B[31m[ERROR]\u001B[0m " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Asynchronously applies a transaction as one unit on the shard of its
+     * keys.
+     *
+     * @param transaction The operations.
+     * @return A future completed with the keys read that were found and their
+     *         values, or exceptionally if the transaction was aborted.
+     * @throws IllegalArgumentException If the keys live on different shards.
+     */
+    public CompletableFuture<Map<String, byte[]>> commitAsync(Transaction transaction) {
+        int shard = -1;
+        for (String key : transaction.keys()) {
+            if (shard >= 0 && shardOf(key) != shard) {
+                throw new IllegalArgumentException("The keys of a transaction must live on one shard.");
+            }
+            shard = shardOf(key);
+        }
+        return shards.get(Math.max(shard, 0)).commitAsync(transaction);
+    }
+
+    /**
+     * Retrieves the value of <code>key</code> once the value stored under
+     * <code>keyCond</code> is equal to <code>valueCond</code>.
+     *
+     * @param key       The key whose value is to be retrieved.
+     * @param keyCond   The key of the condition.
+     * @param valueCond The value the condition key must have.
+     * @return The value, or null if no data is found.
+     */
+    public byte[] getWhen(String key, String keyCond, byte[] valueCond) {
+        try {
+            return Client.found(Client.await(getWhenAsync(key, keyCond, valueCond)), key);
+        } catch (IOException e) {
+            Client.report(e);
+            return null;
+        }
+    }
+
+    /**
+     * Asynchronously retrieves the value of <code>key</code> once the value
+     * stored under <code>keyCond</code> is equal to <code>valueCond</code>.
+     * When both keys live on the same shard this is a single request;
+     * otherwise the condition is awaited on its shard and the value is then
+     * read from the shard of the key.
+     *
+     * @param key       The key whose value is to be retrieved.
+     * @param keyCond   The key of the condition.
+     * @param valueCond The value the condition key must have.
+     * @return A future completed with the value, or with null if the key does
+     *         not exist.
+     */
+    public CompletableFuture<byte[]> getWhenAsync(String key, String keyCond, byte[] valueCond) {
+        Client condShard = shardFor(keyCond);
+        Client keyShard = shardFor(key);
+        if (condShard == keyShard) {
+            return keyShard.getWhenAsync(key, keyCond, valueCond);
+        }
+        return condShard.getWhenAsync(keyCond, keyCond, valueCond).thenCompose(cond -> keyShard.getAsync(key));
+    }
+
+    /**
+     * Asks the primary of every shard what it is doing.
+     *
+     * @return The statistics of each shard by endpoint, in the order the
+     *         shards were given, without those whose request failed.
+     */
+    public Map<String, ServerStats> stats() {
+        List<CompletableFuture<ServerStats>> answers = new ArrayList<>();
+        for (Client shard : shards) {
+            answers.add(shard.statsAsync());
+        }
+        Map<String, ServerStats> stats = new LinkedHashMap<>();
+        for (int i = 0; i < answers.size(); i++) {
+            try {
+                stats.put(endpoints.get(i).split(",")[0].trim(), Client.await(answers.get(i)));
+            } catch (IOException e) {
+                Client.report(e);
+            }
+        }
+        return stats;
+    }
+
+    /**
+     * Tells every shard the session is over.
+     */
+    public void exit() {
+        shards.forEach(Client::exit);
+        backups.forEach(shardBackups -> shardBackups.forEach(Client::exit));
+    }
+
+    /**
+     * Closes the connections to every shard.
+     */
+    public void closeConnection() {
+        shards.forEach(Client::closeConnection);
+        backups.forEach(shardBackups -> shardBackups.forEach(Client::closeConnection));
+    }
+
+    /**
+     * Picks the server that serves the reads of a shard: the next connected
+     * backup in turn, or the primary if there is none.
+     */
+    private Client readerOf(int shard) {
+        List<Client> shardBackups = backups.get(shard);
+        int size = shardBackups.size();
+        int start = Math.floorMod(nextBackup.getAndIncrement(), Math.max(1, size));
+        for (int i = 0; i < size; i++) {
+            Client backup = shardBackups.get((start + i) % size);
+            if (backup.isConnected()) {
+                return backup;
+            }
+        }
+        return shards.get(shard);
+    }
+
+    private Client shardFor(String key) {
+        return shards.get(shardOf(key));
+    }
+
+    private int shardOf(String key) {
+        if (shards.size() == 1) {
+            return 0;
+        }
+        Map.Entry<Long, Integer> point = ring.ceilingEntry(hash(key));
+        return point != null ? point.getValue() : ring.firstEntry().getValue();
+    }
+
+    /**
+     * Hashes the UTF-8 bytes of a string with FNV-1a and mixes the result with
+     * the MurmurHash3 finalizer, so close strings land far apart on the ring.
+     */
+    private static long hash(String string) {
+        long hash = 0xcbf29ce484222325L;
+        for (byte b : string.getBytes(StandardCharsets.UTF_8)) {
+            hash ^= b & 0xff;
+            hash *= 0x100000001b3L;
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+}
@@ -0,0 +1,151 @@
+package client;
+
+import common.Frame;
+import common.PayloadWriter;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayDeque;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * The <code>ValueInputStream</code> class reads a value from the server in
+ * {@link Frame#GET_RANGE} requests of {@link Client#CHUNK_SIZE} bytes, so a
+ * large value never has to be held in memory as a whole. The next
+ * {@link Client#STREAM_WINDOW} chunks are requested ahead of the reader, so
+ * they are usually on their way by the time they are needed.
+ * <p>
+ * Values are never overwritten, so the chunks always belong to the same
+ * value. Obtained from {@link Client#openGetStream(String)}; not safe for use
+ * by several threads at once.
+ * </p>
+ */
+public class ValueInputStream extends InputStream {
+
+    private final Client client;
+    private final String key;
+    private final int length;
+    private final ArrayDeque<CompletableFuture<Frame>> ahead = new ArrayDeque<>();
+    private byte[] chunk;
+    private int position;
+    private int requested;
+    private long remaining;
+
+    private ValueInputStream(Client client, String key, int length, byte[] first, int firstOffset) {
+        this.client = client;
+        this.key = key;
+        this.length = length;
+        this.chunk = first;
+        this.position = firstOffset;
+        this.requested = first.length - firstOffset;
+        this.remaining = length;
+        requestAhead();
+    }
+
+    /**
+     * Opens a stream over a value, fetching its first chunk.
+     *
+     * @param client The client to request the chunks on.
+     * @param key    The key of the value.
+     * @return The stream, or null if the key does not exist.
+     * @throws IOException If the request fails.
+     */
+    static ValueInputStream open(Client client, String key) throws IOException {
+        Frame response = Client.await(range(client, key, 0));
+        if (response.getStatus() == Frame.NOT_FOUND) {
+            return null;
+        }
+        if (response.getStatus() != Frame.OK) {
+            throw new RequestException(response.getStatus());
+        }
+        int length = response.payloadStream().readInt();
+        return new ValueInputStream(client, key, length, response.getPayload(), 4);
+    }
+
+    /**
+     * Gets the length of the whole value.
+     *
+     * @return The length, in bytes.
+     */
+    public int getLength() {
+        return length;
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (!fill()) {
+            return -1;
+        }
+        remaining--;
+        return chunk[position++] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] bytes, int offset, int count) throws IOException {
+        if (count == 0) {
+            return 0;
+        }
+        if (!fill()) {
+            return -1;
+        }
+        int copied = Math.min(count, chunk.length - position);
+        System.arraycopy(chunk, position, bytes, offset, copied);
+        position += copied;
+        remaining -= copied;
+        return copied;
+    }
+
+    @Override
+    public int available() {
+        return chunk.length - position;
+    }
+
+    /**
+     * Drops the chunks requested ahead. Their responses are still read by
+     * the client and discarded.
+     */
+    @Override
+    public void close() {
+        ahead.clear();
+        remaining = 0;
+    }
+
+    /**
+     * Makes the current chunk hold unread bytes, waiting for the next one if
+     * needed.
+     *
+     * @return false at the end of the value.
+     */
+    private boolean fill() throws IOException {
+        if (position < chunk.length) {
+            return true;
+        }
+        if (remaining <= 0 || ahead.isEmpty()) {
+            return false;
+        }
+        Frame response = Client.await(ahead.poll());
+        if (response.getStatus() != Frame.OK) {
+            throw new RequestException(response.getStatus());
+        }
+        DataInputStream payload = response.payloadStream();
+        if (payload.readInt() != length || response.getPayload().length == 4) {
+            throw new IOException("Unexpected chunk of the value of " + key + ".");
+        }
+        chunk = response.getPayload();
+        position = 4;
+        requestAhead();
+        return true;
+    }
+
+    private void requestAhead() {
+        while (ahead.size() < Client.STREAM_WINDOW && requested < length) {
+            ahead.add(range(client, key, requested));
+            requested += Math.min(Client.CHUNK_SIZE, length - requested);
+        }
+    }
+
+    private static CompletableFuture<Frame> range(Client client, String key, int offset) {
+        return client.send(Frame.GET_RANGE,
+                new PayloadWriter().writeKey(key).writeInt(offset).writeInt(Client.CHUNK_SIZE).toByteArray());
+    }
+}
@@ -0,0 +1,114 @@
+package client;
+
+import common.Frame;
+import common.PayloadWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * The <code>ValueOutputStream</code> class stores a value on the server as it
+ * is written, in {@link Frame#PUT_CHUNK} frames of {@link Client#CHUNK_SIZE}
+ * bytes, so a large value never has to be held in memory as a whole. Up to
+ * {@link Client#STREAM_WINDOW} chunks are sent ahead of their responses; a
+ * writer faster than the network blocks until the oldest one is answered.
+ * <p>
+ * The value is stored when the stream is closed. Until then the server keeps
+ * the chunks received; they are dropped if the connection is closed first.
+ * Obtained from {@link Client#openPutStream(String, long)}; not safe for use
+ * by several threads at once.
+ * </p>
+ */
+public class ValueOutputStream extends OutputStream {
+
+    private final Client client;
+    private final String key;
+    private final long length;
+    private final byte[] buffer = new byte[Client.CHUNK_SIZE];
+    private final ArrayDeque<CompletableFuture<Frame>> inFlight = new ArrayDeque<>();
+    private int count;
+    private long written;
+    private boolean closed;
+
+    ValueOutputStream(Client client, String key, long length) {
+        this.client = client;
+        this.key = key;
+        this.length = length;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        ensureOpen(1);
+        buffer[count++] = (byte) b;
+        written++;
+        if (count == buffer.length) {
+            sendChunk(false);
+        }
+    }
+
+    @Override
+    public void write(byte[] bytes, int offset, int length) throws IOException {
+        ensureOpen(length);
+        while (length > 0) {
+            int copied = Math.min(length, buffer.length - count);
+            System.arraycopy(bytes, offset, buffer, count, copied);
+            count += copied;
+            written += copied;
+            offset += copied;
+            length -= copied;
+            if (count == buffer.length) {
+                sendChunk(false);
+            }
+        }
+    }
+
+    /**
+     * Sends the last chunk and waits until the value is stored.
+     *
+     * @throws RequestException If the key already exists (status
+     *                          {@link Frame#KEY_EXISTS}), fewer bytes than
+     *                          declared were written, or the server rejected
+     *                          the value.
+     * @throws IOException      If the connection fails.
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        sendChunk(true);
+        closed = true;
+        while (!inFlight.isEmpty()) {
+            awaitOldest();
+        }
+    }
+
+    private void ensureOpen(int more) throws IOException {
+        if (closed) {
+            throw new IOException("Stream closed.");
+        }
+        if (length >= 0 && written + more > length) {
+            throw new IOException("Value longer than the " + length + " bytes declared.");
+        }
+    }
+
+    private void sendChunk(boolean last) throws IOException {
+        byte[] payload = new PayloadWriter().writeKey(key).writeLong(length).writeByte(last ? 1 : 0)
+                .writeBytes(buffer, 0, count).toByteArray();
+        count = 0;
+        inFlight.add(client.send(Frame.PUT_CHUNK, payload));
+        while (inFlight.size() > Client.STREAM_WINDOW) {
+            awaitOldest();
+        }
+    }
+
+    private void awaitOldest() throws IOException {
+        Frame response = Client.await(inFlight.poll());
+        if (response.getStatus() != Frame.OK) {
+            inFlight.clear();
+            closed = true;
+            throw new RequestException(response.getStatus());
+        }
+    }
+}
@@ -0,0 +1,366 @@
+package common;
+
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * The <code>Codec</code> class encodes values the way the server stores them
+ * and, on connections that negotiated it (see {@link Frame#NEGOTIATE}), the
+ * way they travel on the wire. An encoded value is a tag naming its codec
+ * followed by:
+ *
+ * <pre>
+ * RAW      the value as it is
+ * DEFLATE  int length of the value, then the value as a raw Deflate stream
+ * </pre>
+ *
+ * Values shorter than {@value #THRESHOLD} bytes, and values that compression
+ * would not shrink by at least an eighth, are kept {@link #RAW}, so small or
+ * incompressible values never pay for it. Deflate runs at its fastest level.
+ * Compressors and decompressors hold native memory, so they are borrowed from
+ * small pools and returned after each value; any beyond what the pools keep
+ * are released at once rather than left to the garbage collector, however
+ * many threads come and go.
+ * <p>
+ * Since a value is stored and sent in the same encoding, the server hands a
+ * compressed value to a client that negotiated the codec without
+ * decompressing it; only clients that did not negotiate get it decoded.
+ * </p>
+ */
+public final class Codec {
+
+    /**
+     * The value is not compressed.
+     */
+    public static final byte RAW = 0;
+
+    /**
+     * The value is compressed with Deflate.
+     */
+    public static final byte DEFLATE = 1;
+
+    /**
+     * Values shorter than this many bytes are never compressed.
+     */
+    public static final int THRESHOLD = 512;
+
+    /**
+     * Largest length of a decoded value.
+     */
+    public static final int MAX_LENGTH = 1 << 30;
+
+    /**
+     * Largest length of a compressed value received from a client once
+     * decoded: what a frame can carry, so it can be sent decoded as well.
+     */
+    public static final int MAX_RECEIVED_LENGTH = Frame.MAX_LENGTH;
+
+    private static final int DEFLATE_HEADER = 1 + 4;
+
+    /**
+     * Most idle compressors, and decompressors, kept for reuse.
+     */
+    private static final int POOL_SIZE = 2 * Runtime.getRuntime().availableProcessors();
+
+    /**
+     * Size of the scratch buffer a received value is inflated into to be
+     * checked.
+     */
+    private static final int CHECK_BUFFER = 64 * 1024;
+
+    private static final ArrayBlockingQueue<Deflater> DEFLATERS = new ArrayBlockingQueue<>(POOL_SIZE);
+    private static final ArrayBlockingQueue<Inflater> INFLATERS = new ArrayBlockingQueue<>(POOL_SIZE);
+
+    private Codec() {
+    }
+
+    /**
+     * Gets the name of a codec.
+     *
+     * @param codec The codec tag.
+     * @return The name, e.g. "deflate".
+     */
+    public static String name(byte codec) {
+        return switch (codec) {
+            case RAW -> "raw";
+            case DEFLATE -> "deflate";
+            default -> "unknown codec " + codec;
+        };
+    }
+
+    /**
+     * Encodes a value without compressing it.
+     *
+     * @param value The value.
+     * @return The encoded value.
+     */
+    public static byte[] raw(byte[] value) {
+        byte[] encoded = new byte[1 + value.length];
+        encoded[0] = RAW;
+        System.arraycopy(value, 0, encoded, 1, value.length);
+        return encoded;
+    }
+
+    /**
+     * Encodes a value, compressing it with the given codec if that is worth
+     * it.
+     *
+     * @param value The value.
+     * @param codec The codec to compress with, or {@link #RAW}.
+     * @return The encoded value.
+     */
+    public static byte[] encode(byte[] value, byte codec) {
+        byte[] compressed = codec == DEFLATE ? deflate(value, 0, value.length) : null;
+        return compressed != null ? compressed : raw(value);
+    }
+
+    /**
+     * Compresses an encoded value that is still {@link #RAW}, if that is worth
+     * it.
+     *
+     * @param encoded The encoded value.
+     * @param codec   The codec to compress with, or {@link #RAW}.
+     * @return The compressed value, or the given one if it is left as it is.
+     */
+    public static byte[] compress(byte[] encoded, byte codec) {
+        if (codec != DEFLATE || encoded[0] != RAW) {
+            return encoded;
+        }
+        byte[] compressed = deflate(encoded, 1, encoded.length - 1);
+        return compressed != null ? compressed : encoded;
+    }
+
+    /**
+     * Checks that a value received from a client is well formed and uses a
+     * codec of the connection. A compressed value is inflated once, into a
+     * scratch buffer that is thrown away, to check that it is a whole stream
+     * of the length it declares, no longer than a frame can carry; so only
+     * valid values are stored, and decoding one later never fails or
+     * allocates more than its real length.
+     *
+     * @param encoded The encoded value.
+     * @param codec   The codec negotiated on the connection.
+     * @return The encoded value.
+     * @throws ProtocolException If the value is not well formed.
+     */
+    public static byte[] check(byte[] encoded, byte codec) throws ProtocolException {
+        if (encoded.length == 0 || (encoded[0] != RAW && encoded[0] != codec)) {
+            throw new ProtocolException("Value not encoded with a negotiated codec.");
+        }
+        if (encoded[0] == DEFLATE) {
+            int length = encoded.length >= DEFLATE_HEADER ? ByteBuffer.wrap(encoded, 1, 4).getInt() : -1;
+            if (length < 0 || length > MAX_RECEIVED_LENGTH) {
+                throw new ProtocolException("Invalid length of a compressed value.");
+            }
+            if (inflatedLength(encoded, length) != length) {
+                throw new ProtocolException("Corrupted compressed value.");
+            }
+        }
+        return encoded;
+    }
+
+    /**
+     * Inflates a compressed value without keeping it, to count its bytes.
+     *
+     * @return The length of the value, or -1 if the stream is corrupted,
+     *         inflates to more than the declared length, or has bytes after
+     *         its end.
+     */
+    private static int inflatedLength(byte[] encoded, int declared) {
+        byte[] scratch = new byte[Math.min(CHECK_BUFFER, declared + 1)];
+        Inflater inflater = borrowInflater();
+        try {
+            inflater.setInput(encoded, DEFLATE_HEADER, encoded.length - DEFLATE_HEADER);
+            long inflated = 0;
+            while (!inflater.finished() && inflated <= declared) {
+                int count = inflater.inflate(scratch);
+                if (count == 0 && !inflater.finished() && (inflater.needsInput() || inflater.needsDictionary())) {
+                    return -1;
+                }
+                inflated += count;
+            }
+            return inflater.finished() && inflater.getRemaining() == 0 && inflated == declared ? declared : -1;
+        } catch (DataFormatException e) {
+            return -1;
+        } finally {
+            release(inflater);
+        }
+    }
+
+    /**
+     * Gets the codec of an encoded value.
+     *
+     * @param encoded The encoded value.
+     * @return The codec tag.
+     */
+    public static byte codecOf(byte[] encoded) {
+        return encoded[0];
+    }
+
+    /**
+     * Gets the length of an encoded value once decoded, without decoding it.
+     *
+     * @param encoded The encoded value.
+     * @return The length, in bytes.
+     */
+    public static int decodedLength(byte[] encoded) {
+        return encoded[0] == RAW ? encoded.length - 1 : ByteBuffer.wrap(encoded, 1, 4).getInt();
+    }
+
+    /**
+     * Decodes a value.
+     *
+     * @param encoded The encoded value.
+     * @return The value.
+     * @throws IllegalArgumentException If the value is not well formed.
+     */
+    public static byte[] decode(byte[] encoded) {
+        if (encoded.length == 0) {
+            throw new IllegalArgumentException("Empty encoded value.");
+        }
+        switch (encoded[0]) {
+            case RAW -> {
+                return Arrays.copyOfRange(encoded, 1, encoded.length);
+            }
+            case DEFLATE -> {
+                if (encoded.length < DEFLATE_HEADER) {
+                    throw new IllegalArgumentException("Truncated compressed value.");
+                }
+                int length = decodedLength(encoded);
+                if (length < 0 || length > MAX_LENGTH) {
+                    throw new IllegalArgumentException("Invalid length of a compressed value.");
+                }
+                byte[] value = new byte[length];
+                Inflater inflater = borrowInflater();
+                inflater.setInput(encoded, DEFLATE_HEADER, encoded.length - DEFLATE_HEADER);
+                try {
+                    int inflated = 0;
+                    while (inflated < length && !inflater.finished()) {
+                        int count = inflater.inflate(value, inflated, length - inflated);
+                        if (count == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                            break;
+                        }
+                        inflated += count;
+                    }
+                    if (inflated != length) {
+                        throw new IllegalArgumentException("Compressed value of the wrong length.");
+                    }
+                } catch (DataFormatException e) {
+                    throw new IllegalArgumentException("Corrupted compressed value: " + e.getMessage());
+                } finally {
+                    release(inflater);
+                }
+                return value;
+            }
+            default -> throw new IllegalArgumentException("Value encoded with " + name(encoded[0]) + ".");
+        }
+    }
+
+    /**
+     * Checks whether an encoded value is equal to a plain one. A
+     * {@link #RAW} value is compared in place; a compressed one is only
+     * decoded if the lengths match.
+     *
+     * @param encoded The encoded value.
+     * @param value   The plain value.
+     * @return true if they are equal.
+     */
+    public static boolean matches(byte[] encoded, byte[] value) {
+        if (encoded[0] == RAW) {
+            return Arrays.equals(encoded, 1, encoded.length, value, 0, value.length);
+        }
+        try {
+            return decodedLength(encoded) == value.length && Arrays.equals(decode(encoded), value);
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Describes an encoded value for the logs: a {@link #RAW} value as text,
+     * a compressed one by its sizes, so logging never decompresses.
+     *
+     * @param encoded The encoded value.
+     * @return The description.
+     */
+    public static String describe(byte[] encoded) {
+        if (encoded[0] == RAW) {
+            return new String(encoded, 1, encoded.length - 1);
+        }
+        return "(" + decodedLength(encoded) + " bytes, " + encoded.length + " with " + name(encoded[0]) + ")";
+    }
+
+    /**
+     * Compresses part of an array with Deflate.
+     *
+     * @return The encoded value, or null if it would not be worth it.
+     */
+    private static byte[] deflate(byte[] bytes, int offset, int length) {
+        if (length < THRESHOLD) {
+            return null;
+        }
+        byte[] compressed;
+        int position = DEFLATE_HEADER;
+        Deflater deflater = borrowDeflater();
+        try {
+            deflater.setInput(bytes, offset, length);
+            deflater.finish();
+            // Give up as soon as the output would not save an eighth of the value
+            compressed = new byte[DEFLATE_HEADER + length - length / 8];
+            while (!deflater.finished() && position < compressed.length) {
+                position += deflater.deflate(compressed, position, compressed.length - position);
+            }
+            if (!deflater.finished()) {
+                return null;
+            }
+        } finally {
+            release(deflater);
+        }
+        compressed[0] = DEFLATE;
+        ByteBuffer.wrap(compressed, 1, 4).putInt(length);
+        return Arrays.copyOf(compressed, position);
+    }
+
+    /**
+     * Takes a compressor from the pool, or makes one if it is empty.
+     */
+    private static Deflater borrowDeflater() {
+        Deflater deflater = DEFLATERS.poll();
+        return deflater != null ? deflater : new Deflater(Deflater.BEST_SPEED, true);
+    }
+
+    /**
+     * Gives a compressor back to the pool, or releases its native memory if
+     * the pool is full.
+     */
+    private static void release(Deflater deflater) {
+        deflater.reset();
+        if (!DEFLATERS.offer(deflater)) {
+            deflater.end();
+        }
+    }
+
+    /**
+     * Takes a decompressor from the pool, or makes one if it is empty.
+     */
+    private static Inflater borrowInflater() {
+        Inflater inflater = INFLATERS.poll();
+        return inflater != null ? inflater : new Inflater(true);
+    }
+
+    /**
+     * Gives a decompressor back to the pool, or releases its native memory if
+     * the pool is full.
+     */
+    private static void release(Inflater inflater) {
+        inflater.reset();
+        if (!INFLATERS.offer(inflater)) {
+            inflater.end();
+        }
+    }
+}
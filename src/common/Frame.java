@@ -0,0 +1,524 @@
+package common;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+
+/**
+ * Represents one message of the wire protocol shared by the client and the
+ * server. Every request and every response is a frame with the following
+ * binary layout:
+ *
+ * <pre>
+ * int    length     number of bytes that follow this field
+ * byte   version    protocol version ({@link #VERSION})
+ * byte   opcode     the operation, e.g. {@link #PUT}
+ * int    requestId  chosen by the client, echoed in the response
+ * byte   status     {@link #OK} in requests, the outcome in responses
+ * byte[] payload    length - {@link #HEADER_LENGTH} bytes
+ * </pre>
+ *
+ * Inside payloads, keys are written with <code>writeUTF</code> and values as
+ * an <code>int</code> length followed by the bytes (see {@link PayloadWriter}).
+ * Errors are reported through the status code, never as strings.
+ */
+public class Frame {
+
+    /**
+     * The version of the protocol implemented by this class.
+     */
+    public static final byte VERSION = 1;
+
+    /**
+     * Size of the fields between the length and the payload.
+     */
+    public static final int HEADER_LENGTH = 7;
+
+    /**
+     * Largest frame accepted, to reject corrupted lengths before allocating.
+     */
+    public static final int MAX_LENGTH = 64 * 1024 * 1024;
+
+    /**
+     * Largest part of a value sent in one {@link #PUT_CHUNK} or returned by
+     * one {@link #GET_RANGE}.
+     */
+    public static final int MAX_CHUNK = 1024 * 1024;
+
+    /**
+     * Register or log in. Payload: the bytes of an {@link AuthRequest}.
+     */
+    public static final byte AUTH = 1;
+
+    /**
+     * Store a value. Payload: key, value.
+     */
+    public static final byte PUT = 2;
+
+    /**
+     * Retrieve a value. Payload: key. Response: the value bytes.
+     */
+    public static final byte GET = 3;
+
+    /**
+     * Store several values. Payload: count, then key and value for each pair.
+     * Response: the count and keys of the pairs that were rejected.
+     */
+    public static final byte MULTI_PUT = 4;
+
+    /**
+     * Retrieve several values. Payload: count, then the keys. Response: count,
+     * then key and value for each key found.
+     */
+    public static final byte MULTI_GET = 5;
+
+    /**
+     * Retrieve a value once a condition holds. Payload: key, condition key,
+     * condition value. Response: the value bytes.
+     */
+    public static final byte GET_WHEN = 6;
+
+    /**
+     * Close the session. No response is sent.
+     */
+    public static final byte EXIT = 7;
+
+    /**
+     * Check that the connection is alive. Allowed before authenticating. No
+     * payload in either direction.
+     */
+    public static final byte PING = 8;
+
+    /**
+     * Replication stream between a primary and a backup server, on the
+     * replication port of the primary only. The backup opens it with an empty
+     * payload, the primary answers with a random challenge and the backup
+     * replies with the HMAC-SHA256 of the challenge keyed with the replication
+     * secret, or is answered {@link #NOT_AUTHENTICATED} and disconnected. The
+     * primary then sends one frame per change, with the payload:
+     * sequence number (<code>long</code>), time it was sent in milliseconds
+     * since the epoch (<code>long</code>), and the write-ahead log record. The
+     * backup answers with the sequence number of the last change it made
+     * durable.
+     */
+    public static final byte REPLICATE = 9;
+
+    /**
+     * Store a value sent in chunks, for values too large to send or hold as
+     * one array. Payload: key, total length of the value (<code>long</code>,
+     * -1 if not known in advance), whether this is the last chunk
+     * (<code>byte</code>), then the bytes of the chunk up to the end of the
+     * payload. The chunks of a value are sent in order on one connection;
+     * each is answered with an empty {@link #OK}, except the last, which is
+     * answered like a {@link #PUT}.
+     */
+    public static final byte PUT_CHUNK = 10;
+
+    /**
+     * Retrieve part of a value, so a large value can be read in chunks.
+     * Payload: key, offset (<code>int</code>), most bytes to return
+     * (<code>int</code>, at most {@link #MAX_CHUNK}). Response: the length of
+     * the whole value (<code>int</code>), then the bytes.
+     */
+    public static final byte GET_RANGE = 11;
+
+    /**
+     * Agree on how values are encoded on this connection. Allowed before
+     * authenticating. Payload: the number of codecs the client supports
+     * (<code>byte</code>), then their {@link Codec} tags in order of
+     * preference. Response: the tag of the codec the server chose
+     * (<code>byte</code>), {@link Codec#RAW} if none is shared. From then on,
+     * the values of {@link #PUT}, {@link #MULTI_PUT}, {@link #GET},
+     * {@link #MULTI_GET}, {@link #GET_WHEN} and {@link #TRANSACTION} are sent
+     * encoded (see {@link Codec}) in both directions; the expected values of
+     * a {@link #GET_WHEN} or of a transaction check and the chunks of
+     * {@link #PUT_CHUNK} and {@link #GET_RANGE} stay as they are.
+     */
+    public static final byte NEGOTIATE = 12;
+
+    /**
+     * Apply several operations over many keys as one unit (see
+     * {@link Transaction}). Payload: the operations. Response: the count,
+     * then key and value for each key read that was found, if the
+     * transaction committed; otherwise {@link #KEY_EXISTS} or
+     * {@link #CONDITION_FAILED}, with the key that aborted it.
+     */
+    public static final byte TRANSACTION = 13;
+
+    /**
+     * Ask to be told when keys this session read are stored or removed, so
+     * the client can cache its reads. No payload in either direction. From
+     * then on the server sends {@link #INVALIDATE} frames on the connection.
+     */
+    public static final byte TRACK = 14;
+
+    /**
+     * Sent by the server, not in answer to a request, to a session that asked
+     * for {@link #TRACK}: keys it read have been stored or removed. Request
+     * identifier 0. Payload: when they changed, in milliseconds since the
+     * epoch (<code>long</code>), the count, then the keys. Each key is only
+     * reported once; reading it again tracks it again.
+     */
+    public static final byte INVALIDATE = 15;
+
+    /**
+     * Store a value that expires. Payload: key, value, and how long it lives
+     * in milliseconds (<code>long</code>, positive). Response: as for
+     * {@link #PUT}. Once it expires the key reads as missing and may be stored
+     * again.
+     */
+    public static final byte PUT_EXPIRING = 16;
+
+    /**
+     * Ask what the server is doing. No payload. Response: the statistics of
+     * the server (see {@link ServerStats}).
+     */
+    public static final byte STATS = 17;
+
+    /**
+     * Number of opcodes: every opcode is below it.
+     */
+    public static final int OPCODES = 18;
+
+    /**
+     * The request succeeded.
+     */
+    public static final byte OK = 0;
+
+    /**
+     * The requested key does not exist.
+     */
+    public static final byte NOT_FOUND = 1;
+
+    /**
+     * The key of a put already exists.
+     */
+    public static final byte KEY_EXISTS = 2;
+
+    /**
+     * A registration used a username that already exists.
+     */
+    public static final byte USER_EXISTS = 3;
+
+    /**
+     * A login used an unknown username.
+     */
+    public static final byte NO_SUCH_USER = 4;
+
+    /**
+     * A login used the wrong password.
+     */
+    public static final byte INVALID_PASSWORD = 5;
+
+    /**
+     * A data operation was sent before a successful authentication.
+     */
+    public static final byte NOT_AUTHENTICATED = 6;
+
+    /**
+     * The request was malformed or used an unknown opcode.
+     */
+    public static final byte BAD_REQUEST = 7;
+
+    /**
+     * The request used a protocol version the server does not speak.
+     */
+    public static final byte UNSUPPORTED_VERSION = 8;
+
+    /**
+     * The server failed to complete the request.
+     */
+    public static final byte SERVER_ERROR = 9;
+
+    /**
+     * A write or registration was sent to a backup server, which only serves
+     * reads.
+     */
+    public static final byte READ_ONLY = 10;
+
+    /**
+     * A condition of a transaction did not hold, so none of it was applied.
+     */
+    public static final byte CONDITION_FAILED = 11;
+
+    /**
+     * The server is processing as many requests as it allows and too many
+     * others are already waiting; the request was not processed and may be
+     * sent again later.
+     */
+    public static final byte BUSY = 12;
+
+    private final byte version;
+    private final byte opcode;
+    private final int requestId;
+    private final byte status;
+    private final byte[] payload;
+
+    /**
+     * Constructs a frame of the current protocol version.
+     *
+     * @param opcode    The operation.
+     * @param requestId The request identifier.
+     * @param status    The status code.
+     * @param payload   The payload bytes.
+     */
+    public Frame(byte opcode, int requestId, byte status, byte[] payload) {
+        this(VERSION, opcode, requestId, status, payload);
+    }
+
+    private Frame(byte version, byte opcode, int requestId, byte status, byte[] payload) {
+        this.version = version;
+        this.opcode = opcode;
+        this.requestId = requestId;
+        this.status = status;
+        this.payload = payload;
+    }
+
+    /**
+     * Constructs a response to a request, with the same opcode and request
+     * identifier.
+     *
+     * @param status  The status code.
+     * @param payload The payload bytes.
+     * @return The response frame.
+     */
+    public Frame reply(byte status, byte[] payload) {
+        return new Frame(opcode, requestId, status, payload);
+    }
+
+    /**
+     * Constructs an empty response to a request.
+     *
+     * @param status The status code.
+     * @return The response frame.
+     */
+    public Frame reply(byte status) {
+        return reply(status, new byte[0]);
+    }
+
+    /**
+     * Gets the protocol version the frame was written with.
+     *
+     * @return The version.
+     */
+    public byte getVersion() {
+        return version;
+    }
+
+    /**
+     * Gets the operation of the frame.
+     *
+     * @return The opcode.
+     */
+    public byte getOpcode() {
+        return opcode;
+    }
+
+    /**
+     * Gets the identifier of the request the frame belongs to.
+     *
+     * @return The request identifier.
+     */
+    public int getRequestId() {
+        return requestId;
+    }
+
+    /**
+     * Gets the status code of the frame.
+     *
+     * @return The status code.
+     */
+    public byte getStatus() {
+        return status;
+    }
+
+    /**
+     * Gets the payload of the frame.
+     *
+     * @return The payload bytes.
+     */
+    public byte[] getPayload() {
+        return payload;
+    }
+
+    /**
+     * Opens a stream over the payload, to read its fields.
+     *
+     * @return A stream positioned at the start of the payload.
+     */
+    public DataInputStream payloadStream() {
+        return new DataInputStream(new ByteArrayInputStream(payload));
+    }
+
+    /**
+     * Writes the frame to a stream. The stream is not flushed.
+     *
+     * @param out The stream.
+     * @throws IOException If the frame cannot be written.
+     */
+    public void writeTo(DataOutputStream out) throws IOException {
+        out.writeInt(HEADER_LENGTH + payload.length);
+        out.writeByte(version);
+        out.writeByte(opcode);
+        out.writeInt(requestId);
+        out.writeByte(status);
+        out.write(payload);
+    }
+
+    /**
+     * Encodes the frame, including its length prefix.
+     *
+     * @return A buffer ready to be written to a channel.
+     */
+    public ByteBuffer encode() {
+        ByteBuffer buffer = ByteBuffer.allocate(4 + HEADER_LENGTH + payload.length);
+        encodeHeader(buffer);
+        buffer.put(payload);
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * Encodes the length prefix and the header fields of the frame, leaving
+     * the payload to the caller.
+     *
+     * @param buffer Receives the <code>4 + {@link #HEADER_LENGTH}</code>
+     *               bytes.
+     */
+    public void encodeHeader(ByteBuffer buffer) {
+        buffer.putInt(HEADER_LENGTH + payload.length);
+        buffer.put(version);
+        buffer.put(opcode);
+        buffer.putInt(requestId);
+        buffer.put(status);
+    }
+
+    /**
+     * Reads a frame from a stream, blocking until it is complete.
+     *
+     * @param in The stream.
+     * @return The frame.
+     * @throws IOException If the stream fails or the length is invalid.
+     */
+    public static Frame readFrom(DataInputStream in) throws IOException {
+        return readFrom(in, MAX_LENGTH);
+    }
+
+    /**
+     * Reads a frame from a stream, blocking until it is complete, accepting
+     * frames up to the given length. Used between servers, whose frames may
+     * carry whole values that were sent in chunks.
+     *
+     * @param in        The stream.
+     * @param maxLength The largest length accepted.
+     * @return The frame.
+     * @throws IOException If the stream fails or the length is invalid.
+     */
+    public static Frame readFrom(DataInputStream in, int maxLength) throws IOException {
+        int length = checkLength(in.readInt(), maxLength);
+        byte version = in.readByte();
+        byte opcode = in.readByte();
+        int requestId = in.readInt();
+        byte status = in.readByte();
+        byte[] payload = new byte[length - HEADER_LENGTH];
+        in.readFully(payload);
+        return new Frame(version, opcode, requestId, status, payload);
+    }
+
+    /**
+     * Reads a frame from a buffer if it holds a complete one. The buffer
+     * position is only advanced when a frame is returned.
+     *
+     * @param buffer The buffer, ready to be read.
+     * @return The frame, or null if the buffer does not hold a complete frame
+     *         yet.
+     * @throws ProtocolException If the length prefix is invalid.
+     */
+    public static Frame decode(ByteBuffer buffer) throws ProtocolException {
+        if (buffer.remaining() < 4) {
+            return null;
+        }
+        int length = checkLength(buffer.getInt(buffer.position()), MAX_LENGTH);
+        if (buffer.remaining() < 4 + length) {
+            return null;
+        }
+        buffer.getInt();
+        byte version = buffer.get();
+        byte opcode = buffer.get();
+        int requestId = buffer.getInt();
+        byte status = buffer.get();
+        byte[] payload = new byte[length - HEADER_LENGTH];
+        buffer.get(payload);
+        return new Frame(version, opcode, requestId, status, payload);
+    }
+
+    private static int checkLength(int length, int maxLength) throws ProtocolException {
+        if (length < HEADER_LENGTH || length > maxLength) {
+            throw new ProtocolException("Invalid frame length: " + length);
+        }
+        return length;
+    }
+
+    /**
+     * Gets a human readable description of a status code.
+     *
+     * @param status The status code.
+     * @return The description.
+     */
+    public static String describe(byte status) {
+        return switch (status) {
+            case OK -> "OK";
+            case NOT_FOUND -> "There is no information associated with the requested key";
+            case KEY_EXISTS -> "There is already a key with that name!";
+            case USER_EXISTS -> "There is already a user with such credentials.";
+            case NO_SUCH_USER -> "There is no user with such credentials.";
+            case INVALID_PASSWORD -> "Password is invalid!";
+            case NOT_AUTHENTICATED -> "You must register or log in first.";
+            case BAD_REQUEST -> "The request was not understood by the server.";
+            case UNSUPPORTED_VERSION -> "The server does not support this protocol version.";
+            case SERVER_ERROR -> "The server failed to complete the request.";
+            case READ_ONLY -> "This server is a backup and only serves reads.";
+            case CONDITION_FAILED -> "A condition of the transaction did not hold.";
+            case BUSY -> "The server is busy, try again later.";
+            default -> "Unknown status " + status;
+        };
+    }
+
+    /**
+     * Gets the name of an operation, as it is called in the client API.
+     *
+     * @param opcode The opcode.
+     * @return The name.
+     */
+    public static String nameOf(byte opcode) {
+        return switch (opcode) {
+            case AUTH -> "auth";
+            case PUT -> "put";
+            case GET -> "get";
+            case MULTI_PUT -> "multiPut";
+            case MULTI_GET -> "multiGet";
+            case GET_WHEN -> "getWhen";
+            case EXIT -> "exit";
+            case PING -> "ping";
+            case REPLICATE -> "replicate";
+            case PUT_CHUNK -> "putChunk";
+            case GET_RANGE -> "getRange";
+            case NEGOTIATE -> "negotiate";
+            case TRANSACTION -> "transaction";
+            case TRACK -> "track";
+            case INVALIDATE -> "invalidate";
+            case PUT_EXPIRING -> "putTTL";
+            case STATS -> "stats";
+            default -> "opcode " + opcode;
+        };
+    }
+
+    @Override
+    public String toString() {
+        return "Frame [opcode=" + opcode + ", requestId=" + requestId + ", status=" + status + ", payload="
+                + payload.length + " bytes]";
+    }
+}
@@ -0,0 +1,139 @@
+package common;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The <code>LatencyHistogram</code> class counts latencies without locks, so
+ * every request can be recorded without slowing the others down.
+ * <p>
+ * Like an HDR histogram it keeps a fixed array of counters over a log-linear
+ * scale: each power of two is split into {@value #SUB_BUCKETS} buckets of equal
+ * width, so a latency is counted with an error of at most
+ * 1/{@value #SUB_BUCKETS} of its value, from nanoseconds to hours, in fewer
+ * than two thousand counters. Recording is a shift and an atomic increment.
+ * </p>
+ * <p>
+ * Reading while requests are recorded may see some counters incremented and
+ * others not yet, which is close enough for statistics.
+ * </p>
+ */
+public class LatencyHistogram {
+
+    /**
+     * Number of buckets each power of two is split into; a power of two.
+     */
+    public static final int SUB_BUCKETS = 32;
+
+    private static final int SUB_BITS = Integer.numberOfTrailingZeros(SUB_BUCKETS);
+
+    /**
+     * Buckets of latencies below {@value #SUB_BUCKETS} ns hold a single value;
+     * above, one power of two takes {@value #SUB_BUCKETS} buckets, up to
+     * 2<sup>63</sup>.
+     */
+    private static final int BUCKETS = (64 - SUB_BITS) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder totalNanos = new LongAdder();
+    private final AtomicLong maxNanos = new AtomicLong();
+
+    /**
+     * Records a latency.
+     *
+     * @param nanos The latency, in nanoseconds; negative values count as 0.
+     */
+    public void record(long nanos) {
+        long value = Math.max(0, nanos);
+        counts.incrementAndGet(bucketOf(value));
+        count.increment();
+        totalNanos.add(value);
+        if (value > maxNanos.get()) {
+            maxNanos.accumulateAndGet(value, Math::max);
+        }
+    }
+
+    /**
+     * Gets the number of latencies recorded.
+     *
+     * @return The number of latencies.
+     */
+    public long getCount() {
+        return count.sum();
+    }
+
+    /**
+     * Gets the average latency.
+     *
+     * @return The average, in nanoseconds; 0 if none was recorded.
+     */
+    public long getMeanNanos() {
+        long recorded = count.sum();
+        return recorded == 0 ? 0 : totalNanos.sum() / recorded;
+    }
+
+    /**
+     * Gets the highest latency recorded.
+     *
+     * @return The latency, in nanoseconds.
+     */
+    public long getMaxNanos() {
+        return maxNanos.get();
+    }
+
+    /**
+     * Gets the latency a given percentage of the recorded ones do not exceed,
+     * up to the width of its bucket.
+     *
+     * @param percentile The percentage, from 0 to 100.
+     * @return The latency, in nanoseconds; 0 if none was recorded.
+     */
+    public long getPercentileNanos(double percentile) {
+        long[] snapshot = new long[BUCKETS];
+        long recorded = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            snapshot[i] = counts.get(i);
+            recorded += snapshot[i];
+        }
+        if (recorded == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100 * recorded));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += snapshot[i];
+            if (seen >= rank) {
+                return Math.min(highestOf(i), getMaxNanos());
+            }
+        }
+        return getMaxNanos();
+    }
+
+    /**
+     * Gets the bucket a latency is counted in.
+     */
+    private static int bucketOf(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int shift = exponent - SUB_BITS;
+        // The top SUB_BITS + 1 bits of the value: SUB_BUCKETS to 2 * SUB_BUCKETS - 1
+        int mantissa = (int) (value >>> shift);
+        return (shift + 1) * SUB_BUCKETS + mantissa - SUB_BUCKETS;
+    }
+
+    /**
+     * Gets the highest latency counted in a bucket.
+     */
+    private static long highestOf(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int shift = bucket / SUB_BUCKETS - 1;
+        long mantissa = SUB_BUCKETS + bucket % SUB_BUCKETS;
+        return ((mantissa + 1) << shift) - 1;
+    }
+}
@@ -0,0 +1,140 @@
+package common;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.ProtocolException;
+
+/**
+ * Builds the payload of a {@link Frame}. Keys are written with
+ * <code>writeUTF</code> and values as an <code>int</code> length followed by
+ * the bytes. Every method returns the writer itself so calls can be chained.
+ */
+public class PayloadWriter {
+
+    private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    private final DataOutputStream out = new DataOutputStream(bytes);
+
+    /**
+     * Appends a key.
+     *
+     * @param key The key.
+     * @return This writer.
+     */
+    public PayloadWriter writeKey(String key) {
+        try {
+            out.writeUTF(key);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return this;
+    }
+
+    /**
+     * Appends a length-prefixed value.
+     *
+     * @param value The value.
+     * @return This writer.
+     */
+    public PayloadWriter writeValue(byte[] value) {
+        try {
+            out.writeInt(value.length);
+            out.write(value);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return this;
+    }
+
+    /**
+     * Appends an <code>int</code>, such as the number of entries that follow.
+     *
+     * @param value The value.
+     * @return This writer.
+     */
+    public PayloadWriter writeInt(int value) {
+        try {
+            out.writeInt(value);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return this;
+    }
+
+    /**
+     * Appends a <code>byte</code>, such as a flag.
+     *
+     * @param value The value.
+     * @return This writer.
+     */
+    public PayloadWriter writeByte(int value) {
+        bytes.write(value);
+        return this;
+    }
+
+    /**
+     * Appends a <code>long</code>, such as a sequence number.
+     *
+     * @param value The value.
+     * @return This writer.
+     */
+    public PayloadWriter writeLong(long value) {
+        try {
+            out.writeLong(value);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return this;
+    }
+
+    /**
+     * Appends raw bytes, without a length prefix.
+     *
+     * @param value The bytes.
+     * @return This writer.
+     */
+    public PayloadWriter writeBytes(byte[] value) {
+        return writeBytes(value, 0, value.length);
+    }
+
+    /**
+     * Appends part of an array, without a length prefix.
+     *
+     * @param value  The array.
+     * @param offset The position of the first byte.
+     * @param length The number of bytes.
+     * @return This writer.
+     */
+    public PayloadWriter writeBytes(byte[] value, int offset, int length) {
+        bytes.write(value, offset, length);
+        return this;
+    }
+
+    /**
+     * Gets the payload built so far.
+     *
+     * @return The payload bytes.
+     */
+    public byte[] toByteArray() {
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Reads a length-prefixed value written by {@link #writeValue(byte[])}.
+     *
+     * @param in The stream over the payload.
+     * @return The value.
+     * @throws IOException If the payload is truncated.
+     */
+    public static byte[] readValue(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0 || length > in.available()) {
+            throw new ProtocolException("Invalid value length: " + length);
+        }
+        byte[] value = new byte[length];
+        in.readFully(value);
+        return value;
+    }
+}
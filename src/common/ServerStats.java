@@ -0,0 +1,252 @@
+package common;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * What a server is doing, as answered to a {@link Frame#STATS} request: named
+ * counters and gauges, such as the bytes received or the keys stored, and the
+ * latency of each kind of operation since the server started.
+ * <p>
+ * On the wire the payload is the uptime in milliseconds (<code>long</code>),
+ * the number of values, then for each one its name (<code>writeUTF</code>)
+ * and value (<code>long</code>), then the number of operations and for each
+ * one its name, how many were processed, and their average, median, 90th,
+ * 99th and 99.9th percentile and highest latencies, in microseconds
+ * (<code>long</code>s). Values and operations come in the order the server
+ * added them.
+ * </p>
+ */
+public class ServerStats {
+
+    private final long uptimeMillis;
+    private final Map<String, Long> values = new LinkedHashMap<>();
+    private final List<Operation> operations = new ArrayList<>();
+
+    /**
+     * Constructs empty statistics.
+     *
+     * @param uptimeMillis How long the server has been running, in
+     *                     milliseconds.
+     */
+    public ServerStats(long uptimeMillis) {
+        this.uptimeMillis = uptimeMillis;
+    }
+
+    /**
+     * Adds a counter or gauge.
+     *
+     * @param name  The name, including the unit if it has one.
+     * @param value The value.
+     * @return These statistics.
+     */
+    public ServerStats value(String name, long value) {
+        values.put(name, value);
+        return this;
+    }
+
+    /**
+     * Adds the latencies of a kind of operation.
+     *
+     * @param operation The operation.
+     * @return These statistics.
+     */
+    public ServerStats operation(Operation operation) {
+        operations.add(operation);
+        return this;
+    }
+
+    /**
+     * Gets how long the server has been running.
+     *
+     * @return The uptime, in milliseconds.
+     */
+    public long getUptimeMillis() {
+        return uptimeMillis;
+    }
+
+    /**
+     * Gets the counters and gauges.
+     *
+     * @return The values by name, in the order they were added.
+     */
+    public Map<String, Long> getValues() {
+        return Collections.unmodifiableMap(values);
+    }
+
+    /**
+     * Gets a counter or gauge.
+     *
+     * @param name The name.
+     * @return The value, or 0 if the server did not send it.
+     */
+    public long get(String name) {
+        return values.getOrDefault(name, 0L);
+    }
+
+    /**
+     * Gets the latencies of each kind of operation the server processed.
+     *
+     * @return The operations, in the order they were added.
+     */
+    public List<Operation> getOperations() {
+        return Collections.unmodifiableList(operations);
+    }
+
+    /**
+     * Serializes the statistics into a response payload.
+     *
+     * @return The payload.
+     */
+    public byte[] toPayload() {
+        PayloadWriter payload = new PayloadWriter().writeLong(uptimeMillis).writeInt(values.size());
+        for (Map.Entry<String, Long> value : values.entrySet()) {
+            payload.writeKey(value.getKey()).writeLong(value.getValue());
+        }
+        payload.writeInt(operations.size());
+        for (Operation operation : operations) {
+            payload.writeKey(operation.getName()).writeLong(operation.getCount())
+                    .writeLong(operation.getMeanMicros()).writeLong(operation.getMedianMicros())
+                    .writeLong(operation.getP90Micros()).writeLong(operation.getP99Micros())
+                    .writeLong(operation.getP999Micros()).writeLong(operation.getMaxMicros());
+        }
+        return payload.toByteArray();
+    }
+
+    /**
+     * Reads statistics from a response payload.
+     *
+     * @param in The payload.
+     * @return The statistics.
+     * @throws IOException If the payload is malformed.
+     */
+    public static ServerStats read(DataInputStream in) throws IOException {
+        ServerStats stats = new ServerStats(in.readLong());
+        int count = in.readInt();
+        for (int i = 0; i < count; i++) {
+            stats.value(in.readUTF(), in.readLong());
+        }
+        count = in.readInt();
+        for (int i = 0; i < count; i++) {
+            stats.operation(new Operation(in.readUTF(), in.readLong(), in.readLong(), in.readLong(),
+                    in.readLong(), in.readLong(), in.readLong(), in.readLong()));
+        }
+        return stats;
+    }
+
+    /**
+     * The latencies of one kind of operation, in microseconds, from the
+     * moment the server read the request until the response was ready.
+     */
+    public static final class Operation {
+        private final String name;
+        private final long count;
+        private final long meanMicros;
+        private final long medianMicros;
+        private final long p90Micros;
+        private final long p99Micros;
+        private final long p999Micros;
+        private final long maxMicros;
+
+        /**
+         * Constructs the latencies of an operation.
+         *
+         * @param name         The name of the operation, e.g. <code>put</code>.
+         * @param count        How many were processed.
+         * @param meanMicros   Their average latency.
+         * @param medianMicros The latency half of them did not exceed.
+         * @param p90Micros    The latency 90% of them did not exceed.
+         * @param p99Micros    The latency 99% of them did not exceed.
+         * @param p999Micros   The latency 99.9% of them did not exceed.
+         * @param maxMicros    The highest latency.
+         */
+        public Operation(String name, long count, long meanMicros, long medianMicros, long p90Micros,
+                long p99Micros, long p999Micros, long maxMicros) {
+            this.name = name;
+            this.count = count;
+            this.meanMicros = meanMicros;
+            this.medianMicros = medianMicros;
+            this.p90Micros = p90Micros;
+            this.p99Micros = p99Micros;
+            this.p999Micros = p999Micros;
+            this.maxMicros = maxMicros;
+        }
+
+        /**
+         * Gets the name of the operation.
+         *
+         * @return The name.
+         */
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * Gets how many were processed.
+         *
+         * @return The number of requests.
+         */
+        public long getCount() {
+            return count;
+        }
+
+        /**
+         * Gets the average latency.
+         *
+         * @return The latency, in microseconds.
+         */
+        public long getMeanMicros() {
+            return meanMicros;
+        }
+
+        /**
+         * Gets the median latency.
+         *
+         * @return The latency, in microseconds.
+         */
+        public long getMedianMicros() {
+            return medianMicros;
+        }
+
+        /**
+         * Gets the 90th percentile latency.
+         *
+         * @return The latency, in microseconds.
+         */
+        public long getP90Micros() {
+            return p90Micros;
+        }
+
+        /**
+         * Gets the 99th percentile latency.
+         *
+         * @return The latency, in microseconds.
+         */
+        public long getP99Micros() {
+            return p99Micros;
+        }
+
+        /**
+         * Gets the 99.9th percentile latency.
+         *
+         * @return The latency, in microseconds.
+         */
+        public long getP999Micros() {
+            return p999Micros;
+        }
+
+        /**
+         * Gets the highest latency.
+         *
+         * @return The latency, in microseconds.
+         */
+        public long getMaxMicros() {
+            return maxMicros;
+        }
+    }
+}
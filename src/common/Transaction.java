@@ -0,0 +1,232 @@
+package common;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.function.UnaryOperator;
+
+/**
+ * A list of operations over many keys that the server applies as one unit
+ * (see {@link Frame#TRANSACTION}): either every operation takes effect or
+ * none does, and no other client sees the keys in between. The operations
+ * are:
+ *
+ * <pre>
+ * PUT    key, value     store the value; the key must not exist yet
+ * GET    key            read the value, returned once the transaction commits
+ * CHECK  key, value     the key must hold exactly this value
+ * </pre>
+ *
+ * They are applied in order, so a <code>GET</code> or <code>CHECK</code> of a
+ * key stored earlier in the same transaction sees the new value. The first
+ * <code>PUT</code> of an existing key, or <code>CHECK</code> that does not
+ * hold, aborts the whole transaction.
+ * <p>
+ * On the wire the payload is the number of operations, then for each one its
+ * kind (<code>byte</code>), its key and, for <code>PUT</code> and
+ * <code>CHECK</code>, its value. Stored values are encoded like those of a
+ * {@link Frame#PUT} on the connection; expected values are plain, like that
+ * of a {@link Frame#GET_WHEN}.
+ * </p>
+ */
+public class Transaction {
+
+    /**
+     * Store a value under a key that does not exist yet.
+     */
+    public static final byte PUT = 0;
+
+    /**
+     * Read the value of a key.
+     */
+    public static final byte GET = 1;
+
+    /**
+     * Require a key to hold a value.
+     */
+    public static final byte CHECK = 2;
+
+    private final List<Operation> operations = new ArrayList<>();
+
+    /**
+     * Adds a put of a key that must not exist yet.
+     *
+     * @param key   The key.
+     * @param value The value.
+     * @return This transaction.
+     */
+    public Transaction put(String key, byte[] value) {
+        operations.add(new Operation(PUT, key, value));
+        return this;
+    }
+
+    /**
+     * Adds a read of a key.
+     *
+     * @param key The key.
+     * @return This transaction.
+     */
+    public Transaction get(String key) {
+        operations.add(new Operation(GET, key, null));
+        return this;
+    }
+
+    /**
+     * Adds a condition: the key must hold exactly the given value, or the
+     * transaction aborts.
+     *
+     * @param key   The key.
+     * @param value The expected value.
+     * @return This transaction.
+     */
+    public Transaction check(String key, byte[] value) {
+        operations.add(new Operation(CHECK, key, value));
+        return this;
+    }
+
+    /**
+     * Gets the operations, in the order they are applied.
+     *
+     * @return The operations.
+     */
+    public List<Operation> getOperations() {
+        return Collections.unmodifiableList(operations);
+    }
+
+    /**
+     * Gets every key the transaction touches.
+     *
+     * @return The keys, in order of first use.
+     */
+    public Set<String> keys() {
+        Set<String> keys = new LinkedHashSet<>();
+        for (Operation operation : operations) {
+            keys.add(operation.getKey());
+        }
+        return keys;
+    }
+
+    /**
+     * Checks whether the transaction stores any value.
+     *
+     * @return true if there is at least one put.
+     */
+    public boolean hasPuts() {
+        for (Operation operation : operations) {
+            if (operation.getKind() == PUT) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Builds the payload of a {@link Frame#TRANSACTION} request.
+     *
+     * @param encoder Turns each stored value into what is sent, e.g. encodes
+     *                it with the codec of the connection.
+     * @return The payload bytes.
+     */
+    public byte[] toPayload(UnaryOperator<byte[]> encoder) {
+        PayloadWriter payload = new PayloadWriter().writeInt(operations.size());
+        for (Operation operation : operations) {
+            payload.writeByte(operation.getKind()).writeKey(operation.getKey());
+            switch (operation.getKind()) {
+                case PUT -> payload.writeValue(encoder.apply(operation.getValue()));
+                case CHECK -> payload.writeValue(operation.getValue());
+                default -> {
+                }
+            }
+        }
+        return payload.toByteArray();
+    }
+
+    /**
+     * Reads the payload of a {@link Frame#TRANSACTION} request.
+     *
+     * @param in      The stream over the payload.
+     * @param decoder Turns each stored value as received into what is kept,
+     *                e.g. checks its encoding.
+     * @return The transaction.
+     * @throws IOException If the payload is malformed.
+     */
+    public static Transaction read(DataInputStream in, ValueReader decoder) throws IOException {
+        Transaction transaction = new Transaction();
+        int count = in.readInt();
+        if (count < 0 || count > in.available()) {
+            throw new ProtocolException("Invalid number of operations: " + count);
+        }
+        for (int i = 0; i < count; i++) {
+            byte kind = in.readByte();
+            String key = in.readUTF();
+            switch (kind) {
+                case PUT -> transaction.put(key, decoder.read(PayloadWriter.readValue(in)));
+                case GET -> transaction.get(key);
+                case CHECK -> transaction.check(key, PayloadWriter.readValue(in));
+                default -> throw new ProtocolException("Unknown transaction operation " + kind);
+            }
+        }
+        return transaction;
+    }
+
+    /**
+     * Turns a stored value as received into what is kept.
+     */
+    public interface ValueReader {
+        /**
+         * Converts one value.
+         *
+         * @param value The value as received.
+         * @return The value to keep.
+         * @throws IOException If the value is malformed.
+         */
+        byte[] read(byte[] value) throws IOException;
+    }
+
+    /**
+     * One operation of a transaction.
+     */
+    public static final class Operation {
+        private final byte kind;
+        private final String key;
+        private final byte[] value;
+
+        private Operation(byte kind, String key, byte[] value) {
+            this.kind = kind;
+            this.key = key;
+            this.value = value;
+        }
+
+        /**
+         * Gets the kind of the operation.
+         *
+         * @return {@link #PUT}, {@link #GET} or {@link #CHECK}.
+         */
+        public byte getKind() {
+            return kind;
+        }
+
+        /**
+         * Gets the key of the operation.
+         *
+         * @return The key.
+         */
+        public String getKey() {
+            return key;
+        }
+
+        /**
+         * Gets the value stored by a put or expected by a check.
+         *
+         * @return The value, or null for a get.
+         */
+        public byte[] getValue() {
+            return value;
+        }
+    }
+}
@@ -87,7 +87,8 @@ public class User implements Serializable {
      * {@link ConcurrentHashMap}). If the username does not already exist in the
      * map, the user will be added. A success message is displayed if the
      * registration is successful; otherwise, a message indicating that the
-     * username already exists is displayed.
+     * username already exists is displayed. The check and the insertion are a
+     * single atomic operation, so concurrent registrations need no extra lock.
      *
      * @param users The map of users where usernames are the keys, and
      * {@link User} objects are the values.
@@ -95,9 +96,8 @@ public class User implements Serializable {
      * exists.
      */
     public int registerAuth(ConcurrentHashMap<String, User> users) {
-        User user = users.get(this.getUsername());
+        User user = users.putIfAbsent(this.getUsername(), this);
         if (user == null) {
-            users.put(this.getUsername(), this);
             System.out.println("Register was successful, notifying client ...");
             return 1;
         } else {
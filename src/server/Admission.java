@@ -0,0 +1,383 @@
+package server;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The <code>Admission</code> class bounds how many requests the server
+ * processes at once. It replaces a semaphore held for a whole session, which
+ * let a few idle clients lock everyone else out: a permit is now only held
+ * while one request is processed, whichever session it comes from.
+ * <p>
+ * A request that finds every permit taken waits its turn, in arrival order,
+ * among at most a fixed number of others. Once that queue is full, further
+ * requests are rejected at once, and the client gets
+ * {@link common.Frame#BUSY} instead of a growing delay. Waiting for a change
+ * to become durable, or for a <code>getWhen</code> condition, holds no
+ * permit.
+ * </p>
+ * <p>
+ * The number of permits is either fixed or, by default, adapted to the
+ * latency of the requests, much as TCP Vegas adapts its window to round trip
+ * times: the configured number is only a ceiling. Latencies are
+ * averaged over windows of at least {@value #WINDOW_MILLIS} ms and
+ * {@value #WINDOW_SAMPLES} requests, and compared with a slow moving average
+ * of them. While a window is no slower than that average, allowing for
+ * {@value #TOLERANCE} times as much, the limit grows by a fraction of its square
+ * root; once requests slow down because too many run at once, it shrinks in
+ * proportion, at most by half. Windows in which the permits were not even
+ * half used say nothing about the limit and leave it alone.
+ * </p>
+ */
+public class Admission {
+
+    /**
+     * Shortest window latencies are averaged over.
+     */
+    public static final long WINDOW_MILLIS = 100;
+
+    /**
+     * Fewest requests latencies are averaged over.
+     */
+    public static final int WINDOW_SAMPLES = 10;
+
+    /**
+     * How much slower than the long-term average a window may be before the
+     * limit shrinks.
+     */
+    public static final double TOLERANCE = 1.5;
+
+    /**
+     * Number of windows the long-term average effectively spans.
+     */
+    private static final int LONG_WINDOWS = 600;
+
+    /**
+     * Weight of a new estimate of the limit against the current one.
+     */
+    private static final double SMOOTHING = 0.2;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition released = lock.newCondition();
+
+    private final int maxQueued;
+    private final int ceiling;
+    private final boolean adaptive;
+
+    /**
+     * The most requests processed at once. Guarded by the lock.
+     */
+    private int limit;
+
+    /**
+     * The adaptive limit before rounding. Guarded by the lock.
+     */
+    private double estimate;
+
+    /**
+     * The window being measured: when it started, its requests, their total
+     * latency and the most in flight at once. Guarded by the lock.
+     */
+    private long windowStart = System.nanoTime();
+    private int windowCount;
+    private long windowNanos;
+    private int windowPeak;
+
+    /**
+     * The latency of the last window and the long-term average, in
+     * nanoseconds; 0 until the first window ends. Guarded by the lock.
+     */
+    private double shortNanos;
+    private double longNanos;
+
+    /**
+     * The requests being processed. Guarded by the lock.
+     */
+    private int inFlight;
+
+    /**
+     * The requests waiting for a permit. Guarded by the lock.
+     */
+    private int queued;
+
+    private final AtomicInteger maxQueuedSeen = new AtomicInteger();
+    private final LongAdder admitted = new LongAdder();
+    private final LongAdder delayed = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder waitNanos = new LongAdder();
+
+    /**
+     * Constructs an admission control.
+     *
+     * @param ceiling   The most requests processed at once.
+     * @param maxQueued The most requests waiting for a permit.
+     * @param adaptive  Whether the limit adapts to the latency of the
+     *                  requests, up to the ceiling, rather than staying at it.
+     */
+    public Admission(int ceiling, int maxQueued, boolean adaptive) {
+        this.ceiling = ceiling;
+        this.limit = ceiling;
+        this.estimate = ceiling;
+        this.maxQueued = maxQueued;
+        this.adaptive = adaptive;
+    }
+
+    /**
+     * Takes a permit to process a request, waiting for one if the queue has
+     * room. Every successful call must be followed by {@link #exit(long)}.
+     *
+     * @return true if the request may be processed, false if it is rejected
+     *         because the queue is full.
+     * @throws InterruptedException If the thread is interrupted while
+     *                              waiting; the request is not admitted.
+     */
+    public boolean enter() throws InterruptedException {
+        lock.lock();
+        try {
+            // Requests already waiting go first
+            if (inFlight < limit && queued == 0) {
+                inFlight++;
+                windowPeak = Math.max(windowPeak, inFlight);
+                admitted.increment();
+                return true;
+            }
+            if (queued >= maxQueued) {
+                rejected.increment();
+                return false;
+            }
+            queued++;
+            maxQueuedSeen.accumulateAndGet(queued, Math::max);
+            long start = System.nanoTime();
+            try {
+                while (inFlight >= limit) {
+                    released.await();
+                }
+            } catch (InterruptedException e) {
+                // The permit this waiter may have been signalled for goes to the next one
+                released.signal();
+                throw e;
+            } finally {
+                queued--;
+                waitNanos.add(System.nanoTime() - start);
+            }
+            inFlight++;
+            windowPeak = Math.max(windowPeak, inFlight);
+            admitted.increment();
+            delayed.increment();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the permit of a request once it is processed.
+     *
+     * @param latencyNanos How long it took to process, from the moment it
+     *                     was admitted.
+     */
+    public void exit(long latencyNanos) {
+        lock.lock();
+        try {
+            inFlight--;
+            int previous = limit;
+            if (adaptive) {
+                sample(latencyNanos);
+            }
+            if (limit > previous) {
+                released.signalAll();
+            } else {
+                released.signal();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Adds the latency of a request to the current window, and adapts the
+     * limit once the window is complete. Must be called with the lock held.
+     */
+    private void sample(long latencyNanos) {
+        windowCount++;
+        windowNanos += latencyNanos;
+        long now = System.nanoTime();
+        if (windowCount < WINDOW_SAMPLES || now - windowStart < TimeUnit.MILLISECONDS.toNanos(WINDOW_MILLIS)) {
+            return;
+        }
+        shortNanos = Math.max(1, (double) windowNanos / windowCount);
+        int peak = windowPeak;
+        windowStart = now;
+        windowCount = 0;
+        windowNanos = 0;
+        windowPeak = inFlight;
+
+        if (longNanos == 0) {
+            longNanos = shortNanos;
+        } else {
+            longNanos += (shortNanos - longNanos) / LONG_WINDOWS;
+            // Requests got much faster: forget the old latency sooner
+            if (longNanos / shortNanos > 2) {
+                longNanos *= 0.95;
+            }
+        }
+        if (peak < estimate / 2) {
+            return;
+        }
+        double gradient = Math.max(0.5, Math.min(1.0, TOLERANCE * longNanos / shortNanos));
+        double next = estimate * gradient + Math.sqrt(estimate);
+        estimate = Math.max(1, Math.min(ceiling, estimate * (1 - SMOOTHING) + next * SMOOTHING));
+        limit = (int) estimate;
+    }
+
+    /**
+     * Gets the most requests processed at once right now.
+     *
+     * @return The limit.
+     */
+    public int getLimit() {
+        lock.lock();
+        try {
+            return limit;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Gets the most requests ever processed at once: the fixed limit, or the
+     * ceiling of the adaptive one.
+     *
+     * @return The ceiling.
+     */
+    public int getCeiling() {
+        return ceiling;
+    }
+
+    /**
+     * Tells whether the limit adapts to the latency of the requests.
+     *
+     * @return true if it is adaptive, false if it is fixed.
+     */
+    public boolean isAdaptive() {
+        return adaptive;
+    }
+
+    /**
+     * Gets the average latency of the requests in the last complete window,
+     * and the long-term average the adaptive limit compares it with.
+     *
+     * @return The two latencies, in milliseconds; 0 until a window ends or if
+     *         the limit is fixed.
+     */
+    public double[] getLatencyMillis() {
+        lock.lock();
+        try {
+            return new double[] {shortNanos / 1_000_000, longNanos / 1_000_000};
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Gets the most requests that may wait for a permit.
+     *
+     * @return The length of the queue.
+     */
+    public int getMaxQueued() {
+        return maxQueued;
+    }
+
+    /**
+     * Gets the number of requests being processed.
+     *
+     * @return The number of requests.
+     */
+    public int getInFlight() {
+        lock.lock();
+        try {
+            return inFlight;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Gets the number of requests waiting for a permit: the current depth of
+     * the queue.
+     *
+     * @return The number of requests.
+     */
+    public int getQueued() {
+        lock.lock();
+        try {
+            return queued;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Gets the deepest the queue has been.
+     *
+     * @return The number of requests.
+     */
+    public int getMaxQueuedSeen() {
+        return maxQueuedSeen.get();
+    }
+
+    /**
+     * Gets the number of requests admitted, with or without waiting.
+     *
+     * @return The number of requests.
+     */
+    public long getAdmitted() {
+        return admitted.sum();
+    }
+
+    /**
+     * Gets the number of requests that had to wait for a permit.
+     *
+     * @return The number of requests.
+     */
+    public long getDelayed() {
+        return delayed.sum();
+    }
+
+    /**
+     * Gets the number of requests rejected because the queue was full.
+     *
+     * @return The number of requests.
+     */
+    public long getRejected() {
+        return rejected.sum();
+    }
+
+    /**
+     * Gets how long requests that had to wait waited on average.
+     *
+     * @return The average wait, in milliseconds.
+     */
+    public double getAverageWaitMillis() {
+        long count = delayed.sum();
+        return count == 0 ? 0 : (double) waitNanos.sum() / count / TimeUnit.MILLISECONDS.toNanos(1);
+    }
+
+    /**
+     * Describes the permits, the queue and the rejections, for the logs.
+     *
+     * @return The description.
+     */
+    public String describe() {
+        double[] latency = getLatencyMillis();
+        String limits = adaptive ? String.format(" (adaptive up to %d, latency %.3f ms against %.3f ms)", ceiling,
+                latency[0], latency[1]) : "";
+        return getInFlight() + "/" + getLimit() + " in flight" + limits + ", " + getQueued() + "/" + maxQueued
+                + " queued (max " + getMaxQueuedSeen() + "), " + getAdmitted() + " admitted, " + getDelayed()
+                + " delayed by " + String.format("%.2f", getAverageWaitMillis()) + " ms on average, " + getRejected()
+                + " rejected";
+    }
+}
@@ -0,0 +1,128 @@
+package server;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * The <code>BloomFilter</code> class answers whether a key may be in a set
+ * without storing the keys. It never answers no for a key that was added, and
+ * answers yes for a key that was not with a probability of about 1% at the
+ * default {@value #BITS_PER_KEY} bits per key. {@link LsmSegment} keeps one
+ * per segment so that looking up a missing key rarely touches the disk.
+ * <p>
+ * Keys are hashed once to 64 bits; the probed bits are derived from the two
+ * halves of the hash (double hashing).
+ * </p>
+ */
+public class BloomFilter {
+
+    /**
+     * Bits of the filter per expected key.
+     */
+    public static final int BITS_PER_KEY = 10;
+
+    private final long[] words;
+    private final int hashes;
+    private final long bitCount;
+
+    private BloomFilter(long[] words, int hashes) {
+        this.words = words;
+        this.hashes = hashes;
+        this.bitCount = (long) words.length * 64;
+    }
+
+    /**
+     * Constructs an empty filter sized for the given number of keys.
+     *
+     * @param expectedKeys The number of keys that will be added.
+     * @return The filter.
+     */
+    public static BloomFilter create(long expectedKeys) {
+        long bits = Math.max(64, expectedKeys * BITS_PER_KEY);
+        int words = (int) Math.min(Integer.MAX_VALUE - 8, (bits + 63) / 64);
+        // ln 2 * bits per key minimises false positives
+        return new BloomFilter(new long[words], Math.max(1, (int) Math.round(BITS_PER_KEY * Math.log(2))));
+    }
+
+    /**
+     * Adds a key.
+     *
+     * @param key The key.
+     */
+    public void add(String key) {
+        long hash = hash(key);
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32);
+        for (int i = 0; i < hashes; i++) {
+            long bit = ((h1 + i * h2) & Long.MAX_VALUE) % bitCount;
+            words[(int) (bit >>> 6)] |= 1L << bit;
+        }
+    }
+
+    /**
+     * Checks whether a key may have been added.
+     *
+     * @param key The key.
+     * @return false if the key was certainly not added.
+     */
+    public boolean mightContain(String key) {
+        long hash = hash(key);
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32);
+        for (int i = 0; i < hashes; i++) {
+            long bit = ((h1 + i * h2) & Long.MAX_VALUE) % bitCount;
+            if ((words[(int) (bit >>> 6)] & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Writes the filter as the number of hashes, the number of words and the
+     * words.
+     *
+     * @param out The stream.
+     * @throws IOException If the filter cannot be written.
+     */
+    public void writeTo(DataOutputStream out) throws IOException {
+        out.writeInt(hashes);
+        out.writeInt(words.length);
+        for (long word : words) {
+            out.writeLong(word);
+        }
+    }
+
+    /**
+     * Reads a filter written by {@link #writeTo(DataOutputStream)}.
+     *
+     * @param in The buffer, positioned at the filter.
+     * @return The filter.
+     */
+    public static BloomFilter readFrom(ByteBuffer in) {
+        int hashes = in.getInt();
+        long[] words = new long[in.getInt()];
+        in.asLongBuffer().get(words);
+        in.position(in.position() + words.length * 8);
+        return new BloomFilter(words, hashes);
+    }
+
+    /**
+     * Hashes the characters of a key with FNV-1a and mixes the result with
+     * the MurmurHash3 finalizer so both halves are well distributed.
+     */
+    private static long hash(String key) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < key.length(); i++) {
+            hash ^= key.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+}
@@ -0,0 +1,65 @@
+package server;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The <code>BufferPool</code> class keeps direct buffers of
+ * {@value #BUFFER_SIZE} bytes for reuse by the {@link ResponseWriter}s of
+ * every connection. Writing a direct buffer to a socket needs no copy, unlike
+ * a heap array, which the JDK first copies into a temporary direct buffer of
+ * its own; and taking a buffer from the pool does not allocate.
+ * <p>
+ * A buffer is only held while it has bytes waiting to be written, so idle
+ * connections hold none. At most a fixed number of free buffers are kept;
+ * the others are left to the garbage collector.
+ * </p>
+ */
+public class BufferPool {
+
+    /**
+     * Size of every buffer of the pool.
+     */
+    public static final int BUFFER_SIZE = 64 * 1024;
+
+    private final ConcurrentLinkedQueue<ByteBuffer> free = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger freeCount = new AtomicInteger();
+    private final int maxFree;
+
+    /**
+     * Constructs an empty pool.
+     *
+     * @param maxFree The number of free buffers kept for reuse.
+     */
+    public BufferPool(int maxFree) {
+        this.maxFree = maxFree;
+    }
+
+    /**
+     * Takes a buffer from the pool, or allocates one if none is free.
+     *
+     * @return An empty buffer.
+     */
+    public ByteBuffer acquire() {
+        ByteBuffer buffer = free.poll();
+        if (buffer == null) {
+            return ByteBuffer.allocateDirect(BUFFER_SIZE);
+        }
+        freeCount.decrementAndGet();
+        return buffer.clear();
+    }
+
+    /**
+     * Gives a buffer back to the pool. It must not be used afterwards.
+     *
+     * @param buffer The buffer, taken from this pool.
+     */
+    public void release(ByteBuffer buffer) {
+        if (freeCount.incrementAndGet() <= maxFree) {
+            free.add(buffer);
+        } else {
+            freeCount.decrementAndGet();
+        }
+    }
+}
@@ -0,0 +1,1045 @@
+package server;
+
+import common.Codec;
+import common.Transaction;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * The <code>DataStorage</code> class holds the key-value pairs stored by the
+ * server. A put only succeeds if the key is not present yet, so a stored
+ * value is never replaced in place. A key goes away when it expires, is
+ * evicted or its removal is received from the primary, and may then be
+ * stored again with another value, so whoever applies a stream of changes
+ * must apply the removals too, in order, or old values survive.
+ * <p>
+ * Puts and gets go straight to a {@link StorageEngine}, by default a
+ * {@link HeapStorage} whose concurrent map lets operations on independent keys
+ * run without contending. <code>getWhen</code> waiters are kept in a
+ * registry indexed by the key of their condition: a write to a key only looks
+ * at the waiters registered on that key and completes those whose expected
+ * value matches, instead of waking every parked waiter to re-check its
+ * condition.
+ * <p>
+ * Writes of several pairs, and transactions, are applied as one unit under
+ * {@link KeyLocks}: the stripes of all their keys are locked once, the pairs
+ * are stored, and the stripes released, so reads, which validate the stripes
+ * of their keys, see either all of the pairs or none.
+ * </p>
+ * <p>
+ * Values are held encoded (see {@link Codec}), possibly compressed; they are
+ * only decoded to check a condition or to read a range of them.
+ * </p>
+ * <p>
+ * A pair may be stored with a deadline. Reads hide it as soon as the deadline
+ * passes, and a {@link TimerWheel}, turned every
+ * {@value #EXPIRY_TICK_MILLIS} ms once {@link #startExpiry()} is called,
+ * removes it shortly after; a write to an expired key removes it first. With
+ * a memory limit (see {@link #setMemoryLimit}), every write is followed by
+ * evictions, chosen by {@link Eviction}, until the engine is back under it.
+ * </p>
+ * <p>
+ * Every change is handed to a {@link Journal} while the stripe of its key is
+ * still locked, so a removal is never logged out of order with a put of the
+ * same key.
+ * </p>
+ */
+public class DataStorage {
+
+    /**
+     * Milliseconds between two turns of the expiry wheel: how late, at most,
+     * an expired pair is removed and its removal told to the listener.
+     */
+    public static final long EXPIRY_TICK_MILLIS = 10;
+
+    /**
+     * Receives the log record of every change.
+     */
+    public interface Journal {
+        /**
+         * Logs a record, in the order of the changes to the same key.
+         *
+         * @param record The record (see {@link WriteAheadLog}).
+         * @return A future completed once the record is durable.
+         */
+        CompletableFuture<Void> log(byte[] record);
+    }
+
+    private static final CompletableFuture<Void> LOGGED = CompletableFuture.completedFuture(null);
+
+    private final StorageEngine data;
+
+    /**
+     * Keeps reads from seeing part of a write of several pairs.
+     */
+    private final KeyLocks locks = new KeyLocks();
+
+    /**
+     * Told of the keys of every write, once the pairs are visible.
+     */
+    private volatile Consumer<Collection<String>> listener = keys -> {
+    };
+
+    /**
+     * The waiters of each condition key that are still pending.
+     */
+    private final ConcurrentHashMap<String, List<Waiter>> waiters = new ConcurrentHashMap<>();
+
+    /**
+     * The number of waiters in {@link #waiters}.
+     */
+    private final AtomicInteger waiting = new AtomicInteger();
+
+    /**
+     * Logs the changes; does nothing until the server sets it, so the log can
+     * be replayed without being written again.
+     */
+    private volatile Journal journal = record -> LOGGED;
+
+    /**
+     * The deadline of each pair that expires, in milliseconds since the epoch.
+     * Changed with the stripe of the key locked.
+     */
+    private final ConcurrentHashMap<String, Long> deadlines = new ConcurrentHashMap<>();
+
+    private final TimerWheel timers = new TimerWheel(EXPIRY_TICK_MILLIS, System.currentTimeMillis());
+
+    /**
+     * Turns the wheel, or null before {@link #startExpiry()}.
+     */
+    private ScheduledExecutorService expirer;
+
+    /**
+     * Chooses the pairs to evict, or null without a memory limit.
+     */
+    private volatile Eviction eviction;
+    private volatile long memoryLimit;
+
+    private final LongAdder expired = new LongAdder();
+    private final LongAdder evicted = new LongAdder();
+
+    /**
+     * Constructs an empty storage that keeps its pairs on the heap.
+     */
+    public DataStorage() {
+        this(new HeapStorage());
+    }
+
+    /**
+     * Constructs a storage that keeps its pairs in the given engine.
+     *
+     * @param engine The storage engine.
+     */
+    public DataStorage(StorageEngine engine) {
+        this.data = engine;
+    }
+
+    /**
+     * Stores a value under a key, unless the key already exists, and completes
+     * the waiters whose condition the new value satisfies.
+     *
+     * @param key   The key.
+     * @param value The encoded value.
+     * @return true if the value was stored, false if the key already existed.
+     */
+    public boolean put(String key, byte[] value) {
+        return put(key, value, 0) != null;
+    }
+
+    /**
+     * Stores a value under a key, unless the key already exists, and completes
+     * the waiters whose condition the new value satisfies.
+     *
+     * @param key      The key.
+     * @param value    The encoded value.
+     * @param deadline When the pair expires, in milliseconds since the epoch,
+     *                 or 0 if it never does.
+     * @return A future completed once the put is logged, or null if the key
+     *         already existed.
+     * @throws IllegalArgumentException If the value cannot be stored.
+     */
+    public CompletableFuture<Void> put(String key, byte[] value, long deadline) {
+        data.checkValue(value);
+        int stripe = locks.stripeOf(key);
+        long stamp = locks.lock(stripe);
+        CompletableFuture<Void> logged;
+        try {
+            expireIfDue(key);
+            if (!data.putIfAbsent(key, value)) {
+                return null;
+            }
+            admit(key, deadline);
+            logged = journal.log(deadline > 0
+                    ? WriteAheadLog.putExpiringRecord(key, value, deadline)
+                    : WriteAheadLog.putRecord(key, value));
+        } finally {
+            locks.unlock(stripe, stamp);
+        }
+        wake(key, value);
+        listener.accept(List.of(key));
+        evictIfNeeded();
+        return logged;
+    }
+
+    /**
+     * Stores several pairs at once: each is stored unless its key already
+     * exists, and readers see all the stored pairs appear together. Every
+     * value is checked before any is stored.
+     *
+     * @param pairs    The pairs, with encoded values.
+     * @param rejected Receives the keys that were not stored because they
+     *                 already existed.
+     * @return A future completed once the stored pairs are logged.
+     * @throws IllegalArgumentException If a value cannot be stored; then none
+     *                                  is.
+     */
+    public CompletableFuture<Void> putAll(Map<String, byte[]> pairs, List<String> rejected) {
+        pairs.values().forEach(data::checkValue);
+        Map<String, byte[]> stored = new LinkedHashMap<>();
+        List<String> removed = new ArrayList<>();
+        CompletableFuture<Void> logged = LOGGED;
+        int[] stripes = locks.stripesOf(pairs.keySet());
+        long[] stamps = locks.lockAll(stripes);
+        try {
+            for (Map.Entry<String, byte[]> pair : pairs.entrySet()) {
+                if (expireIfDue(pair.getKey())) {
+                    removed.add(pair.getKey());
+                }
+                if (data.putIfAbsent(pair.getKey(), pair.getValue())) {
+                    admit(pair.getKey(), 0);
+                    stored.put(pair.getKey(), pair.getValue());
+                } else {
+                    rejected.add(pair.getKey());
+                }
+            }
+            if (!stored.isEmpty()) {
+                logged = journal.log(WriteAheadLog.multiPutRecord(stored));
+            }
+        } finally {
+            locks.unlockAll(stripes, stamps);
+        }
+        stored.forEach(this::wake);
+        changed(removed, stored.keySet());
+        evictIfNeeded();
+        return logged;
+    }
+
+    /**
+     * Stores several pairs at once, as {@link #putAll(Map, List)} does.
+     *
+     * @param pairs The pairs, with encoded values.
+     * @return The keys that were not stored because they already existed.
+     * @throws IllegalArgumentException If a value cannot be stored; then none
+     *                                  is.
+     */
+    public List<String> putAll(Map<String, byte[]> pairs) {
+        List<String> rejected = new ArrayList<>();
+        putAll(pairs, rejected);
+        return rejected;
+    }
+
+    /**
+     * Removes a pair, as when it expires.
+     *
+     * @param key The key.
+     * @return A future completed once the removal is logged, or null if the
+     *         key did not exist.
+     */
+    public CompletableFuture<Void> remove(String key) {
+        int stripe = locks.stripeOf(key);
+        long stamp = locks.lock(stripe);
+        CompletableFuture<Void> logged;
+        try {
+            logged = removeLocked(key);
+        } finally {
+            locks.unlock(stripe, stamp);
+        }
+        if (logged != null) {
+            listener.accept(List.of(key));
+        }
+        return logged;
+    }
+
+    /**
+     * Sets the deadline of a stored pair, when it is loaded from a snapshot.
+     * A deadline left without a pair, because the pair was removed while the
+     * snapshot was written, is dropped when it passes.
+     *
+     * @param key      The key.
+     * @param deadline When the pair expires, in milliseconds since the epoch.
+     */
+    public void setDeadline(String key, long deadline) {
+        int stripe = locks.stripeOf(key);
+        long stamp = locks.lock(stripe);
+        try {
+            deadlines.put(key, deadline);
+            timers.schedule(key, deadline);
+        } finally {
+            locks.unlock(stripe, stamp);
+        }
+    }
+
+    /**
+     * Gets when a pair expires.
+     *
+     * @param key The key.
+     * @return The deadline, in milliseconds since the epoch, or 0 if the pair
+     *         does not expire.
+     */
+    public long getDeadline(String key) {
+        Long deadline = deadlines.get(key);
+        return deadline == null ? 0 : deadline;
+    }
+
+    /**
+     * Gets the deadline of every pair that expires, used to save the server
+     * state. The view is weakly consistent.
+     *
+     * @return The keys and their deadlines, in milliseconds since the epoch.
+     */
+    public Map<String, Long> deadlines() {
+        return Collections.unmodifiableMap(deadlines);
+    }
+
+    /**
+     * Applies a transaction as one unit (see {@link Transaction}). Its
+     * operations are evaluated in order with the stripes of all its keys
+     * locked; only if none aborts are its values stored, before the stripes
+     * are released.
+     *
+     * @param transaction The transaction, with encoded values to store and
+     *                    plain expected values.
+     * @return The outcome, with the values read and stored if it committed.
+     * @throws IllegalArgumentException If a value cannot be stored; then none
+     *                                  is.
+     */
+    public Commit commit(Transaction transaction) {
+        Map<String, byte[]> writes = new LinkedHashMap<>();
+        List<String> removed = new ArrayList<>();
+        CompletableFuture<Void> logged = LOGGED;
+        Map<String, byte[]> reads = new LinkedHashMap<>();
+        for (Transaction.Operation operation : transaction.getOperations()) {
+            if (operation.getKind() == Transaction.PUT) {
+                data.checkValue(operation.getValue());
+            }
+        }
+
+        int[] stripes = locks.stripesOf(transaction.keys());
+        long[] stamps = locks.lockAll(stripes);
+        try {
+            for (Transaction.Operation operation : transaction.getOperations()) {
+                String key = operation.getKey();
+                byte[] current = writes.containsKey(key) ? writes.get(key) : live(key, data.get(key));
+                switch (operation.getKind()) {
+                    case Transaction.PUT -> {
+                        if (current != null) {
+                            return new Commit(Outcome.KEY_EXISTS, key, Map.of(), Map.of(), LOGGED);
+                        }
+                        writes.put(key, operation.getValue());
+                    }
+                    case Transaction.GET -> {
+                        if (current != null) {
+                            reads.put(key, current);
+                        }
+                    }
+                    case Transaction.CHECK -> {
+                        if (current == null || !Codec.matches(current, operation.getValue())) {
+                            return new Commit(Outcome.CONDITION_FAILED, key, Map.of(), Map.of(), LOGGED);
+                        }
+                    }
+                    default -> throw new IllegalArgumentException("Unknown operation " + operation.getKind());
+                }
+            }
+            for (Map.Entry<String, byte[]> write : writes.entrySet()) {
+                if (expireIfDue(write.getKey())) {
+                    removed.add(write.getKey());
+                }
+                // Nothing else can store these keys while their stripes are locked
+                if (!data.putIfAbsent(write.getKey(), write.getValue())) {
+                    throw new IllegalStateException("Key " + write.getKey() + " stored during a commit.");
+                }
+                admit(write.getKey(), 0);
+            }
+            if (!writes.isEmpty()) {
+                logged = journal.log(WriteAheadLog.multiPutRecord(writes));
+            }
+        } finally {
+            locks.unlockAll(stripes, stamps);
+        }
+        writes.forEach(this::wake);
+        changed(removed, writes.keySet());
+        evictIfNeeded();
+        return new Commit(Outcome.COMMITTED, null, reads, writes, logged);
+    }
+
+    /**
+     * Sets what is told of the keys of every write, once the pairs are
+     * visible to reads, and of every removal.
+     *
+     * @param listener Receives the keys stored or removed by each change.
+     */
+    public void setListener(Consumer<Collection<String>> listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Sets what logs the changes. Until it is set they are not logged, as when
+     * the log itself is replayed.
+     *
+     * @param journal Receives the log record of every change.
+     */
+    public void setJournal(Journal journal) {
+        this.journal = journal;
+    }
+
+    /**
+     * Bounds the memory taken by the stored pairs: once a write goes over the
+     * limit, pairs are evicted until it is met again. Must be called before
+     * clients connect.
+     *
+     * @param bytes  The most bytes the engine may take, or 0 for no limit.
+     * @param policy How the pairs to evict are chosen.
+     */
+    public void setMemoryLimit(long bytes, Eviction.Policy policy) {
+        if (bytes <= 0) {
+            memoryLimit = 0;
+            eviction = null;
+            return;
+        }
+        Eviction pool = new Eviction(policy);
+        for (Map.Entry<String, byte[]> pair : data) {
+            pool.add(pair.getKey());
+        }
+        memoryLimit = bytes;
+        eviction = pool;
+        evictIfNeeded();
+    }
+
+    /**
+     * Starts removing the pairs whose deadline passed, in a background thread.
+     */
+    public synchronized void startExpiry() {
+        if (expirer != null) {
+            return;
+        }
+        expirer = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "expirer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        expirer.scheduleAtFixedRate(this::expire, EXPIRY_TICK_MILLIS, EXPIRY_TICK_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stops removing the pairs whose deadline passed; reads still hide them.
+     */
+    public synchronized void stopExpiry() {
+        if (expirer == null) {
+            return;
+        }
+        expirer.shutdown();
+        try {
+            expirer.awaitTermination(1, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        expirer = null;
+    }
+
+    /**
+     * Gets the value stored under a key.
+     *
+     * @param key The key.
+     * @return The encoded value, or null if the key does not exist.
+     */
+    public byte[] get(String key) {
+        byte[] value = locks.read(locks.stripeOf(key), () -> live(key, data.get(key)));
+        touch(key, value);
+        return value;
+    }
+
+    /**
+     * Gets the values stored under several keys, as they were at a single
+     * point: a write of several pairs is seen whole or not at all.
+     *
+     * @param keys The keys.
+     * @return The keys found and their encoded values, in the order given.
+     */
+    public Map<String, byte[]> getAll(Collection<String> keys) {
+        Map<String, byte[]> pairs = locks.readAll(locks.stripesOf(keys), () -> {
+            Map<String, byte[]> found = new LinkedHashMap<>();
+            for (String key : keys) {
+                byte[] value = live(key, data.get(key));
+                if (value != null) {
+                    found.put(key, value);
+                }
+            }
+            return found;
+        });
+        pairs.forEach(this::touch);
+        return pairs;
+    }
+
+    /**
+     * Copies part of the decoded value stored under a key (see
+     * {@link StorageEngine#read}). A {@link Codec#RAW} value is copied
+     * straight from the engine, past its tag; a compressed one is decoded
+     * first.
+     *
+     * @param key    The key.
+     * @param offset Position in the decoded value of the first byte to copy.
+     * @param target Receives the bytes.
+     * @return The length of the whole decoded value, or -1 if the key does not
+     *         exist.
+     */
+    public int read(String key, int offset, ByteBuffer target) {
+        int start = target.position();
+        ByteBuffer tag = ByteBuffer.allocate(1);
+        // The whole read is validated: the pair may be removed, and its space reused, meanwhile
+        int length = locks.read(locks.stripeOf(key), () -> {
+            target.position(start);
+            if (isExpired(key) || data.read(key, 0, tag.clear()) < 0) {
+                return -1;
+            }
+            if (tag.get(0) == Codec.RAW) {
+                return data.read(key, Math.min(offset, Integer.MAX_VALUE - 1) + 1, target) - 1;
+            }
+            byte[] encoded = data.get(key);
+            if (encoded == null) {
+                return -1;
+            }
+            byte[] value = Codec.decode(encoded);
+            if (offset < value.length) {
+                int count = Math.min(target.remaining(), value.length - offset);
+                target.put(value, offset, count);
+            }
+            return value.length;
+        });
+        if (length >= 0) {
+            touch(key, tag.array());
+        }
+        return length;
+    }
+
+    /**
+     * Registers interest in the value stored under <code>keyCond</code>
+     * becoming equal to <code>valueCond</code>.
+     *
+     * @param keyCond   The key of the condition.
+     * @param valueCond The expected value.
+     * @return A future completed once the condition holds. Cancelling it
+     *         removes the waiter from the registry.
+     */
+    public CompletableFuture<Void> whenCondition(String keyCond, byte[] valueCond) {
+        Waiter waiter = new Waiter(valueCond);
+        waiters.compute(keyCond, (k, list) -> {
+            List<Waiter> pending = list == null ? new ArrayList<>() : list;
+            pending.add(waiter);
+            return pending;
+        });
+        waiting.incrementAndGet();
+        waiter.future.whenComplete((ignored, e) -> {
+            if (e != null) {
+                remove(keyCond, waiter);
+            }
+        });
+
+        // The value may have been stored before the waiter was registered
+        if (isConditionSatisfied(keyCond, valueCond)) {
+            remove(keyCond, waiter);
+            waiter.future.complete(null);
+        }
+        return waiter.future;
+    }
+
+    /**
+     * Checks whether the value stored under <code>keyCond</code> is equal to
+     * <code>valueCond</code>.
+     *
+     * @param keyCond   The key of the condition.
+     * @param valueCond The expected value.
+     * @return true if the condition holds.
+     */
+    public boolean isConditionSatisfied(String keyCond, byte[] valueCond) {
+        byte[] value = get(keyCond);
+        if (value == null) {
+            return false;
+        }
+        return Codec.matches(value, valueCond);
+    }
+
+    /**
+     * Gets the stored pairs, used to save the server state. The iteration is
+     * weakly consistent (see {@link StorageEngine}), and may include pairs
+     * whose deadline passed.
+     *
+     * @return The pairs.
+     */
+    public Iterable<Map.Entry<String, byte[]>> entries() {
+        if (!data.reusesRemovedValues()) {
+            return data;
+        }
+        // The space of a removed value may be reused, so each value is read again under its stripe
+        return () -> new Iterator<>() {
+            private final Iterator<Map.Entry<String, byte[]>> pairs = data.iterator();
+            private Map.Entry<String, byte[]> next;
+
+            @Override
+            public boolean hasNext() {
+                while (next == null && pairs.hasNext()) {
+                    String key = pairs.next().getKey();
+                    byte[] value = locks.read(locks.stripeOf(key), () -> data.get(key));
+                    if (value != null) {
+                        next = Map.entry(key, value);
+                    }
+                }
+                return next != null;
+            }
+
+            @Override
+            public Map.Entry<String, byte[]> next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                Map.Entry<String, byte[]> pair = next;
+                next = null;
+                return pair;
+            }
+        };
+    }
+
+    /**
+     * Gets the number of stored pairs.
+     *
+     * @return The number of pairs.
+     */
+    public long size() {
+        return data.size();
+    }
+
+    /**
+     * Gets the number of <code>getWhen</code> conditions waiting for a value.
+     *
+     * @return The number of waiters.
+     */
+    public int getWaiterCount() {
+        return waiting.get();
+    }
+
+    /**
+     * Gets the approximate memory taken by the stored pairs.
+     *
+     * @return The number of bytes.
+     */
+    public long getMemoryBytes() {
+        return data.getMemoryBytes();
+    }
+
+    /**
+     * Gets the memory limit.
+     *
+     * @return The most bytes the engine may take, or 0 if there is no limit.
+     */
+    public long getMemoryLimit() {
+        return memoryLimit;
+    }
+
+    /**
+     * Gets how the pairs to evict are chosen.
+     *
+     * @return The policy, or null if there is no memory limit.
+     */
+    public Eviction.Policy getEvictionPolicy() {
+        Eviction pool = eviction;
+        return pool == null ? null : pool.getPolicy();
+    }
+
+    /**
+     * Gets the number of stored pairs that have a deadline.
+     *
+     * @return The number of pairs.
+     */
+    public int getExpiringCount() {
+        return deadlines.size();
+    }
+
+    /**
+     * Gets the number of deadlines waiting in the expiry wheel, including
+     * those of pairs removed since.
+     *
+     * @return The number of deadlines.
+     */
+    public long getScheduledCount() {
+        return timers.size();
+    }
+
+    /**
+     * Gets the number of pairs removed because their deadline passed.
+     *
+     * @return The number of pairs.
+     */
+    public long getExpiredCount() {
+        return expired.sum();
+    }
+
+    /**
+     * Gets the number of pairs evicted to meet the memory limit.
+     *
+     * @return The number of pairs.
+     */
+    public long getEvictedCount() {
+        return evicted.sum();
+    }
+
+    /**
+     * Describes the stored pairs, their memory and how many expired or were
+     * evicted, for the logs.
+     *
+     * @return The description.
+     */
+    public String describe() {
+        long limit = memoryLimit;
+        return size() + " keys in " + megabytes(getMemoryBytes()) + " MB"
+                + (limit > 0 ? " of " + megabytes(limit) + " MB (" + getEvictionPolicy().name().toLowerCase() + ")" : "")
+                + ", " + getExpiringCount() + " expiring, " + getExpiredCount() + " expired, "
+                + getEvictedCount() + " evicted";
+    }
+
+    /**
+     * Tells whether the storage engine keeps the pairs on disk by itself.
+     *
+     * @return true if the engine is persistent.
+     */
+    public boolean isPersistent() {
+        return data.isPersistent();
+    }
+
+    /**
+     * Makes every stored pair durable, if the storage engine is persistent.
+     *
+     * @throws IOException If the pairs cannot be written.
+     */
+    public void flush() throws IOException {
+        data.flush();
+    }
+
+    /**
+     * Releases the storage engine.
+     */
+    public void close() {
+        stopExpiry();
+        data.close();
+    }
+
+    /**
+     * Tells whether a pair's deadline passed.
+     */
+    private boolean isExpired(String key) {
+        if (deadlines.isEmpty()) {
+            return false;
+        }
+        Long deadline = deadlines.get(key);
+        return deadline != null && deadline <= System.currentTimeMillis();
+    }
+
+    /**
+     * Hides a value whose deadline passed.
+     */
+    private byte[] live(String key, byte[] value) {
+        return value == null || isExpired(key) ? null : value;
+    }
+
+    /**
+     * Records the deadline of a pair just stored, and offers it for eviction.
+     * Must be called with the stripe of the key locked.
+     */
+    private void admit(String key, long deadline) {
+        if (deadline > 0) {
+            deadlines.put(key, deadline);
+            timers.schedule(key, deadline);
+        } else if (!deadlines.isEmpty()) {
+            deadlines.remove(key);
+        }
+        Eviction pool = eviction;
+        if (pool != null) {
+            pool.add(key);
+        }
+    }
+
+    /**
+     * Removes a pair whose deadline passed, before its key is written. Must be
+     * called with the stripe of the key locked.
+     *
+     * @return true if the pair was removed.
+     */
+    private boolean expireIfDue(String key) {
+        if (!isExpired(key)) {
+            return false;
+        }
+        if (removeLocked(key) == null) {
+            deadlines.remove(key);
+            return false;
+        }
+        expired.increment();
+        return true;
+    }
+
+    /**
+     * Removes a pair and logs it. Must be called with the stripe of the key
+     * locked.
+     *
+     * @return A future completed once the removal is logged, or null if the
+     *         key did not exist.
+     */
+    private CompletableFuture<Void> removeLocked(String key) {
+        if (!data.remove(key)) {
+            return null;
+        }
+        deadlines.remove(key);
+        Eviction pool = eviction;
+        if (pool != null) {
+            pool.remove(key);
+        }
+        return journal.log(WriteAheadLog.removeRecord(key));
+    }
+
+    /**
+     * Removes the pairs whose deadline passed, on every tick of the expirer.
+     */
+    private void expire() {
+        try {
+            List<String> removed = new ArrayList<>();
+            timers.advance(System.currentTimeMillis(), (key, deadline) -> {
+                int stripe = locks.stripeOf(key);
+                long stamp = locks.lock(stripe);
+                try {
+                    // The pair may have been removed, or stored again with another deadline
+                    Long current = deadlines.get(key);
+                    if (current == null || current != deadline) {
+                        return;
+                    }
+                    if (removeLocked(key) != null) {
+                        removed.add(key);
+                    } else {
+                        deadlines.remove(key);
+                    }
+                } finally {
+                    locks.unlock(stripe, stamp);
+                }
+            });
+            if (!removed.isEmpty()) {
+                expired.add(removed.size());
+                listener.accept(removed);
+            }
+        } catch (RuntimeException e) {
+            System.out.println("\u001B[31m[ERROR]\u001B[0m Failed to expire keys: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Evicts pairs until the engine is back under the memory limit.
+     */
+    private void evictIfNeeded() {
+        Eviction pool = eviction;
+        if (pool == null) {
+            return;
+        }
+        List<String> removed = new ArrayList<>();
+        while (data.getMemoryBytes() > memoryLimit) {
+            String key = pool.victim();
+            if (key == null) {
+                break;
+            }
+            int stripe = locks.stripeOf(key);
+            long stamp = locks.lock(stripe);
+            try {
+                if (removeLocked(key) != null) {
+                    removed.add(key);
+                } else {
+                    pool.remove(key);
+                }
+            } finally {
+                locks.unlock(stripe, stamp);
+            }
+        }
+        if (!removed.isEmpty()) {
+            evicted.add(removed.size());
+            listener.accept(removed);
+        }
+    }
+
+    /**
+     * Records a read of a pair, for the eviction policy.
+     */
+    private void touch(String key, byte[] value) {
+        Eviction pool = eviction;
+        if (pool != null && value != null) {
+            pool.touch(key);
+        }
+    }
+
+    /**
+     * Tells the listener of the keys removed and stored by a write, each once.
+     */
+    private void changed(List<String> removed, Set<String> stored) {
+        if (removed.isEmpty()) {
+            if (!stored.isEmpty()) {
+                listener.accept(stored);
+            }
+            return;
+        }
+        Set<String> keys = new LinkedHashSet<>(removed);
+        keys.addAll(stored);
+        listener.accept(keys);
+    }
+
+    private static String megabytes(long bytes) {
+        return String.format("%.1f", bytes / (1024.0 * 1024));
+    }
+
+    /**
+     * Completes the waiters registered on a key that expect the given value.
+     * They are taken out of the registry first and completed outside of it, so
+     * whatever runs on completion does not hold the registry bin.
+     */
+    private void wake(String key, byte[] value) {
+        List<Waiter> matched = new ArrayList<>();
+        waiters.computeIfPresent(key, (k, list) -> {
+            list.removeIf(waiter -> {
+                if (Codec.matches(value, waiter.valueCond)) {
+                    matched.add(waiter);
+                    return true;
+                }
+                return false;
+            });
+            return list.isEmpty() ? null : list;
+        });
+        waiting.addAndGet(-matched.size());
+        for (Waiter waiter : matched) {
+            waiter.future.complete(null);
+        }
+    }
+
+    private void remove(String keyCond, Waiter waiter) {
+        waiters.computeIfPresent(keyCond, (k, list) -> {
+            if (list.remove(waiter)) {
+                waiting.decrementAndGet();
+            }
+            return list.isEmpty() ? null : list;
+        });
+    }
+
+    /**
+     * How a transaction ended.
+     */
+    public enum Outcome {
+        /**
+         * Every operation was applied.
+         */
+        COMMITTED,
+        /**
+         * A put used a key that already existed; nothing was applied.
+         */
+        KEY_EXISTS,
+        /**
+         * A check did not hold; nothing was applied.
+         */
+        CONDITION_FAILED
+    }
+
+    /**
+     * The result of {@link #commit(Transaction)}.
+     */
+    public static final class Commit {
+        private final Outcome outcome;
+        private final String abortedBy;
+        private final Map<String, byte[]> reads;
+        private final Map<String, byte[]> writes;
+        private final CompletableFuture<Void> logged;
+
+        private Commit(Outcome outcome, String abortedBy, Map<String, byte[]> reads, Map<String, byte[]> writes,
+                CompletableFuture<Void> logged) {
+            this.outcome = outcome;
+            this.abortedBy = abortedBy;
+            this.reads = Collections.unmodifiableMap(reads);
+            this.writes = Collections.unmodifiableMap(writes);
+            this.logged = logged;
+        }
+
+        /**
+         * Gets how the transaction ended.
+         *
+         * @return The outcome.
+         */
+        public Outcome getOutcome() {
+            return outcome;
+        }
+
+        /**
+         * Gets the key of the operation that aborted the transaction.
+         *
+         * @return The key, or null if it committed.
+         */
+        public String getAbortedBy() {
+            return abortedBy;
+        }
+
+        /**
+         * Gets the values read by a committed transaction.
+         *
+         * @return The keys found and their encoded values.
+         */
+        public Map<String, byte[]> getReads() {
+            return reads;
+        }
+
+        /**
+         * Gets the pairs stored by a committed transaction.
+         *
+         * @return The keys and their encoded values.
+         */
+        public Map<String, byte[]> getWrites() {
+            return writes;
+        }
+
+        /**
+         * Gets when the pairs stored by the transaction are logged.
+         *
+         * @return A future completed once they are durable; already completed
+         *         if nothing was stored.
+         */
+        public CompletableFuture<Void> getLogged() {
+            return logged;
+        }
+    }
+
+    /**
+     * A pending <code>getWhen</code> condition.
+     */
+    private static final class Waiter {
+        private final byte[] valueCond;
+        private final CompletableFuture<Void> future = new CompletableFuture<>();
+
+        private Waiter(byte[] valueCond) {
+            this.valueCond = valueCond;
+        }
+    }
+}
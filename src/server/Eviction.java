@@ -0,0 +1,234 @@
+package server;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The <code>Eviction</code> class picks the keys {@link DataStorage} removes
+ * once the stored pairs take more memory than it is allowed.
+ * <p>
+ * Keeping an exact least recently used order would mean moving a key in a
+ * shared list on every read. Instead, as in Redis, each key only records how
+ * it is used, and a victim is chosen by sampling {@value #SAMPLES} random keys
+ * and taking the one least worth keeping:
+ * </p>
+ * <ul>
+ * <li>{@link Policy#LRU} records when the key was last read, and evicts the
+ * one read longest ago;</li>
+ * <li>{@link Policy#LFU} keeps a logarithmic counter of how often it is read,
+ * which is halved, in effect, every few minutes it is not, and evicts the one
+ * with the lowest counter.</li>
+ * </ul>
+ * <p>
+ * Reads update their key without locking: racing updates may lose one, which
+ * an approximate policy does not mind. Keys are also kept in an array, so
+ * they can be sampled at random; adding and removing a key takes a lock, and
+ * a removed key is replaced by the last one.
+ * </p>
+ */
+public class Eviction {
+
+    /**
+     * How victims are chosen.
+     */
+    public enum Policy {
+        /**
+         * Approximately the least recently read key.
+         */
+        LRU,
+        /**
+         * Approximately the least frequently read key.
+         */
+        LFU
+    }
+
+    /**
+     * Number of keys sampled to choose a victim.
+     */
+    public static final int SAMPLES = 5;
+
+    /**
+     * Counter of a new key under {@link Policy#LFU}, so it is not the first
+     * evicted before it had a chance to be read.
+     */
+    private static final int LFU_INITIAL = 5;
+
+    /**
+     * Largest counter under {@link Policy#LFU}.
+     */
+    private static final int LFU_MAX = 255;
+
+    /**
+     * How fast the counter grows: the higher, the more reads it takes.
+     */
+    private static final int LFU_LOG_FACTOR = 10;
+
+    /**
+     * Minutes without reads after which a counter drops by one.
+     */
+    private static final long LFU_DECAY_MINUTES = 1;
+
+    private final Policy policy;
+    private final ConcurrentHashMap<String, Usage> usages = new ConcurrentHashMap<>();
+
+    /**
+     * Guards {@link #keys} and the positions of the usages in it.
+     */
+    private final ReentrantLock lock = new ReentrantLock();
+    private Usage[] keys = new Usage[1024];
+    private int count;
+
+    /**
+     * Constructs an empty set of keys.
+     *
+     * @param policy How victims are chosen.
+     */
+    public Eviction(Policy policy) {
+        this.policy = policy;
+    }
+
+    /**
+     * Adds a key that was stored.
+     *
+     * @param key The key.
+     */
+    public void add(String key) {
+        Usage usage = new Usage(key, System.nanoTime());
+        lock.lock();
+        try {
+            if (usages.putIfAbsent(key, usage) != null) {
+                return;
+            }
+            if (count == keys.length) {
+                keys = Arrays.copyOf(keys, count * 2);
+            }
+            usage.position = count;
+            keys[count++] = usage;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Removes a key that was removed from the storage.
+     *
+     * @param key The key.
+     */
+    public void remove(String key) {
+        lock.lock();
+        try {
+            Usage usage = usages.remove(key);
+            if (usage == null) {
+                return;
+            }
+            Usage last = keys[--count];
+            keys[usage.position] = last;
+            last.position = usage.position;
+            keys[count] = null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Records a read of a key.
+     *
+     * @param key The key.
+     */
+    public void touch(String key) {
+        Usage usage = usages.get(key);
+        if (usage == null) {
+            return;
+        }
+        long now = System.nanoTime();
+        if (policy == Policy.LFU) {
+            int counter = usage.decayed(now);
+            if (counter < LFU_MAX) {
+                // Each increment is less likely than the last, so the counter grows with the log of the reads
+                double chance = 1.0 / ((counter - LFU_INITIAL) * LFU_LOG_FACTOR + 1);
+                if (counter <= LFU_INITIAL || ThreadLocalRandom.current().nextDouble() < chance) {
+                    counter++;
+                }
+            }
+            usage.counter = counter;
+        }
+        usage.accessed = now;
+    }
+
+    /**
+     * Chooses the key to evict among a few sampled at random.
+     *
+     * @return The key, or null if there are none.
+     */
+    public String victim() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        long now = System.nanoTime();
+        lock.lock();
+        try {
+            Usage victim = null;
+            for (int i = 0; i < Math.min(SAMPLES, count); i++) {
+                Usage sample = keys[random.nextInt(count)];
+                if (victim == null || sample.isWorseThan(victim, policy, now)) {
+                    victim = sample;
+                }
+            }
+            return victim == null ? null : victim.key;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Gets the number of keys that may be evicted.
+     *
+     * @return The number of keys.
+     */
+    public int size() {
+        return usages.size();
+    }
+
+    /**
+     * Gets how victims are chosen.
+     *
+     * @return The policy.
+     */
+    public Policy getPolicy() {
+        return policy;
+    }
+
+    /**
+     * How a key is used.
+     */
+    private static final class Usage {
+        private final String key;
+        private int position;
+        private long accessed;
+        private int counter = LFU_INITIAL;
+
+        private Usage(String key, long now) {
+            this.key = key;
+            this.accessed = now;
+        }
+
+        /**
+         * Gets the counter after the decay for the time since the last read.
+         */
+        private int decayed(long now) {
+            long minutes = (now - accessed) / 60_000_000_000L / LFU_DECAY_MINUTES;
+            return (int) Math.max(0, counter - minutes);
+        }
+
+        private boolean isWorseThan(Usage other, Policy policy, long now) {
+            if (policy == Policy.LFU) {
+                int mine = decayed(now);
+                int theirs = other.decayed(now);
+                if (mine != theirs) {
+                    return mine < theirs;
+                }
+            }
+            return accessed < other.accessed;
+        }
+    }
+}
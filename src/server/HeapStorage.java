@@ -0,0 +1,66 @@
+package server;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The <code>HeapStorage</code> class is the default {@link StorageEngine}: the
+ * pairs are kept in a {@link ConcurrentHashMap}, each value as its own
+ * <code>byte[]</code> on the Java heap.
+ */
+public class HeapStorage implements StorageEngine {
+
+    /**
+     * Approximate heap cost of a pair besides its key and value: the map node,
+     * its table slot, and the headers of the key and the value.
+     */
+    private static final int ENTRY_OVERHEAD = 96;
+
+    private final ConcurrentHashMap<String, byte[]> data = new ConcurrentHashMap<>();
+    private final LongAdder bytes = new LongAdder();
+
+    @Override
+    public boolean putIfAbsent(String key, byte[] value) {
+        if (data.putIfAbsent(key, value) != null) {
+            return false;
+        }
+        bytes.add(cost(key, value));
+        return true;
+    }
+
+    @Override
+    public boolean remove(String key) {
+        byte[] value = data.remove(key);
+        if (value == null) {
+            return false;
+        }
+        bytes.add(-cost(key, value));
+        return true;
+    }
+
+    @Override
+    public byte[] get(String key) {
+        return data.get(key);
+    }
+
+    @Override
+    public long size() {
+        return data.mappingCount();
+    }
+
+    @Override
+    public long getMemoryBytes() {
+        return bytes.sum();
+    }
+
+    @Override
+    public Iterator<Map.Entry<String, byte[]>> iterator() {
+        return data.entrySet().iterator();
+    }
+
+    private static long cost(String key, byte[] value) {
+        return 2L * key.length() + value.length + ENTRY_OVERHEAD;
+    }
+}
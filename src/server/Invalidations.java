@@ -0,0 +1,119 @@
+package server;
+
+import common.Frame;
+import common.PayloadWriter;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The <code>Invalidations</code> class tells clients that cache their reads
+ * when their cached results go stale (see {@link Frame#TRACK}). It remembers,
+ * per key, the tracking sessions that read it; when the key is stored, or
+ * removed because it expired or was evicted, each of them gets an
+ * {@link Frame#INVALIDATE} frame and the key is forgotten until it is read
+ * again.
+ * <p>
+ * Like the <code>getWhen</code> registry of {@link DataStorage}, a write only
+ * looks at the sessions registered on its own keys, and one frame is sent to
+ * each session however many of its keys a write changed. A session tracks at
+ * most {@value #MAX_KEYS_PER_SESSION} keys; beyond that a key is invalidated
+ * as soon as it is read, so the client does not cache it.
+ * </p>
+ */
+public class Invalidations {
+
+    /**
+     * Most keys tracked for one session.
+     */
+    public static final int MAX_KEYS_PER_SESSION = 64 * 1024;
+
+    /**
+     * The tracking sessions that read each key.
+     */
+    private final ConcurrentHashMap<String, Set<Session>> readers = new ConcurrentHashMap<>();
+
+    /**
+     * Remembers that a session reads a key. Must be called before the key is
+     * read to answer the session, so a change in between is never missed.
+     *
+     * @param session The session, which asked for tracking.
+     * @param key     The key.
+     */
+    public void track(Session session, String key) {
+        if (!session.addTracked(key, MAX_KEYS_PER_SESSION)) {
+            session.push(frame(List.of(key)));
+            return;
+        }
+        readers.compute(key, (k, sessions) -> {
+            Set<Session> tracking = sessions == null ? new HashSet<>() : sessions;
+            tracking.add(session);
+            return tracking;
+        });
+    }
+
+    /**
+     * Tells the sessions tracking any of the given keys that they changed.
+     *
+     * @param keys The keys stored or removed.
+     */
+    public void invalidate(Collection<String> keys) {
+        if (readers.isEmpty()) {
+            return;
+        }
+        Map<Session, List<String>> changed = new HashMap<>();
+        for (String key : keys) {
+            Set<Session> sessions = readers.remove(key);
+            if (sessions == null) {
+                continue;
+            }
+            for (Session session : sessions) {
+                if (session.removeTracked(key)) {
+                    changed.computeIfAbsent(session, s -> new ArrayList<>()).add(key);
+                }
+            }
+        }
+        changed.forEach((session, sessionKeys) -> session.push(frame(sessionKeys)));
+    }
+
+    /**
+     * Forgets every key tracked for a session, once it is closed.
+     *
+     * @param session The session.
+     * @param keys    The keys it tracked.
+     */
+    public void forget(Session session, Collection<String> keys) {
+        for (String key : keys) {
+            remove(key, session);
+        }
+    }
+
+    /**
+     * Gets the number of keys tracked by at least one session.
+     *
+     * @return The number of keys.
+     */
+    public int size() {
+        return readers.size();
+    }
+
+    private void remove(String key, Session session) {
+        readers.computeIfPresent(key, (k, sessions) -> {
+            sessions.remove(session);
+            return sessions.isEmpty() ? null : sessions;
+        });
+    }
+
+    private static Frame frame(List<String> keys) {
+        PayloadWriter payload = new PayloadWriter().writeLong(System.currentTimeMillis()).writeInt(keys.size());
+        for (String key : keys) {
+            payload.writeKey(key);
+        }
+        return new Frame(Frame.INVALIDATE, 0, Frame.OK, payload.toByteArray());
+    }
+}
@@ -0,0 +1,198 @@
+package server;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.Supplier;
+
+/**
+ * The <code>KeyLocks</code> class makes writes to several keys appear at
+ * once. Keys are spread over {@value #STRIPES} stripes, each guarded by a
+ * {@link StampedLock}. A write or a removal locks the stripes of all its
+ * keys, in ascending order so two writes never wait for each other in a
+ * cycle, and releases them once every key is in place.
+ * <p>
+ * Reads do not lock at all in the common case: they note the version of
+ * their stripes, read, and only retry under the read locks if a write held
+ * one of the stripes meanwhile. A read therefore never sees part of a write,
+ * and costs a few volatile reads when nothing is being written. A read that
+ * raced with a write may have seen memory being reused and failed; such a
+ * failure is discarded like its result, and the read retried.
+ * </p>
+ */
+public class KeyLocks {
+
+    /**
+     * Number of stripes; a power of two.
+     */
+    public static final int STRIPES = 1024;
+
+    private final StampedLock[] stripes = new StampedLock[STRIPES];
+
+    /**
+     * Constructs the locks of every stripe.
+     */
+    public KeyLocks() {
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new StampedLock();
+        }
+    }
+
+    /**
+     * Gets the stripe of a key.
+     *
+     * @param key The key.
+     * @return The stripe index.
+     */
+    public int stripeOf(String key) {
+        int hash = key.hashCode();
+        return (hash ^ (hash >>> 16)) & (STRIPES - 1);
+    }
+
+    /**
+     * Gets the stripes of several keys.
+     *
+     * @param keys The keys.
+     * @return The distinct stripe indexes, in ascending order.
+     */
+    public int[] stripesOf(Collection<String> keys) {
+        int[] indexes = new int[keys.size()];
+        int count = 0;
+        for (String key : keys) {
+            indexes[count++] = stripeOf(key);
+        }
+        Arrays.sort(indexes);
+        int distinct = 0;
+        for (int i = 0; i < count; i++) {
+            if (distinct == 0 || indexes[i] != indexes[distinct - 1]) {
+                indexes[distinct++] = indexes[i];
+            }
+        }
+        return distinct == indexes.length ? indexes : Arrays.copyOf(indexes, distinct);
+    }
+
+    /**
+     * Locks one stripe for writing.
+     *
+     * @param stripe The stripe index.
+     * @return The stamp to unlock it with.
+     */
+    public long lock(int stripe) {
+        return stripes[stripe].writeLock();
+    }
+
+    /**
+     * Unlocks a stripe locked by {@link #lock(int)}.
+     *
+     * @param stripe The stripe index.
+     * @param stamp  The stamp returned by the lock.
+     */
+    public void unlock(int stripe, long stamp) {
+        stripes[stripe].unlockWrite(stamp);
+    }
+
+    /**
+     * Locks several stripes for writing, in ascending order.
+     *
+     * @param indexes The stripe indexes, as returned by {@link #stripesOf}.
+     * @return The stamps to unlock them with.
+     */
+    public long[] lockAll(int[] indexes) {
+        long[] stamps = new long[indexes.length];
+        for (int i = 0; i < indexes.length; i++) {
+            stamps[i] = stripes[indexes[i]].writeLock();
+        }
+        return stamps;
+    }
+
+    /**
+     * Unlocks stripes locked by {@link #lockAll(int[])}.
+     *
+     * @param indexes The stripe indexes.
+     * @param stamps  The stamps returned by the lock.
+     */
+    public void unlockAll(int[] indexes, long[] stamps) {
+        for (int i = indexes.length - 1; i >= 0; i--) {
+            stripes[indexes[i]].unlockWrite(stamps[i]);
+        }
+    }
+
+    /**
+     * Runs a read of the keys of one stripe so it never sees part of a write.
+     * The read may run twice, so it must not have side effects.
+     *
+     * @param stripe The stripe index.
+     * @param reader The read.
+     * @param <T>    The type of the result.
+     * @return The result of the read.
+     */
+    public <T> T read(int stripe, Supplier<T> reader) {
+        StampedLock lock = stripes[stripe];
+        long stamp = lock.tryOptimisticRead();
+        if (stamp != 0) {
+            try {
+                T result = reader.get();
+                if (lock.validate(stamp)) {
+                    return result;
+                }
+            } catch (RuntimeException e) {
+                if (lock.validate(stamp)) {
+                    throw e;
+                }
+            }
+        }
+        stamp = lock.readLock();
+        try {
+            return reader.get();
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * Runs a read of the keys of several stripes so it sees every write to
+     * them either whole or not at all. The read may run twice, so it must not
+     * have side effects.
+     *
+     * @param indexes The stripe indexes, as returned by {@link #stripesOf}.
+     * @param reader  The read.
+     * @param <T>     The type of the result.
+     * @return The result of the read.
+     */
+    public <T> T readAll(int[] indexes, Supplier<T> reader) {
+        long[] stamps = new long[indexes.length];
+        boolean valid = true;
+        for (int i = 0; i < indexes.length && valid; i++) {
+            stamps[i] = stripes[indexes[i]].tryOptimisticRead();
+            valid = stamps[i] != 0;
+        }
+        if (valid) {
+            T result = null;
+            RuntimeException failure = null;
+            try {
+                result = reader.get();
+            } catch (RuntimeException e) {
+                failure = e;
+            }
+            for (int i = 0; i < indexes.length && valid; i++) {
+                valid = stripes[indexes[i]].validate(stamps[i]);
+            }
+            if (valid && failure != null) {
+                throw failure;
+            }
+            if (valid) {
+                return result;
+            }
+        }
+        for (int i = 0; i < indexes.length; i++) {
+            stamps[i] = stripes[indexes[i]].readLock();
+        }
+        try {
+            return reader.get();
+        } finally {
+            for (int i = indexes.length - 1; i >= 0; i--) {
+                stripes[indexes[i]].unlockRead(stamps[i]);
+            }
+        }
+    }
+}
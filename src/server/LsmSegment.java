@@ -0,0 +1,490 @@
+package server;
+
+import common.Codec;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractMap;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.zip.CRC32C;
+
+/**
+ * The <code>LsmSegment</code> class is an immutable, sorted file of pairs
+ * written by {@link LsmStorage}. The file is laid out as:
+ *
+ * <pre>
+ * ...    entries      key length, key (UTF-8), value length, value; by key
+ * ...    index        count, then the key and offset of every
+ *                     {@value #INDEX_INTERVAL}th entry
+ * ...    bloom        a {@link BloomFilter} of every key
+ * long   live         pairs, tombstones excluded, minus tombstones minus
+ *                     pairs that replace a tombstone of the same memtable
+ * long   indexOffset
+ * long   bloomOffset
+ * long   count        number of entries
+ * int    crc          CRC32C of the index and the bloom filter
+ * int    magic        {@link #MAGIC}
+ * </pre>
+ *
+ * The index and the bloom filter are kept in memory. A lookup checks the
+ * filter, finds the block of {@value #INDEX_INTERVAL} entries that may hold
+ * the key by binary search and reads only that block, which the operating
+ * system page cache keeps in memory while it is hot.
+ * <p>
+ * Values are written encoded as they are stored (see {@link Codec}). A
+ * removed key is written as a tombstone, an entry of value length
+ * {@value #TOMBSTONE_LENGTH} without a value, which hides the key from older
+ * segments. Segments of earlier versions have no tombstones nor
+ * <code>live</code> field: those marked by {@link #ENCODED_MAGIC} hold encoded
+ * values, those marked by {@link #PLAIN_MAGIC} plain values, which are encoded
+ * as {@link Codec#RAW} as they are read, until a compaction rewrites them.
+ * </p>
+ */
+public class LsmSegment implements AutoCloseable {
+
+    /**
+     * Identifies a segment file ("SDS3").
+     */
+    public static final int MAGIC = 0x53445333;
+
+    /**
+     * Identifies a segment file of encoded values without tombstones written
+     * by earlier versions ("SDS2").
+     */
+    public static final int ENCODED_MAGIC = 0x53445332;
+
+    /**
+     * Identifies a segment file of plain values written by earlier versions
+     * ("SDSG").
+     */
+    public static final int PLAIN_MAGIC = 0x53445347;
+
+    /**
+     * Number of entries per block of the sparse index.
+     */
+    public static final int INDEX_INTERVAL = 16;
+
+    /**
+     * Value length of a tombstone entry.
+     */
+    public static final int TOMBSTONE_LENGTH = -1;
+
+    /**
+     * What {@link #get(String)} and {@link #scan()} return for the value of a
+     * removed key, told apart from a value by identity.
+     */
+    public static final byte[] TOMBSTONE = new byte[0];
+
+    /**
+     * What {@link #read(String, int, ByteBuffer)} returns for a removed key.
+     */
+    public static final int REMOVED = -2;
+
+    private static final int FOOTER_BYTES = 8 + 8 + 8 + 4 + 4;
+
+    private final Path file;
+    private final long sequence;
+    private final FileChannel channel;
+    private final String[] indexKeys;
+    private final long[] indexOffsets;
+    private final long dataEnd;
+    private final BloomFilter bloom;
+    private final long count;
+    private final long live;
+    private final boolean plainValues;
+
+    private LsmSegment(Path file, long sequence, FileChannel channel, String[] indexKeys, long[] indexOffsets,
+            long dataEnd, BloomFilter bloom, long count, long live, boolean plainValues) {
+        this.file = file;
+        this.sequence = sequence;
+        this.channel = channel;
+        this.indexKeys = indexKeys;
+        this.indexOffsets = indexOffsets;
+        this.dataEnd = dataEnd;
+        this.bloom = bloom;
+        this.count = count;
+        this.live = live;
+        this.plainValues = plainValues;
+    }
+
+    /**
+     * Writes a segment from pairs sorted by key. The file is written and
+     * synced under a temporary name and then renamed, so a segment file is
+     * always complete.
+     *
+     * @param file         The segment file.
+     * @param sequence     The sequence number of the segment.
+     * @param pairs        The pairs, sorted by key without duplicates; a
+     *                     {@link #TOMBSTONE} value is written as a tombstone.
+     * @param expectedKeys The number of pairs, used to size the bloom filter.
+     * @param replacing    The number of pairs that replace a tombstone of the
+     *                     same memtable, which do not add a key.
+     * @return The segment, open for reading.
+     * @throws IOException If the segment cannot be written.
+     */
+    public static LsmSegment write(Path file, long sequence, Iterator<Map.Entry<String, byte[]>> pairs,
+            long expectedKeys, long replacing) throws IOException {
+        Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+        BloomFilter bloom = BloomFilter.create(expectedKeys);
+        ByteArrayOutputStream meta = new ByteArrayOutputStream();
+        DataOutputStream metaOut = new DataOutputStream(meta);
+        int indexed = 0;
+
+        try (FileOutputStream fileOut = new FileOutputStream(temporary.toFile());
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOut, 1 << 16))) {
+            long offset = 0;
+            long written = 0;
+            long tombstones = 0;
+            ByteArrayOutputStream indexEntries = new ByteArrayOutputStream();
+            DataOutputStream indexOut = new DataOutputStream(indexEntries);
+            while (pairs.hasNext()) {
+                Map.Entry<String, byte[]> pair = pairs.next();
+                byte[] key = pair.getKey().getBytes(StandardCharsets.UTF_8);
+                byte[] value = pair.getValue();
+                if (written % INDEX_INTERVAL == 0) {
+                    indexed++;
+                    indexOut.writeInt(key.length);
+                    indexOut.write(key);
+                    indexOut.writeLong(offset);
+                }
+                bloom.add(pair.getKey());
+                out.writeInt(key.length);
+                out.write(key);
+                if (value == TOMBSTONE) {
+                    out.writeInt(TOMBSTONE_LENGTH);
+                    tombstones++;
+                } else {
+                    out.writeInt(value.length);
+                    out.write(value);
+                }
+                offset += 8L + key.length + value.length;
+                written++;
+            }
+
+            metaOut.writeInt(indexed);
+            indexEntries.writeTo(metaOut);
+            long bloomOffset = offset + meta.size();
+            bloom.writeTo(metaOut);
+            metaOut.writeLong(written - 2 * tombstones - replacing);
+
+            byte[] metaBytes = meta.toByteArray();
+            CRC32C crc = new CRC32C();
+            crc.update(metaBytes);
+            out.write(metaBytes);
+            out.writeLong(offset);
+            out.writeLong(bloomOffset);
+            out.writeLong(written);
+            out.writeInt((int) crc.getValue());
+            out.writeInt(MAGIC);
+            out.flush();
+            fileOut.getFD().sync();
+        }
+        Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return open(file, sequence);
+    }
+
+    /**
+     * Opens a segment file, loading its index and bloom filter.
+     *
+     * @param file     The segment file.
+     * @param sequence The sequence number of the segment.
+     * @return The segment.
+     * @throws IOException If the file cannot be read or is not a valid
+     *                     segment.
+     */
+    public static LsmSegment open(Path file, long sequence) throws IOException {
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+        try {
+            long size = channel.size();
+            if (size < FOOTER_BYTES) {
+                throw new IOException("Segment " + file + " is truncated.");
+            }
+            ByteBuffer footer = read(channel, size - FOOTER_BYTES, FOOTER_BYTES);
+            long indexOffset = footer.getLong();
+            long bloomOffset = footer.getLong();
+            long count = footer.getLong();
+            int crc = footer.getInt();
+            int magic = footer.getInt();
+            if ((magic != MAGIC && magic != ENCODED_MAGIC && magic != PLAIN_MAGIC) || indexOffset < 0
+                    || indexOffset > bloomOffset
+                    || bloomOffset > size - FOOTER_BYTES) {
+                throw new IOException("Segment " + file + " is corrupted.");
+            }
+
+            ByteBuffer meta = read(channel, indexOffset, (int) (size - FOOTER_BYTES - indexOffset));
+            CRC32C check = new CRC32C();
+            check.update(meta.duplicate());
+            if ((int) check.getValue() != crc) {
+                throw new IOException("Segment " + file + " is corrupted.");
+            }
+            int entries = meta.getInt();
+            String[] indexKeys = new String[entries];
+            long[] indexOffsets = new long[entries];
+            for (int i = 0; i < entries; i++) {
+                byte[] key = new byte[meta.getInt()];
+                meta.get(key);
+                indexKeys[i] = new String(key, StandardCharsets.UTF_8);
+                indexOffsets[i] = meta.getLong();
+            }
+            BloomFilter bloom = BloomFilter.readFrom(meta);
+            long live = magic == MAGIC ? meta.getLong() : count;
+            return new LsmSegment(file, sequence, channel, indexKeys, indexOffsets, indexOffset, bloom, count,
+                    live, magic == PLAIN_MAGIC);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Gets the value of a key.
+     *
+     * @param key The key.
+     * @return The value, {@link #TOMBSTONE} if the key was removed, or null if
+     *         the segment does not hold the key.
+     * @throws IOException If the segment cannot be read.
+     */
+    public byte[] get(String key) throws IOException {
+        if (!bloom.mightContain(key)) {
+            return null;
+        }
+        int block = Arrays.binarySearch(indexKeys, key);
+        if (block < 0) {
+            block = -block - 2;
+            if (block < 0) {
+                return null;
+            }
+        }
+        long start = indexOffsets[block];
+        long end = block + 1 < indexOffsets.length ? indexOffsets[block + 1] : dataEnd;
+        ByteBuffer bytes = read(channel, start, (int) (end - start));
+        while (bytes.hasRemaining()) {
+            byte[] entryKey = new byte[bytes.getInt()];
+            bytes.get(entryKey);
+            int length = bytes.getInt();
+            int comparison = new String(entryKey, StandardCharsets.UTF_8).compareTo(key);
+            if (comparison == 0) {
+                if (length == TOMBSTONE_LENGTH) {
+                    return TOMBSTONE;
+                }
+                byte[] value = new byte[length];
+                bytes.get(value);
+                return plainValues ? Codec.raw(value) : value;
+            }
+            if (comparison > 0) {
+                return null;
+            }
+            bytes.position(bytes.position() + Math.max(0, length));
+        }
+        return null;
+    }
+
+    /**
+     * Copies part of the value of a key straight from the file. Unlike
+     * {@link #get(String)}, which reads the whole block of the key, it only
+     * reads the headers of the entries before the key and then the requested
+     * part of the value, so chunks of a large value are read without reading
+     * all of it each time.
+     *
+     * @param key    The key.
+     * @param offset Position in the value of the first byte to copy.
+     * @param target Receives the bytes, up to its remaining space or the end
+     *               of the value; its position is advanced past them.
+     * @return The length of the whole value, {@link #REMOVED} if the key was
+     *         removed, or -1 if the segment does not hold the key.
+     * @throws IOException If the segment cannot be read.
+     */
+    public int read(String key, int offset, ByteBuffer target) throws IOException {
+        if (!bloom.mightContain(key)) {
+            return -1;
+        }
+        int block = Arrays.binarySearch(indexKeys, key);
+        if (block < 0) {
+            block = -block - 2;
+            if (block < 0) {
+                return -1;
+            }
+        }
+        long position = indexOffsets[block];
+        long end = block + 1 < indexOffsets.length ? indexOffsets[block + 1] : dataEnd;
+        while (position < end) {
+            byte[] entryKey = new byte[read(channel, position, 4).getInt()];
+            ByteBuffer header = read(channel, position + 4, entryKey.length + 4);
+            header.get(entryKey);
+            int length = header.getInt();
+            long valueStart = position + 8 + entryKey.length;
+            int comparison = new String(entryKey, StandardCharsets.UTF_8).compareTo(key);
+            if (comparison == 0 && length == TOMBSTONE_LENGTH) {
+                return REMOVED;
+            }
+            if (comparison == 0) {
+                if (plainValues) {
+                    // The tag of the encoded value is not in the file
+                    if (offset == 0 && target.hasRemaining()) {
+                        target.put(Codec.RAW);
+                    }
+                    offset = Math.max(0, offset - 1);
+                }
+                if (offset < length) {
+                    ByteBuffer part = target.slice(target.position(), Math.min(target.remaining(), length - offset));
+                    while (part.hasRemaining()) {
+                        if (channel.read(part, valueStart + offset + part.position()) < 0) {
+                            throw new EOFException();
+                        }
+                    }
+                    target.position(target.position() + part.capacity());
+                }
+                return plainValues ? length + 1 : length;
+            }
+            if (comparison > 0) {
+                return -1;
+            }
+            position = valueStart + Math.max(0, length);
+        }
+        return -1;
+    }
+
+    /**
+     * Reads every pair of the segment in key order, with {@link #TOMBSTONE}
+     * as the value of removed keys. The scan reads through its own channel, so
+     * it keeps working if the segment is closed or deleted by a compaction
+     * meanwhile.
+     *
+     * @return An iterator over the pairs. It throws
+     *         {@link UncheckedIOException} if the file cannot be read.
+     * @throws IOException If the file cannot be opened.
+     */
+    public Iterator<Map.Entry<String, byte[]>> scan() throws IOException {
+        FileChannel scanChannel = FileChannel.open(file, StandardOpenOption.READ);
+        DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(scanChannel),
+                1 << 16));
+        return new Iterator<>() {
+            private long remaining = count;
+
+            @Override
+            public boolean hasNext() {
+                if (remaining == 0) {
+                    close();
+                }
+                return remaining > 0;
+            }
+
+            @Override
+            public Map.Entry<String, byte[]> next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                try {
+                    byte[] key = new byte[in.readInt()];
+                    in.readFully(key);
+                    int length = in.readInt();
+                    byte[] value = length == TOMBSTONE_LENGTH ? TOMBSTONE : new byte[length];
+                    in.readFully(value);
+                    remaining--;
+                    return new AbstractMap.SimpleImmutableEntry<>(new String(key, StandardCharsets.UTF_8),
+                            plainValues && value != TOMBSTONE ? Codec.raw(value) : value);
+                } catch (IOException e) {
+                    close();
+                    throw new UncheckedIOException(e);
+                }
+            }
+
+            private void close() {
+                remaining = 0;
+                try {
+                    in.close();
+                } catch (IOException ignored) {
+                }
+            }
+        };
+    }
+
+    /**
+     * Gets the file of the segment.
+     *
+     * @return The file.
+     */
+    public Path getFile() {
+        return file;
+    }
+
+    /**
+     * Gets the sequence number of the segment; later segments have higher
+     * numbers.
+     *
+     * @return The sequence number.
+     */
+    public long getSequence() {
+        return sequence;
+    }
+
+    /**
+     * Gets the number of entries in the segment, tombstones included.
+     *
+     * @return The number of entries.
+     */
+    public long getCount() {
+        return count;
+    }
+
+    /**
+     * Gets how many keys the segment adds to the older ones: its pairs minus
+     * its tombstones, each of which hides an older pair, minus its pairs
+     * that replace a tombstone of the same memtable, whose older pair is
+     * hidden by nothing else.
+     *
+     * @return The number of keys added, which may be negative.
+     */
+    public long getLive() {
+        return live;
+    }
+
+    /**
+     * Gets the size of the segment file.
+     *
+     * @return The size, in bytes.
+     * @throws IOException If the size cannot be read.
+     */
+    public long getSize() throws IOException {
+        return channel.size();
+    }
+
+    /**
+     * Closes the segment file.
+     */
+    @Override
+    public void close() {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            System.err.println("\u001B[31m[ERROR]\u001B[0m Error closing segment " + file + ": " + e.getMessage());
+        }
+    }
+
+    private static ByteBuffer read(FileChannel channel, long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new EOFException();
+            }
+        }
+        return buffer.flip();
+    }
+}
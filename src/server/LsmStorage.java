@@ -0,0 +1,668 @@
+package server;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * The <code>LsmStorage</code> class is a {@link StorageEngine} based on a
+ * log-structured merge tree, for datasets larger than the heap.
+ * <p>
+ * New pairs go to an in-memory sorted memtable. Once it holds more than the
+ * configured number of bytes it is frozen and a background thread writes it
+ * out as an immutable, sorted {@link LsmSegment} file under the storage
+ * directory. A lookup checks the memtable, then the frozen memtables waiting
+ * to be written, then the segments, whose bloom filters and sparse indexes
+ * are kept in memory. Once there are {@value #COMPACTION_THRESHOLD} segments,
+ * another background thread merges them into one, so lookups never have to
+ * check many files.
+ * </p>
+ * <p>
+ * Keys are never overwritten, but a removed key may be stored again. A key
+ * removed after it left the memtable gets a tombstone in the memtable, which
+ * is written out like a pair and hides the key from the older places; lookups
+ * check the newest place first and stop at the first entry of the key,
+ * tombstone or not. A compaction merges every segment, the oldest data there
+ * is, so it drops the tombstones and the pairs they hide. The engine does not
+ * log the memtable itself: the server's write-ahead log already holds every
+ * change, and {@link #flush()} writes the memtable out before the log is
+ * truncated.
+ * </p>
+ */
+public class LsmStorage implements StorageEngine {
+
+    /**
+     * Number of segments that triggers a compaction.
+     */
+    public static final int COMPACTION_THRESHOLD = 4;
+
+    /**
+     * Number of frozen memtables after which writers flush them themselves
+     * instead of letting them pile up in memory.
+     */
+    private static final int MAX_FROZEN = 4;
+
+    /**
+     * Approximate heap cost of a memtable entry besides its key and value.
+     */
+    private static final int ENTRY_OVERHEAD = 64;
+
+    private static final String SUFFIX = ".sst";
+
+    private final Path directory;
+    private final long memtableBytes;
+
+    /**
+     * Read by lookups and puts; written to swap the memtable or install and
+     * drop segments, so no lookup reads a segment while it is closed.
+     */
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+    /**
+     * Makes the check and the change of a put or a removal atomic per key.
+     */
+    private final ReentrantLock[] stripes = new ReentrantLock[64];
+
+    private volatile Memtable memtable = new Memtable();
+
+    /**
+     * Frozen memtables, newest first.
+     */
+    private volatile List<Memtable> frozen = List.of();
+
+    /**
+     * Segments, newest first.
+     */
+    private volatile List<LsmSegment> segments;
+
+    /**
+     * Serializes the writing of frozen memtables.
+     */
+    private final ReentrantLock flushLock = new ReentrantLock();
+
+    private final ExecutorService flusher = daemonExecutor("lsm-flusher");
+    private final ExecutorService compactor = daemonExecutor("lsm-compactor");
+    private final AtomicBoolean compacting = new AtomicBoolean();
+    private final AtomicLong nextSequence = new AtomicLong();
+    private final AtomicLong size = new AtomicLong();
+
+    /**
+     * Opens the engine over the segments found in a directory, creating it if
+     * needed. Temporary files left by an interrupted flush or compaction are
+     * deleted.
+     *
+     * @param directory    The storage directory.
+     * @param memtableSize The number of bytes after which the memtable is
+     *                     written out.
+     * @throws IOException If the directory or a segment cannot be read.
+     */
+    public LsmStorage(Path directory, long memtableSize) throws IOException {
+        this.directory = directory;
+        this.memtableBytes = memtableSize;
+        for (int i = 0; i < stripes.length; i++) {
+            stripes[i] = new ReentrantLock();
+        }
+
+        Files.createDirectories(directory);
+        List<LsmSegment> found = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                if (name.endsWith(".tmp")) {
+                    Files.delete(file);
+                } else if (name.endsWith(SUFFIX)) {
+                    long sequence = Long.parseLong(name.substring(0, name.length() - SUFFIX.length()));
+                    found.add(LsmSegment.open(file, sequence));
+                    nextSequence.accumulateAndGet(sequence + 1, Math::max);
+                    size.addAndGet(found.get(found.size() - 1).getLive());
+                }
+            }
+        } catch (IOException | NumberFormatException e) {
+            found.forEach(LsmSegment::close);
+            throw e instanceof IOException io ? io : new IOException(e);
+        }
+        found.sort(Comparator.comparingLong(LsmSegment::getSequence).reversed());
+        this.segments = List.copyOf(found);
+        maybeCompact();
+    }
+
+    @Override
+    public boolean putIfAbsent(String key, byte[] value) {
+        ReentrantLock stripe = stripes[(key.hashCode() & Integer.MAX_VALUE) % stripes.length];
+        Memtable target;
+        lock.readLock().lock();
+        try {
+            stripe.lock();
+            try {
+                if (find(key) != null) {
+                    return false;
+                }
+                target = memtable;
+                target.put(key, value);
+            } finally {
+                stripe.unlock();
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        size.incrementAndGet();
+
+        if (target.bytes.get() >= memtableBytes) {
+            freeze(target);
+            if (frozen.size() > MAX_FROZEN) {
+                flushFrozen();
+            } else {
+                flusher.execute(this::flushFrozen);
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public boolean remove(String key) {
+        ReentrantLock stripe = stripes[(key.hashCode() & Integer.MAX_VALUE) % stripes.length];
+        lock.readLock().lock();
+        try {
+            stripe.lock();
+            try {
+                byte[] value = memtable.pairs.get(key);
+                if (value == LsmSegment.TOMBSTONE || (value == null && find(key) == null)) {
+                    return false;
+                }
+                if (value != null) {
+                    memtable.remove(key);
+                } else {
+                    memtable.put(key, LsmSegment.TOMBSTONE);
+                }
+            } finally {
+                stripe.unlock();
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        size.decrementAndGet();
+        return true;
+    }
+
+    @Override
+    public byte[] get(String key) {
+        lock.readLock().lock();
+        try {
+            return find(key);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Copies part of a value. A value still in a memtable is copied from its
+     * array; a value in a segment is read from the file, only the requested
+     * part of it.
+     *
+     * @throws UncheckedIOException If a segment cannot be read.
+     */
+    @Override
+    public int read(String key, int offset, ByteBuffer target) {
+        lock.readLock().lock();
+        try {
+            byte[] value = memtable.pairs.get(key);
+            for (Memtable table : frozen) {
+                if (value != null) {
+                    break;
+                }
+                value = table.pairs.get(key);
+            }
+            if (value == LsmSegment.TOMBSTONE) {
+                return -1;
+            }
+            if (value != null) {
+                if (offset < value.length) {
+                    target.put(value, offset, Math.min(target.remaining(), value.length - offset));
+                }
+                return value.length;
+            }
+            for (LsmSegment segment : segments) {
+                int length = segment.read(key, offset, target);
+                if (length != -1) {
+                    return Math.max(length, -1);
+                }
+            }
+            return -1;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public long size() {
+        return size.get();
+    }
+
+    /**
+     * Gets the estimated heap size of the memtable and of the frozen
+     * memtables waiting to be written.
+     *
+     * @return The estimated number of bytes.
+     */
+    @Override
+    public long getMemoryBytes() {
+        long bytes = memtable.bytes.get();
+        for (Memtable table : frozen) {
+            bytes += table.bytes.get();
+        }
+        return bytes;
+    }
+
+    /**
+     * Iterates the pairs in key order, merging the memtables and a scan of
+     * every segment and leaving out removed keys.
+     *
+     * @throws UncheckedIOException If a segment cannot be read.
+     */
+    @Override
+    public Iterator<Map.Entry<String, byte[]>> iterator() {
+        List<Iterator<Map.Entry<String, byte[]>>> sources = new ArrayList<>();
+        lock.readLock().lock();
+        try {
+            sources.add(memtable.pairs.entrySet().iterator());
+            for (Memtable table : frozen) {
+                sources.add(table.pairs.entrySet().iterator());
+            }
+            for (LsmSegment segment : segments) {
+                sources.add(segment.scan());
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            lock.readLock().unlock();
+        }
+        return withoutTombstones(new MergeIterator(sources));
+    }
+
+    /**
+     * The pairs are kept in segment files, so a snapshot of the state does not
+     * need to copy them.
+     *
+     * @return true.
+     */
+    @Override
+    public boolean isPersistent() {
+        return true;
+    }
+
+    /**
+     * Writes the memtable and every frozen memtable out as segments, and
+     * waits until they are synced.
+     *
+     * @throws IOException If a segment cannot be written.
+     */
+    @Override
+    public void flush() throws IOException {
+        Memtable current = memtable;
+        if (!current.pairs.isEmpty()) {
+            freeze(current);
+        }
+        flushLock.lock();
+        try {
+            while (!frozen.isEmpty()) {
+                writeOldestFrozen();
+            }
+        } finally {
+            flushLock.unlock();
+        }
+    }
+
+    /**
+     * Writes the memtable out, waits for a running compaction and closes the
+     * segment files.
+     */
+    @Override
+    public void close() {
+        try {
+            flush();
+        } catch (IOException e) {
+            System.err.println("\u001B[31m[ERROR]\u001B[0m Error flushing the memtable: " + e.getMessage());
+        }
+        flusher.shutdown();
+        compactor.shutdown();
+        try {
+            compactor.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        lock.writeLock().lock();
+        try {
+            segments.forEach(LsmSegment::close);
+            segments = List.of();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Looks a key up, newest data first. Must be called under the read lock.
+     *
+     * @return The value, or null if the key does not exist or was removed.
+     */
+    private byte[] find(String key) {
+        byte[] value = memtable.pairs.get(key);
+        for (Memtable table : frozen) {
+            if (value != null) {
+                break;
+            }
+            value = table.pairs.get(key);
+        }
+        try {
+            for (LsmSegment segment : segments) {
+                if (value != null) {
+                    break;
+                }
+                value = segment.get(key);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return value == LsmSegment.TOMBSTONE ? null : value;
+    }
+
+    /**
+     * Replaces the memtable with an empty one, unless it was already
+     * replaced.
+     */
+    private void freeze(Memtable table) {
+        lock.writeLock().lock();
+        try {
+            if (memtable != table) {
+                return;
+            }
+            List<Memtable> tables = new ArrayList<>(frozen.size() + 1);
+            tables.add(table);
+            tables.addAll(frozen);
+            frozen = List.copyOf(tables);
+            memtable = new Memtable();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Writes out every frozen memtable, logging failures. Runs on the flusher
+     * thread, or on a writer when too many memtables are waiting.
+     */
+    private void flushFrozen() {
+        flushLock.lock();
+        try {
+            while (!frozen.isEmpty()) {
+                writeOldestFrozen();
+            }
+        } catch (IOException e) {
+            System.err.println("\u001B[31m[ERROR]\u001B[0m Error writing a segment: " + e.getMessage());
+        } finally {
+            flushLock.unlock();
+        }
+        maybeCompact();
+    }
+
+    /**
+     * Writes the oldest frozen memtable out as a segment and swaps one for
+     * the other. Must be called under the flush lock.
+     */
+    private void writeOldestFrozen() throws IOException {
+        List<Memtable> tables = frozen;
+        Memtable oldest = tables.get(tables.size() - 1);
+        long sequence = nextSequence.getAndIncrement();
+        LsmSegment segment = LsmSegment.write(segmentFile(sequence), sequence,
+                oldest.pairs.entrySet().iterator(), oldest.pairs.size(), oldest.replacing.size());
+
+        lock.writeLock().lock();
+        try {
+            List<LsmSegment> installed = new ArrayList<>(segments.size() + 1);
+            installed.add(segment);
+            installed.addAll(segments);
+            segments = List.copyOf(installed);
+            List<Memtable> remaining = new ArrayList<>(frozen);
+            remaining.remove(oldest);
+            frozen = List.copyOf(remaining);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Starts a compaction on the compactor thread if there are enough
+     * segments and none is running.
+     */
+    private void maybeCompact() {
+        if (segments.size() >= COMPACTION_THRESHOLD && compacting.compareAndSet(false, true)) {
+            try {
+                compactor.execute(this::compact);
+            } catch (RuntimeException e) {
+                compacting.set(false);
+            }
+        }
+    }
+
+    /**
+     * Merges the current segments into one. Segments written meanwhile are
+     * kept as they are. Nothing is older than the merged segments, so the
+     * tombstones are dropped with the pairs they hide. The merged segments
+     * are closed and deleted once the new one is installed.
+     * <p>
+     * The inputs and the sequence number of the merged segment are chosen
+     * under the flush lock. A flush that took its number earlier is then
+     * already installed, and so among the inputs, and one that starts later
+     * gets a higher number. Otherwise a flush still writing a segment with a
+     * lower number would be ordered behind the merged segment, although its
+     * changes are newer, and a pair it removes would come back.
+     * </p>
+     */
+    private void compact() {
+        try {
+            List<LsmSegment> inputs;
+            long sequence;
+            flushLock.lock();
+            try {
+                inputs = segments;
+                sequence = nextSequence.getAndIncrement();
+            } finally {
+                flushLock.unlock();
+            }
+            List<Iterator<Map.Entry<String, byte[]>>> scans = new ArrayList<>();
+            long expected = 0;
+            for (LsmSegment segment : inputs) {
+                scans.add(segment.scan());
+                expected += segment.getCount();
+            }
+            LsmSegment merged = LsmSegment.write(segmentFile(sequence), sequence,
+                    withoutTombstones(new MergeIterator(scans)), expected, 0);
+
+            lock.writeLock().lock();
+            try {
+                List<LsmSegment> installed = new ArrayList<>();
+                for (LsmSegment segment : segments) {
+                    if (!inputs.contains(segment)) {
+                        installed.add(segment);
+                    }
+                }
+                installed.add(merged);
+                installed.sort(Comparator.comparingLong(LsmSegment::getSequence).reversed());
+                segments = List.copyOf(installed);
+                for (LsmSegment segment : inputs) {
+                    segment.close();
+                    Files.deleteIfExists(segment.getFile());
+                }
+            } finally {
+                lock.writeLock().unlock();
+            }
+            System.out.println("\u001B[36m[INFO]\u001B[0m Compacted " + inputs.size() + " segments into "
+                    + merged.getFile().getFileName() + " (" + merged.getCount() + " keys).");
+        } catch (IOException | UncheckedIOException e) {
+            System.err.println("\u001B[31m[ERROR]\u001B[0m Error compacting segments: " + e.getMessage());
+        } finally {
+            compacting.set(false);
+        }
+    }
+
+    private Path segmentFile(long sequence) {
+        return directory.resolve(String.format("%012d%s", sequence, SUFFIX));
+    }
+
+    /**
+     * Leaves the tombstones out of merged pairs.
+     */
+    private static Iterator<Map.Entry<String, byte[]>> withoutTombstones(Iterator<Map.Entry<String, byte[]>> pairs) {
+        return new Iterator<>() {
+            private Map.Entry<String, byte[]> next = advance();
+
+            @Override
+            public boolean hasNext() {
+                return next != null;
+            }
+
+            @Override
+            public Map.Entry<String, byte[]> next() {
+                if (next == null) {
+                    throw new NoSuchElementException();
+                }
+                Map.Entry<String, byte[]> pair = next;
+                next = advance();
+                return pair;
+            }
+
+            private Map.Entry<String, byte[]> advance() {
+                while (pairs.hasNext()) {
+                    Map.Entry<String, byte[]> pair = pairs.next();
+                    if (pair.getValue() != LsmSegment.TOMBSTONE) {
+                        return pair;
+                    }
+                }
+                return null;
+            }
+        };
+    }
+
+    private static ExecutorService daemonExecutor(String name) {
+        return Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, name);
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * A sorted in-memory table and an estimate of its heap size. The changes
+     * of a key are made under its stripe lock.
+     */
+    private static final class Memtable {
+        private final ConcurrentSkipListMap<String, byte[]> pairs = new ConcurrentSkipListMap<>();
+        private final AtomicLong bytes = new AtomicLong();
+
+        /**
+         * The keys whose pair replaced a tombstone of this memtable, so an
+         * older pair of theirs is only hidden by this one.
+         */
+        private final Set<String> replacing = ConcurrentHashMap.newKeySet();
+
+        private void put(String key, byte[] value) {
+            if (pairs.put(key, value) == LsmSegment.TOMBSTONE) {
+                replacing.add(key);
+            }
+            bytes.addAndGet(2L * key.length() + value.length + ENTRY_OVERHEAD);
+        }
+
+        /**
+         * Removes a pair of this memtable, leaving a tombstone only if it
+         * replaced one.
+         */
+        private void remove(String key) {
+            if (replacing.remove(key)) {
+                pairs.put(key, LsmSegment.TOMBSTONE);
+            } else {
+                pairs.remove(key);
+            }
+        }
+    }
+
+    /**
+     * Merges iterators sorted by key into one, keeping the first pair of each
+     * key in the order the iterators were given.
+     */
+    private static final class MergeIterator implements Iterator<Map.Entry<String, byte[]>> {
+
+        private final PriorityQueue<Source> heads = new PriorityQueue<>(
+                Comparator.comparing((Source source) -> source.head.getKey()).thenComparingInt(
+                        source -> source.rank));
+
+        private MergeIterator(List<Iterator<Map.Entry<String, byte[]>>> sources) {
+            for (int i = 0; i < sources.size(); i++) {
+                Source source = new Source(sources.get(i), i);
+                if (source.advance()) {
+                    heads.add(source);
+                }
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return !heads.isEmpty();
+        }
+
+        @Override
+        public Map.Entry<String, byte[]> next() {
+            Source first = heads.poll();
+            if (first == null) {
+                throw new NoSuchElementException();
+            }
+            Map.Entry<String, byte[]> pair = first.head;
+            reinsert(first);
+            while (!heads.isEmpty() && heads.peek().head.getKey().equals(pair.getKey())) {
+                reinsert(heads.poll());
+            }
+            return pair;
+        }
+
+        private void reinsert(Source source) {
+            if (source.advance()) {
+                heads.add(source);
+            }
+        }
+
+        private static final class Source {
+            private final Iterator<Map.Entry<String, byte[]>> pairs;
+            private final int rank;
+            private Map.Entry<String, byte[]> head;
+
+            private Source(Iterator<Map.Entry<String, byte[]>> pairs, int rank) {
+                this.pairs = pairs;
+                this.rank = rank;
+            }
+
+            private boolean advance() {
+                head = pairs.hasNext() ? pairs.next() : null;
+                return head != null;
+            }
+        }
+    }
+}
@@ -0,0 +1,142 @@
+package server;
+
+import common.Frame;
+import common.LatencyHistogram;
+import common.ServerStats;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The <code>Metrics</code> class records what the server does: a
+ * {@link LatencyHistogram} per operation, the bytes received and sent, and
+ * the sessions open. Every counter is lock-free, so recording a request costs
+ * a few atomic increments whichever front-end and thread processes it.
+ */
+public class Metrics {
+
+    private final long startNanos = System.nanoTime();
+    private final LatencyHistogram[] latencies = new LatencyHistogram[Frame.OPCODES];
+    private final LongAdder bytesIn = new LongAdder();
+    private final LongAdder bytesOut = new LongAdder();
+    private final LongAdder failures = new LongAdder();
+    private final AtomicInteger sessions = new AtomicInteger();
+    private final LongAdder sessionsOpened = new LongAdder();
+
+    /**
+     * Constructs empty metrics, starting the uptime.
+     */
+    public Metrics() {
+        for (int i = 0; i < latencies.length; i++) {
+            latencies[i] = new LatencyHistogram();
+        }
+    }
+
+    /**
+     * Records a request read from a client.
+     *
+     * @param request The request frame.
+     */
+    public void received(Frame request) {
+        bytesIn.add(4 + Frame.HEADER_LENGTH + request.getPayload().length);
+    }
+
+    /**
+     * Records the response to a request.
+     *
+     * @param request  The request frame.
+     * @param response The response frame.
+     * @param nanos    How long the request took, from the moment it was read
+     *                 until the response was ready.
+     */
+    public void completed(Frame request, Frame response, long nanos) {
+        bytesOut.add(4 + Frame.HEADER_LENGTH + response.getPayload().length);
+        byte status = response.getStatus();
+        if (status == Frame.SERVER_ERROR || status == Frame.BAD_REQUEST || status == Frame.UNSUPPORTED_VERSION) {
+            failures.increment();
+        }
+        byte opcode = request.getOpcode();
+        if (opcode >= 0 && opcode < latencies.length) {
+            latencies[opcode].record(nanos);
+        }
+    }
+
+    /**
+     * Records a client connection that was opened.
+     */
+    public void sessionOpened() {
+        sessions.incrementAndGet();
+        sessionsOpened.increment();
+    }
+
+    /**
+     * Records a client connection that was closed.
+     */
+    public void sessionClosed() {
+        sessions.decrementAndGet();
+    }
+
+    /**
+     * Gets the latencies of an operation.
+     *
+     * @param opcode The opcode of the operation.
+     * @return The histogram.
+     */
+    public LatencyHistogram getLatencies(byte opcode) {
+        return latencies[opcode];
+    }
+
+    /**
+     * Gets the number of client connections open.
+     *
+     * @return The number of sessions.
+     */
+    public int getSessions() {
+        return sessions.get();
+    }
+
+    /**
+     * Gets how long the server has been running.
+     *
+     * @return The uptime, in milliseconds.
+     */
+    public long getUptimeMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+    }
+
+    /**
+     * Builds statistics holding the counters and the latencies of every
+     * operation processed at least once. The server adds its own gauges.
+     *
+     * @return The statistics.
+     */
+    public ServerStats toStats() {
+        long requests = 0;
+        for (LatencyHistogram histogram : latencies) {
+            requests += histogram.getCount();
+        }
+        long uptime = getUptimeMillis();
+        ServerStats stats = new ServerStats(uptime)
+                .value("requests", requests)
+                .value("requestsPerSecond", uptime == 0 ? 0 : requests * 1000 / uptime)
+                .value("failures", failures.sum())
+                .value("bytesIn", bytesIn.sum())
+                .value("bytesOut", bytesOut.sum())
+                .value("sessions", sessions.get())
+                .value("sessionsOpened", sessionsOpened.sum());
+        for (byte opcode = 0; opcode < latencies.length; opcode++) {
+            LatencyHistogram histogram = latencies[opcode];
+            if (histogram.getCount() > 0) {
+                stats.operation(new ServerStats.Operation(Frame.nameOf(opcode), histogram.getCount(),
+                        micros(histogram.getMeanNanos()), micros(histogram.getPercentileNanos(50)),
+                        micros(histogram.getPercentileNanos(90)), micros(histogram.getPercentileNanos(99)),
+                        micros(histogram.getPercentileNanos(99.9)), micros(histogram.getMaxNanos())));
+            }
+        }
+        return stats;
+    }
+
+    private static long micros(long nanos) {
+        return TimeUnit.NANOSECONDS.toMicros(nanos);
+    }
+}
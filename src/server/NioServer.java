@@ -0,0 +1,403 @@
+package server;
+
+import common.Frame;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The <code>NioServer</code> class is a non-blocking front-end for the
+ * {@link Server}. Instead of parking one thread per client on a blocking read,
+ * a small fixed set of event loops, each owning a {@link Selector}, read from
+ * the client sockets and accumulate bytes until a whole {@link Frame} has
+ * arrived. Every completed request is handed to a fixed pool of workers that
+ * run it through the same {@link Server#process} code as the
+ * thread-per-connection mode, so the number of open connections is no longer
+ * tied to the number of threads.
+ * <p>
+ * Clients may pipeline requests. Every frame already received on a connection
+ * is handed to a worker as one batch and processed in order, and the next
+ * batch is only dispatched once the responses of the previous one have been
+ * queued. A <code>getWhen</code> that has to wait does not hold up the batch;
+ * its response is queued when the condition holds. All the state of a
+ * connection is only touched by the event loop that owns it.
+ * <p>
+ * With <code>--threads=virtual</code> each request runs on its own virtual
+ * thread instead of a fixed worker, so a parked <code>getWhen</code> no longer
+ * holds one of a limited number of workers.
+ */
+public class NioServer {
+
+    /**
+     * Initial size of the per-connection read buffer. It grows when a single
+     * request does not fit.
+     */
+    private static final int READ_BUFFER_SIZE = 4096;
+
+    /**
+     * Number of decoded requests a connection may have waiting for a worker
+     * before the event loop stops reading from it.
+     */
+    private static final int MAX_QUEUED_REQUESTS = 1024;
+
+    private final Server server;
+    private final int port;
+    private final EventLoop[] loops;
+    private final ExecutorService workers;
+    private ServerSocketChannel serverChannel;
+
+    /**
+     * Cleared once new connections are refused.
+     */
+    private volatile boolean accepting = true;
+
+    /**
+     * Cleared once the event loops stop, after the workers are drained.
+     */
+    private volatile boolean running = true;
+
+    /**
+     * Constructs the front-end for the given server.
+     *
+     * @param server The server that executes the requests.
+     * @param config The startup configuration (port, event loops and
+     *               workers).
+     */
+    public NioServer(Server server, ServerConfig config) {
+        this.server = server;
+        this.port = config.getPort();
+        this.workers = Server.newExecutor(config, () -> Executors.newFixedThreadPool(config.getWorkers()));
+        this.loops = new EventLoop[config.getIoThreads()];
+    }
+
+    /**
+     * Opens the event loops and accepts connections on the calling thread,
+     * distributing them round-robin over the loops, until {@link #shutdown()}
+     * is called.
+     */
+    public void run() {
+        try (ServerSocketChannel channel = ServerSocketChannel.open()) {
+            serverChannel = channel;
+            channel.bind(new InetSocketAddress(port));
+            for (int i = 0; i < loops.length; i++) {
+                loops[i] = new EventLoop();
+                Thread thread = new Thread(loops[i], "nio-loop-" + i);
+                thread.setDaemon(true);
+                thread.start();
+            }
+            System.out.println("\u001B[32m[SERVER]\u001B[0m Server is running on port " + port
+                    + " (nio, " + loops.length + " event loops)");
+
+            int next = 0;
+            while (accepting) {
+                try {
+                    SocketChannel client = channel.accept();
+                    client.configureBlocking(false);
+                    client.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                    loops[next].register(client);
+                    next = (next + 1) % loops.length;
+                } catch (IOException e) {
+                    if (accepting) {
+                        System.out.println("\u001B[31m[ERROR]\u001B[0m Erro no servidor: " + e.getMessage());
+                    }
+                }
+            }
+        } catch (IOException e) {
+            System.out.println("\u001B[31m[ERROR]\u001B[0m Erro ao iniciar o servidor: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Stops accepting connections, waits for the workers to finish the
+     * requests already handed to them, and then closes every event loop
+     * together with its connections. The event loops keep running while the
+     * workers drain, so the responses of those requests are still sent;
+     * requests decoded after this point are not processed.
+     */
+    public void shutdown() {
+        accepting = false;
+        try {
+            if (serverChannel != null) {
+                serverChannel.close();
+            }
+        } catch (IOException e) {
+            System.err.println("\u001B[31m[ERROR]\u001B[0m " + e.getMessage());
+        }
+        workers.shutdown();
+        try {
+            if (!workers.awaitTermination(10, TimeUnit.SECONDS)) {
+                System.out.println("\u001B[33m[SHUTDOWN]\u001B[0m Forcing shutdown of remaining workers...");
+                workers.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            workers.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+        running = false;
+        for (EventLoop loop : loops) {
+            if (loop != null) {
+                loop.close();
+            }
+        }
+    }
+
+    /**
+     * The state of one client connection. Only accessed by its event loop.
+     */
+    private static final class Connection {
+        private final SocketChannel channel;
+        private final Session session = new Session();
+        private SelectionKey key;
+        private ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+        private final ResponseWriter writer;
+        private final ArrayDeque<Frame> requests = new ArrayDeque<>();
+        private boolean busy;
+        private boolean closing;
+
+        private Connection(SocketChannel channel, BufferPool buffers) {
+            this.channel = channel;
+            this.writer = new ResponseWriter(channel, buffers);
+        }
+    }
+
+    /**
+     * A selector thread that owns a set of connections. Other threads hand
+     * work to it through {@link #execute(Runnable)}.
+     */
+    private final class EventLoop implements Runnable {
+        private final Selector selector;
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+
+        private EventLoop() throws IOException {
+            this.selector = Selector.open();
+        }
+
+        private void register(SocketChannel channel) {
+            execute(() -> {
+                try {
+                    Connection connection = new Connection(channel, server.getResponseBuffers());
+                    connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+                    connection.session.setPusher(frame -> execute(() -> write(connection, frame)));
+                    server.getMetrics().sessionOpened();
+                } catch (IOException e) {
+                    System.out.println("\u001B[31m[ERROR]\u001B[0m Error handling client: " + e.getMessage());
+                }
+            });
+        }
+
+        private void execute(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        private void close() {
+            try {
+                for (SelectionKey key : selector.keys()) {
+                    key.channel().close();
+                }
+                selector.close();
+            } catch (IOException | ClosedSelectorException e) {
+                System.err.println("\u001B[31m[ERROR]\u001B[0m Error closing client connection: " + e.getMessage());
+            }
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (running) {
+                    selector.select();
+                    Runnable task;
+                    while ((task = tasks.poll()) != null) {
+                        task.run();
+                    }
+
+                    Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                    while (it.hasNext()) {
+                        SelectionKey key = it.next();
+                        it.remove();
+                        Connection connection = (Connection) key.attachment();
+                        try {
+                            if (key.isValid() && key.isReadable()) {
+                                read(connection);
+                            }
+                            if (key.isValid() && key.isWritable()) {
+                                flush(connection);
+                            }
+                        } catch (IOException e) {
+                            System.out.println("\u001B[31m[ERROR]\u001B[0m Error handling client: " + e.getMessage());
+                            close(connection);
+                        }
+                    }
+                }
+            } catch (IOException | ClosedSelectorException e) {
+                if (running) {
+                    System.out.println("\u001B[31m[ERROR]\u001B[0m Erro no servidor: " + e.getMessage());
+                }
+            }
+        }
+
+        /**
+         * Reads from the socket and decodes every complete frame. Reading is
+         * paused while too many decoded requests are waiting for a worker.
+         */
+        private void read(Connection connection) throws IOException {
+            if (!connection.readBuffer.hasRemaining()) {
+                ByteBuffer larger = ByteBuffer.allocate(connection.readBuffer.capacity() * 2);
+                connection.readBuffer.flip();
+                larger.put(connection.readBuffer);
+                connection.readBuffer = larger;
+            }
+            if (connection.channel.read(connection.readBuffer) < 0) {
+                close(connection);
+                return;
+            }
+
+            ByteBuffer buffer = connection.readBuffer;
+            buffer.flip();
+            Frame request;
+            while ((request = Frame.decode(buffer)) != null) {
+                connection.requests.add(request);
+            }
+            buffer.compact();
+            if (connection.requests.size() >= MAX_QUEUED_REQUESTS) {
+                connection.key.interestOps(connection.key.interestOps() & ~SelectionKey.OP_READ);
+            }
+            dispatch(connection);
+        }
+
+        /**
+         * Hands every decoded request of the connection to a worker as one
+         * batch, unless a previous batch is still in flight. The worker
+         * processes the batch in order, so a pipelining client gets its
+         * requests handled back to back without a round trip to the event loop
+         * between them.
+         */
+        private void dispatch(Connection connection) {
+            if (connection.busy || connection.closing || connection.requests.isEmpty()) {
+                return;
+            }
+            List<Frame> batch = new ArrayList<>(connection.requests);
+            connection.requests.clear();
+            if (connection.key.isValid()) {
+                connection.key.interestOps(connection.key.interestOps() | SelectionKey.OP_READ);
+            }
+
+            connection.busy = true;
+            try {
+                workers.execute(() -> {
+                    List<Frame> responses = new ArrayList<>(batch.size());
+                    boolean exit = false;
+                    for (Frame frame : batch) {
+                        CompletableFuture<Frame> response = server.process(connection.session, frame);
+                        if (!response.isDone()) {
+                            // A getWhen still waiting: its response is written once the condition holds
+                            response.thenAccept(ready -> execute(() -> write(connection, ready)));
+                        } else if (response.join() == null) {
+                            exit = true;
+                            break;
+                        } else {
+                            responses.add(response.join());
+                        }
+                    }
+                    boolean closing = exit;
+                    execute(() -> complete(connection, responses, closing));
+                });
+            } catch (RejectedExecutionException e) {
+                // Shutting down: the workers take no more requests
+                connection.busy = false;
+                connection.closing = true;
+            }
+        }
+
+        /**
+         * Queues the responses of the batch in flight and moves on to the next
+         * requests of the connection.
+         */
+        private void complete(Connection connection, List<Frame> responses, boolean exit) {
+            if (!connection.channel.isOpen()) {
+                return;
+            }
+            connection.busy = false;
+            connection.closing = exit;
+            try {
+                for (Frame response : responses) {
+                    connection.writer.add(response);
+                    connection.closing |= response.getStatus() == Frame.UNSUPPORTED_VERSION;
+                }
+                flush(connection);
+                dispatch(connection);
+            } catch (IOException e) {
+                System.out.println("\u001B[31m[ERROR]\u001B[0m Error handling client: " + e.getMessage());
+                close(connection);
+            }
+        }
+
+        /**
+         * Queues a response produced outside of a batch, such as a
+         * <code>getWhen</code> whose condition was met later, or a frame
+         * pushed by the server.
+         */
+        private void write(Connection connection, Frame response) {
+            if (!connection.channel.isOpen()) {
+                return;
+            }
+            try {
+                connection.writer.add(response);
+                flush(connection);
+            } catch (IOException e) {
+                System.out.println("\u001B[31m[ERROR]\u001B[0m Error handling client: " + e.getMessage());
+                close(connection);
+            }
+        }
+
+        /**
+         * Writes the queued responses of a connection with one gathering
+         * write, waiting for the socket to become writable if it cannot take
+         * them all.
+         */
+        private void flush(Connection connection) throws IOException {
+            if (!connection.writer.flush()) {
+                connection.key.interestOps(connection.key.interestOps() | SelectionKey.OP_WRITE);
+                return;
+            }
+            if (connection.key.isValid()) {
+                connection.key.interestOps(connection.key.interestOps() & ~SelectionKey.OP_WRITE);
+            }
+            if (connection.closing) {
+                close(connection);
+            }
+        }
+
+        private void close(Connection connection) {
+            if (!connection.channel.isOpen()) {
+                return;
+            }
+            connection.session.close();
+            server.getMetrics().sessionClosed();
+            connection.writer.close();
+            try {
+                connection.key.cancel();
+                connection.channel.close();
+            } catch (IOException e) {
+                System.out.println("\u001B[31m[ERROR]\u001B[0m " + e.getMessage());
+            }
+        }
+    }
+}
@@ -0,0 +1,345 @@
+package server;
+
+import java.nio.ByteBuffer;
+import java.util.AbstractMap;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The <code>OffHeapStorage</code> class is a {@link StorageEngine} that keeps
+ * the values outside the Java heap, so millions of small values do not turn
+ * into millions of objects for the garbage collector to trace and copy.
+ * <p>
+ * Values are copied into slots of direct {@link ByteBuffer} slabs. Slots come
+ * in power-of-two size classes, from {@value #MIN_SLOT} bytes up to the
+ * largest frame; each class carves its slots out of its own slabs and keeps a
+ * free list of the slots given back. A slot holds the value length followed
+ * by the value. The key map only holds a handle per key, packing the slab
+ * number and the offset of the slot in a <code>long</code>.
+ * </p>
+ * <p>
+ * Reads take no lock: the handle is published through the key map after the
+ * slot is written. Allocation takes the lock of the size class only. The slot
+ * of a removed key goes back to its free list at once, so a read racing with
+ * the removal may see the slot rewritten with another value of the same size
+ * class (see {@link #reusesRemovedValues()}). Direct memory is limited by
+ * <code>-XX:MaxDirectMemorySize</code>, which defaults to the maximum heap
+ * size.
+ * </p>
+ */
+public class OffHeapStorage implements StorageEngine {
+
+    /**
+     * Size of the smallest slot, in bytes.
+     */
+    public static final int MIN_SLOT = 16;
+
+    /**
+     * Size of the largest slot, in bytes, which fits the largest frame.
+     */
+    public static final int MAX_SLOT = 1 << 27;
+
+    /**
+     * Size of the slabs slots are carved from, unless a single slot is
+     * bigger.
+     */
+    private static final int SLAB_BYTES = 1 << 20;
+
+    private static final int MIN_SHIFT = Integer.numberOfTrailingZeros(MIN_SLOT);
+    private static final int MAX_SHIFT = Integer.numberOfTrailingZeros(MAX_SLOT);
+
+    /**
+     * Approximate heap cost of the index entry of a key besides the key: the
+     * map node, its table slot, the boxed handle and the key header.
+     */
+    private static final int INDEX_OVERHEAD = 96;
+
+    /**
+     * The handle of the slot of each key.
+     */
+    private final ConcurrentHashMap<String, Long> index = new ConcurrentHashMap<>();
+
+    private final SizeClass[] classes = new SizeClass[MAX_SHIFT - MIN_SHIFT + 1];
+
+    /**
+     * Guards the growth of {@link #slabs}.
+     */
+    private final ReentrantLock slabLock = new ReentrantLock();
+    private volatile Slab[] slabs = new Slab[64];
+    private int slabCount;
+
+    private final AtomicLong reservedBytes = new AtomicLong();
+    private final AtomicLong usedBytes = new AtomicLong();
+    private final AtomicLong indexBytes = new AtomicLong();
+
+    /**
+     * Constructs an empty engine. Slabs are allocated as values arrive.
+     */
+    public OffHeapStorage() {
+        for (int i = 0; i < classes.length; i++) {
+            classes[i] = new SizeClass(i);
+        }
+    }
+
+    @Override
+    public boolean putIfAbsent(String key, byte[] value) {
+        checkValue(value);
+        if (index.containsKey(key)) {
+            return false;
+        }
+        SizeClass sizeClass = classes[classOf(4 + value.length)];
+        long handle = sizeClass.allocate();
+        ByteBuffer slab = slabs[slabOf(handle)].buffer;
+        int offset = offsetOf(handle);
+        slab.putInt(offset, value.length);
+        slab.put(offset + 4, value);
+
+        if (index.putIfAbsent(key, handle) != null) {
+            // Lost the race for the key, the slot was never visible
+            sizeClass.free(handle);
+            return false;
+        }
+        indexBytes.addAndGet(2L * key.length() + INDEX_OVERHEAD);
+        return true;
+    }
+
+    @Override
+    public boolean remove(String key) {
+        Long handle = index.remove(key);
+        if (handle == null) {
+            return false;
+        }
+        indexBytes.addAndGet(-(2L * key.length() + INDEX_OVERHEAD));
+        slabs[slabOf(handle)].sizeClass.free(handle);
+        return true;
+    }
+
+    @Override
+    public void checkValue(byte[] value) {
+        if (value.length > MAX_SLOT - 4) {
+            throw new IllegalArgumentException("Value of " + value.length + " bytes is too large.");
+        }
+    }
+
+    @Override
+    public byte[] get(String key) {
+        Long handle = index.get(key);
+        return handle == null ? null : read(handle);
+    }
+
+    @Override
+    public int read(String key, int offset, ByteBuffer target) {
+        Long handle = index.get(key);
+        if (handle == null) {
+            return -1;
+        }
+        Slab slab = slabs[slabOf(handle)];
+        int slot = offsetOf(handle);
+        int length = slab.lengthAt(slot);
+        if (offset < length) {
+            // Straight from the slab into the target, no array of the value in between
+            int count = Math.min(target.remaining(), length - offset);
+            target.put(target.position(), slab.buffer, slot + 4 + offset, count);
+            target.position(target.position() + count);
+        }
+        return length;
+    }
+
+    @Override
+    public long size() {
+        return index.mappingCount();
+    }
+
+    /**
+     * Gets the slab memory of the stored values and an estimate of the heap
+     * taken by the index of their keys.
+     *
+     * @return The estimated number of bytes.
+     */
+    @Override
+    public long getMemoryBytes() {
+        return usedBytes.get() + indexBytes.get();
+    }
+
+    /**
+     * Slots of removed values are reused at once.
+     *
+     * @return true.
+     */
+    @Override
+    public boolean reusesRemovedValues() {
+        return true;
+    }
+
+    @Override
+    public Iterator<Map.Entry<String, byte[]>> iterator() {
+        Iterator<Map.Entry<String, Long>> handles = index.entrySet().iterator();
+        return new Iterator<>() {
+            @Override
+            public boolean hasNext() {
+                return handles.hasNext();
+            }
+
+            @Override
+            public Map.Entry<String, byte[]> next() {
+                Map.Entry<String, Long> entry = handles.next();
+                return new AbstractMap.SimpleImmutableEntry<>(entry.getKey(), read(entry.getValue()));
+            }
+        };
+    }
+
+    /**
+     * Gets the amount of direct memory taken by the slabs.
+     *
+     * @return The reserved bytes.
+     */
+    public long getReservedBytes() {
+        return reservedBytes.get();
+    }
+
+    /**
+     * Gets the amount of slab memory taken by the slots of stored values,
+     * including the unused end of each slot.
+     *
+     * @return The used bytes.
+     */
+    public long getUsedBytes() {
+        return usedBytes.get();
+    }
+
+    /**
+     * Drops every slab. The direct memory is given back to the operating
+     * system when the garbage collector reclaims the buffers.
+     */
+    @Override
+    public void close() {
+        index.clear();
+        slabLock.lock();
+        try {
+            slabs = new Slab[0];
+            slabCount = 0;
+        } finally {
+            slabLock.unlock();
+        }
+    }
+
+    private byte[] read(long handle) {
+        Slab slab = slabs[slabOf(handle)];
+        int offset = offsetOf(handle);
+        byte[] value = new byte[slab.lengthAt(offset)];
+        slab.buffer.get(offset + 4, value);
+        return value;
+    }
+
+    /**
+     * Gets the size class whose slots fit the given number of bytes.
+     */
+    private static int classOf(int bytes) {
+        int shift = 32 - Integer.numberOfLeadingZeros(Math.max(bytes, MIN_SLOT) - 1);
+        return shift - MIN_SHIFT;
+    }
+
+    private static int slabOf(long handle) {
+        return (int) (handle >>> 32);
+    }
+
+    private static int offsetOf(long handle) {
+        return (int) handle;
+    }
+
+    /**
+     * Allocates a slab and gives it a number.
+     */
+    private int addSlab(Slab slab) {
+        slabLock.lock();
+        try {
+            Slab[] current = slabs;
+            if (slabCount == current.length) {
+                current = Arrays.copyOf(current, current.length * 2);
+            }
+            current[slabCount] = slab;
+            slabs = current;
+            reservedBytes.addAndGet(slab.buffer.capacity());
+            return slabCount++;
+        } finally {
+            slabLock.unlock();
+        }
+    }
+
+    /**
+     * A direct buffer cut into slots of one size.
+     */
+    private static final class Slab {
+        private final ByteBuffer buffer;
+        private final SizeClass sizeClass;
+
+        private Slab(int capacity, SizeClass sizeClass) {
+            this.buffer = ByteBuffer.allocateDirect(capacity);
+            this.sizeClass = sizeClass;
+        }
+
+        /**
+         * Reads the length of the value in a slot. It is bounded by the slot
+         * size, so a slot rewritten during a racing read never makes the
+         * read overrun it.
+         */
+        private int lengthAt(int slot) {
+            return Math.max(0, Math.min(buffer.getInt(slot), sizeClass.slotSize - 4));
+        }
+    }
+
+    /**
+     * The slots of one size: the slab currently being carved and the slots
+     * that were given back.
+     */
+    private final class SizeClass {
+        private final int slotSize;
+        private final ReentrantLock lock = new ReentrantLock();
+        private int slab = -1;
+        private int next;
+        private int capacity;
+        private long[] free = new long[16];
+        private int freeCount;
+
+        private SizeClass(int index) {
+            this.slotSize = MIN_SLOT << index;
+        }
+
+        long allocate() {
+            lock.lock();
+            try {
+                usedBytes.addAndGet(slotSize);
+                if (freeCount > 0) {
+                    return free[--freeCount];
+                }
+                if (slab < 0 || next + slotSize > capacity) {
+                    capacity = Math.max(SLAB_BYTES, slotSize);
+                    slab = addSlab(new Slab(capacity, this));
+                    next = 0;
+                }
+                long handle = ((long) slab << 32) | next;
+                next += slotSize;
+                return handle;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        void free(long handle) {
+            lock.lock();
+            try {
+                usedBytes.addAndGet(-slotSize);
+                if (freeCount == free.length) {
+                    free = Arrays.copyOf(free, free.length * 2);
+                }
+                free[freeCount++] = handle;
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+}
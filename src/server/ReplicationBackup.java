@@ -0,0 +1,259 @@
+package server;
+
+import common.Frame;
+import common.PayloadWriter;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+/**
+ * The <code>ReplicationBackup</code> class keeps a backup server up to date
+ * with its primary (see {@link ReplicationPrimary}). It connects to the
+ * replication port of the primary, applies every change received and, once
+ * the changes are durable in the write-ahead log of the backup, acknowledges
+ * the last of them. If the connection is lost it reconnects every
+ * {@value #RETRY_MILLIS} ms and receives a fresh copy of the state.
+ * <p>
+ * The pairs the backup already holds are removed before each copy is
+ * applied: they may be stale, since the primary may have removed, expired or
+ * evicted keys, and stored some of them again with other values, while the
+ * backup was away. Until the copy is applied, reads on the backup may miss
+ * keys. Users are kept, since they are never removed.
+ * </p>
+ * <p>
+ * Before anything is sent, the backup answers the challenge of the primary
+ * with the replication secret they share, see
+ * {@link ReplicationPrimary#prove(String, byte[])}.
+ * </p>
+ * <p>
+ * Acknowledgements are sent whenever no more changes are waiting to be read,
+ * so a burst of changes shares one acknowledgement and, like the writers of
+ * the primary, one sync of the log. An acknowledgement is only sent once
+ * every change read since the previous one is durable.
+ * </p>
+ */
+public class ReplicationBackup implements AutoCloseable {
+
+    /**
+     * Milliseconds between attempts to reach the primary.
+     */
+    public static final int RETRY_MILLIS = 1000;
+
+    /**
+     * Room in a frame for the fields of a change besides the value: the
+     * sequence number, the time it was sent, and the record header and key.
+     */
+    private static final int RECORD_OVERHEAD = 1 << 17;
+
+    /**
+     * Largest frame accepted from the primary. A change carries a whole
+     * value, which may have been sent in chunks, so it can be far larger than
+     * a client frame, but never larger than a client frame plus the largest
+     * such value.
+     */
+    private static final int MAX_FRAME_LENGTH = Frame.MAX_LENGTH + (int) Upload.MAX_VALUE_LENGTH + RECORD_OVERHEAD;
+
+    /**
+     * Number of durability futures kept before the completed ones are
+     * dropped, while changes keep arriving without a pause.
+     */
+    private static final int PENDING_PRUNE = 1024;
+
+    /**
+     * Applies the changes received from the primary.
+     */
+    public interface Applier {
+        /**
+         * Removes every stored pair and logs the removals, before a fresh
+         * copy of the state of the primary is applied.
+         *
+         * @return A future completed once the removals are durable.
+         */
+        CompletableFuture<Void> clear();
+
+        /**
+         * Applies a change and appends it to the write-ahead log.
+         *
+         * @param record The write-ahead log record of the change.
+         * @return A future completed once the change is durable.
+         * @throws IOException If the record is malformed.
+         */
+        CompletableFuture<Void> apply(byte[] record) throws IOException;
+    }
+
+    private final String host;
+    private final int port;
+    private final String secret;
+    private final Applier applier;
+    private final Thread thread;
+
+    private volatile Socket socket;
+    private volatile boolean closed;
+    private volatile long applied;
+    private volatile long delayMillis;
+    private volatile long lastChangeAt;
+
+    /**
+     * Starts following a primary in the background.
+     *
+     * @param host    The host of the primary.
+     * @param port    The replication port of the primary.
+     * @param secret  The replication secret shared with the primary.
+     * @param applier Applies the changes received.
+     */
+    public ReplicationBackup(String host, int port, String secret, Applier applier) {
+        this.host = host;
+        this.port = port;
+        this.secret = secret;
+        this.applier = applier;
+        this.thread = new Thread(this::followLoop, "replication-backup");
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    /**
+     * Checks whether the backup is connected to the primary.
+     *
+     * @return true if connected.
+     */
+    public boolean isConnected() {
+        return socket != null;
+    }
+
+    /**
+     * Gets the sequence number of the last change applied since the backup
+     * last connected to the primary.
+     *
+     * @return The sequence number.
+     */
+    public long getAppliedSequence() {
+        return applied;
+    }
+
+    /**
+     * Gets how long the last change took to arrive from the primary. The
+     * primary and the backup clocks are compared, so skew between the hosts
+     * adds to it.
+     *
+     * @return The delay in milliseconds.
+     */
+    public long getDelayMillis() {
+        return delayMillis;
+    }
+
+    /**
+     * Describes the connection to the primary and how far behind it is.
+     *
+     * @return A line of text.
+     */
+    public String describe() {
+        if (!isConnected()) {
+            return "disconnected from " + host + ":" + port;
+        }
+        long idle = lastChangeAt == 0 ? 0 : (System.currentTimeMillis() - lastChangeAt) / 1000;
+        return "following " + host + ":" + port + ", applied change " + applied + ", " + delayMillis
+                + " ms behind, last change " + idle + " s ago";
+    }
+
+    /**
+     * Disconnects from the primary and stops following it.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        thread.interrupt();
+        Socket current = socket;
+        if (current != null) {
+            try {
+                current.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    private void followLoop() {
+        boolean reported = false;
+        while (!closed) {
+            try (Socket connection = new Socket(host, port)) {
+                connection.setTcpNoDelay(true);
+                socket = connection;
+                reported = false;
+                System.out.println("\u001B[32m[REPLICATION]\u001B[0m Following the primary at " + host + ":" + port);
+                follow(connection);
+            } catch (IOException | CompletionException e) {
+                if (!closed && !reported) {
+                    System.out.println("\u001B[33m[REPLICATION]\u001B[0m Primary " + host + ":" + port
+                            + " unavailable (" + (e.getMessage() != null ? e.getMessage() : "connection closed")
+                            + "), retrying.");
+                    reported = true;
+                }
+            } finally {
+                socket = null;
+            }
+            try {
+                Thread.sleep(RETRY_MILLIS);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    private void follow(Socket connection) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(connection.getInputStream(), 1 << 16));
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(connection.getOutputStream()));
+        new Frame(Frame.REPLICATE, 0, Frame.OK, new byte[0]).writeTo(out);
+        out.flush();
+        Frame challenge = Frame.readFrom(in);
+        if (challenge.getOpcode() != Frame.REPLICATE || challenge.getStatus() != Frame.OK) {
+            throw new IOException("Unexpected frame from the primary: " + challenge);
+        }
+        new Frame(Frame.REPLICATE, 0, Frame.OK, ReplicationPrimary.prove(secret, challenge.getPayload()))
+                .writeTo(out);
+        out.flush();
+
+        applied = 0;
+        long acknowledged = 0;
+        List<CompletableFuture<Void>> durable = new ArrayList<>();
+        durable.add(applier.clear());
+        while (!closed) {
+            Frame frame = Frame.readFrom(in, MAX_FRAME_LENGTH);
+            if (frame.getOpcode() == Frame.REPLICATE && frame.getStatus() == Frame.NOT_AUTHENTICATED) {
+                throw new IOException("the primary rejected the replication secret");
+            }
+            if (frame.getOpcode() != Frame.REPLICATE || frame.getStatus() != Frame.OK) {
+                throw new IOException("Unexpected frame from the primary: " + frame);
+            }
+            DataInputStream payload = frame.payloadStream();
+            long seq = payload.readLong();
+            long sentAt = payload.readLong();
+            durable.add(applier.apply(payload.readAllBytes()));
+            if (durable.size() >= PENDING_PRUNE) {
+                durable.removeIf(CompletableFuture::isDone);
+            }
+
+            lastChangeAt = System.currentTimeMillis();
+            delayMillis = Math.max(0, lastChangeAt - sentAt);
+            if (seq > 0) {
+                applied = seq;
+            }
+            if (in.available() == 0 && applied > acknowledged) {
+                // Every change read must be durable, not only the last one, whatever order they sync in
+                for (CompletableFuture<Void> change : durable) {
+                    change.join();
+                }
+                durable.clear();
+                new Frame(Frame.REPLICATE, 0, Frame.OK, new PayloadWriter().writeLong(applied).toByteArray())
+                        .writeTo(out);
+                out.flush();
+                acknowledged = applied;
+            }
+        }
+    }
+}
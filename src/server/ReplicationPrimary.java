@@ -0,0 +1,548 @@
+package server;
+
+import common.Frame;
+import common.PayloadWriter;
+import common.User;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * The <code>ReplicationPrimary</code> class streams the changes of a server
+ * to its backups (see {@link ReplicationBackup}). It listens on its own port;
+ * every backup that connects first receives the whole current state, as
+ * write-ahead log records, and then every change logged afterwards, in order.
+ * <p>
+ * A backup is registered before its copy of the state is taken, so the
+ * changes made during the copy are queued for it and none is missed. Some of
+ * them may also be in the copy. The backup applies them after it, strictly
+ * in order and removals included, so each key still ends as the last change
+ * left it: a put only succeeds on a missing key, so either it is the first
+ * change to its key since the backup registered, and the copy holds nothing
+ * or that very value, or the removal that made room for it comes before it
+ * and is applied first. The backup drops its own pairs before the copy is
+ * applied, so none left from before a reconnection survives. A backup that
+ * falls more than {@value #BACKLOG} changes behind is disconnected, and gets a
+ * fresh copy when it reconnects.
+ * </p>
+ * <p>
+ * A backup must first prove it knows the replication secret: the primary
+ * answers its opening frame with a random challenge, and only registers the
+ * backup once it sends back the HMAC-SHA256 of the challenge keyed with the
+ * secret (see {@link #prove(String, byte[])}). Any other peer is disconnected
+ * before it receives a single change or can hold up a write. The changes
+ * themselves are not encrypted, so the port should only be reachable from
+ * the backups, which binding it to a private interface ensures.
+ * </p>
+ * <p>
+ * With {@link Mode#SYNC}, {@link #replicate(byte[])} completes once every
+ * backup that has caught up has made the change durable, so an acknowledged
+ * write survives the loss of the primary. Backups still receiving their copy
+ * of the state are not waited for.
+ * </p>
+ */
+public class ReplicationPrimary implements AutoCloseable {
+
+    /**
+     * When a change counts as replicated.
+     */
+    public enum Mode {
+        /**
+         * At once; backups apply the change shortly after.
+         */
+        ASYNC,
+        /**
+         * Once every backup that has caught up acknowledges the change.
+         */
+        SYNC
+    }
+
+    /**
+     * Most changes queued for, or waiting for the acknowledgement of, a single
+     * backup.
+     */
+    public static final int BACKLOG = 1 << 16;
+
+    /**
+     * Approximate size of the records the state is copied in.
+     */
+    private static final int COPY_BATCH_BYTES = 1 << 20;
+
+    /**
+     * Length of the challenge a backup must answer.
+     */
+    private static final int CHALLENGE_LENGTH = 32;
+
+    /**
+     * Milliseconds a peer has to complete the handshake.
+     */
+    private static final int HANDSHAKE_MILLIS = 5000;
+
+    /**
+     * Largest frame accepted during the handshake.
+     */
+    private static final int HANDSHAKE_MAX_LENGTH = 1024;
+
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    private final ServerSocket serverSocket;
+    private final String secret;
+    private final Mode mode;
+    private final Map<String, User> users;
+    private final DataStorage dataStorage;
+    private final List<Link> links = new CopyOnWriteArrayList<>();
+
+    /**
+     * Orders the changes: sequence numbers are handed out and the changes
+     * queued under it, so every backup receives them in sequence order.
+     */
+    private final ReentrantLock publishLock = new ReentrantLock();
+    private long sequence;
+    private volatile boolean closed;
+
+    /**
+     * Starts listening for backups.
+     *
+     * @param port        The replication port.
+     * @param bind        The local address to bind the port to, or null for
+     *                    every interface.
+     * @param secret      The secret backups must prove they know.
+     * @param mode        When a change counts as replicated.
+     * @param users       The user database, copied to new backups.
+     * @param dataStorage The stored pairs, copied to new backups.
+     * @throws IOException If the port cannot be bound.
+     */
+    public ReplicationPrimary(int port, String bind, String secret, Mode mode, Map<String, User> users,
+            DataStorage dataStorage) throws IOException {
+        this.serverSocket = new ServerSocket(port, 50, bind != null ? InetAddress.getByName(bind) : null);
+        this.secret = secret;
+        this.mode = mode;
+        this.users = users;
+        this.dataStorage = dataStorage;
+
+        Thread acceptor = new Thread(this::acceptLoop, "replication-acceptor");
+        acceptor.setDaemon(true);
+        acceptor.start();
+        System.out.println("\u001B[32m[REPLICATION]\u001B[0m Accepting backups on "
+                + serverSocket.getLocalSocketAddress() + " (" + mode.name().toLowerCase() + ")");
+    }
+
+    /**
+     * Computes the answer of a backup to the challenge of its primary: the
+     * HMAC-SHA256 of the challenge, keyed with the replication secret.
+     *
+     * @param secret    The replication secret.
+     * @param challenge The challenge sent by the primary.
+     * @return The answer.
+     */
+    static byte[] prove(String secret, byte[] challenge) {
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(secret.getBytes(StandardCharsets.UTF_8), "HmacSHA256"));
+            return mac.doFinal(challenge);
+        } catch (GeneralSecurityException e) {
+            // Every Java platform supports HmacSHA256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Sends a change to every backup.
+     *
+     * @param record The write-ahead log record of the change.
+     * @return A future completed once the change counts as replicated,
+     *         according to the mode.
+     */
+    public CompletableFuture<Void> replicate(byte[] record) {
+        List<CompletableFuture<Void>> acks = new ArrayList<>();
+        publishLock.lock();
+        try {
+            long seq = ++sequence;
+            Change change = new Change(seq, record);
+            for (Link link : links) {
+                CompletableFuture<Void> ack = link.offer(change, mode == Mode.SYNC);
+                if (ack != null) {
+                    acks.add(ack);
+                }
+            }
+        } finally {
+            publishLock.unlock();
+        }
+        if (acks.isEmpty()) {
+            return CompletableFuture.completedFuture(null);
+        }
+        return CompletableFuture.allOf(acks.toArray(CompletableFuture[]::new));
+    }
+
+    /**
+     * Gets the number of connected backups.
+     *
+     * @return The number of backups.
+     */
+    public int getBackupCount() {
+        return links.size();
+    }
+
+    /**
+     * Gets how many changes the furthest behind backup has not acknowledged
+     * yet.
+     *
+     * @return The number of changes, 0 without backups.
+     */
+    public long getLagChanges() {
+        long lag = 0;
+        for (Link link : links) {
+            lag = Math.max(lag, link.getLagChanges());
+        }
+        return lag;
+    }
+
+    /**
+     * Gets the time the slowest backup last took to acknowledge a change,
+     * from the moment it was logged on the primary.
+     *
+     * @return The time in milliseconds, 0 without backups.
+     */
+    public long getLagMillis() {
+        long lag = 0;
+        for (Link link : links) {
+            lag = Math.max(lag, link.getLagMillis());
+        }
+        return lag;
+    }
+
+    /**
+     * Describes each connected backup and how far behind it is.
+     *
+     * @return One line per backup.
+     */
+    public List<String> describeBackups() {
+        List<String> lines = new ArrayList<>();
+        for (Link link : links) {
+            lines.add(link.describe());
+        }
+        return lines;
+    }
+
+    /**
+     * Stops accepting backups and disconnects the connected ones. Changes
+     * still waiting for their acknowledgement count as replicated.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        try {
+            serverSocket.close();
+        } catch (IOException ignored) {
+        }
+        for (Link link : links) {
+            link.close("the primary is shutting down");
+        }
+    }
+
+    private void acceptLoop() {
+        while (!closed) {
+            try {
+                Socket socket = serverSocket.accept();
+                socket.setTcpNoDelay(true);
+                Link link = new Link(socket);
+                Thread sender = new Thread(link::serve, "replication-" + socket.getRemoteSocketAddress());
+                sender.setDaemon(true);
+                sender.start();
+            } catch (SocketException e) {
+                if (!closed) {
+                    System.err.println("\u001B[31m[ERROR]\u001B[0m Replication port failed: " + e.getMessage());
+                }
+                return;
+            } catch (IOException e) {
+                System.err.println("\u001B[31m[ERROR]\u001B[0m Error accepting a backup: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * A change waiting to be sent to a backup.
+     */
+    private static final class Change {
+        final long seq;
+        final byte[] record;
+        final long loggedAt = System.nanoTime();
+
+        Change(long seq, byte[] record) {
+            this.seq = seq;
+            this.record = record;
+        }
+    }
+
+    /**
+     * The connection to one backup: a queue of changes drained by a sender
+     * thread, and the changes sent and not acknowledged yet.
+     */
+    private final class Link {
+        private final Socket socket;
+        private final String name;
+        private final BlockingQueue<Change> queue = new LinkedBlockingQueue<>(BACKLOG);
+
+        /**
+         * Changes sent and not acknowledged yet, by sequence number; the
+         * future is set for changes a writer waits for.
+         */
+        private final ConcurrentNavigableMap<Long, Change> unacknowledged = new ConcurrentSkipListMap<>();
+        private final ConcurrentNavigableMap<Long, CompletableFuture<Void>> waiting = new ConcurrentSkipListMap<>();
+
+        private volatile boolean caughtUp;
+        private volatile boolean closed;
+        private volatile long lastQueued;
+        private volatile long acknowledged;
+        private volatile long lagNanos;
+
+        Link(Socket socket) {
+            this.socket = socket;
+            this.name = socket.getRemoteSocketAddress().toString();
+        }
+
+        /**
+         * Queues a change, or disconnects the backup if it is too far behind.
+         *
+         * @return The future of its acknowledgement if the writer must wait
+         *         for it, or null.
+         */
+        CompletableFuture<Void> offer(Change change, boolean sync) {
+            if (closed) {
+                return null;
+            }
+            // Registered before the change is queued, so its acknowledgement cannot arrive first
+            CompletableFuture<Void> ack = sync && caughtUp ? new CompletableFuture<>() : null;
+            if (ack != null) {
+                waiting.put(change.seq, ack);
+            }
+            unacknowledged.put(change.seq, change);
+            if (unacknowledged.size() > BACKLOG || !queue.offer(change)) {
+                close("it fell more than " + BACKLOG + " changes behind");
+                return null;
+            }
+            lastQueued = change.seq;
+            if (ack != null && closed) {
+                // Closed meanwhile, so nobody would complete it
+                ack.complete(null);
+            }
+            return ack;
+        }
+
+        /**
+         * Runs on the sender thread: authenticates the backup, copies the
+         * state and then streams the queued changes, flushing whenever the
+         * queue is empty.
+         */
+        void serve() {
+            try {
+                DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+                DataOutputStream out = new DataOutputStream(
+                        new BufferedOutputStream(socket.getOutputStream(), 1 << 16));
+                if (!authenticate(in, out)) {
+                    socket.close();
+                    return;
+                }
+
+                publishLock.lock();
+                try {
+                    // From here on every change is queued for this backup
+                    links.add(this);
+                } finally {
+                    publishLock.unlock();
+                }
+                System.out.println("\u001B[32m[REPLICATION]\u001B[0m Backup " + name + " connected, copying state.");
+
+                Thread reader = new Thread(() -> readAcks(in), "replication-acks-" + name);
+                reader.setDaemon(true);
+                reader.start();
+
+                long copied = copyState(out);
+                caughtUp = true;
+                System.out.println("\u001B[32m[REPLICATION]\u001B[0m Copied " + copied
+                        + " records to backup " + name + ", streaming changes.");
+
+                while (!closed) {
+                    Change change = queue.poll(1, TimeUnit.SECONDS);
+                    if (change == null) {
+                        continue;
+                    }
+                    do {
+                        send(out, change.seq, change.record);
+                        change = queue.poll();
+                    } while (change != null);
+                    out.flush();
+                }
+            } catch (IOException e) {
+                close(e.getMessage() != null ? e.getMessage() : "connection closed");
+            } catch (InterruptedException e) {
+                close("interrupted");
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        /**
+         * Challenges the peer to prove it knows the replication secret,
+         * giving it {@value ReplicationPrimary#HANDSHAKE_MILLIS} ms to.
+         *
+         * @return Whether the peer is a backup that knows the secret.
+         */
+        private boolean authenticate(DataInputStream in, DataOutputStream out) throws IOException {
+            socket.setSoTimeout(HANDSHAKE_MILLIS);
+            Frame hello = Frame.readFrom(in, HANDSHAKE_MAX_LENGTH);
+            if (hello.getOpcode() != Frame.REPLICATE) {
+                hello.reply(Frame.BAD_REQUEST).writeTo(out);
+                out.flush();
+                return false;
+            }
+            byte[] challenge = new byte[CHALLENGE_LENGTH];
+            RANDOM.nextBytes(challenge);
+            hello.reply(Frame.OK, challenge).writeTo(out);
+            out.flush();
+
+            Frame proof = Frame.readFrom(in, HANDSHAKE_MAX_LENGTH);
+            if (proof.getOpcode() != Frame.REPLICATE
+                    || !MessageDigest.isEqual(proof.getPayload(), prove(secret, challenge))) {
+                proof.reply(Frame.NOT_AUTHENTICATED).writeTo(out);
+                out.flush();
+                System.out.println("\u001B[33m[REPLICATION]\u001B[0m Rejected " + name
+                        + ": wrong replication secret.");
+                return false;
+            }
+            socket.setSoTimeout(0);
+            return true;
+        }
+
+        /**
+         * Sends the current users and pairs, in records of about
+         * {@value ReplicationPrimary#COPY_BATCH_BYTES} bytes. Pairs that
+         * expire are sent one by one, with their deadline.
+         *
+         * @return The number of records sent.
+         */
+        private long copyState(DataOutputStream out) throws IOException {
+            long records = 0;
+            for (User user : users.values()) {
+                send(out, 0, WriteAheadLog.registerRecord(user.getUsername(), user.getPassword()));
+                records++;
+            }
+            Map<String, byte[]> batch = new LinkedHashMap<>();
+            long bytes = 0;
+            for (Map.Entry<String, byte[]> pair : dataStorage.entries()) {
+                long deadline = dataStorage.getDeadline(pair.getKey());
+                if (deadline > 0) {
+                    send(out, 0, WriteAheadLog.putExpiringRecord(pair.getKey(), pair.getValue(), deadline));
+                    records++;
+                    continue;
+                }
+                batch.put(pair.getKey(), pair.getValue());
+                bytes += pair.getKey().length() + pair.getValue().length;
+                if (bytes >= COPY_BATCH_BYTES) {
+                    send(out, 0, WriteAheadLog.multiPutRecord(batch));
+                    records++;
+                    batch.clear();
+                    bytes = 0;
+                }
+            }
+            if (!batch.isEmpty()) {
+                send(out, 0, WriteAheadLog.multiPutRecord(batch));
+                records++;
+            }
+            out.flush();
+            return records;
+        }
+
+        private void send(DataOutputStream out, long seq, byte[] record) throws IOException {
+            byte[] payload = new PayloadWriter().writeLong(seq).writeLong(System.currentTimeMillis())
+                    .writeBytes(record).toByteArray();
+            new Frame(Frame.REPLICATE, 0, Frame.OK, payload).writeTo(out);
+        }
+
+        /**
+         * Runs on the reader thread: applies the acknowledgements of the
+         * backup, completing the writers that wait for them.
+         */
+        private void readAcks(DataInputStream in) {
+            try {
+                while (!closed) {
+                    long seq = Frame.readFrom(in).payloadStream().readLong();
+                    ConcurrentNavigableMap<Long, Change> done = unacknowledged.headMap(seq, true);
+                    if (!done.isEmpty()) {
+                        lagNanos = System.nanoTime() - done.lastEntry().getValue().loggedAt;
+                    }
+                    done.clear();
+                    ConcurrentNavigableMap<Long, CompletableFuture<Void>> released = waiting.headMap(seq, true);
+                    released.values().forEach(ack -> ack.complete(null));
+                    released.clear();
+                    acknowledged = Math.max(acknowledged, seq);
+                }
+            } catch (IOException e) {
+                close(e.getMessage() != null ? e.getMessage() : "connection closed");
+            }
+        }
+
+        long getLagChanges() {
+            return unacknowledged.size();
+        }
+
+        long getLagMillis() {
+            if (!unacknowledged.isEmpty()) {
+                // Still waiting: the oldest change counts as late as it is now
+                Map.Entry<Long, Change> oldest = unacknowledged.firstEntry();
+                if (oldest != null) {
+                    return Math.max(lagNanos, System.nanoTime() - oldest.getValue().loggedAt) / 1_000_000;
+                }
+            }
+            return lagNanos / 1_000_000;
+        }
+
+        String describe() {
+            return name + (caughtUp ? "" : " (copying state)") + ": acknowledged " + acknowledged + "/"
+                    + lastQueued + ", " + getLagChanges() + " changes and " + getLagMillis() + " ms behind";
+        }
+
+        /**
+         * Disconnects the backup. The writers waiting for it are released,
+         * since the change is durable on the primary either way.
+         */
+        void close(String reason) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            links.remove(this);
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+            }
+            waiting.values().forEach(ack -> ack.complete(null));
+            waiting.clear();
+            queue.clear();
+            System.out.println("\u001B[33m[REPLICATION]\u001B[0m Backup " + name + " disconnected: " + reason);
+        }
+    }
+}
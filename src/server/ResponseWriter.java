@@ -0,0 +1,181 @@
+package server;
+
+import common.Frame;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.SelectableChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+
+/**
+ * The <code>ResponseWriter</code> class assembles the response frames of one
+ * connection in buffers taken from a {@link BufferPool} and sends everything
+ * queued with a single gathering write, so several pipelined responses share
+ * one system call instead of costing one or more each.
+ * <p>
+ * It works on blocking channels, in thread-per-connection mode, and on
+ * non-blocking ones, for the {@link NioServer}. A blocking channel is written
+ * as the buffers fill up, so a large response is never held whole; on a
+ * non-blocking one, {@link #flush()} writes what the socket takes and keeps
+ * the rest for the next call.
+ * </p>
+ * <p>
+ * Not safe for use by several threads at once.
+ * </p>
+ */
+public class ResponseWriter {
+
+    /**
+     * Most buffers passed to one gathering write.
+     */
+    private static final int MAX_GATHER = 16;
+
+    private final GatheringByteChannel channel;
+    private final BufferPool pool;
+    private final boolean blocking;
+
+    /**
+     * Buffers filled and waiting to be written, ready for reading.
+     */
+    private final ArrayDeque<ByteBuffer> pending = new ArrayDeque<>();
+    private final ByteBuffer[] gather = new ByteBuffer[MAX_GATHER];
+
+    /**
+     * The buffer being filled, or null.
+     */
+    private ByteBuffer current;
+    private long pendingBytes;
+    private long writes;
+
+    /**
+     * Constructs a writer for a connection.
+     *
+     * @param channel The channel of the connection.
+     * @param pool    The pool the buffers are taken from.
+     */
+    public ResponseWriter(GatheringByteChannel channel, BufferPool pool) {
+        this.channel = channel;
+        this.pool = pool;
+        this.blocking = !(channel instanceof SelectableChannel selectable) || selectable.isBlocking();
+    }
+
+    /**
+     * Queues a response frame, copying it into the buffers. Nothing is sent
+     * until {@link #flush()}, unless the channel is blocking and the frame
+     * fills more than {@value #MAX_GATHER} buffers.
+     *
+     * @param response The response frame.
+     * @throws IOException If the channel is blocking and fails.
+     */
+    public void add(Frame response) throws IOException {
+        if (current == null || current.remaining() < 4 + Frame.HEADER_LENGTH) {
+            nextBuffer();
+        }
+        response.encodeHeader(current);
+        byte[] payload = response.getPayload();
+        int offset = 0;
+        while (offset < payload.length) {
+            if (!current.hasRemaining()) {
+                nextBuffer();
+            }
+            int count = Math.min(current.remaining(), payload.length - offset);
+            current.put(payload, offset, count);
+            offset += count;
+        }
+        pendingBytes += 4 + Frame.HEADER_LENGTH + payload.length;
+    }
+
+    /**
+     * Writes the queued responses, gathering the buffers into as few system
+     * calls as possible.
+     *
+     * @return true if everything was written, false if a non-blocking channel
+     *         could not take it all; the rest is written by the next call.
+     * @throws IOException If the channel fails.
+     */
+    public boolean flush() throws IOException {
+        if (current != null && current.position() > 0) {
+            pending.add(current.flip());
+            current = null;
+        }
+        while (!pending.isEmpty()) {
+            int count = 0;
+            for (ByteBuffer buffer : pending) {
+                gather[count++] = buffer;
+                if (count == MAX_GATHER) {
+                    break;
+                }
+            }
+            long written = channel.write(gather, 0, count);
+            Arrays.fill(gather, 0, count, null);
+            writes++;
+            pendingBytes -= written;
+            while (!pending.isEmpty() && !pending.peek().hasRemaining()) {
+                pool.release(pending.poll());
+            }
+            if (written == 0 && !pending.isEmpty()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Gets the number of bytes queued and not written yet.
+     *
+     * @return The number of bytes.
+     */
+    public long getPendingBytes() {
+        return pendingBytes;
+    }
+
+    /**
+     * Checks whether every queued response has been written.
+     *
+     * @return true if nothing is waiting to be written.
+     */
+    public boolean isEmpty() {
+        return pendingBytes == 0;
+    }
+
+    /**
+     * Gets the number of writes made to the channel, for statistics.
+     *
+     * @return The number of writes.
+     */
+    public long getWrites() {
+        return writes;
+    }
+
+    /**
+     * Drops whatever was not written and gives the buffers back to the pool,
+     * once the connection is closed.
+     */
+    public void close() {
+        if (current != null) {
+            pool.release(current);
+            current = null;
+        }
+        while (!pending.isEmpty()) {
+            pool.release(pending.poll());
+        }
+        pendingBytes = 0;
+    }
+
+    /**
+     * Moves the buffer being filled to the pending ones and takes a fresh
+     * one. A blocking channel is written as soon as enough buffers are
+     * pending for a full gathering write.
+     */
+    private void nextBuffer() throws IOException {
+        if (current != null) {
+            pending.add(current.flip());
+        }
+        current = null;
+        if (blocking && pending.size() >= MAX_GATHER) {
+            flush();
+        }
+        current = pool.acquire();
+    }
+}
@@ -1,22 +1,39 @@
 package server;
 
 import common.AuthRequest;
+import common.Codec;
+import common.Frame;
+import common.PayloadWriter;
+import common.ServerStats;
+import common.Transaction;
 import common.User;
 import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Method;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.*;
-import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
 
 /**
  * The <code>Server</code> class is responsible for handling client connections,
- * authentication, and data storage. It uses a semaphore to control the number
- * of concurrent connections and a thread pool to handle client requests.
+ * authentication, and data storage. It uses a thread pool to handle client
+ * connections, or, in <code>nio</code> mode, a {@link NioServer} selector
+ * front-end, and an {@link Admission} control to bound the number of
+ * requests processed at once.
  */
 public class Server implements Serializable {
 
@@ -26,9 +43,21 @@ public class Server implements Serializable {
     private static final int PORT = 12345;
 
     /**
-     * Semaphore to limit the number of concurrent client connections.
+     * Bounds the number of requests processed at once, across every session.
      */
-    private static Semaphore semaforo;
+    private final Admission admission;
+
+    /**
+     * Bounds the memory held by the values being sent in chunks, across every
+     * session.
+     */
+    private final UploadBudget uploadBudget;
+
+    /**
+     * The latencies of each operation and the traffic of every session,
+     * answered to {@link Frame#STATS} requests.
+     */
+    private final Metrics metrics = new Metrics();
 
     /**
      * The map that stores user information, with the username as the key.
@@ -36,62 +65,185 @@ public class Server implements Serializable {
     private final ConcurrentHashMap<String, User> userDatabase = new ConcurrentHashMap<>();
 
     /**
-     * The map that stores data associated with keys, using a String key and
-     * byte array value.
+     * The storage of data associated with keys, using a String key and byte
+     * array value.
+     */
+    private final DataStorage dataStorage;
+
+    /**
+     * The codec stored values are compressed with and offered to clients,
+     * {@link Codec#RAW} if compression is disabled.
+     */
+    private final byte compression;
+
+    /**
+     * The sessions to tell when keys they read as missing are stored.
+     */
+    private final Invalidations invalidations = new Invalidations();
+
+    /**
+     * Most free buffers kept for reuse by the response writers.
+     */
+    private static final int FREE_RESPONSE_BUFFERS = 64;
+
+    /**
+     * Responses queued in thread-per-connection mode are sent once this many
+     * bytes are waiting, even if more requests are.
+     */
+    private static final int RESPONSE_FLUSH_BYTES = BufferPool.BUFFER_SIZE;
+
+    /**
+     * The buffers responses are assembled in, shared by every connection.
+     */
+    private final BufferPool responseBuffers = new BufferPool(FREE_RESPONSE_BUFFERS);
+
+    /**
+     * The active client connections, added and removed by their session
+     * threads.
+     */
+    private final Set<Socket> clientConnections = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Thread pool to handle client requests concurrently. With
+     * <code>--threads=virtual</code> every session gets its own virtual thread.
+     */
+    private final ExecutorService threadPool;
+
+    /**
+     * The startup configuration of the server.
+     */
+    private final ServerConfig config;
+
+    /**
+     * The selector front-end, when the server runs in <code>nio</code> mode.
+     */
+    private NioServer nioServer;
+
+    /**
+     * The directory the state is kept in, <code>Data</code> unless configured
+     * otherwise. The file names below are relative to it.
+     */
+    private final Path dataDir;
+
+    /**
+     * File name of the binary snapshot of the user database and data storage
+     * (see {@link Snapshot}).
+     */
+    private static final String SNAPSHOT_FILE = "state.snap";
+
+    /**
+     * Directory of the segment files of the LSM storage engine.
+     */
+    private static final String LSM_DIR = "lsm";
+
+    /**
+     * File names of the serialized state written by earlier versions, still
+     * loaded when there is no snapshot yet.
+     */
+    private static final String USER_DB_FILE = "userDatabase.obj";
+    private static final String DATA_STORAGE_FILE = "dataStorage.obj";
+
+    /**
+     * File name of the write-ahead log of changes since the state was saved.
+     */
+    private static final String WAL_FILE = "wal.log";
+
+    /**
+     * File name of the log segment a snapshot in progress covers. It is
+     * deleted once the snapshot is saved, so it only survives a crash in the
+     * middle of a snapshot.
+     */
+    private static final String WAL_SEGMENT_FILE = "wal.old";
+
+    /**
+     * Serializes the snapshots taken in the background and at shutdown.
+     */
+    private final ReentrantLock snapshotLock = new ReentrantLock();
+
+    /**
+     * Takes snapshots in the background, or null if they are disabled.
      */
-    private final ConcurrentHashMap<String, byte[]> dataStorage = new ConcurrentHashMap<>();
+    private ScheduledExecutorService snapshotter;
 
     /**
-     * List to keep track of active client connections.
+     * The write-ahead log every change is appended to before it is
+     * acknowledged.
      */
-    private final List<Socket> clientConnections = new ArrayList<>();
+    private WriteAheadLog wal;
 
     /**
-     * Thread pool to handle client requests concurrently.
+     * Streams the changes to the backups, or null if the server accepts none.
      */
-    private final ExecutorService threadPool = Executors.newCachedThreadPool();
+    private ReplicationPrimary replicationPrimary;
 
-    private final Lock lock = new ReentrantLock();
-    private final Condition condition = lock.newCondition();
+    /**
+     * Follows the primary, or null if the server is not a backup.
+     */
+    private ReplicationBackup replicationBackup;
+
+    /**
+     * Seconds between reports of the replication lag.
+     */
+    private static final int REPLICATION_REPORT_SECONDS = 10;
 
     /**
-     * File paths for storing the user database and data storage.
+     * Reports the replication lag, or null without replication.
      */
-    private static final String USER_DB_FILE = "Data/userDatabase.obj";
-    private static final String DATA_STORAGE_FILE = "Data/dataStorage.obj";
+    private ScheduledExecutorService replicationMonitor;
 
     /**
      * Flag to control the server's running state.
      */
-    private boolean running = true;
+    private volatile boolean running = true;
+
+    /**
+     * The channel connections are accepted on in thread-per-connection mode,
+     * closed to stop accepting them.
+     */
+    private volatile ServerSocketChannel acceptor;
 
     /**
-     * The main method that initializes the server, sets up the semaphore, and
-     * starts listening for client connections. It also adds a shutdown hook to
+     * The main method that initializes the server and starts listening for client connections. It also adds a shutdown hook to
      * gracefully close connections and save the server state when the server is
      * stopped.
      *
      * @param args Command-line arguments. The first argument should be the
-     *             number of semaphore permits.
+     *             most requests processed at once, followed by optional
+     *             <code>--name=value</code> options (see {@link ServerConfig}).
      */
     public static void main(String[] args) {
-        if (args.length < 1) {
-            System.err.println(
-                    "\u001B[31m[ERROR]\u001B[0m É necessário fornecer o número de permissões do semáforo como argumento.");
+        ServerConfig config = null;
+        try {
+            config = ServerConfig.parse(args);
+        } catch (IllegalArgumentException e) {
+            System.err.println("\u001B[31m[ERROR]\u001B[0m " + e.getMessage());
             System.exit(1);
         }
 
+        Server server;
         try {
-            int permits = Integer.parseInt(args[0]);
-            semaforo = new Semaphore(permits);
-        } catch (NumberFormatException e) {
-            System.err.println("\u001B[31m[ERROR]\u001B[0m O argumento deve ser um número inteiro.");
+            server = new Server(config);
+        } catch (UncheckedIOException e) {
+            System.err.println("\u001B[31m[ERROR]\u001B[0m " + e.getMessage());
             System.exit(1);
+            return;
         }
 
-        Server server = new Server();
-
         server.loadState();
+        try {
+            server.openLog();
+        } catch (IOException e) {
+            System.err.println("\u001B[31m[ERROR]\u001B[0m Error opening the write-ahead log: " + e.getMessage());
+            System.exit(1);
+        }
+        server.scheduleSnapshots();
+        try {
+            server.startReplication();
+        } catch (IOException e) {
+            System.err.println("\u001B[31m[ERROR]\u001B[0m Error opening the replication port: " + e.getMessage());
+            System.exit(1);
+        }
+        server.startExpiry();
 
         // Add shutdown hook to save state and close connections gracefully
         Runtime.getRuntime().addShutdownHook(new Thread(() -> {
@@ -103,35 +255,120 @@ public class Server implements Serializable {
     }
 
     /**
-     * Starts the server, listening for client connections and spawning a new
-     * thread for each connection. Each thread will handle a client request
-     * while the semaphore ensures that only a specified number of clients are
-     * processed concurrently.
+     * Constructs a server with the given startup configuration.
+     *
+     * @param config The startup configuration.
+     */
+    public Server(ServerConfig config) {
+        this.config = config;
+        this.threadPool = newExecutor(config, Executors::newCachedThreadPool);
+        this.dataDir = Paths.get(config.getDataDir());
+        this.dataStorage = new DataStorage(newStorageEngine(config));
+        this.compression = config.getCompression() == ServerConfig.Compression.DEFLATE ? Codec.DEFLATE : Codec.RAW;
+        this.dataStorage.setListener(invalidations::invalidate);
+        this.admission = new Admission(config.getPermits(), config.getQueue(),
+                config.getLimit() == ServerConfig.Limit.ADAPTIVE);
+        this.uploadBudget = new UploadBudget(config.getUploadMb() * 1024L * 1024);
+    }
+
+    /**
+     * Creates the storage engine the stored pairs are kept in, according to
+     * the configuration.
+     *
+     * @param config The startup configuration.
+     * @return The storage engine.
+     * @throws UncheckedIOException If the files of a persistent engine cannot
+     *                              be opened.
+     */
+    static StorageEngine newStorageEngine(ServerConfig config) {
+        return switch (config.getStorage()) {
+            case HEAP -> new HeapStorage();
+            case OFFHEAP -> new OffHeapStorage();
+            case LSM -> {
+                try {
+                    yield new LsmStorage(Paths.get(config.getDataDir(), LSM_DIR),
+                            config.getMemtableMb() * 1024L * 1024L);
+                } catch (IOException e) {
+                    throw new UncheckedIOException("Error opening the LSM storage: " + e.getMessage(), e);
+                }
+            }
+        };
+    }
+
+    /**
+     * Creates the executor that runs client sessions or requests, according to
+     * the configured thread kind. Virtual threads are looked up reflectively so
+     * the server still builds and runs on runtimes older than Java 21, in which
+     * case the platform executor is used instead.
+     * <p>
+     * A session only blocks on socket I/O and, in <code>getWhen</code>, on a
+     * future of the {@link DataStorage} waiter registry, never inside a
+     * <code>synchronized</code> block, so a parked virtual thread unmounts
+     * from its carrier instead of pinning it.
+     *
+     * @param config   The startup configuration.
+     * @param platform Creates the executor used for platform threads.
+     * @return The executor.
+     */
+    static ExecutorService newExecutor(ServerConfig config, Supplier<ExecutorService> platform) {
+        if (config.getThreads() == ServerConfig.Threads.VIRTUAL) {
+            try {
+                Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+                return (ExecutorService) factory.invoke(null);
+            } catch (ReflectiveOperationException e) {
+                System.out.println(
+                        "\u001B[33m[WARNING]\u001B[0m Virtual threads require Java 21+, using platform threads.");
+            }
+        }
+        return platform.get();
+    }
+
+    /**
+     * Gets the port number the server listens on unless another one is
+     * configured.
+     *
+     * @return The default port number.
+     */
+    public static int getPort() {
+        return PORT;
+    }
+
+    /**
+     * Starts the server. In <code>threads</code> mode it listens for client
+     * connections and spawns a new thread for each connection. In
+     * <code>nio</code> mode the connections are handed to a
+     * {@link NioServer}. Either way, every session is served from the moment
+     * it connects; only its requests wait for admission.
      */
     public void start() {
-        try (ServerSocket serverSocket = new ServerSocket(PORT)) {
-            System.out.println("\u001B[32m[SERVER]\u001B[0m Server is running on port " + PORT);
+        if (config.getMode() == ServerConfig.Mode.NIO) {
+            nioServer = new NioServer(this, config);
+            nioServer.run();
+            return;
+        }
+
+        try (ServerSocketChannel serverChannel = ServerSocketChannel.open()) {
+            acceptor = serverChannel;
+            serverChannel.bind(new InetSocketAddress(config.getPort()));
+            System.out.println("\u001B[32m[SERVER]\u001B[0m Server is running on port " + config.getPort());
 
             while (running) {
                 try {
                     // Accept a new client connection
-                    Socket clientSocket = serverSocket.accept();
+                    SocketChannel clientChannel = serverChannel.accept();
+                    clientChannel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                    Socket clientSocket = clientChannel.socket();
                     clientConnections.add(clientSocket);
 
                     // Submit a new task to handle the client in a separate thread
                     threadPool.submit(() -> {
                         try {
-                            semaforo.acquire(); // Acquire semaphore permit for client
-                            handleClient(clientSocket);
-                        } catch (InterruptedException ie) {
-                            System.out.println("\u001B[31m[ERROR]\u001B[0m Erro no semáforo: " + ie.getMessage());
-                            Thread.currentThread().interrupt(); // Re-interrupt the thread
+                            handleClient(clientChannel);
                         } finally {
-                            semaforo.release(); // Release the semaphore permit
                             clientConnections.remove(clientSocket); // Remove the client connection
                         }
                     });
-                } catch (SocketException e) {
+                } catch (IOException e) {
                     if (running) {
                         System.out.println("\u001B[31m[ERROR]\u001B[0m Erro no servidor: " + e.getMessage());
                     }
@@ -143,266 +380,972 @@ public class Server implements Serializable {
     }
 
     /**
-     * Handles a client connection by reading authentication requests,
-     * processing data storage operations, and responding with the appropriate
-     * messages based on the task.
+     * Handles a client connection by reading request frames, processing
+     * authentication and data storage operations, and responding with the
+     * appropriate frames.
+     * <p>
+     * Requests are processed in the order they arrive, without waiting for the
+     * client between them, so a client may pipeline several requests. A
+     * <code>getWhen</code> whose condition does not hold yet does not hold up
+     * the requests behind it: its response is written whenever the condition
+     * is met, which is why writes to the socket go through a lock.
+     * </p>
+     * <p>
+     * Responses go through a {@link ResponseWriter}. While more pipelined
+     * requests are already waiting to be read, their responses are only
+     * queued; they are all sent with one write once the input runs dry.
+     * </p>
      *
-     * @param clientSocket The socket representing the client connection.
-     */
-    private void handleClient(Socket clientSocket) {
-        try (
-                DataInputStream in = new DataInputStream(clientSocket.getInputStream());
-                DataOutputStream out = new DataOutputStream(clientSocket.getOutputStream())) {
-
-            User user = new User();
-            int flag = 0;
-            while (flag == 0) {
-                // Read the length of the incoming request and the request data itself
-                int length = in.readInt();
-                byte[] requestBytes = new byte[length];
-                in.read(requestBytes);
-
-                // Deserialize the request data into an AuthRequest object
-                AuthRequest authRequest = new AuthRequest();
-                authRequest.readRequestBytes(requestBytes);
-                user = new User(authRequest.getUsername(), authRequest.getPassword());
-
-                // Authenticate the user based on the request type (REGISTER or LOGIN)
-                int requestType = authRequest.getType();
-                int success;
-                switch (requestType) {
-                    case AuthRequest.REGISTER -> {
-                        // Handle user registration
-                        try {
-                            lock.lock();
-                            success = user.registerAuth(userDatabase);
-                        } finally {
-                            lock.unlock();
-                        }
-                        if (success == 1) {
-                            System.out.println(
-                                    "\u001B[32m[AUTH]\u001B[0m User added with Username: " + user.getUsername());
-                            out.writeInt(1);
-                            out.writeUTF("User registered successfully!");
-                            out.flush();
-                            System.out.println("\u001B[36m[INFO]\u001B[0m Sent notification to client");
-                            System.out.println();
-                            flag = 1;
-                        } else {
-                            out.writeInt(0);
-                            out.writeUTF("There is already a user with such credentials.");
-                            out.flush();
-                            System.out.println("\u001B[36m[INFO]\u001B[0m Sent notification to client");
-                            System.out.println();
-                        }
-                    }
-                    case AuthRequest.LOGIN -> {
-                        // Handle user login
-                        try {
-                            lock.lock();
-                            success = user.loginAuth(userDatabase);
-                        } finally {
-                            lock.unlock();
-                        }
-                        if (success == 1) {
-                            out.writeInt(1);
-                            out.writeUTF("User logged in successfully!");
-                            out.flush();
-                            System.out.println("\u001B[36m[INFO]\u001B[0m Sent notification to client");
-                            System.out.println();
-                            flag = 1;
-                        } else if (success == -1) {
-                            out.writeInt(0);
-                            out.writeUTF("Password is invalid!");
-                            out.flush();
-                            System.out.println("\u001B[36m[INFO]\u001B[0m Sent notification to client");
-                            System.out.println();
-                        } else {
-                            out.writeInt(0);
-                            out.writeUTF("There is no user with such credentials.");
-                            out.flush();
-                            System.out.println("\u001B[36m[INFO]\u001B[0m Sent notification to client");
-                            System.out.println();
-                        }
-                    }
+     * @param clientChannel The channel of the client connection.
+     */
+    private void handleClient(SocketChannel clientChannel) {
+        Session session = new Session();
+        metrics.sessionOpened();
+        Socket clientSocket = clientChannel.socket();
+        ResponseWriter writer = new ResponseWriter(clientChannel, responseBuffers);
+        Lock writeLock = new ReentrantLock();
+        // Pushed frames are written by the executor, never by the thread of the write that caused them
+        session.setPusher(frame -> {
+            try {
+                threadPool.execute(() -> respond(frame, writer, writeLock, clientSocket, true));
+            } catch (RejectedExecutionException e) {
+                // Shutting down
+            }
+        });
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(clientSocket.getInputStream()))) {
+            while (true) {
+                if (in.available() == 0) {
+                    // Nothing else pipelined: send the queued responses before blocking on the read
+                    flush(writer, writeLock);
+                }
+                CompletableFuture<Frame> response = process(session, Frame.readFrom(in));
+                if (!response.isDone()) {
+                    response.thenAccept(frame -> respond(frame, writer, writeLock, clientSocket, true));
+                } else if (response.join() == null) {
+                    break;
+                } else {
+                    respond(response.join(), writer, writeLock, clientSocket, false);
                 }
             }
+            flush(writer, writeLock);
+            closeConnection(in, clientSocket);
+        } catch (IOException e) {
+            System.out.println("\u001B[31m[ERROR]\u001B[0m Error handling client: " + e.getMessage());
+        } finally {
+            session.close();
+            metrics.sessionClosed();
+            writeLock.lock();
+            try {
+                writer.close();
+            } finally {
+                writeLock.unlock();
+            }
+        }
+    }
 
-            // Continue to process data storage tasks (put, get, multiPut, multiGet)
-            while (true) {
-                String taskType = in.readUTF();
-                switch (taskType) {
-                    case "put" -> {
-                        String key = in.readUTF();
-                        int length = in.readInt();
-                        byte[] value = new byte[length];
-                        in.read(value);
-
-                        lock.lock();
-                        try {
-                            if (!dataStorage.containsKey(key)) {
-                                dataStorage.put(key, value);
-                            } else {
-                                System.out
-                                        .println("\u001B[33m[WARNING]\u001B[0m There is already a key with that value\n");
-                                out.writeUTF("There is already a key with that name!\n");
-                                break;
-                            }
-                        } finally {
-                            condition.signalAll();
-                            lock.unlock();
-                        }
-                        System.out.println(
-                                "\u001B[32m[DATA]\u001B[0m Info successfully stored -> Key: " + key + " | Value: "
-                                        + new String(value));
-                        out.writeUTF("Info successfully stored!");
-                        out.flush();
-                    }
-                    case "multiPut" -> {
-                        int N = in.readInt();
-
-                        for (int i = 0; i < N; i++) {
-                            String key = in.readUTF();
-                            int length = in.readInt();
-                            byte[] value = new byte[length];
-                            in.read(value);
-
-                            System.out.println(
-                                    "\u001B[32m[DATA]\u001B[0m Info successfully stored -> Key: " + key + " | Value: "
-                                            + new String(value)
-                                            + "\n");
-                            lock.lock();
-                            try {
-                                if (!dataStorage.containsKey(key)) {
-                                    dataStorage.put(key, value);
-                                } else {
-                                    System.out.println(
-                                            "\u001B[33m[WARNING]\u001B[0m There is already a key with that name, notifiyng client\n");
-                                    out.writeUTF("There is already a key with that name!\n");
-                                }
-                            } finally {
-                                condition.signalAll();
-                                lock.unlock();
-                            }
-                        }
+    /**
+     * Queues a response frame to a client in thread-per-connection mode.
+     *
+     * @param response  The response frame.
+     * @param writer    The writer of the client.
+     * @param writeLock The lock that serializes writes to the client.
+     * @param socket    The socket of the client, closed if the response
+     *                  rejects its protocol version.
+     * @param flush     Whether to send it at once; otherwise it is sent with
+     *                  the responses that follow, or once
+     *                  {@value #RESPONSE_FLUSH_BYTES} bytes are queued.
+     */
+    private void respond(Frame response, ResponseWriter writer, Lock writeLock, Socket socket, boolean flush) {
+        writeLock.lock();
+        try {
+            writer.add(response);
+            if (flush || writer.getPendingBytes() >= RESPONSE_FLUSH_BYTES
+                    || response.getStatus() == Frame.UNSUPPORTED_VERSION) {
+                writer.flush();
+            }
+            if (response.getStatus() == Frame.UNSUPPORTED_VERSION) {
+                socket.close();
+            }
+        } catch (IOException e) {
+            System.out.println("\u001B[31m[ERROR]\u001B[0m Error handling client: " + e.getMessage());
+        } finally {
+            writeLock.unlock();
+        }
+    }
 
-                        out.writeUTF("Info successfully stored!");
-                        out.flush();
-                    }
-                    case "get" -> {
-                        String key = in.readUTF();
-                        byte[] taskResponse = null;
-                        lock.lock();
-                        try {
-                            taskResponse = dataStorage.get(key);
-                        } finally {
-                            lock.unlock();
-                        }
-                        if (taskResponse != null) {
-                            System.out.println("\u001B[32m[DATA]\u001B[0m Info stored : " + new String(taskResponse));
-                            out.writeInt(taskResponse.length);
-                            out.write(taskResponse);
-                            out.flush();
-                        } else {
-                            System.out.println("\u001B[33m[WARNING]\u001B[0m No info found, signal the client");
-                            out.writeUTF(
-                                    "There is no information associated with the requested key ( " + key + " )");
-                            out.flush();
-                        }
-                    }
-                    case "multiGet" -> {
-                        HashMap<String, byte[]> pairs = new HashMap<>();
-                        int N = in.readInt();
-                        for (int i = 0; i < N; i++) {
-                            String key = in.readUTF();
-                            byte[] value = dataStorage.get(key);
-                            if (value != null) {
-                                lock.lock();
-                                try {
-                                    pairs.put(key, value);
-                                } finally {
-                                    lock.lock();
-                                }
-                            } else {
-                                System.out.println(
-                                        "\u001B[33m[WARNING]\u001B[0m There is no value associated with '" + key + "'\n");
-                            }
-                        }
+    /**
+     * Sends the responses queued for a client in thread-per-connection mode.
+     *
+     * @param writer    The writer of the client.
+     * @param writeLock The lock that serializes writes to the client.
+     * @throws IOException If the connection fails.
+     */
+    private void flush(ResponseWriter writer, Lock writeLock) throws IOException {
+        writeLock.lock();
+        try {
+            writer.flush();
+        } finally {
+            writeLock.unlock();
+        }
+    }
 
-                        if (pairs.size() > 0) {
-                            out.writeInt(pairs.size());
-                            for (Map.Entry<String, byte[]> entry : pairs.entrySet()) {
-                                out.writeUTF(entry.getKey());
-                                out.writeInt(entry.getValue().length);
-                                out.write(entry.getValue());
-                                out.flush();
-                            }
-                        } else {
-                            System.out.println("\u001B[33m[WARNING]\u001B[0m No info found, signal the client");
-                            out.writeUTF("There is no information associated with the requested keys");
-                            out.flush();
-                        }
-                    }
-                    case "getWhen" -> {
-                        String key = in.readUTF();
-                        String keyCond = in.readUTF();
-                        int length = in.readInt();
-                        byte[] valueCond = new byte[length];
-                        in.read(valueCond);
-
-                        lock.lock();
-                        try {
-                            while (!isConditionSatisfied(keyCond, valueCond)) {
-                                condition.await();
-                            }
-                            byte[] taskResponse = dataStorage.get(key);
-                            if (taskResponse != null) {
-                                System.out
-                                        .println("\u001B[32m[DATA]\u001B[0m Info stored : " + new String(taskResponse));
-                                out.writeInt(taskResponse.length);
-                                out.write(taskResponse);
-                                out.flush();
-                            } else {
-                                System.out.println("\u001B[33m[WARNING]\u001B[0m No info found, signal the client");
-                                out.writeUTF(
-                                        "There is no information associated with the requested key ( " + key + " )");
-                                out.flush();
-                            }
-                        } catch (InterruptedException e) {
-                            Thread.currentThread().interrupt();
-                            out.writeInt(0);
-                        } finally {
-                            lock.unlock();
-                        }
+    /**
+     * Gets the pool of buffers responses are assembled in, shared with the
+     * {@link NioServer}.
+     *
+     * @return The pool.
+     */
+    BufferPool getResponseBuffers() {
+        return responseBuffers;
+    }
+
+    /**
+     * Gets the metrics of the server, shared with the {@link NioServer} so it
+     * can count its sessions.
+     *
+     * @return The metrics.
+     */
+    Metrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Processes a single request frame of a session and builds its response.
+     * Data operations are rejected until the session is authenticated.
+     * <p>
+     * Every request except a pending <code>getWhen</code> is handled right
+     * away and returns a completed future. A <code>getWhen</code> returns a
+     * future completed on the server's executor once its condition holds.
+     * </p>
+     * <p>
+     * A request holds a permit of the {@link Admission} control while it is
+     * processed, but not while its change becomes durable or its condition
+     * waits, and how long it holds it drives the adaptive limit. When the
+     * queue of requests waiting for a permit is full it is
+     * answered with {@link Frame#BUSY}. Pings, negotiations, exits,
+     * tracking and statistics requests need no permit.
+     * </p>
+     * <p>
+     * The latency of every request, from the moment it was read until its
+     * response is ready, is recorded in the {@link Metrics}.
+     * </p>
+     *
+     * @param session The session the request was received on.
+     * @param request The request frame.
+     * @return The future response frame. It completes with null if the client
+     *         asked to exit and the connection must be closed.
+     */
+    CompletableFuture<Frame> process(Session session, Frame request) {
+        long received = System.nanoTime();
+        metrics.received(request);
+        CompletableFuture<Frame> response = admit(session, request);
+        response.thenAccept(frame -> {
+            if (frame != null) {
+                metrics.completed(request, frame, System.nanoTime() - received);
+            }
+        });
+        return response;
+    }
+
+    /**
+     * Processes a request if the {@link Admission} control lets it in (see
+     * {@link #process(Session, Frame)}).
+     */
+    private CompletableFuture<Frame> admit(Session session, Frame request) {
+        byte opcode = request.getOpcode();
+        if (opcode == Frame.PING || opcode == Frame.NEGOTIATE || opcode == Frame.EXIT || opcode == Frame.TRACK
+                || opcode == Frame.STATS) {
+            return processAdmitted(session, request);
+        }
+        try {
+            if (!admission.enter()) {
+                System.out.println("\u001B[33m[WARNING]\u001B[0m Server busy, rejecting a request ("
+                        + admission.describe() + ")");
+                return CompletableFuture.completedFuture(request.reply(Frame.BUSY));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return CompletableFuture.completedFuture(request.reply(Frame.BUSY));
+        }
+        long start = System.nanoTime();
+        try {
+            return processAdmitted(session, request);
+        } finally {
+            admission.exit(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Processes a request once it is admitted (see
+     * {@link #process(Session, Frame)}).
+     */
+    private CompletableFuture<Frame> processAdmitted(Session session, Frame request) {
+        if (request.getVersion() != Frame.VERSION) {
+            return CompletableFuture.completedFuture(request.reply(Frame.UNSUPPORTED_VERSION));
+        }
+        try (DataInputStream in = request.payloadStream()) {
+            if (request.getOpcode() == Frame.AUTH) {
+                return authenticate(session, request);
+            }
+            if (request.getOpcode() == Frame.PING) {
+                return CompletableFuture.completedFuture(request.reply(Frame.OK));
+            }
+            if (request.getOpcode() == Frame.NEGOTIATE) {
+                return CompletableFuture.completedFuture(negotiate(session, request, in));
+            }
+            if (!session.isAuthenticated()) {
+                return CompletableFuture.completedFuture(request.reply(Frame.NOT_AUTHENTICATED));
+            }
+            if (replicationBackup != null
+                    && (request.getOpcode() == Frame.PUT || request.getOpcode() == Frame.MULTI_PUT
+                            || request.getOpcode() == Frame.PUT_CHUNK || request.getOpcode() == Frame.PUT_EXPIRING)) {
+                return CompletableFuture.completedFuture(request.reply(Frame.READ_ONLY));
+            }
+            if (request.getOpcode() == Frame.GET_WHEN) {
+                return getWhen(session, request, in);
+            }
+            return processTask(session, request, in);
+        } catch (IOException e) {
+            System.out.println("\u001B[33m[WARNING]\u001B[0m Malformed request: " + e.getMessage());
+            return CompletableFuture.completedFuture(request.reply(Frame.BAD_REQUEST));
+        } catch (IllegalArgumentException e) {
+            // A stored value that cannot be decoded
+            System.out.println("\u001B[31m[ERROR]\u001B[0m " + e.getMessage());
+            return CompletableFuture.completedFuture(request.reply(Frame.SERVER_ERROR));
+        }
+    }
+
+    /**
+     * Processes an authentication request (registration or login).
+     *
+     * @param session The session the request was received on.
+     * @param request The request frame.
+     * @return The future response frame. A registration is only acknowledged
+     *         once it is in the write-ahead log.
+     */
+    private CompletableFuture<Frame> authenticate(Session session, Frame request) {
+        // Deserialize the request data into an AuthRequest object
+        AuthRequest authRequest = new AuthRequest();
+        try {
+            authRequest.readRequestBytes(request.getPayload());
+        } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+            return CompletableFuture.completedFuture(request.reply(Frame.BAD_REQUEST));
+        }
+        User user = new User(authRequest.getUsername(), authRequest.getPassword());
+
+        // Authenticate the user based on the request type (REGISTER or LOGIN)
+        byte status;
+        CompletableFuture<Void> durable = CompletableFuture.completedFuture(null);
+        switch (authRequest.getType()) {
+            case AuthRequest.REGISTER -> {
+                // Handle user registration; users only come from the primary on a backup
+                if (replicationBackup != null) {
+                    status = Frame.READ_ONLY;
+                } else if (user.registerAuth(userDatabase) == 1) {
+                    System.out.println(
+                            "\u001B[32m[AUTH]\u001B[0m User added with Username: " + user.getUsername());
+                    status = Frame.OK;
+                    durable = log(WriteAheadLog.registerRecord(user.getUsername(), user.getPassword()));
+                } else {
+                    status = Frame.USER_EXISTS;
+                }
+            }
+            case AuthRequest.LOGIN -> {
+                // Handle user login
+                int success = user.loginAuth(userDatabase);
+                if (success == 1) {
+                    status = Frame.OK;
+                } else if (success == -1) {
+                    status = Frame.INVALID_PASSWORD;
+                } else {
+                    status = Frame.NO_SUCH_USER;
+                }
+            }
+            default -> status = Frame.BAD_REQUEST;
+        }
+
+        if (status == Frame.OK) {
+            session.setUser(user);
+        }
+        System.out.println("\u001B[36m[INFO]\u001B[0m Sent notification to client");
+        System.out.println();
+        return acknowledge(durable, request, request.reply(status));
+    }
+
+    /**
+     * Processes a negotiation of how values are encoded on a session: picks
+     * the first codec offered by the client that values are stored with.
+     *
+     * @param session The session the request was received on.
+     * @param request The request frame.
+     * @param in      The stream over the request payload.
+     * @return The response frame, holding the chosen codec.
+     * @throws IOException If the payload is malformed.
+     */
+    private Frame negotiate(Session session, Frame request, DataInputStream in) throws IOException {
+        byte chosen = Codec.RAW;
+        int offered = in.readUnsignedByte();
+        for (int i = 0; i < offered; i++) {
+            byte codec = in.readByte();
+            if (codec == compression && chosen == Codec.RAW) {
+                chosen = codec;
+            }
+        }
+        session.negotiate(chosen);
+        return request.reply(Frame.OK, new byte[] { chosen });
+    }
+
+    /**
+     * Turns a value received on a session into its stored encoding. Values of
+     * a session that negotiated the codec arrive compressed by the client and
+     * are stored as they are; the others are compressed here.
+     *
+     * @param session The session the value was received on.
+     * @param value   The value as received.
+     * @return The encoded value.
+     * @throws ProtocolException If an encoded value is malformed.
+     */
+    private byte[] incoming(Session session, byte[] value) throws ProtocolException {
+        if (!session.isNegotiated()) {
+            return Codec.encode(value, compression);
+        }
+        Codec.check(value, session.getCodec());
+        return session.getCodec() == compression ? value : Codec.compress(value, compression);
+    }
+
+    /**
+     * Turns a stored value into what is sent on a session. A compressed value
+     * is only decompressed for a session that did not negotiate its codec.
+     *
+     * @param session The session the value is sent on.
+     * @param stored  The encoded value.
+     * @return The value to send.
+     */
+    private byte[] outgoing(Session session, byte[] stored) {
+        if (!session.isNegotiated()) {
+            return Codec.decode(stored);
+        }
+        byte codec = Codec.codecOf(stored);
+        return codec == Codec.RAW || codec == session.getCodec() ? stored : Codec.raw(Codec.decode(stored));
+    }
+
+    /**
+     * Processes a single data storage request (put, get, multiPut, multiGet,
+     * transaction, track or exit) of an authenticated session.
+     *
+     * @param session The session the request was received on.
+     * @param request The request frame.
+     * @param in      The stream over the request payload.
+     * @return The future response frame, completed with null if the client
+     *         asked to exit. Writes are only acknowledged once they are in the
+     *         write-ahead log.
+     * @throws IOException If the payload is malformed.
+     */
+    private CompletableFuture<Frame> processTask(Session session, Frame request, DataInputStream in)
+            throws IOException {
+        switch (request.getOpcode()) {
+            case Frame.PUT -> {
+                String key = in.readUTF();
+                byte[] value = incoming(session, PayloadWriter.readValue(in));
+
+                CompletableFuture<Void> logged = dataStorage.put(key, value, 0);
+                if (logged == null) {
+                    System.out.println("\u001B[33m[WARNING]\u001B[0m There is already a key with that value\n");
+                    return CompletableFuture.completedFuture(request.reply(Frame.KEY_EXISTS));
+                }
+                System.out.println(
+                        "\u001B[32m[DATA]\u001B[0m Info successfully stored -> Key: " + key + " | Value: "
+                                + Codec.describe(value));
+                return acknowledge(logged, request, request.reply(Frame.OK));
+            }
+            case Frame.PUT_EXPIRING -> {
+                String key = in.readUTF();
+                byte[] value = incoming(session, PayloadWriter.readValue(in));
+                long ttl = in.readLong();
+                if (ttl <= 0) {
+                    return CompletableFuture.completedFuture(request.reply(Frame.BAD_REQUEST));
+                }
+
+                CompletableFuture<Void> logged = dataStorage.put(key, value, System.currentTimeMillis() + ttl);
+                if (logged == null) {
+                    System.out.println("\u001B[33m[WARNING]\u001B[0m There is already a key with that value\n");
+                    return CompletableFuture.completedFuture(request.reply(Frame.KEY_EXISTS));
+                }
+                System.out.println(
+                        "\u001B[32m[DATA]\u001B[0m Info successfully stored -> Key: " + key + " | Value: "
+                                + Codec.describe(value) + " | Expires in " + ttl + " ms");
+                return acknowledge(logged, request, request.reply(Frame.OK));
+            }
+            case Frame.MULTI_PUT -> {
+                int N = in.readInt();
+                List<String> rejected = new ArrayList<>();
+                Map<String, byte[]> stored = new LinkedHashMap<>();
+
+                for (int i = 0; i < N; i++) {
+                    String key = in.readUTF();
+                    byte[] value = incoming(session, PayloadWriter.readValue(in));
+                    if (stored.putIfAbsent(key, value) != null) {
+                        rejected.add(key);
                     }
-                    case "exit" -> {
-                        System.out.println("\u001B[36m[INFO]\u001B[0m Client with username " + user.getUsername()
-                                + " disconnected.");
-                        closeConnection(in, out, clientSocket);
-                        Thread.currentThread().interrupt();
-                        return;
+                }
+
+                // Every pair is stored under one lock of all their keys
+                List<String> existing = new ArrayList<>();
+                CompletableFuture<Void> logged = dataStorage.putAll(stored, existing);
+                for (String key : existing) {
+                    stored.remove(key);
+                    rejected.add(key);
+                }
+                for (Map.Entry<String, byte[]> pair : stored.entrySet()) {
+                    System.out.println(
+                            "\u001B[32m[DATA]\u001B[0m Info successfully stored -> Key: " + pair.getKey()
+                                    + " | Value: " + Codec.describe(pair.getValue()) + "\n");
+                }
+                for (String key : rejected) {
+                    System.out.println("\u001B[33m[WARNING]\u001B[0m There is already a key with that name ("
+                            + key + "), notifiyng client\n");
+                }
+
+                PayloadWriter payload = new PayloadWriter().writeInt(rejected.size());
+                for (String key : rejected) {
+                    payload.writeKey(key);
+                }
+                Frame response = request.reply(rejected.isEmpty() ? Frame.OK : Frame.KEY_EXISTS,
+                        payload.toByteArray());
+                if (stored.isEmpty()) {
+                    return CompletableFuture.completedFuture(response);
+                }
+                return acknowledge(logged, request, response);
+            }
+            case Frame.PUT_CHUNK -> {
+                return putChunk(session, request, in);
+            }
+            case Frame.GET_RANGE -> {
+                String key = in.readUTF();
+                int offset = in.readInt();
+                int max = in.readInt();
+                if (offset < 0 || max < 0) {
+                    return CompletableFuture.completedFuture(request.reply(Frame.BAD_REQUEST));
+                }
+                // The part is copied from the engine straight into the response payload
+                byte[] payload = new byte[4 + Math.min(max, Frame.MAX_CHUNK)];
+                ByteBuffer part = ByteBuffer.wrap(payload, 4, payload.length - 4);
+                int length = dataStorage.read(key, offset, part);
+                if (length < 0) {
+                    System.out.println("\u001B[33m[WARNING]\u001B[0m No info found, signal the client");
+                    return CompletableFuture.completedFuture(request.reply(Frame.NOT_FOUND));
+                }
+                if (offset == 0) {
+                    System.out.println("\u001B[32m[DATA]\u001B[0m Streaming value of key " + key + " (" + length
+                            + " bytes)");
+                }
+                ByteBuffer.wrap(payload).putInt(length);
+                return CompletableFuture.completedFuture(request.reply(Frame.OK,
+                        part.position() == payload.length ? payload : Arrays.copyOf(payload, part.position())));
+            }
+            case Frame.GET -> {
+                String key = in.readUTF();
+                byte[] taskResponse = session.isTracking() ? track(session, List.of(key)).get(key)
+                        : dataStorage.get(key);
+                if (taskResponse == null) {
+                    System.out.println("\u001B[33m[WARNING]\u001B[0m No info found, signal the client");
+                    return CompletableFuture.completedFuture(request.reply(Frame.NOT_FOUND));
+                }
+                System.out.println("\u001B[32m[DATA]\u001B[0m Info stored : " + Codec.describe(taskResponse));
+                return CompletableFuture.completedFuture(request.reply(Frame.OK, outgoing(session, taskResponse)));
+            }
+            case Frame.MULTI_GET -> {
+                int N = in.readInt();
+                List<String> keys = new ArrayList<>();
+                for (int i = 0; i < N; i++) {
+                    keys.add(in.readUTF());
+                }
+                // All the keys are read at one point, never in the middle of a multiPut or transaction
+                Map<String, byte[]> pairs = session.isTracking() ? track(session, keys) : dataStorage.getAll(keys);
+                for (String key : keys) {
+                    if (!pairs.containsKey(key)) {
+                        System.out.println(
+                                "\u001B[33m[WARNING]\u001B[0m There is no value associated with '" + key + "'\n");
                     }
                 }
+
+                PayloadWriter payload = new PayloadWriter().writeInt(pairs.size());
+                for (Map.Entry<String, byte[]> entry : pairs.entrySet()) {
+                    payload.writeKey(entry.getKey()).writeValue(outgoing(session, entry.getValue()));
+                }
+                return CompletableFuture.completedFuture(request.reply(Frame.OK, payload.toByteArray()));
+            }
+            case Frame.TRANSACTION -> {
+                return transaction(session, request, in);
+            }
+            case Frame.TRACK -> {
+                session.startTracking(invalidations);
+                System.out.println("\u001B[36m[INFO]\u001B[0m Tracking the reads of "
+                        + session.getUser().getUsername() + " for its cache.");
+                return CompletableFuture.completedFuture(request.reply(Frame.OK));
+            }
+            case Frame.STATS -> {
+                return CompletableFuture.completedFuture(request.reply(Frame.OK, stats().toPayload()));
             }
+            case Frame.EXIT -> {
+                System.out.println("\u001B[36m[INFO]\u001B[0m Client with username "
+                        + session.getUser().getUsername() + " disconnected.");
+                return CompletableFuture.completedFuture(null);
+            }
+            default -> {
+                return CompletableFuture.completedFuture(request.reply(Frame.BAD_REQUEST));
+            }
+        }
+    }
+
+    /**
+     * Gathers the statistics of the server: the {@link Metrics} of the
+     * requests, then the state of the storage, the admission control and the
+     * replication.
+     *
+     * @return The statistics.
+     */
+    private ServerStats stats() {
+        Runtime runtime = Runtime.getRuntime();
+        double[] latency = admission.getLatencyMillis();
+        ServerStats stats = metrics.toStats()
+                .value("users", userDatabase.size())
+                .value("keys", dataStorage.size())
+                .value("memoryBytes", dataStorage.getMemoryBytes())
+                .value("memoryLimitBytes", dataStorage.getMemoryLimit())
+                .value("expiring", dataStorage.getExpiringCount())
+                .value("expired", dataStorage.getExpiredCount())
+                .value("evicted", dataStorage.getEvictedCount())
+                .value("getWhenWaiters", dataStorage.getWaiterCount())
+                .value("trackedKeys", invalidations.size())
+                .value("admissionLimit", admission.getLimit())
+                .value("admissionCeiling", admission.getCeiling())
+                .value("inFlight", admission.getInFlight())
+                .value("queued", admission.getQueued())
+                .value("maxQueued", admission.getMaxQueuedSeen())
+                .value("delayed", admission.getDelayed())
+                .value("rejected", admission.getRejected())
+                .value("uploadBytes", uploadBudget.getReserved())
+                .value("admissionLatencyMicros", (long) (latency[0] * 1000))
+                .value("admissionBaselineMicros", (long) (latency[1] * 1000))
+                .value("heapUsedBytes", runtime.totalMemory() - runtime.freeMemory())
+                .value("threads", ManagementFactory.getThreadMXBean().getThreadCount());
+        if (replicationPrimary != null) {
+            stats.value("backups", replicationPrimary.getBackupCount())
+                    .value("replicationLagChanges", replicationPrimary.getLagChanges())
+                    .value("replicationLagMillis", replicationPrimary.getLagMillis());
+        }
+        if (replicationBackup != null) {
+            stats.value("replicationDelayMillis", replicationBackup.getDelayMillis());
+        }
+        return stats;
+    }
+
+    /**
+     * Tracks keys for a session and only then reads them, so a key stored or
+     * removed after the read is invalidated later: the client never caches a
+     * result that is already stale without being told.
+     *
+     * @param session The tracking session.
+     * @param keys    The keys read.
+     * @return The keys found and their encoded values.
+     */
+    private Map<String, byte[]> track(Session session, List<String> keys) {
+        for (String key : keys) {
+            invalidations.track(session, key);
+        }
+        return dataStorage.getAll(keys);
+    }
+
+    /**
+     * Processes a transaction: applies all its operations as one unit and, if
+     * it stored anything, logs the stored pairs as a single record, which
+     * replay and the backups also apply as one unit. A backup only serves
+     * transactions that store nothing.
+     *
+     * @param session The session the request was received on.
+     * @param request The request frame.
+     * @param in      The stream over the request payload.
+     * @return The future response frame, holding the values read if the
+     *         transaction committed, or the key that aborted it.
+     * @throws IOException If the payload is malformed.
+     */
+    private CompletableFuture<Frame> transaction(Session session, Frame request, DataInputStream in)
+            throws IOException {
+        Transaction transaction = Transaction.read(in, value -> incoming(session, value));
+        if (replicationBackup != null && transaction.hasPuts()) {
+            return CompletableFuture.completedFuture(request.reply(Frame.READ_ONLY));
+        }
+
+        DataStorage.Commit commit;
+        try {
+            commit = dataStorage.commit(transaction);
+        } catch (IllegalArgumentException e) {
+            System.out.println("\u001B[33m[WARNING]\u001B[0m " + e.getMessage());
+            return CompletableFuture.completedFuture(request.reply(Frame.BAD_REQUEST));
+        }
+        if (commit.getOutcome() != DataStorage.Outcome.COMMITTED) {
+            System.out.println("\u001B[33m[WARNING]\u001B[0m Transaction of "
+                    + transaction.getOperations().size() + " operations aborted by key " + commit.getAbortedBy()
+                    + "\n");
+            byte status = commit.getOutcome() == DataStorage.Outcome.KEY_EXISTS ? Frame.KEY_EXISTS
+                    : Frame.CONDITION_FAILED;
+            return CompletableFuture.completedFuture(
+                    request.reply(status, new PayloadWriter().writeKey(commit.getAbortedBy()).toByteArray()));
+        }
+        System.out.println("\u001B[32m[DATA]\u001B[0m Transaction committed -> " + commit.getWrites().size()
+                + " keys stored, " + commit.getReads().size() + " read\n");
+
+        PayloadWriter payload = new PayloadWriter().writeInt(commit.getReads().size());
+        for (Map.Entry<String, byte[]> entry : commit.getReads().entrySet()) {
+            payload.writeKey(entry.getKey()).writeValue(outgoing(session, entry.getValue()));
+        }
+        Frame response = request.reply(Frame.OK, payload.toByteArray());
+        if (commit.getWrites().isEmpty()) {
+            return CompletableFuture.completedFuture(response);
+        }
+        return acknowledge(commit.getLogged(), request, response);
+    }
+
+    /**
+     * Processes one chunk of a value sent in chunks. Every chunk but the last
+     * is only added to the upload of the session; the last one stores the
+     * value, which is then logged and acknowledged like a put. A chunk that
+     * would open more than {@value Session#MAX_UPLOADS} uploads on the
+     * session, or that the upload budget has no room for, is answered with
+     * {@link Frame#BUSY} and drops the upload.
+     *
+     * @param session The session the request was received on.
+     * @param request The request frame.
+     * @param in      The stream over the request payload.
+     * @return The future response frame.
+     * @throws IOException If the payload is malformed or the chunks do not
+     *                     add up to the declared length.
+     */
+    private CompletableFuture<Frame> putChunk(Session session, Frame request, DataInputStream in)
+            throws IOException {
+        String key = in.readUTF();
+        long length = in.readLong();
+        boolean last = in.readBoolean();
+        byte[] value;
+        try {
+            Upload upload = session.upload(key, length, uploadBudget);
+            if (upload == null) {
+                System.out.println("\u001B[33m[WARNING]\u001B[0m Too many unfinished uploads on one session.");
+                return CompletableFuture.completedFuture(request.reply(Frame.BUSY));
+            }
+            // The chunk is copied from the request straight into the upload
+            int chunk = in.available();
+            if (!upload.append(request.getPayload(), request.getPayload().length - chunk, chunk)) {
+                session.endUpload(key);
+                System.out.println("\u001B[33m[WARNING]\u001B[0m No memory left for the upload of key " + key + ".");
+                return CompletableFuture.completedFuture(request.reply(Frame.BUSY));
+            }
+            if (!last) {
+                return CompletableFuture.completedFuture(request.reply(Frame.OK));
+            }
+            value = upload.toByteArray();
+            session.endUpload(key);
         } catch (IOException e) {
-            System.out.println("\u001B[31m[ERROR]\u001B[0m Error handling client: " + e.getMessage());
+            session.endUpload(key);
+            throw e;
+        }
+
+        CompletableFuture<Void> logged;
+        try {
+            logged = dataStorage.put(key, value, 0);
+            if (logged == null) {
+                System.out.println("\u001B[33m[WARNING]\u001B[0m There is already a key with that value\n");
+                return CompletableFuture.completedFuture(request.reply(Frame.KEY_EXISTS));
+            }
+        } catch (IllegalArgumentException e) {
+            System.out.println("\u001B[33m[WARNING]\u001B[0m " + e.getMessage());
+            return CompletableFuture.completedFuture(request.reply(Frame.BAD_REQUEST));
+        }
+        System.out.println("\u001B[32m[DATA]\u001B[0m Info successfully stored -> Key: " + key + " | Value: "
+                + (value.length - 1) + " bytes in chunks");
+        return acknowledge(logged, request, request.reply(Frame.OK));
+    }
+
+    /**
+     * Processes a "getWhen" request: registers the condition and builds the
+     * response once it holds. The response is built on the server's executor,
+     * never on the thread of the put that satisfied the condition.
+     *
+     * @param session The session the request was received on.
+     * @param request The request frame.
+     * @param in      The stream over the request payload.
+     * @return The future response frame.
+     * @throws IOException If the payload is malformed.
+     */
+    private CompletableFuture<Frame> getWhen(Session session, Frame request, DataInputStream in)
+            throws IOException {
+        String key = in.readUTF();
+        String keyCond = in.readUTF();
+        byte[] valueCond = PayloadWriter.readValue(in);
+
+        CompletableFuture<Void> condition = session.track(dataStorage.whenCondition(keyCond, valueCond));
+        return condition.thenApplyAsync(ignored -> {
+            byte[] taskResponse = dataStorage.get(key);
+            if (taskResponse == null) {
+                System.out.println("\u001B[33m[WARNING]\u001B[0m No info found, signal the client");
+                return request.reply(Frame.NOT_FOUND);
+            }
+            System.out.println("\u001B[32m[DATA]\u001B[0m Info stored : " + Codec.describe(taskResponse));
+            try {
+                return request.reply(Frame.OK, outgoing(session, taskResponse));
+            } catch (IllegalArgumentException e) {
+                System.out.println("\u001B[31m[ERROR]\u001B[0m " + e.getMessage());
+                return request.reply(Frame.SERVER_ERROR);
+            }
+        }, threadPool);
+    }
+
+    /**
+     * Appends a record to the write-ahead log and sends it to the backups.
+     *
+     * @param record The record.
+     * @return A future completed once the record is durable and, with
+     *         synchronous replication, on every backup.
+     */
+    private CompletableFuture<Void> log(byte[] record) {
+        CompletableFuture<Void> durable = wal.append(record);
+        if (replicationPrimary == null) {
+            return durable;
+        }
+        CompletableFuture<Void> replicated = replicationPrimary.replicate(record);
+        return replicated.isDone() ? durable : durable.thenCombine(replicated, (logged, acknowledged) -> null);
+    }
+
+    /**
+     * Removes every stored pair of a backup, before the copy of the state of
+     * its primary is applied. Each removal is logged, and sent to the backups
+     * of this server, like a removal received from the primary.
+     *
+     * @return A future completed once the removals are durable.
+     */
+    private CompletableFuture<Void> clearReplicated() {
+        List<CompletableFuture<Void>> removed = new ArrayList<>();
+        long count = 0;
+        for (Map.Entry<String, byte[]> pair : dataStorage.entries()) {
+            CompletableFuture<Void> logged = dataStorage.remove(pair.getKey());
+            if (logged == null) {
+                continue;
+            }
+            count++;
+            removed.add(logged);
+            if (removed.size() >= 1024) {
+                removed.removeIf(CompletableFuture::isDone);
+            }
+        }
+        if (count > 0) {
+            System.out.println("\u001B[32m[REPLICATION]\u001B[0m Removed " + count
+                    + " pairs before copying the state of the primary.");
+        }
+        return CompletableFuture.allOf(removed.toArray(CompletableFuture[]::new));
+    }
+
+    /**
+     * Applies a change received from the primary and logs it, like a change
+     * made by a client of this server: changes to the pairs are logged by the
+     * data storage itself, in the order they are applied.
+     *
+     * @param record The write-ahead log record of the change.
+     * @return A future completed once the change is durable.
+     * @throws IOException If the record is malformed.
+     */
+    private CompletableFuture<Void> applyReplicated(byte[] record) throws IOException {
+        if (record.length == 0) {
+            throw new IOException("Empty replicated record");
         }
+        CompletableFuture<Void> logged = applyLogRecord(record[0],
+                new DataInputStream(new ByteArrayInputStream(record, 1, record.length - 1)));
+        return record[0] == WriteAheadLog.REGISTER ? log(record) : logged;
     }
 
-    private boolean isConditionSatisfied(String keyCond, byte[] valueCond) {
-        byte[] value = dataStorage.get(keyCond);
-        if (value == null) {
-            return false;
+    /**
+     * Delays a response until the change it acknowledges is durable. If the
+     * change could not be logged, the client gets {@link Frame#SERVER_ERROR}
+     * instead. Responses that wait are completed on the server's executor,
+     * never on the log's flusher thread.
+     *
+     * @param durable  Completed once the change is durable.
+     * @param request  The request being answered.
+     * @param response The response to send once the change is durable.
+     * @return The future response frame.
+     */
+    private CompletableFuture<Frame> acknowledge(CompletableFuture<Void> durable, Frame request, Frame response) {
+        if (durable.isDone() && !durable.isCompletedExceptionally()) {
+            return CompletableFuture.completedFuture(response);
         }
-        return java.util.Arrays.equals(value, valueCond);
+        return durable.handleAsync((ignored, e) -> e == null ? response : request.reply(Frame.SERVER_ERROR),
+                threadPool);
     }
 
     /**
-     * Gracefully shuts down the server, saving the state, shutting down the
-     * thread pool, and closing all active client connections.
+     * Opens the write-ahead log for appending, with the configured sync
+     * policy. Must be called after {@link #loadState()} has replayed it.
+     *
+     * @throws IOException If the log cannot be opened.
+     */
+    void openLog() throws IOException {
+        wal = new WriteAheadLog(dataDir.resolve(WAL_FILE), config.getWalSync(), config.getWalInterval());
+        dataStorage.setJournal(this::log);
+    }
+
+    /**
+     * Starts taking snapshots in the background at the configured interval,
+     * unless they are disabled.
+     */
+    void scheduleSnapshots() {
+        int interval = config.getSnapshotInterval();
+        if (interval == 0) {
+            return;
+        }
+        snapshotter = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "snapshotter");
+            thread.setDaemon(true);
+            return thread;
+        });
+        snapshotter.scheduleWithFixedDelay(this::snapshot, interval, interval, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Starts accepting backups and following the primary, as configured, and
+     * reports the replication lag periodically. Must be called after
+     * {@link #openLog()}. A backup may accept backups of its own, which then
+     * receive the changes it gets from its primary.
+     *
+     * @throws IOException If the replication port cannot be bound.
+     */
+    void startReplication() throws IOException {
+        if (config.getReplicationPort() > 0) {
+            replicationPrimary = new ReplicationPrimary(config.getReplicationPort(), config.getReplicationBind(),
+                    config.getReplicationSecret(), config.getReplication(), userDatabase, dataStorage);
+        }
+        if (config.isBackup()) {
+            replicationBackup = new ReplicationBackup(config.getReplicaOfHost(), config.getReplicaOfPort(),
+                    config.getReplicationSecret(), new ReplicationBackup.Applier() {
+                        @Override
+                        public CompletableFuture<Void> clear() {
+                            return clearReplicated();
+                        }
+
+                        @Override
+                        public CompletableFuture<Void> apply(byte[] record) throws IOException {
+                            return applyReplicated(record);
+                        }
+                    });
+        }
+        if (replicationPrimary == null && replicationBackup == null) {
+            return;
+        }
+        replicationMonitor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "replication-monitor");
+            thread.setDaemon(true);
+            return thread;
+        });
+        replicationMonitor.scheduleWithFixedDelay(this::reportReplication, REPLICATION_REPORT_SECONDS,
+                REPLICATION_REPORT_SECONDS, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Applies the configured memory limit and starts removing expired pairs.
+     * Must be called after {@link #startReplication()}: a backup does neither,
+     * and follows the removals of its primary instead.
+     */
+    void startExpiry() {
+        if (replicationBackup != null) {
+            if (config.getMaxMemoryMb() > 0) {
+                System.out.println("\u001B[33m[WARNING]\u001B[0m The memory limit is ignored on a backup; it evicts"
+                        + " what its primary evicts.");
+            }
+            return;
+        }
+        if (config.getMaxMemoryMb() > 0) {
+            dataStorage.setMemoryLimit(config.getMaxMemoryMb() * 1024L * 1024, config.getEviction());
+            System.out.println("\u001B[36m[INFO]\u001B[0m Evicting keys by " + config.getEviction().name()
+                    + " beyond " + config.getMaxMemoryMb() + " MB.");
+        }
+        dataStorage.startExpiry();
+    }
+
+    /**
+     * Prints how far behind each backup, or this backup, is.
+     */
+    private void reportReplication() {
+        if (replicationBackup != null) {
+            System.out.println("\u001B[36m[REPLICATION]\u001B[0m Backup " + replicationBackup.describe());
+        }
+        if (replicationPrimary != null) {
+            for (String backup : replicationPrimary.describeBackups()) {
+                System.out.println("\u001B[36m[REPLICATION]\u001B[0m Backup " + backup);
+            }
+        }
+    }
+
+    /**
+     * Saves a snapshot of the state and truncates the write-ahead log up to it,
+     * so a restart only has to load the snapshot and replay the changes made
+     * since.
+     * <p>
+     * Clients keep writing meanwhile. The log is first rotated into
+     * {@link #WAL_SEGMENT_FILE}; every change in that segment was applied to
+     * the maps before it was logged, so the snapshot, taken afterwards by
+     * iterating the concurrent maps, contains all of them and the segment can
+     * be deleted. Changes made while the snapshot is written may or may not be
+     * in it, but they are also in the new log, whose replay in order, removals
+     * included, leaves each key as the last of them did (see
+     * {@link #loadState()}).
+     * If a previous snapshot failed and left its segment behind, the log is
+     * not rotated again and only that segment is truncated.
+     * </p>
+     */
+    private void snapshot() {
+        snapshotLock.lock();
+        try {
+            Path segment = dataDir.resolve(WAL_SEGMENT_FILE);
+            if (wal != null && !Files.exists(segment)) {
+                wal.rotate(segment).join();
+            }
+            saveState();
+            Files.deleteIfExists(segment);
+            System.out.println("\u001B[32m[STATE]\u001B[0m Snapshot saved with " + dataStorage.describe()
+                    + " and " + userDatabase.size() + " users.");
+        } catch (IOException | CompletionException e) {
+            System.err.println("\u001B[31m[ERROR]\u001B[0m Error saving state: " + e.getMessage());
+        } finally {
+            snapshotLock.unlock();
+        }
+    }
+
+    /**
+     * Gracefully shuts down the server. It stops accepting connections and
+     * lets the requests already running finish, so each one is either logged
+     * and answered or not processed at all. Only then does it save the state,
+     * close the write-ahead log, and close the client connections.
      */
     private void gracefulShutdown() {
-        saveState();
+        dataStorage.stopExpiry();
+        if (snapshotter != null) {
+            snapshotter.shutdownNow();
+        }
+        System.out.println("\u001B[36m[INFO]\u001B[0m Admission: " + admission.describe() + ".");
+
+        // Stop taking requests and let the ones already running finish, while the log is still open
+        running = false;
+        if (nioServer != null) {
+            nioServer.shutdown();
+        }
+        closeAcceptor();
+        for (Socket socket : clientConnections) {
+            try {
+                // The session reads the end of the stream once its current request is answered
+                socket.shutdownInput();
+            } catch (IOException e) {
+                // Already closed by the client
+            }
+        }
         threadPool.shutdown();
         try {
             if (!threadPool.awaitTermination(10, TimeUnit.SECONDS)) {
@@ -414,6 +1357,20 @@ public class Server implements Serializable {
             Thread.currentThread().interrupt();
         }
 
+        if (replicationMonitor != null) {
+            replicationMonitor.shutdownNow();
+        }
+        if (replicationBackup != null) {
+            replicationBackup.close();
+        }
+        if (replicationPrimary != null) {
+            replicationPrimary.close();
+        }
+        snapshot();
+        if (wal != null) {
+            wal.close();
+        }
+
         for (Socket socket : clientConnections) {
             try {
                 socket.getInputStream().close();
@@ -424,23 +1381,37 @@ public class Server implements Serializable {
             }
         }
 
+        dataStorage.close();
+
         System.out.println(
                 "\u001B[32m[SERVER]\u001B[0m All client connections and threads closed. Server shutdown completed.");
-        running = false;
     }
 
     /**
-     * Closes the given client connection by closing its input/output streams
-     * and the socket itself.
+     * Stops accepting connections in thread-per-connection mode.
+     */
+    private void closeAcceptor() {
+        ServerSocketChannel channel = acceptor;
+        if (channel == null) {
+            return;
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            System.err.println("\u001B[31m[ERROR]\u001B[0m " + e.getMessage());
+        }
+    }
+
+    /**
+     * Closes the given client connection by closing its input stream and the
+     * socket itself.
      *
      * @param in     The input stream for the client.
-     * @param out    The output stream for the client.
      * @param socket The socket representing the client connection.
      */
-    private void closeConnection(DataInputStream in, DataOutputStream out, Socket socket) {
+    private void closeConnection(DataInputStream in, Socket socket) {
         try {
             in.close();
-            out.close();
             socket.close();
         } catch (IOException e) {
             System.out.println("\u001B[31m[ERROR]\u001B[0m " + e.getMessage());
@@ -449,29 +1420,105 @@ public class Server implements Serializable {
 
     /**
      * Saves the current state of the server, including the user database and
-     * data storage, to files.
+     * data storage, to a binary snapshot. A persistent storage engine is
+     * flushed instead, and only the users go to the snapshot. Once it is
+     * saved, the serialized state of earlier versions is outdated and deleted.
+     *
+     * @throws IOException If the state cannot be written.
+     */
+    private void saveState() throws IOException {
+        dataStorage.flush();
+        Snapshot.write(dataDir.resolve(SNAPSHOT_FILE), userDatabase,
+                dataStorage.isPersistent() ? List.of() : dataStorage.entries(), dataStorage.deadlines());
+        Files.deleteIfExists(dataDir.resolve(USER_DB_FILE));
+        Files.deleteIfExists(dataDir.resolve(DATA_STORAGE_FILE));
+    }
+
+    /**
+     * Loads the saved state of the server, including the user database and data
+     * storage, from files, and then replays the write-ahead log on top of it to
+     * recover the changes made since the state was last saved: first the
+     * segment of an interrupted snapshot, if any, then the current log.
+     * <p>
+     * Some of the changes replayed may already be in the saved state, since a
+     * snapshot is taken while clients keep writing. Replay is still exact
+     * because records are applied strictly in the order they were logged,
+     * removals included, so each key ends as its last record left it. A put
+     * only succeeded on a missing key: either it is the first record of its
+     * key in the log, and the saved state holds nothing or that very value,
+     * or a removal comes before it and empties the key first. A removal
+     * skipped or applied out of order would leave the old value behind.
+     * Deadlines are kept apart from the pairs, so when the saved state
+     * already holds the value of an expiring put, as the segments of the LSM
+     * engine do, the deadline of the record is applied to it.
+     * Usernames are never removed, so registering one again has no effect.
+     * </p>
+     * <p>
+     * The binary snapshot is loaded by one thread per processor, straight into
+     * the live maps. The serialized state of earlier versions is only read
+     * when there is no snapshot yet.
+     * </p>
      */
-    private void saveState() {
-        try (ObjectOutputStream userOut = new ObjectOutputStream(new FileOutputStream(USER_DB_FILE));
-                ObjectOutputStream dataOut = new ObjectOutputStream(new FileOutputStream(DATA_STORAGE_FILE))) {
+    private void loadState() {
+        if (Files.exists(dataDir.resolve(SNAPSHOT_FILE))) {
+            loadSnapshot();
+        } else {
+            loadSerializedState();
+        }
 
-            userOut.writeObject(userDatabase);
-            dataOut.writeObject(dataStorage);
+        try {
+            int replayed = WriteAheadLog.replay(dataDir.resolve(WAL_SEGMENT_FILE), this::applyLogRecord)
+                    + WriteAheadLog.replay(dataDir.resolve(WAL_FILE), this::applyLogRecord);
+            if (replayed > 0) {
+                System.out.println("\u001B[32m[STATE]\u001B[0m Replayed " + replayed + " log records.");
+            }
         } catch (IOException e) {
-            System.err.println("\u001B[31m[ERROR]\u001B[0m Error saving state: " + e.getMessage());
+            System.err.println("\u001B[31m[STATE]\u001B[0m Error replaying the log: " + e.getMessage());
         }
     }
 
     /**
-     * Loads the saved state of the server, including the user database and data
-     * storage, from files.
+     * Loads the binary snapshot.
      */
-    private void loadState() {
-        try (ObjectInputStream userIn = new ObjectInputStream(new FileInputStream(USER_DB_FILE));
-                ObjectInputStream dataIn = new ObjectInputStream(new FileInputStream(DATA_STORAGE_FILE))) {
+    private void loadSnapshot() {
+        long start = System.nanoTime();
+        try {
+            long entries = Snapshot.load(dataDir.resolve(SNAPSHOT_FILE), new Snapshot.Sink() {
+                @Override
+                public void user(String username, String password) {
+                    userDatabase.put(username, new User(username, password));
+                }
+
+                @Override
+                public void pair(String key, byte[] value) {
+                    dataStorage.put(key, value);
+                }
+
+                @Override
+                public void expiry(String key, long deadline) {
+                    dataStorage.setDeadline(key, deadline);
+                }
+            }, Runtime.getRuntime().availableProcessors());
+            System.out.println("\u001B[32m[STATE]\u001B[0m State successfully loaded (" + entries + " entries in "
+                    + (System.nanoTime() - start) / 1_000_000 + " ms).");
+        } catch (IOException e) {
+            System.err.println("\u001B[31m[STATE]\u001B[0m Error loading state: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Loads the state serialized by earlier versions.
+     */
+    @SuppressWarnings("unchecked")
+    private void loadSerializedState() {
+        try (ObjectInputStream userIn = new ObjectInputStream(new FileInputStream(dataDir.resolve(USER_DB_FILE).toFile()));
+                ObjectInputStream dataIn = new ObjectInputStream(new FileInputStream(dataDir.resolve(DATA_STORAGE_FILE).toFile()))) {
 
             userDatabase.putAll((Map<String, User>) userIn.readObject());
-            dataStorage.putAll((Map<String, byte[]>) dataIn.readObject());
+            // Earlier versions stored plain values
+            Map<String, byte[]> pairs = (Map<String, byte[]>) dataIn.readObject();
+            pairs.replaceAll((key, value) -> Codec.raw(value));
+            dataStorage.putAll(pairs);
             System.out.println("\u001B[32m[STATE]\u001B[0m State successfully loaded.");
         } catch (FileNotFoundException e) {
             System.out.println("\u001B[31m[STATE]\u001B[0m No previous state found. Starting with empty maps.");
@@ -480,4 +1527,61 @@ public class Server implements Serializable {
         }
     }
 
+    /**
+     * Applies one record of the write-ahead log to the in-memory state. It
+     * must be called for every record, in log order, since a put found on an
+     * existing key is dropped and only the removal before it makes room for
+     * it (see {@link #loadState()}).
+     *
+     * @param type The record type.
+     * @param body A stream over the record body.
+     * @return A future completed once the change to the pairs is logged again,
+     *         which only happens once the log is open.
+     * @throws IOException If the body is malformed.
+     */
+    private CompletableFuture<Void> applyLogRecord(byte type, DataInputStream body) throws IOException {
+        CompletableFuture<Void> logged = null;
+        switch (type) {
+            case WriteAheadLog.PUT_ENCODED -> logged = dataStorage.put(body.readUTF(), PayloadWriter.readValue(body), 0);
+            case WriteAheadLog.PUT_EXPIRING -> {
+                String key = body.readUTF();
+                byte[] value = PayloadWriter.readValue(body);
+                long deadline = body.readLong();
+                logged = dataStorage.put(key, value, deadline);
+                // A persistent engine may already hold the pair, written out before the crash, but not its deadline
+                if (logged == null && Arrays.equals(dataStorage.get(key), value)) {
+                    dataStorage.setDeadline(key, deadline);
+                }
+            }
+            case WriteAheadLog.REMOVE -> logged = dataStorage.remove(body.readUTF());
+            case WriteAheadLog.MULTI_PUT_ENCODED -> {
+                int N = body.readInt();
+                Map<String, byte[]> pairs = new LinkedHashMap<>();
+                for (int i = 0; i < N; i++) {
+                    pairs.put(body.readUTF(), PayloadWriter.readValue(body));
+                }
+                // Applied as one unit, so readers of a backup never see part of a transaction
+                logged = dataStorage.putAll(pairs, new ArrayList<>());
+            }
+            // Records of earlier versions hold plain values
+            case WriteAheadLog.PUT -> logged = dataStorage.put(body.readUTF(),
+                    Codec.raw(PayloadWriter.readValue(body)), 0);
+            case WriteAheadLog.MULTI_PUT -> {
+                int N = body.readInt();
+                Map<String, byte[]> pairs = new LinkedHashMap<>();
+                for (int i = 0; i < N; i++) {
+                    pairs.put(body.readUTF(), Codec.raw(PayloadWriter.readValue(body)));
+                }
+                logged = dataStorage.putAll(pairs, new ArrayList<>());
+            }
+            case WriteAheadLog.REGISTER -> {
+                String username = body.readUTF();
+                userDatabase.putIfAbsent(username, new User(username, body.readUTF()));
+            }
+            default -> throw new IOException("Unknown log record type " + type);
+        }
+        // A change that was already applied is not logged again
+        return logged == null ? CompletableFuture.completedFuture(null) : logged;
+    }
+
 }
\ No newline at end of file
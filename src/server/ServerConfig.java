@@ -0,0 +1,505 @@
+package server;
+
+/**
+ * The <code>ServerConfig</code> class holds the startup options of the
+ * {@link Server}. The first command-line argument is always the most requests
+ * processed at once (see {@link Admission}), a ceiling unless the limit is
+ * fixed; every other option is given as <code>--name=value</code>.
+ * <p>
+ * Supported options:
+ * <ul>
+ * <li><code>--port=N</code> - the port to listen on (default: 12345).</li>
+ * <li><code>--queue=N</code> - the most requests waiting for one of the
+ * permits before further ones are rejected as busy (default: four times the
+ * permits).</li>
+ * <li><code>--limit=adaptive|fixed</code> - adapt the number of requests
+ * processed at once to their latency, up to the first argument (default), or
+ * always allow that many.</li>
+ * <li><code>--data-dir=DIR</code> - the directory the state is kept in
+ * (default: <code>Data</code>). Servers running side by side, such as the
+ * shards of a {@link client.ShardedClient}, need one each.</li>
+ * <li><code>--mode=threads|nio</code> - thread-per-connection (default) or a
+ * non-blocking selector front-end.</li>
+ * <li><code>--io-threads=N</code> - number of selector event loops used in
+ * <code>nio</code> mode (default: available processors, at most 4).</li>
+ * <li><code>--workers=N</code> - number of worker threads that execute
+ * completed requests in <code>nio</code> mode (default: the permit count).</li>
+ * <li><code>--threads=platform|virtual</code> - whether client sessions (or,
+ * in <code>nio</code> mode, requests) run on platform threads (default) or on
+ * virtual threads. Virtual threads need a Java 21+ runtime; older runtimes
+ * fall back to platform threads.</li>
+ * <li><code>--wal-sync=always|interval|never</code> - when a change appended
+ * to the write-ahead log counts as durable (default: <code>always</code>, see
+ * {@link WriteAheadLog.SyncPolicy}).</li>
+ * <li><code>--wal-interval=MS</code> - milliseconds between syncs of the log
+ * with <code>--wal-sync=interval</code> (default: 10).</li>
+ * <li><code>--snapshot-interval=S</code> - seconds between background
+ * snapshots of the state, after which the write-ahead log is truncated
+ * (default: 60, 0 disables them).</li>
+ * <li><code>--storage=heap|offheap</code> - keep values as heap arrays
+ * (default, see {@link HeapStorage}) or in off-heap slabs (see
+ * {@link OffHeapStorage}), or in an LSM tree of segment files under
+ * <code>Data/lsm</code> for datasets larger than memory (see
+ * {@link LsmStorage}).</li>
+ * <li><code>--memtable-mb=N</code> - megabytes of pairs the LSM engine keeps
+ * in memory before writing them to a segment (default: 16).</li>
+ * <li><code>--replication-port=N</code> - accept backups on this port and
+ * stream every change to them (default: none, see
+ * {@link ReplicationPrimary}).</li>
+ * <li><code>--replication=async|sync</code> - acknowledge writes at once
+ * (default) or only once every backup has made them durable.</li>
+ * <li><code>--replica-of=HOST:PORT</code> - run as a read-only backup of the
+ * primary with that replication port (see {@link ReplicationBackup}).</li>
+ * <li><code>--replication-secret=SECRET</code> - the secret a backup proves it
+ * knows before the primary sends it anything. Required with
+ * <code>--replication-port</code> and <code>--replica-of</code>, and the same
+ * on the primary and its backups. Only the handshake is protected: the
+ * changes, passwords included, then travel in the clear, so the replication
+ * port belongs on a trusted network.</li>
+ * <li><code>--replication-bind=ADDRESS</code> - the local address the
+ * replication port is bound to, such as that of a private interface
+ * (default: every interface).</li>
+ * <li><code>--compression=deflate|none</code> - store values of at least
+ * {@value common.Codec#THRESHOLD} bytes compressed and offer the codec to
+ * clients (default), or store values as they are sent.</li>
+ * <li><code>--max-memory-mb=N</code> - megabytes the stored pairs may take
+ * before keys are evicted (default: 0, no limit). Not supported with
+ * <code>--storage=lsm</code>, whose memtable already bounds its memory.</li>
+ * <li><code>--upload-mb=N</code> - megabytes the values being sent in chunks
+ * may hold at once, across every session, before further uploads are
+ * answered with BUSY (default: a quarter of the maximum heap, see
+ * {@link UploadBudget}).</li>
+ * <li><code>--eviction=lru|lfu</code> - evict approximately the least recently
+ * (default) or the least frequently read keys (see {@link Eviction}).</li>
+ * </ul>
+ */
+public class ServerConfig {
+
+    /**
+     * The way client connections are served.
+     */
+    public enum Mode {
+        /**
+         * One pooled thread blocks on each client session.
+         */
+        THREADS,
+        /**
+         * A few selector threads parse requests and hand them to workers.
+         */
+        NIO
+    }
+
+    /**
+     * The kind of thread that runs client sessions and requests.
+     */
+    public enum Threads {
+        /**
+         * Operating system threads from a pool.
+         */
+        PLATFORM,
+        /**
+         * One virtual thread per session or request.
+         */
+        VIRTUAL
+    }
+
+    /**
+     * How the number of requests processed at once is chosen.
+     */
+    public enum Limit {
+        /**
+         * Adapted to the latency of the requests, up to the configured
+         * number.
+         */
+        ADAPTIVE,
+        /**
+         * Always the configured number.
+         */
+        FIXED
+    }
+
+    /**
+     * Where the stored values are kept.
+     */
+    public enum Storage {
+        /**
+         * One array per value on the Java heap.
+         */
+        HEAP,
+        /**
+         * Slots of direct buffers outside the Java heap.
+         */
+        OFFHEAP,
+        /**
+         * A memtable backed by sorted segment files.
+         */
+        LSM
+    }
+
+    /**
+     * How stored values are compressed.
+     */
+    public enum Compression {
+        /**
+         * Values are stored as they are sent.
+         */
+        NONE,
+        /**
+         * Values are compressed with Deflate (see {@link common.Codec}).
+         */
+        DEFLATE
+    }
+
+    private final int permits;
+    private int port = Server.getPort();
+    private String dataDir = "Data";
+    private Mode mode = Mode.THREADS;
+    private int ioThreads = Math.min(4, Runtime.getRuntime().availableProcessors());
+    private int workers;
+    private int queue;
+    private Limit limit = Limit.ADAPTIVE;
+    private Threads threads = Threads.PLATFORM;
+    private WriteAheadLog.SyncPolicy walSync = WriteAheadLog.SyncPolicy.ALWAYS;
+    private int walInterval = 10;
+    private int snapshotInterval = 60;
+    private Storage storage = Storage.HEAP;
+    private int memtableMb = 16;
+    private int replicationPort;
+    private ReplicationPrimary.Mode replication = ReplicationPrimary.Mode.ASYNC;
+    private String replicaOfHost;
+    private int replicaOfPort;
+    private String replicationSecret;
+    private String replicationBind;
+    private Compression compression = Compression.DEFLATE;
+    private int maxMemoryMb;
+    private int uploadMb = (int) (Runtime.getRuntime().maxMemory() / 4 / (1024 * 1024));
+    private Eviction.Policy eviction = Eviction.Policy.LRU;
+
+    /**
+     * Constructs a configuration with the given number of permits and default
+     * values for every other option.
+     *
+     * @param permits The most requests processed at once.
+     */
+    public ServerConfig(int permits) {
+        this.permits = permits;
+        this.workers = permits;
+        this.queue = 4 * permits;
+    }
+
+    /**
+     * Parses the command-line arguments of the server.
+     *
+     * @param args The command-line arguments.
+     * @return The parsed configuration.
+     * @throws IllegalArgumentException If an argument is missing or invalid.
+     */
+    public static ServerConfig parse(String[] args) {
+        if (args.length < 1) {
+            throw new IllegalArgumentException(
+                    "É necessário fornecer o número de pedidos processados em simultâneo como argumento.");
+        }
+
+        ServerConfig config = new ServerConfig(parsePositive("permits", args[0]));
+        for (int i = 1; i < args.length; i++) {
+            String arg = args[i];
+            int eq = arg.indexOf('=');
+            if (!arg.startsWith("--") || eq < 0) {
+                throw new IllegalArgumentException("Invalid option '" + arg + "', expected --name=value.");
+            }
+            String name = arg.substring(2, eq);
+            String value = arg.substring(eq + 1);
+            switch (name) {
+                case "mode" -> config.mode = parseEnum(Mode.class, "mode", value);
+                case "io-threads" -> config.ioThreads = parsePositive(name, value);
+                case "workers" -> config.workers = parsePositive(name, value);
+                case "queue" -> config.queue = parseNonNegative(name, value);
+                case "limit" -> config.limit = parseEnum(Limit.class, "limit", value);
+                case "threads" -> config.threads = parseEnum(Threads.class, "thread kind", value);
+                case "wal-sync" -> config.walSync = parseEnum(WriteAheadLog.SyncPolicy.class, "sync policy", value);
+                case "wal-interval" -> config.walInterval = parsePositive(name, value);
+                case "snapshot-interval" -> config.snapshotInterval = parseNonNegative(name, value);
+                case "port" -> config.port = parsePositive(name, value);
+                case "data-dir" -> config.dataDir = value;
+                case "storage" -> config.storage = parseEnum(Storage.class, "storage engine", value);
+                case "memtable-mb" -> config.memtableMb = parsePositive(name, value);
+                case "replication-port" -> config.replicationPort = parsePositive(name, value);
+                case "replication" -> config.replication = parseEnum(ReplicationPrimary.Mode.class,
+                        "replication mode", value);
+                case "replica-of" -> {
+                    int colon = value.lastIndexOf(':');
+                    if (colon <= 0) {
+                        throw new IllegalArgumentException("'replica-of' must be HOST:PORT.");
+                    }
+                    config.replicaOfHost = value.substring(0, colon);
+                    config.replicaOfPort = parsePositive(name, value.substring(colon + 1));
+                }
+                case "replication-secret" -> config.replicationSecret = value;
+                case "replication-bind" -> config.replicationBind = value;
+                case "compression" -> config.compression = parseEnum(Compression.class, "compression", value);
+                case "max-memory-mb" -> config.maxMemoryMb = parseNonNegative(name, value);
+                case "upload-mb" -> config.uploadMb = parsePositive(name, value);
+                case "eviction" -> config.eviction = parseEnum(Eviction.Policy.class, "eviction policy", value);
+                default -> throw new IllegalArgumentException("Unknown option '--" + name + "'.");
+            }
+        }
+        if ((config.replicationPort > 0 || config.replicaOfHost != null)
+                && (config.replicationSecret == null || config.replicationSecret.isEmpty())) {
+            throw new IllegalArgumentException("'replication-secret' is required to replicate.");
+        }
+        if (config.maxMemoryMb > 0 && config.storage == Storage.LSM) {
+            throw new IllegalArgumentException("'max-memory-mb' is not supported with the lsm storage engine.");
+        }
+        return config;
+    }
+
+    private static <E extends Enum<E>> E parseEnum(Class<E> type, String name, String value) {
+        try {
+            return Enum.valueOf(type, value.toUpperCase());
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Unknown " + name + " '" + value + "'.");
+        }
+    }
+
+    private static int parsePositive(String name, String value) {
+        try {
+            int parsed = Integer.parseInt(value);
+            if (parsed <= 0) {
+                throw new IllegalArgumentException("'" + name + "' must be a positive integer.");
+            }
+            return parsed;
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("'" + name + "' deve ser um número inteiro.");
+        }
+    }
+
+    private static int parseNonNegative(String name, String value) {
+        return value.equals("0") ? 0 : parsePositive(name, value);
+    }
+
+    /**
+     * Gets the most requests processed at once.
+     *
+     * @return The number of permits.
+     */
+    public int getPermits() {
+        return permits;
+    }
+
+    /**
+     * Gets the most requests waiting for a permit.
+     *
+     * @return The length of the queue.
+     */
+    public int getQueue() {
+        return queue;
+    }
+
+    /**
+     * Gets how the number of requests processed at once is chosen.
+     *
+     * @return The kind of limit.
+     */
+    public Limit getLimit() {
+        return limit;
+    }
+
+    /**
+     * Gets the connection handling mode.
+     *
+     * @return The mode.
+     */
+    public Mode getMode() {
+        return mode;
+    }
+
+    /**
+     * Gets the number of selector event loops used in <code>nio</code> mode.
+     *
+     * @return The number of event loops.
+     */
+    public int getIoThreads() {
+        return ioThreads;
+    }
+
+    /**
+     * Gets the number of worker threads used in <code>nio</code> mode.
+     *
+     * @return The number of workers.
+     */
+    public int getWorkers() {
+        return workers;
+    }
+
+    /**
+     * Gets the kind of thread that runs client sessions and requests.
+     *
+     * @return The thread kind.
+     */
+    public Threads getThreads() {
+        return threads;
+    }
+
+    /**
+     * Gets the sync policy of the write-ahead log.
+     *
+     * @return The sync policy.
+     */
+    public WriteAheadLog.SyncPolicy getWalSync() {
+        return walSync;
+    }
+
+    /**
+     * Gets the milliseconds between syncs of the write-ahead log with the
+     * interval policy.
+     *
+     * @return The interval, in milliseconds.
+     */
+    public int getWalInterval() {
+        return walInterval;
+    }
+
+    /**
+     * Gets the seconds between background snapshots of the state.
+     *
+     * @return The interval, in seconds, or 0 if snapshots are disabled.
+     */
+    public int getSnapshotInterval() {
+        return snapshotInterval;
+    }
+
+    /**
+     * Gets where the stored values are kept.
+     *
+     * @return The storage engine.
+     */
+    public Storage getStorage() {
+        return storage;
+    }
+
+    /**
+     * Gets the megabytes of pairs the LSM engine keeps in its memtable.
+     *
+     * @return The memtable size, in megabytes.
+     */
+    public int getMemtableMb() {
+        return memtableMb;
+    }
+
+    /**
+     * Gets the port to listen on.
+     *
+     * @return The port number.
+     */
+    public int getPort() {
+        return port;
+    }
+
+    /**
+     * Gets the directory the state is kept in.
+     *
+     * @return The data directory.
+     */
+    public String getDataDir() {
+        return dataDir;
+    }
+
+    /**
+     * Gets the port backups connect to.
+     *
+     * @return The replication port, or 0 if the server accepts no backups.
+     */
+    public int getReplicationPort() {
+        return replicationPort;
+    }
+
+    /**
+     * Gets when a change counts as replicated to the backups.
+     *
+     * @return The replication mode.
+     */
+    public ReplicationPrimary.Mode getReplication() {
+        return replication;
+    }
+
+    /**
+     * Checks whether the server runs as a backup of a primary.
+     *
+     * @return true if the server is a backup.
+     */
+    public boolean isBackup() {
+        return replicaOfHost != null;
+    }
+
+    /**
+     * Gets the host of the primary this server is a backup of.
+     *
+     * @return The host, or null if the server is not a backup.
+     */
+    public String getReplicaOfHost() {
+        return replicaOfHost;
+    }
+
+    /**
+     * Gets the replication port of the primary this server is a backup of.
+     *
+     * @return The port, or 0 if the server is not a backup.
+     */
+    public int getReplicaOfPort() {
+        return replicaOfPort;
+    }
+
+    /**
+     * Gets the secret shared by the primary and its backups.
+     *
+     * @return The secret, or null if the server does not replicate.
+     */
+    public String getReplicationSecret() {
+        return replicationSecret;
+    }
+
+    /**
+     * Gets the local address the replication port is bound to.
+     *
+     * @return The address, or null to bind every interface.
+     */
+    public String getReplicationBind() {
+        return replicationBind;
+    }
+
+    /**
+     * Gets how stored values are compressed.
+     *
+     * @return The compression.
+     */
+    public Compression getCompression() {
+        return compression;
+    }
+
+    /**
+     * Gets how much memory the stored pairs may take before keys are evicted.
+     *
+     * @return The limit, in megabytes, or 0 if there is none.
+     */
+    public int getMaxMemoryMb() {
+        return maxMemoryMb;
+    }
+
+    /**
+     * Gets how much memory the values being sent in chunks may hold at once.
+     *
+     * @return The limit, in megabytes.
+     */
+    public int getUploadMb() {
+        return uploadMb;
+    }
+
+    /**
+     * Gets how the keys to evict are chosen.
+     *
+     * @return The eviction policy.
+     */
+    public Eviction.Policy getEviction() {
+        return eviction;
+    }
+}
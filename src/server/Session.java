@@ -0,0 +1,256 @@
+package server;
+
+import common.Frame;
+import common.User;
+import java.net.ProtocolException;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+
+/**
+ * The <code>Session</code> class holds the state of one client connection
+ * that outlives a single request, such as the user it is authenticated as. It
+ * is shared by the thread-per-connection and the selector front-ends.
+ */
+public class Session {
+
+    /**
+     * Most values a session may be sending in chunks at once.
+     */
+    public static final int MAX_UPLOADS = 8;
+
+    /**
+     * The authenticated user, or null before a successful authentication.
+     */
+    private volatile User user;
+
+    /**
+     * The <code>getWhen</code> conditions of this session still waiting.
+     */
+    private final Set<CompletableFuture<?>> pending = ConcurrentHashMap.newKeySet();
+
+    /**
+     * The values being sent in chunks on this session, by key.
+     */
+    private final Map<String, Upload> uploads = new ConcurrentHashMap<>();
+
+    /**
+     * The codec negotiated on this session, or -1 if the client never
+     * negotiated one and exchanges plain values.
+     */
+    private volatile byte codec = -1;
+
+    /**
+     * Sends frames that are not responses, set by the front-end that owns
+     * the connection.
+     */
+    private volatile Consumer<Frame> pusher = frame -> {
+    };
+
+    /**
+     * The registry tracking the keys this session reads, or null
+     * unless the client asked for it.
+     */
+    private volatile Invalidations invalidations;
+
+    /**
+     * The keys tracked for this session.
+     */
+    private final Set<String> tracked = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Gets the authenticated user.
+     *
+     * @return The user, or null if the session is not authenticated yet.
+     */
+    public User getUser() {
+        return user;
+    }
+
+    /**
+     * Sets the authenticated user.
+     *
+     * @param user The user.
+     */
+    public void setUser(User user) {
+        this.user = user;
+    }
+
+    /**
+     * Checks whether the session is authenticated.
+     *
+     * @return true if a user has registered or logged in on this session.
+     */
+    public boolean isAuthenticated() {
+        return user != null;
+    }
+
+    /**
+     * Records the codec negotiated on this session; from then on its values
+     * are exchanged encoded (see {@link common.Codec}).
+     *
+     * @param codec The codec tag, {@link common.Codec#RAW} for none.
+     */
+    public void negotiate(byte codec) {
+        this.codec = codec;
+    }
+
+    /**
+     * Checks whether the client negotiated how values are encoded.
+     *
+     * @return true if values are exchanged encoded.
+     */
+    public boolean isNegotiated() {
+        return codec >= 0;
+    }
+
+    /**
+     * Gets the codec negotiated on this session.
+     *
+     * @return The codec tag, or -1 if none was negotiated.
+     */
+    public byte getCodec() {
+        return codec;
+    }
+
+    /**
+     * Sets how frames that are not responses are sent on the connection.
+     *
+     * @param pusher Queues a frame to the client.
+     */
+    public void setPusher(Consumer<Frame> pusher) {
+        this.pusher = pusher;
+    }
+
+    /**
+     * Sends a frame that is not a response, such as an
+     * {@link Frame#INVALIDATE}.
+     *
+     * @param frame The frame.
+     */
+    public void push(Frame frame) {
+        pusher.accept(frame);
+    }
+
+    /**
+     * Starts tracking the keys this session reads (see
+     * {@link Frame#TRACK}).
+     *
+     * @param registry The registry that tracks them.
+     */
+    public void startTracking(Invalidations registry) {
+        this.invalidations = registry;
+    }
+
+    /**
+     * Checks whether the keys this session reads are tracked.
+     *
+     * @return true if the client asked for tracking.
+     */
+    public boolean isTracking() {
+        return invalidations != null;
+    }
+
+    /**
+     * Records a key tracked for this session.
+     *
+     * @param key The key.
+     * @param max The most keys tracked at once.
+     * @return true if it is tracked, false if the session already tracks
+     *         the most keys allowed.
+     */
+    boolean addTracked(String key, int max) {
+        if (tracked.contains(key)) {
+            return true;
+        }
+        if (tracked.size() >= max) {
+            return false;
+        }
+        tracked.add(key);
+        return true;
+    }
+
+    /**
+     * Forgets a key tracked for this session.
+     *
+     * @param key The key.
+     * @return true if it was tracked.
+     */
+    boolean removeTracked(String key) {
+        return tracked.remove(key);
+    }
+
+    /**
+     * Keeps track of a pending <code>getWhen</code> condition, so it can be
+     * cancelled if the client goes away before it holds.
+     *
+     * @param <T>       The type of the future.
+     * @param condition The condition.
+     * @return The same condition.
+     */
+    public <T> CompletableFuture<T> track(CompletableFuture<T> condition) {
+        pending.add(condition);
+        condition.whenComplete((ignored, e) -> pending.remove(condition));
+        return condition;
+    }
+
+    /**
+     * Gets the upload of a value sent in chunks, starting it with the first
+     * chunk.
+     *
+     * @param key    The key of the value.
+     * @param length The length of the value, or -1 if not known in advance.
+     * @param budget The budget the memory of the upload is reserved from.
+     * @return The upload, or null if the session already has
+     *         {@value #MAX_UPLOADS} unfinished uploads.
+     * @throws ProtocolException If the length is invalid.
+     */
+    public Upload upload(String key, long length, UploadBudget budget) throws ProtocolException {
+        Upload upload = uploads.get(key);
+        if (upload == null) {
+            if (uploads.size() >= MAX_UPLOADS) {
+                return null;
+            }
+            upload = new Upload(length, budget);
+            uploads.put(key, upload);
+        }
+        return upload;
+    }
+
+    /**
+     * Forgets the upload of a value and gives back its memory, once it is
+     * complete or has failed.
+     *
+     * @param key The key of the value.
+     */
+    public void endUpload(String key) {
+        Upload upload = uploads.remove(key);
+        if (upload != null) {
+            upload.release();
+        }
+    }
+
+    /**
+     * Cancels the conditions still pending, drops the unfinished uploads and
+     * stops tracking keys, once the connection is closed.
+     */
+    public void close() {
+        for (CompletableFuture<?> condition : pending) {
+            condition.cancel(false);
+        }
+        for (Upload upload : uploads.values()) {
+            upload.release();
+        }
+        uploads.clear();
+        Invalidations registry = invalidations;
+        if (registry != null) {
+            invalidations = null;
+            registry.forget(this, tracked);
+            tracked.clear();
+        }
+        pusher = frame -> {
+        };
+    }
+}
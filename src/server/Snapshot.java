@@ -0,0 +1,401 @@
+package server;
+
+import common.Codec;
+import common.User;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32C;
+
+/**
+ * The <code>Snapshot</code> class writes and loads the binary snapshot of the
+ * server state (registered users, stored pairs and their deadlines). The file
+ * is laid out as:
+ *
+ * <pre>
+ * int    magic        {@link #MAGIC}
+ * byte   version      {@link #VERSION}
+ * ...    sections     the entries, split in sections of bounded size
+ * ...    table        for each section: kind, count, offset, length, crc
+ * long   tableOffset  where the table starts
+ * int    sections     number of sections
+ * int    tableCrc     CRC32C of the table
+ * int    magic        {@link #MAGIC}, to recognise a complete file
+ * </pre>
+ *
+ * Inside a section every string and value is an <code>int</code> length
+ * followed by the bytes, strings in UTF-8. A {@link #USERS} entry is a username
+ * and a password, a {@link #DATA} entry a key and a value, an {@link #EXPIRIES}
+ * entry a key and its deadline as 8 bytes. Values are written
+ * encoded as they are stored (see {@link Codec}), so compressed values stay
+ * compressed on disk; version 1 snapshots held plain values, which are encoded
+ * as they are loaded.
+ * <p>
+ * The table is written last, so a snapshot is streamed out in one pass over
+ * the maps. Each section is memory-mapped and decoded on its own, so loading
+ * a snapshot uses every processor and never copies the file through the
+ * heap, unlike the Java serialization it replaces.
+ * </p>
+ */
+public class Snapshot {
+
+    /**
+     * Identifies a snapshot file ("SDKV").
+     */
+    public static final int MAGIC = 0x53444B56;
+
+    /**
+     * The version of the format written by this class.
+     */
+    public static final byte VERSION = 3;
+
+    /**
+     * A section of registered users.
+     */
+    public static final byte USERS = 1;
+
+    /**
+     * A section of stored pairs.
+     */
+    public static final byte DATA = 2;
+
+    /**
+     * A section of deadlines of stored pairs, since version 3.
+     */
+    public static final byte EXPIRIES = 3;
+
+    /**
+     * Sections are closed once they reach this many bytes, so there are
+     * enough of them to load in parallel and each one can be mapped on its
+     * own.
+     */
+    private static final int SECTION_BYTES = 4 * 1024 * 1024;
+
+    private static final int TABLE_ENTRY_BYTES = 1 + 4 + 8 + 8 + 4;
+    private static final int FOOTER_BYTES = 8 + 4 + 4 + 4;
+
+    /**
+     * Receives the entries of a snapshot while it is loaded. It is called
+     * from several threads at once.
+     */
+    public interface Sink {
+        /**
+         * Receives a registered user.
+         *
+         * @param username The username.
+         * @param password The password.
+         */
+        void user(String username, String password);
+
+        /**
+         * Receives a stored pair.
+         *
+         * @param key   The key.
+         * @param value The encoded value.
+         */
+        void pair(String key, byte[] value);
+
+        /**
+         * Receives the deadline of a stored pair, once every pair was
+         * received.
+         *
+         * @param key      The key.
+         * @param deadline When the pair expires, in milliseconds since the
+         *                 epoch.
+         */
+        void expiry(String key, long deadline);
+    }
+
+    private Snapshot() {
+    }
+
+    /**
+     * Writes a snapshot of the given maps. The file is written and synced
+     * under a temporary name and then renamed over the previous snapshot, so
+     * a crash never leaves a half-written one behind. The maps may change
+     * meanwhile; each entry is written as the iteration finds it.
+     *
+     * @param file      The snapshot file.
+     * @param users     The registered users, by username.
+     * @param data      The stored pairs.
+     * @param deadlines The deadlines of the pairs that expire, kept even when
+     *                  the pairs themselves are not in the snapshot.
+     * @throws IOException If the snapshot cannot be written.
+     */
+    public static void write(Path file, Map<String, User> users, Iterable<Map.Entry<String, byte[]>> data,
+            Map<String, Long> deadlines) throws IOException {
+        Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+        try (FileOutputStream fileOut = new FileOutputStream(temporary.toFile());
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOut, 1 << 16))) {
+            out.writeInt(MAGIC);
+            out.writeByte(VERSION);
+
+            SectionWriter sections = new SectionWriter(out);
+            for (User user : users.values()) {
+                sections.add(USERS, utf8(user.getUsername()), utf8(user.getPassword()));
+            }
+            for (Map.Entry<String, byte[]> pair : data) {
+                sections.add(DATA, utf8(pair.getKey()), pair.getValue());
+            }
+            for (Map.Entry<String, Long> expiry : deadlines.entrySet()) {
+                byte[] deadline = ByteBuffer.allocate(8).putLong(expiry.getValue()).array();
+                sections.add(EXPIRIES, utf8(expiry.getKey()), deadline);
+            }
+            sections.finish();
+
+            out.flush();
+            fileOut.getFD().sync();
+        }
+        Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Loads a snapshot, decoding its sections in parallel.
+     *
+     * @param file    The snapshot file.
+     * @param sink    Receives the entries.
+     * @param threads The number of threads to decode with.
+     * @return The number of entries loaded.
+     * @throws IOException If the file cannot be read, is not a snapshot of a
+     *                     supported version, or fails a checksum.
+     */
+    public static long load(Path file, Sink sink, int threads) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            byte version = readVersion(channel);
+            List<Section> sections = readTable(channel);
+
+            ExecutorService loaders = Executors.newFixedThreadPool(Math.max(1, Math.min(threads,
+                    sections.size())));
+            try {
+                long count = 0;
+                // The deadlines are only handed out once their pairs are loaded
+                for (boolean expiries : new boolean[] {false, true}) {
+                    List<Future<Integer>> loaded = new ArrayList<>();
+                    for (Section section : sections) {
+                        if ((section.kind == EXPIRIES) != expiries) {
+                            continue;
+                        }
+                        MappedByteBuffer bytes = channel.map(FileChannel.MapMode.READ_ONLY, section.offset,
+                                section.length);
+                        loaded.add(loaders.submit(() -> section.decode(bytes, sink, version < 2)));
+                    }
+                    for (Future<Integer> section : loaded) {
+                        count += section.get();
+                    }
+                }
+                return count;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while loading the snapshot.", e);
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof IOException cause) {
+                    throw cause;
+                }
+                throw new IOException(e.getCause());
+            } finally {
+                loaders.shutdownNow();
+            }
+        }
+    }
+
+    /**
+     * Checks the header of a snapshot and reads its version.
+     */
+    private static byte readVersion(FileChannel channel) throws IOException {
+        if (channel.size() < 5 + FOOTER_BYTES) {
+            throw new IOException("The snapshot is truncated.");
+        }
+        ByteBuffer header = readFully(channel, 0, 5);
+        if (header.getInt() != MAGIC) {
+            throw new IOException("Not a snapshot file.");
+        }
+        byte version = header.get();
+        if (version < 1 || version > VERSION) {
+            throw new IOException("Unsupported snapshot version " + version + ".");
+        }
+        return version;
+    }
+
+    /**
+     * Checks the footer of a snapshot and reads its section table.
+     */
+    private static List<Section> readTable(FileChannel channel) throws IOException {
+        long size = channel.size();
+        ByteBuffer footer = readFully(channel, size - FOOTER_BYTES, FOOTER_BYTES);
+        long tableOffset = footer.getLong();
+        int count = footer.getInt();
+        int tableCrc = footer.getInt();
+        if (footer.getInt() != MAGIC || count < 0
+                || tableOffset + (long) count * TABLE_ENTRY_BYTES != size - FOOTER_BYTES) {
+            throw new IOException("The snapshot is truncated.");
+        }
+
+        ByteBuffer table = readFully(channel, tableOffset, count * TABLE_ENTRY_BYTES);
+        CRC32C crc = new CRC32C();
+        crc.update(table.duplicate());
+        if ((int) crc.getValue() != tableCrc) {
+            throw new IOException("The snapshot table is corrupted.");
+        }
+
+        List<Section> sections = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            Section section = new Section(table.get(), table.getInt(), table.getLong(), table.getLong(),
+                    table.getInt());
+            if (section.offset < 5 || section.length < 0 || section.offset + section.length > tableOffset) {
+                throw new IOException("The snapshot table is corrupted.");
+            }
+            sections.add(section);
+        }
+        return sections;
+    }
+
+    private static ByteBuffer readFully(FileChannel channel, long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("The snapshot is truncated.");
+            }
+        }
+        return buffer.flip();
+    }
+
+    private static byte[] utf8(String string) {
+        return string.getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * An entry of the section table.
+     */
+    private record Section(byte kind, int count, long offset, long length, int crc) {
+
+        /**
+         * Checks the section against its checksum and hands its entries to the
+         * sink.
+         *
+         * @param plainValues Whether the values are plain, as in version 1.
+         * @return The number of entries.
+         */
+        int decode(ByteBuffer bytes, Sink sink, boolean plainValues) throws IOException {
+            CRC32C check = new CRC32C();
+            check.update(bytes.duplicate());
+            if ((int) check.getValue() != crc) {
+                throw new IOException("A snapshot section is corrupted.");
+            }
+            for (int i = 0; i < count; i++) {
+                byte[] first = field(bytes);
+                byte[] second = field(bytes);
+                switch (kind) {
+                    case USERS -> sink.user(new String(first, StandardCharsets.UTF_8),
+                            new String(second, StandardCharsets.UTF_8));
+                    case DATA -> sink.pair(new String(first, StandardCharsets.UTF_8),
+                            plainValues ? Codec.raw(second) : second);
+                    case EXPIRIES -> {
+                        if (second.length != 8) {
+                            throw new IOException("A snapshot section is corrupted.");
+                        }
+                        sink.expiry(new String(first, StandardCharsets.UTF_8), ByteBuffer.wrap(second).getLong());
+                    }
+                    default -> throw new IOException("Unknown snapshot section kind " + kind + ".");
+                }
+            }
+            return count;
+        }
+
+        private static byte[] field(ByteBuffer bytes) throws IOException {
+            if (bytes.remaining() < 4) {
+                throw new IOException("A snapshot section is truncated.");
+            }
+            int length = bytes.getInt();
+            if (length < 0 || length > bytes.remaining()) {
+                throw new IOException("A snapshot section is truncated.");
+            }
+            byte[] field = new byte[length];
+            bytes.get(field);
+            return field;
+        }
+    }
+
+    /**
+     * Streams entries into sections and writes the section table at the end.
+     */
+    private static class SectionWriter {
+
+        private final DataOutputStream out;
+        private final ByteArrayOutputStream table = new ByteArrayOutputStream();
+        private final DataOutputStream tableOut = new DataOutputStream(table);
+        private final ByteArrayOutputStream section = new ByteArrayOutputStream(SECTION_BYTES);
+        private final DataOutputStream sectionOut = new DataOutputStream(section);
+        private long offset = 5;
+        private byte kind;
+        private int count;
+        private int sections;
+
+        SectionWriter(DataOutputStream out) {
+            this.out = out;
+        }
+
+        void add(byte kind, byte[] first, byte[] second) throws IOException {
+            if (kind != this.kind || section.size() >= SECTION_BYTES) {
+                close();
+                this.kind = kind;
+            }
+            sectionOut.writeInt(first.length);
+            sectionOut.write(first);
+            sectionOut.writeInt(second.length);
+            sectionOut.write(second);
+            count++;
+        }
+
+        void finish() throws IOException {
+            close();
+            long tableOffset = offset;
+            byte[] bytes = table.toByteArray();
+            CRC32C crc = new CRC32C();
+            crc.update(bytes);
+            out.write(bytes);
+            out.writeLong(tableOffset);
+            out.writeInt(sections);
+            out.writeInt((int) crc.getValue());
+            out.writeInt(MAGIC);
+        }
+
+        /**
+         * Writes the current section, if it has entries, and adds it to the
+         * table.
+         */
+        private void close() throws IOException {
+            if (count == 0) {
+                return;
+            }
+            CRC32C crc = new CRC32C();
+            crc.update(section.toByteArray());
+            tableOut.writeByte(kind);
+            tableOut.writeInt(count);
+            tableOut.writeLong(offset);
+            tableOut.writeLong(section.size());
+            tableOut.writeInt((int) crc.getValue());
+            offset += section.size();
+            section.writeTo(out);
+            section.reset();
+            count = 0;
+            sections++;
+        }
+    }
+}
@@ -0,0 +1,135 @@
+package server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Map;
+
+/**
+ * The <code>StorageEngine</code> interface is where {@link DataStorage} keeps
+ * the stored pairs. A stored value is never replaced in place, so an engine
+ * only has to support inserting a missing key, removing a key and looking
+ * keys up; a key is only stored again, possibly with another value, once it
+ * was removed. Engines are used by many threads
+ * at once and must be thread-safe.
+ * <p>
+ * Iterating an engine visits its pairs in no particular order. The iteration
+ * is weakly consistent: it never fails because of concurrent changes, and it
+ * may or may not see the pairs stored or removed while it runs.
+ * </p>
+ */
+public interface StorageEngine extends Iterable<Map.Entry<String, byte[]>>, AutoCloseable {
+
+    /**
+     * Stores a value under a key, unless the key already exists.
+     *
+     * @param key   The key.
+     * @param value The value.
+     * @return true if the value was stored, false if the key already existed.
+     */
+    boolean putIfAbsent(String key, byte[] value);
+
+    /**
+     * Checks that the engine can hold a value, so a write of several pairs
+     * can be rejected before any of them is stored. Values are accepted
+     * unless the engine overrides this.
+     *
+     * @param value The value.
+     * @throws IllegalArgumentException If the value cannot be stored.
+     */
+    default void checkValue(byte[] value) {
+    }
+
+    /**
+     * Removes a key and its value.
+     *
+     * @param key The key.
+     * @return true if the key was removed, false if it did not exist.
+     */
+    boolean remove(String key);
+
+    /**
+     * Gets the value stored under a key.
+     *
+     * @param key The key.
+     * @return The value, or null if the key does not exist.
+     */
+    byte[] get(String key);
+
+    /**
+     * Copies part of the value stored under a key, so a large value can be
+     * sent in chunks without building a copy of all of it for each chunk.
+     * The default implementation gets the whole value; engines that do not
+     * keep values as arrays read only the requested part.
+     *
+     * @param key    The key.
+     * @param offset Position in the value of the first byte to copy.
+     * @param target Receives the bytes, up to its remaining space or the end
+     *               of the value; its position is advanced past them.
+     * @return The length of the whole value, or -1 if the key does not exist.
+     */
+    default int read(String key, int offset, ByteBuffer target) {
+        byte[] value = get(key);
+        if (value == null) {
+            return -1;
+        }
+        if (offset < value.length) {
+            target.put(value, offset, Math.min(target.remaining(), value.length - offset));
+        }
+        return value.length;
+    }
+
+    /**
+     * Gets the number of stored pairs.
+     *
+     * @return The number of pairs.
+     */
+    long size();
+
+    /**
+     * Gets an estimate of the memory taken by the stored pairs, which the
+     * memory limit of {@link DataStorage} is checked against.
+     *
+     * @return The estimated number of bytes.
+     */
+    long getMemoryBytes();
+
+    /**
+     * Tells whether the memory of a removed value may be reused at once for
+     * another value, so a value read while its key is removed may come out
+     * torn. {@link DataStorage} only reads such values under the lock of their
+     * key.
+     *
+     * @return true if removed values are reused.
+     */
+    default boolean reusesRemovedValues() {
+        return false;
+    }
+
+    /**
+     * Tells whether the engine keeps its pairs on disk by itself, in which
+     * case a snapshot of the server state does not need to copy them once
+     * {@link #flush()} returns.
+     *
+     * @return true if the engine is persistent.
+     */
+    default boolean isPersistent() {
+        return false;
+    }
+
+    /**
+     * Makes every stored pair durable in the files of a persistent engine.
+     * Does nothing for in-memory engines.
+     *
+     * @throws IOException If the pairs cannot be written.
+     */
+    default void flush() throws IOException {
+    }
+
+    /**
+     * Releases the resources held by the engine. It must not be used
+     * afterwards.
+     */
+    @Override
+    default void close() {
+    }
+}
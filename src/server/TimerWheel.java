@@ -0,0 +1,204 @@
+package server;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The <code>TimerWheel</code> class tells when keys reach their deadline
+ * without a scheduled task, or a sorted structure, per key. It is a
+ * hierarchical timing wheel: {@value #LEVELS} wheels of {@value #SLOTS} slots,
+ * where a slot of the first wheel spans one tick, a slot of the second a whole
+ * turn of the first, and so on, so a few hundred lists cover deadlines more
+ * than a day ahead with ticks of milliseconds.
+ * <p>
+ * Scheduling a key appends it to the list of the slot its deadline falls in.
+ * On every tick the current slot of the first wheel is due; whenever a wheel
+ * completes a turn, the next slot of the wheel above is emptied into the
+ * wheels below. A key is therefore moved at most {@value #LEVELS} times before
+ * it is due, however many keys there are. Deadlines further ahead than the
+ * last wheel reaches wait in an overflow list, looked at once per turn of it.
+ * </p>
+ * <p>
+ * Keys are scheduled by many threads but the wheel is turned by one: new keys
+ * wait in a concurrent queue until the next tick. Nothing is ever cancelled;
+ * whoever turns the wheel checks each due key against its current deadline.
+ * </p>
+ */
+public class TimerWheel {
+
+    /**
+     * Number of wheels.
+     */
+    public static final int LEVELS = 4;
+
+    /**
+     * Number of slots of each wheel; a power of two.
+     */
+    public static final int SLOTS = 64;
+
+    private static final int SLOT_BITS = Integer.numberOfTrailingZeros(SLOTS);
+
+    /**
+     * Receives the keys that are due.
+     */
+    public interface Handler {
+        /**
+         * Handles a key whose deadline has passed.
+         *
+         * @param key      The key.
+         * @param deadline The deadline it was scheduled with, in milliseconds
+         *                 since the epoch.
+         */
+        void due(String key, long deadline);
+    }
+
+    private final long tickMillis;
+
+    /**
+     * The lists of each slot of each wheel. Only used by the turning thread.
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private final List<Timer>[][] wheels = new List[LEVELS][SLOTS];
+
+    /**
+     * Timers beyond the reach of the last wheel. Only used by the turning
+     * thread.
+     */
+    private List<Timer> overflow = new ArrayList<>();
+
+    private final ConcurrentLinkedQueue<Timer> scheduled = new ConcurrentLinkedQueue<>();
+    private final AtomicLong pending = new AtomicLong();
+
+    /**
+     * The last tick processed. Only used by the turning thread.
+     */
+    private long tick;
+
+    /**
+     * Constructs an empty wheel.
+     *
+     * @param tickMillis The milliseconds spanned by a slot of the first wheel.
+     * @param now        The current time, in milliseconds since the epoch.
+     */
+    public TimerWheel(long tickMillis, long now) {
+        this.tickMillis = tickMillis;
+        this.tick = now / tickMillis;
+        for (List<Timer>[] wheel : wheels) {
+            for (int i = 0; i < SLOTS; i++) {
+                wheel[i] = new ArrayList<>();
+            }
+        }
+    }
+
+    /**
+     * Schedules a key. It is handed out by the first turn of the wheel at or
+     * after its deadline, at most a tick late. Thread-safe.
+     *
+     * @param key      The key.
+     * @param deadline The deadline, in milliseconds since the epoch.
+     */
+    public void schedule(String key, long deadline) {
+        // Rounded up, so a key is never due before its deadline
+        scheduled.add(new Timer(key, deadline, (deadline + tickMillis - 1) / tickMillis));
+        pending.incrementAndGet();
+    }
+
+    /**
+     * Turns the wheel up to the given time, handing out every key due by
+     * then. Must only be called by one thread at a time.
+     *
+     * @param now     The current time, in milliseconds since the epoch.
+     * @param handler Receives the keys that are due.
+     */
+    public void advance(long now, Handler handler) {
+        for (Timer timer = scheduled.poll(); timer != null; timer = scheduled.poll()) {
+            if (timer.tick <= tick) {
+                fire(timer, handler);
+            } else {
+                place(timer);
+            }
+        }
+        long target = now / tickMillis;
+        while (tick < target) {
+            tick++;
+            cascade();
+            List<Timer> slot = wheels[0][(int) tick & (SLOTS - 1)];
+            if (!slot.isEmpty()) {
+                wheels[0][(int) tick & (SLOTS - 1)] = new ArrayList<>();
+                for (Timer timer : slot) {
+                    fire(timer, handler);
+                }
+            }
+        }
+    }
+
+    /**
+     * Gets the number of keys scheduled and not handed out yet, including
+     * those whose deadline changed since.
+     *
+     * @return The number of keys.
+     */
+    public long size() {
+        return pending.get();
+    }
+
+    /**
+     * Gets the milliseconds spanned by a slot of the first wheel.
+     *
+     * @return The tick, in milliseconds.
+     */
+    public long getTickMillis() {
+        return tickMillis;
+    }
+
+    /**
+     * Empties the slots of the upper wheels that start at the current tick
+     * into the wheels below, top wheel first.
+     */
+    private void cascade() {
+        if ((tick & ((1L << (SLOT_BITS * LEVELS)) - 1)) == 0 && !overflow.isEmpty()) {
+            List<Timer> timers = overflow;
+            overflow = new ArrayList<>();
+            timers.forEach(this::place);
+        }
+        for (int level = LEVELS - 1; level > 0; level--) {
+            if ((tick & ((1L << (SLOT_BITS * level)) - 1)) != 0) {
+                continue;
+            }
+            int index = (int) (tick >>> (SLOT_BITS * level)) & (SLOTS - 1);
+            List<Timer> timers = wheels[level][index];
+            if (!timers.isEmpty()) {
+                wheels[level][index] = new ArrayList<>();
+                timers.forEach(this::place);
+            }
+        }
+    }
+
+    /**
+     * Puts a timer due at or after the current tick in the lowest wheel whose
+     * current turn includes its tick.
+     */
+    private void place(Timer timer) {
+        for (int level = 0; level < LEVELS; level++) {
+            int above = SLOT_BITS * (level + 1);
+            if ((timer.tick >>> above) == (tick >>> above)) {
+                wheels[level][(int) (timer.tick >>> (SLOT_BITS * level)) & (SLOTS - 1)].add(timer);
+                return;
+            }
+        }
+        overflow.add(timer);
+    }
+
+    private void fire(Timer timer, Handler handler) {
+        pending.decrementAndGet();
+        handler.due(timer.key, timer.deadline);
+    }
+
+    /**
+     * A scheduled key.
+     */
+    private record Timer(String key, long deadline, long tick) {
+    }
+}
@@ -0,0 +1,143 @@
+package server;
+
+import common.Codec;
+import java.net.ProtocolException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The <code>Upload</code> class gathers the chunks of a value sent with
+ * {@link common.Frame#PUT_CHUNK} until the last one arrives. When the client
+ * declares the length of the value up front, the chunks are copied straight
+ * into an array of that length, which is then stored as it is, so the value
+ * is never held twice. Otherwise the chunks are kept as they arrive and joined
+ * once at the end.
+ * <p>
+ * The value is built already encoded as {@link Codec#RAW}, the first byte of
+ * the array being the tag, so it is stored without another copy. Values sent
+ * in chunks are never compressed: they are meant to be read back in ranges.
+ * </p>
+ * <p>
+ * The memory an upload holds is reserved from an {@link UploadBudget} before
+ * it is allocated: the declared length when the first chunk arrives, or each
+ * chunk when no length was declared. It is given back by {@link #release()}.
+ * </p>
+ */
+public class Upload {
+
+    /**
+     * Largest value that can be sent in chunks.
+     */
+    public static final long MAX_VALUE_LENGTH = 1L << 30;
+
+    private final long declared;
+    private final UploadBudget budget;
+    private byte[] value;
+    private final List<byte[]> chunks;
+    private long received;
+    private long reserved;
+    private boolean released;
+
+    /**
+     * Starts an upload. Nothing is allocated or reserved until the first
+     * chunk arrives.
+     *
+     * @param length The length of the value, or -1 if not known in advance.
+     * @param budget The budget the memory of the upload is reserved from.
+     * @throws ProtocolException If the length is too large.
+     */
+    public Upload(long length, UploadBudget budget) throws ProtocolException {
+        if (length > MAX_VALUE_LENGTH || length < -1) {
+            throw new ProtocolException("Invalid value length: " + length);
+        }
+        this.declared = length;
+        this.budget = budget;
+        this.chunks = length >= 0 ? null : new ArrayList<>();
+    }
+
+    /**
+     * Adds the next chunk of the value.
+     *
+     * @param bytes  The array holding the chunk.
+     * @param offset The position of the chunk in the array.
+     * @param length The length of the chunk.
+     * @return Whether the chunk was added, false if the budget has no room for
+     *         it or the upload was already released.
+     * @throws ProtocolException If the value grows past its declared length
+     *                           or past {@link #MAX_VALUE_LENGTH}.
+     */
+    public synchronized boolean append(byte[] bytes, int offset, int length) throws ProtocolException {
+        long limit = declared >= 0 ? declared : MAX_VALUE_LENGTH;
+        if (received + length > limit) {
+            throw new ProtocolException("Value longer than " + limit + " bytes.");
+        }
+        if (released) {
+            return false;
+        }
+        if (declared >= 0) {
+            if (value == null) {
+                if (!budget.reserve(declared)) {
+                    return false;
+                }
+                reserved = declared;
+                value = new byte[1 + (int) declared];
+            }
+            System.arraycopy(bytes, offset, value, 1 + (int) received, length);
+        } else if (length > 0) {
+            if (!budget.reserve(length)) {
+                return false;
+            }
+            reserved += length;
+            byte[] chunk = new byte[length];
+            System.arraycopy(bytes, offset, chunk, 0, length);
+            chunks.add(chunk);
+        }
+        received += length;
+        return true;
+    }
+
+    /**
+     * Gets the complete value, once the last chunk has been added.
+     *
+     * @return The value, encoded as {@link Codec#RAW}.
+     * @throws ProtocolException If fewer bytes than declared were sent.
+     */
+    public synchronized byte[] toByteArray() throws ProtocolException {
+        if (declared >= 0) {
+            if (received != declared) {
+                throw new ProtocolException("Value of " + received + " bytes, " + declared + " declared.");
+            }
+            return value != null ? value : new byte[] {Codec.RAW};
+        }
+        byte[] joined = new byte[1 + (int) received];
+        joined[0] = Codec.RAW;
+        int position = 1;
+        for (byte[] chunk : chunks) {
+            System.arraycopy(chunk, 0, joined, position, chunk.length);
+            position += chunk.length;
+        }
+        return joined;
+    }
+
+    /**
+     * Gives back the memory reserved by the upload, once the value is stored,
+     * the upload has failed or its session is closed. Later chunks are
+     * refused.
+     */
+    public synchronized void release() {
+        if (!released) {
+            released = true;
+            budget.release(reserved);
+            reserved = 0;
+        }
+    }
+
+    /**
+     * Gets the number of bytes received so far.
+     *
+     * @return The number of bytes.
+     */
+    public long getReceived() {
+        return received;
+    }
+}
@@ -0,0 +1,71 @@
+package server;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The <code>UploadBudget</code> class bounds the memory held by the values
+ * being sent in chunks, across every session. An upload reserves the length
+ * it declares before its buffer is allocated, or each chunk as it arrives when
+ * no length was declared, and gives the bytes back once it is stored, fails
+ * or its session is closed. A reservation that does not fit is refused, and
+ * the client gets {@link common.Frame#BUSY} instead of the server running out
+ * of memory on behalf of a few unfinished uploads.
+ */
+public class UploadBudget {
+
+    private final long capacity;
+    private final AtomicLong reserved = new AtomicLong();
+
+    /**
+     * Constructs a budget.
+     *
+     * @param capacity The most bytes the unfinished uploads may hold.
+     */
+    public UploadBudget(long capacity) {
+        this.capacity = capacity;
+    }
+
+    /**
+     * Reserves bytes, if they fit.
+     *
+     * @param bytes The number of bytes.
+     * @return Whether the bytes were reserved.
+     */
+    public boolean reserve(long bytes) {
+        long current;
+        do {
+            current = reserved.get();
+            if (current + bytes > capacity) {
+                return false;
+            }
+        } while (!reserved.compareAndSet(current, current + bytes));
+        return true;
+    }
+
+    /**
+     * Gives back bytes reserved earlier.
+     *
+     * @param bytes The number of bytes.
+     */
+    public void release(long bytes) {
+        reserved.addAndGet(-bytes);
+    }
+
+    /**
+     * Gets the number of bytes reserved at the moment.
+     *
+     * @return The number of bytes.
+     */
+    public long getReserved() {
+        return reserved.get();
+    }
+
+    /**
+     * Gets the most bytes the unfinished uploads may hold.
+     *
+     * @return The number of bytes.
+     */
+    public long getCapacity() {
+        return capacity;
+    }
+}
@@ -0,0 +1,481 @@
+package server;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+/**
+ * The <code>WriteAheadLog</code> class is an append-only log of the changes
+ * made to the server state (stored pairs and registered users), kept under
+ * <code>Data/</code> so they survive a crash between two saves of the state.
+ * Each record is written as:
+ *
+ * <pre>
+ * int    length   number of bytes of type and body
+ * int    crc      CRC32 of type and body
+ * byte   type     {@link #PUT_ENCODED}, {@link #MULTI_PUT_ENCODED},
+ *                 {@link #PUT_EXPIRING}, {@link #REMOVE} or
+ *                 {@link #REGISTER}
+ * byte[] body
+ * </pre>
+ *
+ * Appending never touches the file: records are copied into a buffer and a
+ * single flusher thread writes the buffer out. While it waits for an
+ * <code>fsync</code>, newer records pile up in a fresh buffer and are synced
+ * together on the next round, so concurrent writers share the cost of a sync
+ * (group commit). When a record counts as durable depends on the
+ * {@link SyncPolicy}.
+ * <p>
+ * So that the log does not grow forever, {@link #rotate(Path)} moves the
+ * records written so far to a separate segment, which can be deleted once a
+ * snapshot of the state covers them.
+ * </p>
+ */
+public class WriteAheadLog implements AutoCloseable {
+
+    /**
+     * When appended records are considered durable.
+     */
+    public enum SyncPolicy {
+        /**
+         * An append completes once its record has been synced to disk.
+         */
+        ALWAYS,
+        /**
+         * An append completes at once; the log is synced every interval.
+         */
+        INTERVAL,
+        /**
+         * An append completes at once; the log is written but never synced,
+         * leaving it to the operating system.
+         */
+        NEVER
+    }
+
+    /**
+     * A stored pair, written by earlier versions. Body: key, plain value.
+     */
+    public static final byte PUT = 1;
+
+    /**
+     * Several stored pairs, written by earlier versions. Body: count, then
+     * key and plain value for each pair.
+     */
+    public static final byte MULTI_PUT = 2;
+
+    /**
+     * A registered user. Body: username, password.
+     */
+    public static final byte REGISTER = 3;
+
+    /**
+     * A stored pair. Body: key, value encoded as stored (see
+     * {@link common.Codec}).
+     */
+    public static final byte PUT_ENCODED = 4;
+
+    /**
+     * Several stored pairs, of a multiPut or a transaction, applied as one
+     * unit. Body: count, then key and encoded value for each pair.
+     */
+    public static final byte MULTI_PUT_ENCODED = 5;
+
+    /**
+     * A stored pair that expires. Body: key, encoded value, deadline in
+     * milliseconds since the epoch (<code>long</code>).
+     */
+    public static final byte PUT_EXPIRING = 6;
+
+    /**
+     * A removed key, which expired or was evicted. Body: key.
+     */
+    public static final byte REMOVE = 7;
+
+    /**
+     * Applies the records of a log during replay.
+     */
+    public interface RecordHandler {
+        /**
+         * Applies one record.
+         *
+         * @param type The record type.
+         * @param body A stream over the record body.
+         * @throws IOException If the body is malformed.
+         */
+        void apply(byte type, DataInputStream body) throws IOException;
+    }
+
+    private final Path file;
+    private FileChannel channel;
+    private final SyncPolicy policy;
+    private final long intervalMillis;
+    private final Thread flusher;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition hasRecords = lock.newCondition();
+    private ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+    private List<CompletableFuture<Void>> waiting = new ArrayList<>();
+    private Path rotateTo;
+    private CompletableFuture<Void> rotated;
+    private boolean closed;
+
+    /**
+     * Opens a log for appending, creating it if needed. Existing records are
+     * kept; call {@link #replay} first to apply them.
+     *
+     * @param file           The log file.
+     * @param policy         The sync policy.
+     * @param intervalMillis Milliseconds between syncs with
+     *                       {@link SyncPolicy#INTERVAL}.
+     * @throws IOException If the file cannot be opened.
+     */
+    public WriteAheadLog(Path file, SyncPolicy policy, long intervalMillis) throws IOException {
+        Files.createDirectories(file.toAbsolutePath().getParent());
+        this.file = file;
+        this.channel = open(file);
+        this.policy = policy;
+        this.intervalMillis = intervalMillis;
+        this.flusher = new Thread(this::flushLoop, "wal-flusher");
+        this.flusher.setDaemon(true);
+        this.flusher.start();
+    }
+
+    /**
+     * Appends a record to the log.
+     *
+     * @param record The record, as built by {@link #putRecord},
+     *               {@link #multiPutRecord} or {@link #registerRecord}.
+     * @return A future completed once the record is durable according to the
+     *         sync policy, or exceptionally if it could not be written.
+     */
+    public CompletableFuture<Void> append(byte[] record) {
+        CRC32 crc = new CRC32();
+        crc.update(record);
+
+        CompletableFuture<Void> durable = new CompletableFuture<>();
+        lock.lock();
+        try {
+            if (closed) {
+                durable.completeExceptionally(new IOException("The write-ahead log is closed."));
+                return durable;
+            }
+            writeInt(buffer, record.length);
+            writeInt(buffer, (int) crc.getValue());
+            buffer.write(record, 0, record.length);
+            if (policy == SyncPolicy.ALWAYS) {
+                waiting.add(durable);
+            } else {
+                durable.complete(null);
+            }
+            hasRecords.signal();
+        } finally {
+            lock.unlock();
+        }
+        return durable;
+    }
+
+    /**
+     * Moves every record appended so far to another file and starts an empty
+     * log. Records appended after this call may still end up in the moved
+     * segment, never the other way round, so once the returned future
+     * completes, the segment holds every change made before the call and
+     * nothing the state does not already contain.
+     *
+     * @param segment Where to move the records. Must not exist.
+     * @return A future completed once the records have been synced and moved.
+     */
+    public CompletableFuture<Void> rotate(Path segment) {
+        lock.lock();
+        try {
+            if (closed) {
+                return CompletableFuture.failedFuture(new IOException("The write-ahead log is closed."));
+            }
+            if (rotated == null) {
+                rotateTo = segment;
+                rotated = new CompletableFuture<>();
+                hasRecords.signal();
+            }
+            return rotated;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Writes out the records still buffered and closes the log.
+     */
+    @Override
+    public void close() {
+        lock.lock();
+        try {
+            closed = true;
+            if (rotated != null) {
+                rotated.completeExceptionally(new IOException("The write-ahead log is closed."));
+                rotated = null;
+            }
+            hasRecords.signal();
+        } finally {
+            lock.unlock();
+        }
+        try {
+            flusher.join();
+            channel.close();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            System.err.println("\u001B[31m[ERROR]\u001B[0m Error closing the write-ahead log: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Body of the flusher thread: repeatedly takes the buffered records, writes
+     * them and syncs them according to the policy, then completes the appends
+     * waiting for them. A requested rotation happens right after the records
+     * taken with it have been written.
+     */
+    private void flushLoop() {
+        while (true) {
+            byte[] batch;
+            List<CompletableFuture<Void>> synced;
+            Path segment;
+            CompletableFuture<Void> rotation;
+            boolean last;
+            lock.lock();
+            try {
+                if (policy == SyncPolicy.INTERVAL && !closed && rotated == null) {
+                    hasRecords.await(intervalMillis, TimeUnit.MILLISECONDS);
+                }
+                while (buffer.size() == 0 && !closed && rotated == null) {
+                    hasRecords.await();
+                }
+                batch = buffer.toByteArray();
+                synced = waiting;
+                segment = rotateTo;
+                rotation = rotated;
+                last = closed;
+                buffer = new ByteArrayOutputStream();
+                waiting = new ArrayList<>();
+                rotateTo = null;
+                rotated = null;
+            } catch (InterruptedException e) {
+                return;
+            } finally {
+                lock.unlock();
+            }
+
+            try {
+                ByteBuffer bytes = ByteBuffer.wrap(batch);
+                while (bytes.hasRemaining()) {
+                    channel.write(bytes);
+                }
+                if (policy != SyncPolicy.NEVER) {
+                    channel.force(false);
+                }
+                synced.forEach(durable -> durable.complete(null));
+            } catch (IOException e) {
+                System.err.println("\u001B[31m[ERROR]\u001B[0m Error writing the write-ahead log: " + e.getMessage());
+                synced.forEach(durable -> durable.completeExceptionally(e));
+            }
+            if (rotation != null) {
+                rotate(segment, rotation);
+            }
+            if (last) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Moves the log file to a segment and switches to a new log file. The
+     * current channel is only replaced once both steps succeeded, so a failed
+     * rotation leaves the log as it was.
+     */
+    private void rotate(Path segment, CompletableFuture<Void> rotation) {
+        try {
+            channel.force(false);
+            Files.move(file, segment);
+        } catch (IOException e) {
+            System.err.println("\u001B[31m[ERROR]\u001B[0m Error rotating the write-ahead log: " + e.getMessage());
+            rotation.completeExceptionally(e);
+            return;
+        }
+        try {
+            FileChannel previous = channel;
+            channel = open(file);
+            previous.close();
+            rotation.complete(null);
+        } catch (IOException e) {
+            System.err.println("\u001B[31m[ERROR]\u001B[0m Error rotating the write-ahead log: " + e.getMessage());
+            try {
+                // Keep appending to the old file, under its old name
+                Files.move(segment, file);
+            } catch (IOException ignored) {
+            }
+            rotation.completeExceptionally(e);
+        }
+    }
+
+    private static FileChannel open(Path file) throws IOException {
+        return FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    }
+
+    /**
+     * Applies every record of a log file, in order. Records are read one at a
+     * time, so only the largest of them has to fit in memory, whatever the
+     * size of the log. A record cut short or with a bad checksum, as left by a
+     * crash in the middle of a write, ends the replay and is truncated away so
+     * new records are appended after the last good one.
+     *
+     * @param file    The log file. Nothing happens if it does not exist.
+     * @param handler Applies each record.
+     * @return The number of records applied.
+     * @throws IOException If the file cannot be read or a record is malformed.
+     */
+    public static int replay(Path file, RecordHandler handler) throws IOException {
+        if (!Files.exists(file)) {
+            return 0;
+        }
+        try (FileChannel log = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            long size = log.size();
+            DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(log), 1 << 16));
+            long position = 0;
+            int count = 0;
+            while (size - position >= 8) {
+                int length = in.readInt();
+                int crc = in.readInt();
+                if (length <= 0 || length > size - position - 8) {
+                    break;
+                }
+                byte[] record = new byte[length];
+                in.readFully(record);
+                CRC32 check = new CRC32();
+                check.update(record);
+                if ((int) check.getValue() != crc) {
+                    break;
+                }
+                handler.apply(record[0],
+                        new DataInputStream(new ByteArrayInputStream(record, 1, record.length - 1)));
+                position += 8 + length;
+                count++;
+            }
+            if (position < size) {
+                System.out.println("\u001B[33m[WARNING]\u001B[0m Discarding a torn record at the end of the log.");
+                log.truncate(position);
+            }
+            return count;
+        }
+    }
+
+    /**
+     * Builds the record of a stored pair.
+     *
+     * @param key   The key.
+     * @param value The encoded value.
+     * @return The record.
+     */
+    public static byte[] putRecord(String key, byte[] value) {
+        return record(PUT_ENCODED, out -> {
+            out.writeUTF(key);
+            out.writeInt(value.length);
+            out.write(value);
+        });
+    }
+
+    /**
+     * Builds the record of several stored pairs.
+     *
+     * @param pairs The pairs, with encoded values.
+     * @return The record.
+     */
+    public static byte[] multiPutRecord(Map<String, byte[]> pairs) {
+        return record(MULTI_PUT_ENCODED, out -> {
+            out.writeInt(pairs.size());
+            for (Map.Entry<String, byte[]> entry : pairs.entrySet()) {
+                out.writeUTF(entry.getKey());
+                out.writeInt(entry.getValue().length);
+                out.write(entry.getValue());
+            }
+        });
+    }
+
+    /**
+     * Builds the record of a stored pair that expires.
+     *
+     * @param key      The key.
+     * @param value    The encoded value.
+     * @param deadline When the pair expires, in milliseconds since the epoch.
+     * @return The record.
+     */
+    public static byte[] putExpiringRecord(String key, byte[] value, long deadline) {
+        return record(PUT_EXPIRING, out -> {
+            out.writeUTF(key);
+            out.writeInt(value.length);
+            out.write(value);
+            out.writeLong(deadline);
+        });
+    }
+
+    /**
+     * Builds the record of a removed key.
+     *
+     * @param key The key.
+     * @return The record.
+     */
+    public static byte[] removeRecord(String key) {
+        return record(REMOVE, out -> out.writeUTF(key));
+    }
+
+    /**
+     * Builds the record of a registered user.
+     *
+     * @param username The username.
+     * @param password The password.
+     * @return The record.
+     */
+    public static byte[] registerRecord(String username, String password) {
+        return record(REGISTER, out -> {
+            out.writeUTF(username);
+            out.writeUTF(password);
+        });
+    }
+
+    private interface BodyWriter {
+        void write(DataOutputStream out) throws IOException;
+    }
+
+    private static byte[] record(byte type, BodyWriter body) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeByte(type);
+            body.write(out);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static void writeInt(ByteArrayOutputStream out, int value) {
+        out.write(value >>> 24);
+        out.write(value >>> 16);
+        out.write(value >>> 8);
+        out.write(value);
+    }
+}
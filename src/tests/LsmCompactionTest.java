@@ -0,0 +1,83 @@
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.stream.Stream;
+import server.LsmStorage;
+
+/**
+ * Checks that the LSM storage engine never lets a removed key come back when
+ * a memtable holding its removal is written out while a compaction merges the
+ * segments that hold the key. The memtable is tiny and the writes fast, so
+ * frozen memtables pile up and are written out back to back while
+ * compactions run. Run by <code>lsm_compaction_test.sh</code>.
+ */
+public class LsmCompactionTest {
+
+    private static final int ROUNDS = 20;
+    private static final int KEYS = 200;
+    private static final int MEMTABLE_BYTES = 64 * 1024;
+
+    public static void main(String[] args) throws IOException {
+        int failed = 0;
+        for (int round = 0; round < ROUNDS; round++) {
+            Path directory = Files.createTempDirectory("lsm-test");
+            try {
+                int back = runRound(directory);
+                if (back > 0) {
+                    System.out.println("Round " + round + ": " + back + " removed keys came back.");
+                    failed++;
+                }
+            } finally {
+                delete(directory);
+            }
+        }
+        System.out.println(failed == 0 ? "PASSED" : "FAILED in " + failed + " of " + ROUNDS + " rounds");
+        System.exit(failed == 0 ? 0 : 1);
+    }
+
+    /**
+     * Stores keys, removes them while more values keep the flusher and the
+     * compactor busy, and counts the removed keys readable before and after
+     * the engine is reopened.
+     */
+    private static int runRound(Path directory) throws IOException {
+        byte[] filler = new byte[4000];
+        LsmStorage lsm = new LsmStorage(directory, MEMTABLE_BYTES);
+        for (int i = 0; i < KEYS; i++) {
+            lsm.putIfAbsent("key_" + i, new byte[] {0, 1});
+        }
+        // Each removal lands in a different memtable, written out while earlier segments are merged
+        for (int i = 0; i < 10 * KEYS; i++) {
+            lsm.putIfAbsent("filler_" + i, filler);
+            if (i % 10 == 0) {
+                lsm.remove("key_" + i / 10);
+            }
+        }
+        int back = countBack(lsm);
+        lsm.close();
+
+        lsm = new LsmStorage(directory, MEMTABLE_BYTES);
+        back += countBack(lsm);
+        lsm.close();
+        return back;
+    }
+
+    private static int countBack(LsmStorage lsm) {
+        int back = 0;
+        for (int i = 0; i < KEYS; i++) {
+            if (lsm.get("key_" + i) != null) {
+                back++;
+            }
+        }
+        return back;
+    }
+
+    private static void delete(Path directory) throws IOException {
+        try (Stream<Path> files = Files.walk(directory)) {
+            for (Path file : files.sorted(Comparator.reverseOrder()).toList()) {
+                Files.delete(file);
+            }
+        }
+    }
+}
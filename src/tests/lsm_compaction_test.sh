@@ -0,0 +1,47 @@
+#!/bin/bash
+# ===============================
+# LSM TEST SCRIPT: Removals Flushed While Segments Are Compacted
+# ===============================
+#
+# This script checks that the LSM storage engine never lets a removed key come
+# back when a memtable holding its removal is written out while a compaction
+# merges older segments. The race needs flushes to run back to back while a
+# compaction starts, which clients over the network are too slow to cause, so
+# LsmCompactionTest drives the engine directly, over several rounds.
+# ===============================
+
+# Definition of colors for terminal output
+GREEN='\033[0;32m'
+RED='\033[0;31m'
+BLUE='\033[0;34m'
+YELLOW='\033[1;33m'
+CYAN='\033[0;36m'
+BOLD='\033[1m'
+NC='\033[0m'
+
+# Draw a line in the terminal for visual separation
+draw_line() {
+    echo -e "${BLUE}=================================${NC}"
+}
+
+# The test is compiled against the server classes (this assumes they are in the ../../bin directory)
+classes_dir=$(mktemp -d)
+
+draw_line
+echo -e "${YELLOW}${BOLD}    LSM COMPACTION TEST    ${NC}"
+draw_line
+
+echo -e "${CYAN}➤ Removing keys while flushes and compactions run...${NC}"
+javac -cp ../../bin -d "$classes_dir" LsmCompactionTest.java
+java -cp "../../bin:$classes_dir" LsmCompactionTest | grep -v "Compacted"
+status=${PIPESTATUS[0]}
+rm -rf "$classes_dir"
+
+draw_line
+if [ $status -eq 0 ]; then
+    echo -e "${GREEN}${BOLD}No removed key came back.${NC}"
+else
+    echo -e "${RED}${BOLD}Removed keys came back.${NC}"
+fi
+draw_line
+[ $status -eq 0 ]
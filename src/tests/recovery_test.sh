@@ -0,0 +1,152 @@
+#!/bin/bash
+# ===============================
+# RECOVERY TEST SCRIPT: Keys Stored Again Across Snapshot Rotations
+# ===============================
+#
+# This script checks that the server recovers keys that were put, removed and
+# put again with another value across a snapshot rotation. The keys are first
+# stored and the server is stopped, which saves a snapshot holding them and
+# rotates the log. After a restart they are evicted by filling the memory
+# limit, and stored again with new values. The server is then killed without a
+# chance to save its state and restarted; every key must come back as it was
+# before the crash, which only holds if the removals are replayed in order.
+# Keys stored with a time to live and written out by the LSM engine before a
+# crash must also still expire once the server has recovered.
+# ===============================
+
+# Definition of colors for terminal output
+GREEN='\033[0;32m'
+RED='\033[0;31m'
+BLUE='\033[0;34m'
+YELLOW='\033[1;33m'
+CYAN='\033[0;36m'
+BOLD='\033[1m'
+NC='\033[0m'
+
+# Draw a line in the terminal for visual separation
+draw_line() {
+    echo -e "${BLUE}=================================${NC}"
+}
+
+# Server and client configuration (this assumes the classes are in the ../../bin directory)
+port=12399
+data_dir=$(mktemp -d)
+server_program="java -cp ../../bin server.Server 4 --port=$port --data-dir=$data_dir"
+java_program="java -cp ../../bin client.ClientInterface localhost:$port"
+keys=20
+
+username="test_user_recovery"
+password="test_password_recovery"
+
+# Function to generate a random string of alphanumeric characters
+generate_random_string() {
+    cat /dev/urandom | tr -dc 'a-zA-Z0-9' | fold -w ${1:-32} | head -n 1
+}
+
+start_server() {
+    $server_program "$@" > /dev/null 2>&1 &
+    server_pid=$!
+    sleep 1
+}
+
+# Prints the value of every key with the given prefix (default: key), as the client shows it
+read_keys() {
+    {
+        echo "login"; echo "$username"; echo "$password"
+        for i in $(seq 1 $keys); do
+            echo "get"; echo "${1:-key}_$i"
+        done
+        echo "exit"
+    } | $java_program 2>&1 | tr '\r' '\n' | grep -ao "[a-z]*_[0-9]*$\|Key not found"
+}
+
+draw_line
+echo -e "${YELLOW}${BOLD}    RECOVERY TEST    ${NC}"
+draw_line
+
+# No background snapshots: the only rotation is the one on the graceful stop below
+start_server --snapshot-interval=0 --wal-sync=always
+
+echo -e "${CYAN}➤ Storing keys and stopping the server...${NC}"
+{
+    echo "register"; echo "$username"; echo "$password"
+    for i in $(seq 1 $keys); do
+        echo "put"; echo "key_$i"; echo "old_$i"
+    done
+    echo "exit"
+} | $java_program > /dev/null 2>&1
+kill $server_pid
+wait $server_pid 2>/dev/null
+
+# A memory limit small enough for the filler to evict the keys
+start_server --snapshot-interval=0 --wal-sync=always --max-memory-mb=1
+
+echo -e "${CYAN}➤ Evicting the keys and storing them again...${NC}"
+filler=$(generate_random_string 100000)
+{
+    echo "login"; echo "$username"; echo "$password"
+    for i in $(seq 1 30); do
+        echo "put"; echo "filler_$i"; echo "$filler"
+    done
+    for i in $(seq 1 $keys); do
+        echo "put"; echo "key_$i"; echo "new_$i"
+    done
+    echo "exit"
+} | $java_program > /dev/null 2>&1
+before=$(read_keys)
+
+echo -e "${CYAN}➤ Killing the server and restarting it...${NC}"
+{ kill -9 $server_pid; wait $server_pid; } 2>/dev/null
+start_server
+after=$(read_keys)
+kill $server_pid
+wait $server_pid 2>/dev/null
+rm -rf "$data_dir"
+
+stored_again=$(echo "$before" | grep -c "new_")
+wrong=$(diff <(echo "$before") <(echo "$after") | grep -c "^>")
+
+draw_line
+echo -e "${BOLD}Keys stored again before the crash:${NC} $stored_again of $keys"
+if [ $wrong -eq 0 ]; then
+    echo -e "${GREEN}${BOLD}All $keys keys recovered as they were.${NC}"
+else
+    echo -e "${RED}${BOLD}$wrong of $keys keys recovered differently.${NC}"
+fi
+draw_line
+
+# With the LSM engine, the pairs written out to segments before a crash are already stored when
+# the log is replayed, and their records must still restore when they expire
+data_dir=$(mktemp -d)
+server_program="java -cp ../../bin server.Server 4 --port=$port --data-dir=$data_dir --storage=lsm"
+start_server --snapshot-interval=0 --wal-sync=always --memtable-mb=1
+
+echo -e "${CYAN}➤ Storing keys that expire with the LSM engine and killing the server...${NC}"
+{
+    echo "register"; echo "$username"; echo "$password"
+    for i in $(seq 1 $keys); do
+        echo "putTTL"; echo "expiring_$i"; echo "expiring_$i"; echo "3000"
+    done
+    # Pushes the keys out of the memtable, into segments
+    for i in $(seq 1 25); do
+        echo "put"; echo "filler_$i"; echo "$filler"
+    done
+    echo "exit"
+} | $java_program > /dev/null 2>&1
+{ kill -9 $server_pid; wait $server_pid; } 2>/dev/null
+start_server --memtable-mb=1
+
+# Long enough for every key to pass its deadline
+sleep 3
+not_expired=$(read_keys expiring | grep -c "expiring_")
+kill $server_pid
+wait $server_pid 2>/dev/null
+rm -rf "$data_dir"
+
+if [ $not_expired -eq 0 ]; then
+    echo -e "${GREEN}${BOLD}All $keys keys expired after recovery.${NC}"
+else
+    echo -e "${RED}${BOLD}$not_expired of $keys keys never expired after recovery.${NC}"
+fi
+draw_line
+[ $wrong -eq 0 ] && [ $not_expired -eq 0 ]